@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.AccessControlException;
 import java.security.Permission;
@@ -258,7 +259,33 @@ public class Acp implements Serializable {
 	 * @return The Acp encoded in XML.
 	 */
 	public static String encode(Acp acp) {
-		Document accessControlPolicy;
+		return new XMLOutputter(Format.getCompactFormat())
+				.outputString(toDocument(acp));
+	}
+
+	/**
+	 * Encode an Acp as XML, writing it to an output stream as UTF-8.
+	 * 
+	 * @param acp
+	 *            The Acp to encode.
+	 * @param out
+	 *            Where to write the Acp encoded in XML.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public static void encode(Acp acp, OutputStream out) throws IOException {
+		new XMLOutputter(Format.getCompactFormat()).output(toDocument(acp),
+				out);
+	}
+
+	/**
+	 * Build the XML document of an Acp.
+	 * 
+	 * @param acp
+	 *            The Acp to encode.
+	 * @return The XML document.
+	 */
+	private static Document toDocument(Acp acp) {
 		Element accessControlPolicyElement;
 		Element ownerElement;
 		Element accessControlListElement;
@@ -293,10 +320,7 @@ public class Acp implements Serializable {
 		}
 		accessControlPolicyElement.addContent(accessControlListElement);
 
-		accessControlPolicy = new Document(accessControlPolicyElement);
-
-		return new XMLOutputter(Format.getCompactFormat())
-				.outputString(accessControlPolicy);
+		return new Document(accessControlPolicyElement);
 	}
 
 	/**
@@ -23,7 +23,7 @@ import java.util.Date;
  * 
  * @author Jesse Peterson
  */
-public class Bucket extends Resource {
+public class Bucket extends Resource implements Cloneable {
 	/**
 	 * If incompatible serialization changes are made, mostly deleting methods,
 	 * this must be changed.
@@ -56,4 +56,28 @@ public class Bucket extends Resource {
 	public void setCreated(Date created) {
 		this.created = created;
 	}
+
+	/**
+	 * Copy this bucket, so the copy can be changed without changing this
+	 * bucket. The Access Control Policy is shared, as it is replaced with
+	 * <code>setAcp</code> rather than modified.
+	 * 
+	 * @return A copy of this bucket.
+	 */
+	public Bucket copy() {
+		Bucket copy;
+
+		try {
+			copy = (Bucket) clone();
+		} catch (CloneNotSupportedException e) {
+			// Bucket is Cloneable
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		if (created != null) {
+			copy.created = new Date(created.getTime());
+		}
+
+		return copy;
+	}
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * The position of a listing cursor in the keys of a bucket: a key, and
+ * whether to resume at the key, after the key, or after every key starting
+ * with the key. A listing resumes from a position with a single seek, without
+ * revalidating a marker.
+ * <p>
+ * Handed to clients of <code>list-type=2</code> listings as an opaque
+ * continuation token, the URL safe Base64 encoding of a version byte, the
+ * seek byte and the key in UTF-8.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class ContinuationToken {
+	/**
+	 * Resume at the key.
+	 */
+	public static final int SEEK_AT = 0;
+
+	/**
+	 * Resume at the first key after the key.
+	 */
+	public static final int SEEK_AFTER = 1;
+
+	/**
+	 * Resume at the first key after every key starting with the key. Used to
+	 * resume after a common prefix.
+	 */
+	public static final int SEEK_AFTER_PREFIX = 2;
+
+	private static final int VERSION = 1;
+
+	private static final String UTF_8 = "UTF-8";
+
+	private String key;
+
+	private int seek;
+
+	/**
+	 * Create a position.
+	 * 
+	 * @param key
+	 *            The key to seek to.
+	 * @param seek
+	 *            Where to resume relative to the key: <code>SEEK_AT</code>,
+	 *            <code>SEEK_AFTER</code> or <code>SEEK_AFTER_PREFIX</code>.
+	 */
+	public ContinuationToken(String key, int seek) {
+		if (key == null) {
+			throw new IllegalArgumentException("key can not be null");
+		}
+		if ((seek < SEEK_AT) || (seek > SEEK_AFTER_PREFIX)) {
+			throw new IllegalArgumentException("Invalid seek: " + seek);
+		}
+		this.key = key;
+		this.seek = seek;
+	}
+
+	/**
+	 * Get the key to seek to.
+	 * 
+	 * @return The key to seek to.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Get where to resume relative to the key.
+	 * 
+	 * @return <code>SEEK_AT</code>, <code>SEEK_AFTER</code> or
+	 *         <code>SEEK_AFTER_PREFIX</code>.
+	 */
+	public int getSeek() {
+		return seek;
+	}
+
+	/**
+	 * Encode the position as a continuation token.
+	 * 
+	 * @return The continuation token.
+	 */
+	public String encode() {
+		byte[] keyBytes;
+		byte[] bytes;
+		StringBuffer token;
+
+		try {
+			keyBytes = key.getBytes(UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+
+		bytes = new byte[keyBytes.length + 2];
+		bytes[0] = (byte) VERSION;
+		bytes[1] = (byte) seek;
+		System.arraycopy(keyBytes, 0, bytes, 2, keyBytes.length);
+
+		token = new StringBuffer(new String(Base64.encodeBase64(bytes)));
+		for (int i = token.length() - 1; i >= 0; i--) {
+			switch (token.charAt(i)) {
+			case '+':
+				token.setCharAt(i, '-');
+				break;
+			case '/':
+				token.setCharAt(i, '_');
+				break;
+			case '=':
+				token.setLength(i);
+				break;
+			}
+		}
+
+		return token.toString();
+	}
+
+	/**
+	 * Decode a continuation token.
+	 * 
+	 * @param token
+	 *            The continuation token.
+	 * @return The position.
+	 * @throws IllegalArgumentException
+	 *             The token was not created by <code>encode()</code>.
+	 */
+	public static ContinuationToken decode(String token)
+			throws IllegalArgumentException {
+		StringBuffer base64 = new StringBuffer(token);
+		byte[] bytes;
+		char c;
+
+		if (token.length() % 4 == 1) {
+			// not a length Base64 without padding can have
+			throw new IllegalArgumentException("Invalid continuation token: "
+					+ token);
+		}
+
+		for (int i = 0; i < base64.length(); i++) {
+			c = base64.charAt(i);
+			if (c == '-') {
+				base64.setCharAt(i, '+');
+			} else if (c == '_') {
+				base64.setCharAt(i, '/');
+			} else if (!(((c >= 'A') && (c <= 'Z'))
+					|| ((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9')))) {
+				throw new IllegalArgumentException(
+						"Invalid continuation token: " + token);
+			}
+		}
+		while (base64.length() % 4 != 0) {
+			base64.append('=');
+		}
+
+		bytes = Base64.decodeBase64(base64.toString().getBytes());
+		if ((bytes.length < 2) || (bytes[0] != VERSION) || (bytes[1] < SEEK_AT)
+				|| (bytes[1] > SEEK_AFTER_PREFIX)) {
+			throw new IllegalArgumentException("Invalid continuation token: "
+					+ token);
+		}
+
+		try {
+			return new ContinuationToken(new String(bytes, 2,
+					bytes.length - 2, UTF_8), bytes[1]);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported");
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+/**
+ * The storage used by deduplicated object data: the data as referenced by
+ * objects, and the data actually stored, each identical content once.
+ * Immutable.
+ * 
+ * @author Jesse Peterson
+ */
+public class DataUsage {
+	private final Usage referenced;
+
+	private final Usage stored;
+
+	/**
+	 * Create a data usage.
+	 * 
+	 * @param referenced
+	 *            The number of objects referencing deduplicated data, and the
+	 *            total size of their data.
+	 * @param stored
+	 *            The number of distinct data stored, and its total size.
+	 */
+	public DataUsage(Usage referenced, Usage stored) {
+		this.referenced = referenced;
+		this.stored = stored;
+	}
+
+	/**
+	 * Get the data as referenced by objects.
+	 * 
+	 * @return The number of objects referencing deduplicated data, and the
+	 *         total size of their data.
+	 */
+	public Usage getReferenced() {
+		return referenced;
+	}
+
+	/**
+	 * Get the data actually stored.
+	 * 
+	 * @return The number of distinct data stored, and its total size.
+	 */
+	public Usage getStored() {
+		return stored;
+	}
+
+	/**
+	 * Get the space saved by storing identical data once.
+	 * 
+	 * @return The number of bytes saved.
+	 */
+	public long getSavedBytes() {
+		return referenced.getBytes() - stored.getBytes();
+	}
+
+	@Override
+	public String toString() {
+		return "referenced[" + referenced + "], stored[" + stored
+				+ "], saved=" + getSavedBytes();
+	}
+}
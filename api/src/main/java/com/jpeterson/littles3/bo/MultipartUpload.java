@@ -0,0 +1,105 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+/**
+ * A multipart upload: an object uploaded as independently written parts, and
+ * assembled from them when the upload is completed.
+ * 
+ * @author Jesse Peterson
+ */
+public class MultipartUpload {
+	private String uploadId;
+
+	private long initiated;
+
+	private S3Object s3Object;
+
+	/**
+	 * Create a multipart upload.
+	 * 
+	 * @param uploadId
+	 *            The id of the upload.
+	 * @param initiated
+	 *            When the upload was initiated, in milliseconds since the
+	 *            epoch.
+	 * @param s3Object
+	 *            The object to create when the upload is completed: its
+	 *            bucket, key, content type, metadata and access control
+	 *            policy.
+	 */
+	public MultipartUpload(String uploadId, long initiated, S3Object s3Object) {
+		this.uploadId = uploadId;
+		this.initiated = initiated;
+		this.s3Object = s3Object;
+	}
+
+	/**
+	 * Get the id of the upload.
+	 * 
+	 * @return The id of the upload.
+	 */
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * Get when the upload was initiated.
+	 * 
+	 * @return When the upload was initiated, in milliseconds since the epoch.
+	 */
+	public long getInitiated() {
+		return initiated;
+	}
+
+	/**
+	 * Get the object to create when the upload is completed. Its data is not
+	 * written.
+	 * 
+	 * @return The object to create when the upload is completed.
+	 */
+	public S3Object getS3Object() {
+		return s3Object;
+	}
+
+	/**
+	 * Get the bucket of the object.
+	 * 
+	 * @return The bucket of the object.
+	 */
+	public String getBucket() {
+		return s3Object.getBucket();
+	}
+
+	/**
+	 * Get the key of the object.
+	 * 
+	 * @return The key of the object.
+	 */
+	public String getKey() {
+		return s3Object.getKey();
+	}
+
+	/**
+	 * Get the user who initiated the upload, who owns the object.
+	 * 
+	 * @return The user who initiated the upload.
+	 */
+	public CanonicalUser getOwner() {
+		return s3Object.getAcp().getOwner();
+	}
+}
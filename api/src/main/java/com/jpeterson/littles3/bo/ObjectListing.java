@@ -0,0 +1,219 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of a listing of the keys in a bucket: the objects and the common
+ * prefixes, in key order, and the request parameters they were listed with.
+ * Holds at most <code>maxKeys</code> results; the page is written to the
+ * client by the web tier.
+ * 
+ * @author Jesse Peterson
+ */
+public class ObjectListing {
+	private String bucket;
+
+	private String prefix;
+
+	private String marker;
+
+	private String delimiter;
+
+	private int maxKeys;
+
+	private boolean truncated = false;
+
+	private String nextMarker;
+
+	private boolean nextMarkerCommonPrefix = false;
+
+	private List<S3ObjectSummary> contents = new ArrayList<S3ObjectSummary>();
+
+	private List<String> commonPrefixes = new ArrayList<String>();
+
+	/**
+	 * Create an empty listing.
+	 * 
+	 * @param bucket
+	 *            The name of the bucket.
+	 * @param prefix
+	 *            The prefix the keys were restricted to.
+	 * @param marker
+	 *            The marker the listing started after. May be
+	 *            <code>null</code>.
+	 * @param delimiter
+	 *            The delimiter keys were rolled up with. May be
+	 *            <code>null</code>.
+	 * @param maxKeys
+	 *            The maximum number of results.
+	 */
+	public ObjectListing(String bucket, String prefix, String marker,
+			String delimiter, int maxKeys) {
+		this.bucket = bucket;
+		this.prefix = prefix;
+		this.marker = marker;
+		this.delimiter = delimiter;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Get the name of the bucket.
+	 * 
+	 * @return The name of the bucket.
+	 */
+	public String getBucket() {
+		return bucket;
+	}
+
+	/**
+	 * Get the prefix the keys were restricted to.
+	 * 
+	 * @return The prefix the keys were restricted to.
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Get the marker the listing started after.
+	 * 
+	 * @return The marker the listing started after, or <code>null</code>.
+	 */
+	public String getMarker() {
+		return marker;
+	}
+
+	/**
+	 * Get the delimiter keys were rolled up with.
+	 * 
+	 * @return The delimiter keys were rolled up with, or <code>null</code>.
+	 */
+	public String getDelimiter() {
+		return delimiter;
+	}
+
+	/**
+	 * Get the maximum number of results.
+	 * 
+	 * @return The maximum number of results.
+	 */
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	/**
+	 * Determine if there are more results after this page.
+	 * 
+	 * @return <code>True</code> if there are more results after this page.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Set if there are more results after this page.
+	 * 
+	 * @param truncated
+	 *            <code>True</code> if there are more results after this
+	 *            page.
+	 */
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+
+	/**
+	 * Get the marker to list the next page with: the last key or common
+	 * prefix of this page.
+	 * 
+	 * @return The marker to list the next page with, or <code>null</code> if
+	 *         the page is empty.
+	 */
+	public String getNextMarker() {
+		return nextMarker;
+	}
+
+	/**
+	 * Get the position to list the next page from: after the last key or
+	 * common prefix of this page.
+	 * 
+	 * @return The position to list the next page from, or <code>null</code>
+	 *         if the page is not truncated.
+	 */
+	public ContinuationToken getNextContinuationToken() {
+		if (!truncated || (nextMarker == null)) {
+			return null;
+		}
+
+		return new ContinuationToken(nextMarker,
+				nextMarkerCommonPrefix ? ContinuationToken.SEEK_AFTER_PREFIX
+						: ContinuationToken.SEEK_AFTER);
+	}
+
+	/**
+	 * Add an object to the page.
+	 * 
+	 * @param summary
+	 *            The listing fields of the object.
+	 */
+	public void addContent(S3ObjectSummary summary) {
+		contents.add(summary);
+		nextMarker = summary.getKey();
+		nextMarkerCommonPrefix = false;
+	}
+
+	/**
+	 * Add a common prefix to the page.
+	 * 
+	 * @param commonPrefix
+	 *            The common prefix.
+	 */
+	public void addCommonPrefix(String commonPrefix) {
+		commonPrefixes.add(commonPrefix);
+		nextMarker = commonPrefix;
+		nextMarkerCommonPrefix = true;
+	}
+
+	/**
+	 * Get the objects of the page.
+	 * 
+	 * @return The objects of the page, in key order.
+	 */
+	public List<S3ObjectSummary> getContents() {
+		return contents;
+	}
+
+	/**
+	 * Get the common prefixes of the page.
+	 * 
+	 * @return The common prefixes of the page, in key order.
+	 */
+	public List<String> getCommonPrefixes() {
+		return commonPrefixes;
+	}
+
+	/**
+	 * Get the number of results of the page.
+	 * 
+	 * @return The number of objects and common prefixes of the page.
+	 */
+	public int size() {
+		return contents.size() + commonPrefixes.size();
+	}
+}
@@ -16,6 +16,7 @@
 
 package com.jpeterson.littles3.bo;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
@@ -23,16 +24,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.jpeterson.util.http.Range;
+import com.jpeterson.util.http.RangeInputStream;
+import com.jpeterson.util.io.BufferPool;
+
 /**
  * Object representation of an S3 object.
  * 
  * @author Jesse Peterson
  */
-public abstract class S3Object extends Resource {
+public abstract class S3Object extends Resource implements Cloneable {
 	/**
 	 * If incompatible serialization changes are made, mostly deleting methods,
 	 * this must be changed.
@@ -258,6 +264,64 @@ public abstract class S3Object extends Resource {
 	 */
 	public abstract OutputStream getOutputStream();
 
+	/**
+	 * Get an <code>InputStream</code> to read a range of the Object data from.
+	 * This basic implementation skips through <code>getInputStream()</code>
+	 * to reach <code>start</code>, so the cost grows with the position of the
+	 * range. Subclasses with seekable storage should override this to position
+	 * directly at <code>start</code>.
+	 * 
+	 * @param start
+	 *            The position of the first byte of the range, inclusive.
+	 * @param end
+	 *            The position of the last byte of the range, inclusive.
+	 * @return An <code>InputStream</code> to read the range of Object data
+	 *         from. The stream ends after the byte at <code>end</code>.
+	 * @throws IOException
+	 *             Unable to read the object data.
+	 */
+	public InputStream openRange(long start, long end) throws IOException {
+		InputStream in = getInputStream();
+
+		if (in == null) {
+			throw new IOException("Unable to read data for object: " + key);
+		}
+
+		return new RangeInputStream(in, new Range(start, end));
+	}
+
+	/**
+	 * Write a portion of the object data to an <code>OutputStream</code>. This
+	 * basic implementation reads the data from <code>openRange</code> through
+	 * a pooled buffer. Subclasses with direct access to the underlying storage
+	 * should override this to avoid the intermediate copy.
+	 * 
+	 * @param position
+	 *            The position in the object data to start writing from.
+	 * @param count
+	 *            The number of bytes to write.
+	 * @param out
+	 *            The <code>OutputStream</code> to write the data to.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             Unable to read the object data or write to <code>out</code>.
+	 */
+	public long transferTo(long position, long count, OutputStream out)
+			throws IOException {
+		InputStream in;
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		in = openRange(position, position + count - 1);
+		try {
+			return BufferPool.getInstance().copy(in, out, count);
+		} finally {
+			in.close();
+		}
+	}
+
 	/**
 	 * Delete the Object data.
 	 * 
@@ -326,4 +390,31 @@ public abstract class S3Object extends Resource {
 
 		values.add(value);
 	}
+
+	/**
+	 * Copy this object, so the copy can be changed without changing this
+	 * object. The copy has its own metadata, and shares the data and the
+	 * Access Control Policy, which is replaced with <code>setAcp</code>
+	 * rather than modified.
+	 * 
+	 * @return A copy of this object.
+	 */
+	public S3Object copy() {
+		S3Object copy;
+
+		try {
+			copy = (S3Object) clone();
+		} catch (CloneNotSupportedException e) {
+			// S3Object is Cloneable
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		copy.metadata = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : metadata.entrySet()) {
+			copy.metadata.put(entry.getKey(), new ArrayList<String>(entry
+					.getValue()));
+		}
+
+		return copy;
+	}
 }
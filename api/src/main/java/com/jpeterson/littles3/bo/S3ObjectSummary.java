@@ -0,0 +1,179 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+/**
+ * The fields of an object listed in a bucket listing. Listing an object only
+ * needs these, not the storage URL, the metadata or the grants.
+ * 
+ * @author Jesse Peterson
+ */
+public class S3ObjectSummary {
+	private String key;
+
+	private long size;
+
+	private String eTag;
+
+	private long lastModified;
+
+	private String ownerId;
+
+	private String ownerDisplayName;
+
+	/**
+	 * Empty constructor.
+	 */
+	public S3ObjectSummary() {
+	}
+
+	/**
+	 * Create the summary of an object.
+	 * 
+	 * @param s3Object
+	 *            The object.
+	 */
+	public S3ObjectSummary(S3Object s3Object) {
+		Acp acp = s3Object.getAcp();
+		CanonicalUser owner = (acp == null) ? null : acp.getOwner();
+
+		setKey(s3Object.getKey());
+		setSize(s3Object.getContentLength());
+		setETag(s3Object.getETag());
+		setLastModified(s3Object.getLastModified());
+		if (owner != null) {
+			setOwnerId(owner.getId());
+			setOwnerDisplayName(owner.getDisplayName());
+		}
+	}
+
+	/**
+	 * Get the key of the object.
+	 * 
+	 * @return The key of the object.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Set the key of the object.
+	 * 
+	 * @param key
+	 *            The key of the object.
+	 */
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Get the size of the object.
+	 * 
+	 * @return The size of the object, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Set the size of the object.
+	 * 
+	 * @param size
+	 *            The size of the object, in bytes.
+	 */
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * Get the ETag of the object.
+	 * 
+	 * @return The ETag of the object.
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * Set the ETag of the object.
+	 * 
+	 * @param eTag
+	 *            The ETag of the object.
+	 */
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
+	/**
+	 * Get the last modified time of the object.
+	 * 
+	 * @return The last modified time of the object, in milliseconds since the
+	 *         epoch.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Set the last modified time of the object.
+	 * 
+	 * @param lastModified
+	 *            The last modified time of the object, in milliseconds since
+	 *            the epoch.
+	 */
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Get the canonical user id of the owner of the object.
+	 * 
+	 * @return The canonical user id of the owner of the object.
+	 */
+	public String getOwnerId() {
+		return ownerId;
+	}
+
+	/**
+	 * Set the canonical user id of the owner of the object.
+	 * 
+	 * @param ownerId
+	 *            The canonical user id of the owner of the object.
+	 */
+	public void setOwnerId(String ownerId) {
+		this.ownerId = ownerId;
+	}
+
+	/**
+	 * Get the display name of the owner of the object.
+	 * 
+	 * @return The display name of the owner of the object.
+	 */
+	public String getOwnerDisplayName() {
+		return ownerDisplayName;
+	}
+
+	/**
+	 * Set the display name of the owner of the object.
+	 * 
+	 * @param ownerDisplayName
+	 *            The display name of the owner of the object.
+	 */
+	public void setOwnerDisplayName(String ownerDisplayName) {
+		this.ownerDisplayName = ownerDisplayName;
+	}
+}
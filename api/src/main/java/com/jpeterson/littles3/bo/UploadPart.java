@@ -0,0 +1,104 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import java.net.URL;
+
+/**
+ * A part of a multipart upload.
+ * 
+ * @author Jesse Peterson
+ */
+public class UploadPart {
+	private int partNumber;
+
+	private String eTag;
+
+	private long size;
+
+	private long lastModified;
+
+	private URL storageUrl;
+
+	/**
+	 * Create a part.
+	 * 
+	 * @param partNumber
+	 *            The number of the part, from <code>1</code>.
+	 * @param eTag
+	 *            The hex encoded MD5 digest of the part data.
+	 * @param size
+	 *            The size of the part data, in bytes.
+	 * @param lastModified
+	 *            When the part was uploaded, in milliseconds since the epoch.
+	 * @param storageUrl
+	 *            The URL of the part data.
+	 */
+	public UploadPart(int partNumber, String eTag, long size,
+			long lastModified, URL storageUrl) {
+		this.partNumber = partNumber;
+		this.eTag = eTag;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.storageUrl = storageUrl;
+	}
+
+	/**
+	 * Get the number of the part.
+	 * 
+	 * @return The number of the part, from <code>1</code>.
+	 */
+	public int getPartNumber() {
+		return partNumber;
+	}
+
+	/**
+	 * Get the ETag of the part.
+	 * 
+	 * @return The hex encoded MD5 digest of the part data.
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * Get the size of the part.
+	 * 
+	 * @return The size of the part data, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Get when the part was uploaded.
+	 * 
+	 * @return When the part was uploaded, in milliseconds since the epoch.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Get the URL of the part data.
+	 * 
+	 * @return The URL of the part data.
+	 */
+	public URL getStorageUrl() {
+		return storageUrl;
+	}
+}
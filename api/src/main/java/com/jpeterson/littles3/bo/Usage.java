@@ -0,0 +1,108 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+/**
+ * The storage used by a bucket, or by the keys of a bucket starting with a
+ * prefix: the number of objects and their total size. Immutable.
+ * 
+ * @author Jesse Peterson
+ */
+public class Usage {
+	/**
+	 * No objects.
+	 */
+	public static final Usage EMPTY = new Usage(0, 0);
+
+	private final long objects;
+
+	private final long bytes;
+
+	/**
+	 * Create a usage.
+	 * 
+	 * @param objects
+	 *            The number of objects.
+	 * @param bytes
+	 *            The total size of the objects, in bytes.
+	 */
+	public Usage(long objects, long bytes) {
+		this.objects = objects;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Get the number of objects.
+	 * 
+	 * @return The number of objects.
+	 */
+	public long getObjects() {
+		return objects;
+	}
+
+	/**
+	 * Get the total size of the objects.
+	 * 
+	 * @return The total size of the objects, in bytes.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get this usage with objects added or, if <code>objects</code> is
+	 * negative, removed.
+	 * 
+	 * @param objects
+	 *            The number of objects to add.
+	 * @param bytes
+	 *            The total size of the objects to add, in bytes.
+	 * @return The new usage.
+	 */
+	public Usage add(long objects, long bytes) {
+		return new Usage(this.objects + objects, this.bytes + bytes);
+	}
+
+	/**
+	 * Determine if there are no objects.
+	 * 
+	 * @return <code>True</code> if there are no objects.
+	 */
+	public boolean isEmpty() {
+		return objects == 0;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Usage)) {
+			return false;
+		}
+
+		return (objects == ((Usage) obj).objects)
+				&& (bytes == ((Usage) obj).bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (objects ^ (objects >>> 32) ^ bytes ^ (bytes >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return "objects=" + objects + ", bytes=" + bytes;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao;
+
+import com.jpeterson.littles3.bo.ContinuationToken;
+
+/**
+ * Key ordering helpers for listing keys of a bucket held in key order.
+ * 
+ * @author Jesse Peterson
+ */
+public class KeyRange {
+	private KeyRange() {
+	}
+
+	/**
+	 * Get the smallest key that sorts after every key starting with a prefix.
+	 * A listing that has rolled a prefix up into a common prefix seeks to this
+	 * key instead of visiting the keys under the prefix.
+	 * 
+	 * @param prefix
+	 *            The prefix.
+	 * @return The smallest key that sorts after every key starting with
+	 *         <code>prefix</code>, or <code>null</code> if there is none.
+	 */
+	public static String prefixEnd(String prefix) {
+		StringBuffer end = new StringBuffer(prefix);
+
+		for (int i = end.length() - 1; i >= 0; i--) {
+			if (end.charAt(i) != Character.MAX_VALUE) {
+				end.setCharAt(i, (char) (end.charAt(i) + 1));
+				end.setLength(i + 1);
+				return end.toString();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Get the common prefix a key is rolled up into.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param prefixLength
+	 *            The length of the listing prefix the key starts with.
+	 * @param delimiter
+	 *            The delimiter. May be <code>null</code> or empty.
+	 * @return The key up to and including the first delimiter after the
+	 *         prefix, or <code>null</code> if the key is not rolled up.
+	 */
+	public static String commonPrefix(String key, int prefixLength,
+			String delimiter) {
+		int delimiterIndex;
+
+		if ((delimiter == null) || (delimiter.length() == 0)) {
+			return null;
+		}
+
+		delimiterIndex = key.indexOf(delimiter, prefixLength);
+		if (delimiterIndex == -1) {
+			return null;
+		}
+
+		return key.substring(0, delimiterIndex + delimiter.length());
+	}
+
+	/**
+	 * Get the position a listing resumes from after a marker. A marker that
+	 * falls inside a common prefix resumes after the common prefix, which was
+	 * listed by an earlier request.
+	 * 
+	 * @param marker
+	 *            The marker. Must start with the listing prefix.
+	 * @param prefixLength
+	 *            The length of the listing prefix.
+	 * @param delimiter
+	 *            The delimiter. May be <code>null</code> or empty.
+	 * @return The position to resume the listing from.
+	 */
+	public static ContinuationToken markerPosition(String marker,
+			int prefixLength, String delimiter) {
+		String commonPrefix = commonPrefix(marker, prefixLength, delimiter);
+
+		if (commonPrefix != null) {
+			return new ContinuationToken(commonPrefix,
+					ContinuationToken.SEEK_AFTER_PREFIX);
+		}
+
+		return new ContinuationToken(marker, ContinuationToken.SEEK_AFTER);
+	}
+}
@@ -16,9 +16,14 @@
 
 package com.jpeterson.littles3.dao;
 
+import java.util.SortedMap;
+
 import org.springframework.dao.DataAccessException;
 
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
 import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.Usage;
 
 /**
  * Manage S3 object resource.
@@ -45,10 +50,13 @@ public interface S3ObjectDao {
 	 * 
 	 * @param s3Object
 	 *            The S3 object to save.
+	 * @return The S3 object replaced, read as the new object is saved, or
+	 *         <code>null</code> if the key was new.
 	 * @throws DataAccessException
 	 *             Unable to save the S3 object.
 	 */
-	public void storeS3Object(S3Object s3Object) throws DataAccessException;
+	public S3Object storeS3Object(S3Object s3Object)
+			throws DataAccessException;
 
 	/**
 	 * Delete the S3 object.
@@ -75,10 +83,69 @@ public interface S3ObjectDao {
 	 * @param maxKeys
 	 *            Limit the number of results returned in response to your
 	 *            query.
-	 * @return An XML document with the listing results.
+	 * @return A page of the listing, holding at most <code>maxKeys</code>
+	 *         results.
+	 * @throws DataAccessException
+	 *             Unable to generate the list.
+	 */
+	public ObjectListing listKeys(String bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException;
+
+	/**
+	 * Generate a list of the keys in a bucket, resuming from the position an
+	 * earlier listing stopped at. The position is a single seek in key
+	 * order.
+	 * 
+	 * @param bucket
+	 *            The bucket containing the keys to list.
+	 * @param prefix
+	 *            Restrict the list to only contain results that begin with the
+	 *            specified prefix.
+	 * @param position
+	 *            Where to start the list. May be <code>null</code> to start
+	 *            at the first key beginning with the prefix.
+	 * @param delimiter
+	 *            Used to roll up common keys into a summary.
+	 * @param maxKeys
+	 *            Limit the number of results returned in response to your
+	 *            query.
+	 * @param fetchOwner
+	 *            <code>True</code> if the owners of the objects are listed.
+	 *            If <code>false</code>, the owner of a listed object may be
+	 *            left out.
+	 * @return A page of the listing, holding at most <code>maxKeys</code>
+	 *         results.
 	 * @throws DataAccessException
 	 *             Unable to generate the list.
 	 */
-	public String listKeys(String bucket, String prefix, String marker,
-			String delimiter, int maxKeys) throws DataAccessException;
+	public ObjectListing listKeys(String bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException;
+
+	/**
+	 * Get the usage of a bucket: the number of objects and their total size.
+	 * Maintained as objects are stored and removed, so it is not counted.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @return The usage of the bucket.
+	 * @throws DataAccessException
+	 *             Unable to get the usage.
+	 */
+	public Usage getUsage(String bucket) throws DataAccessException;
+
+	/**
+	 * Get the usage of each key prefix of a bucket, for the levels of key
+	 * prefixes the DAO is configured to keep usage for.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @return The usage of each key prefix holding objects, by prefix. Empty
+	 *         if usage is not kept for key prefixes.
+	 * @throws DataAccessException
+	 *             Unable to get the usage.
+	 */
+	public SortedMap<String, Usage> getPrefixUsage(String bucket)
+			throws DataAccessException;
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.cache;
+
+import org.springframework.dao.DataAccessException;
+
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.dao.BucketDao;
+
+/**
+ * A <code>BucketDao</code> decorator that caches loaded buckets in memory, in
+ * front of any other <code>BucketDao</code> implementation. Stores and
+ * removes are written through to the underlying DAO before the cache is
+ * updated.
+ * <p>
+ * Cached buckets are copied as they are loaded and stored, so a request
+ * changing a bucket it loaded, as a PUT of its Access Control Policy does, is
+ * not seen by other requests until the bucket is stored.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class CachingBucketDao implements BucketDao {
+	private BucketDao bucketDao;
+
+	private DaoCache<Bucket> cache = new DaoCache<Bucket>();
+
+	/**
+	 * Create a caching decorator. The underlying DAO must be set with
+	 * <code>setBucketDao</code>.
+	 */
+	public CachingBucketDao() {
+		super();
+	}
+
+	public Bucket loadBucket(String bucket) throws DataAccessException {
+		Bucket theBucket;
+		long stamp;
+
+		if ((theBucket = cache.get(bucket)) != null) {
+			return theBucket.copy();
+		}
+
+		stamp = cache.getStamp();
+		theBucket = bucketDao.loadBucket(bucket);
+		if (theBucket != null) {
+			cache.putIfCurrent(bucket, theBucket.copy(), stamp);
+		}
+
+		return theBucket;
+	}
+
+	public void storeBucket(Bucket bucket) throws DataAccessException {
+		try {
+			bucketDao.storeBucket(bucket);
+		} catch (DataAccessException e) {
+			cache.remove(bucket.getName());
+			throw e;
+		}
+		cache.put(bucket.getName(), bucket.copy());
+	}
+
+	public void removeBucket(Bucket bucket) throws DataAccessException {
+		try {
+			bucketDao.removeBucket(bucket);
+		} finally {
+			cache.remove(bucket.getName());
+		}
+	}
+
+	/**
+	 * Get the underlying DAO.
+	 * 
+	 * @return The underlying DAO.
+	 */
+	public BucketDao getBucketDao() {
+		return bucketDao;
+	}
+
+	/**
+	 * Set the underlying DAO.
+	 * 
+	 * @param bucketDao
+	 *            The underlying DAO.
+	 */
+	public void setBucketDao(BucketDao bucketDao) {
+		this.bucketDao = bucketDao;
+	}
+
+	/**
+	 * Get the maximum number of cached buckets.
+	 * 
+	 * @return The maximum number of cached buckets.
+	 */
+	public int getMaxEntries() {
+		return cache.getMaxEntries();
+	}
+
+	/**
+	 * Set the maximum number of cached buckets.
+	 * 
+	 * @param maxEntries
+	 *            The maximum number of cached buckets.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		cache.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * Get the time to live of a cached bucket.
+	 * 
+	 * @return The time to live of a cached bucket, in milliseconds.
+	 *         <code>0</code> if cached buckets do not expire.
+	 */
+	public long getTimeToLive() {
+		return cache.getTimeToLive();
+	}
+
+	/**
+	 * Set the time to live of a cached bucket.
+	 * 
+	 * @param timeToLive
+	 *            The time to live of a cached bucket, in milliseconds.
+	 *            <code>0</code> if cached buckets do not expire.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		cache.setTimeToLive(timeToLive);
+	}
+
+	/**
+	 * Get the cache, for its hit, miss and eviction counters.
+	 * 
+	 * @return The cache.
+	 */
+	public DaoCache<?> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Get the ratio of loads answered from the cache.
+	 * 
+	 * @return The ratio of loads answered from the cache, between
+	 *         <code>0</code> and <code>1</code>.
+	 */
+	public double getHitRatio() {
+		return cache.getHitRatio();
+	}
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.cache;
+
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.dao.DataAccessException;
+
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.littles3.dao.S3ObjectDao;
+
+/**
+ * An <code>S3ObjectDao</code> decorator that caches loaded objects in
+ * memory, in front of any other <code>S3ObjectDao</code> implementation.
+ * Stores and removes are written through to the underlying DAO before the
+ * cache is updated, under a lock of the key, so concurrent stores of a key
+ * leave the object stored last in the cache.
+ * <p>
+ * Listings are cached too, keyed on their parameters and on the version of
+ * the bucket, a counter incremented after every store and remove in the
+ * bucket. A store or remove makes every cached listing of the bucket
+ * unreachable without visiting them; they age out of the cache. Listing an
+ * unchanged bucket again costs two map lookups. Cached listings are bounded
+ * both in number and in the total number of keys and common prefixes they
+ * hold, as a listing may hold one or a thousand.
+ * </p>
+ * <p>
+ * Cached objects are copied as they are loaded and stored, so a request
+ * changing an object it loaded, as a PUT of its Access Control Policy does,
+ * is not seen by other requests until the object is stored. Cached listings
+ * are shared between requests, and must not be modified.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class CachingS3ObjectDao implements S3ObjectDao {
+	private static final int LOCKS = 64;
+
+	private S3ObjectDao s3ObjectDao;
+
+	private Object[] locks;
+
+	private DaoCache<S3Object> cache = new DaoCache<S3Object>();
+
+	/**
+	 * Default maximum number of cached listings.
+	 */
+	public static final int DEFAULT_LISTING_MAX_ENTRIES = 1000;
+
+	/**
+	 * Default maximum number of keys and common prefixes held by the cached
+	 * listings.
+	 */
+	public static final long DEFAULT_LISTING_MAX_KEYS = 100000;
+
+	private DaoCache<ObjectListing> listings = new DaoCache<ObjectListing>();
+
+	/**
+	 * The versions of the buckets, by bucket name.
+	 */
+	private ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Create a caching decorator. The underlying DAO must be set with
+	 * <code>setS3ObjectDao</code>.
+	 */
+	public CachingS3ObjectDao() {
+		super();
+
+		listings.setMaxEntries(DEFAULT_LISTING_MAX_ENTRIES);
+		listings.setMaxWeight(DEFAULT_LISTING_MAX_KEYS);
+
+		locks = new Object[LOCKS];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	public S3Object loadS3Object(String bucket, String key)
+			throws DataAccessException {
+		String cacheKey = cacheKey(bucket, key);
+		S3Object s3Object;
+		long stamp;
+
+		if ((s3Object = cache.get(cacheKey)) != null) {
+			return s3Object.copy();
+		}
+
+		stamp = cache.getStamp();
+		s3Object = s3ObjectDao.loadS3Object(bucket, key);
+		if (s3Object != null) {
+			cache.putIfCurrent(cacheKey, s3Object.copy(), stamp);
+		}
+
+		return s3Object;
+	}
+
+	public S3Object storeS3Object(S3Object s3Object)
+			throws DataAccessException {
+		String cacheKey = cacheKey(s3Object.getBucket(), s3Object.getKey());
+		S3Object replaced;
+
+		// the cache is updated in the order the underlying DAO stored
+		synchronized (getLock(cacheKey)) {
+			try {
+				replaced = s3ObjectDao.storeS3Object(s3Object);
+			} catch (DataAccessException e) {
+				cache.remove(cacheKey);
+				throw e;
+			} finally {
+				// a failed store may have been partly written
+				version(s3Object.getBucket()).incrementAndGet();
+			}
+			cache.put(cacheKey, s3Object.copy());
+		}
+
+		return replaced;
+	}
+
+	public void removeS3Object(S3Object s3Object) throws DataAccessException {
+		String cacheKey = cacheKey(s3Object.getBucket(), s3Object.getKey());
+
+		synchronized (getLock(cacheKey)) {
+			try {
+				s3ObjectDao.removeS3Object(s3Object);
+			} finally {
+				version(s3Object.getBucket()).incrementAndGet();
+				cache.remove(cacheKey);
+			}
+		}
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException {
+		StringBuffer buffer = listingKey(bucket, 'M', prefix, delimiter,
+				maxKeys);
+		String listingKey;
+		ObjectListing listing;
+
+		append(buffer, marker);
+		listingKey = buffer.toString();
+
+		if ((listing = listings.get(listingKey)) == null) {
+			listing = s3ObjectDao.listKeys(bucket, prefix, marker, delimiter,
+					maxKeys);
+			if (listing != null) {
+				listings.put(listingKey, listing, weight(listing));
+			}
+		}
+
+		return listing;
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException {
+		StringBuffer buffer = listingKey(bucket, fetchOwner ? 'O' : 'P',
+				prefix, delimiter, maxKeys);
+		String listingKey;
+		ObjectListing listing;
+
+		append(buffer, (position == null) ? null : position.encode());
+		listingKey = buffer.toString();
+
+		if ((listing = listings.get(listingKey)) == null) {
+			listing = s3ObjectDao.listKeys(bucket, prefix, position,
+					delimiter, maxKeys, fetchOwner);
+			if (listing != null) {
+				listings.put(listingKey, listing, weight(listing));
+			}
+		}
+
+		return listing;
+	}
+
+	public Usage getUsage(String bucket) throws DataAccessException {
+		return s3ObjectDao.getUsage(bucket);
+	}
+
+	public SortedMap<String, Usage> getPrefixUsage(String bucket)
+			throws DataAccessException {
+		return s3ObjectDao.getPrefixUsage(bucket);
+	}
+
+	/**
+	 * Weigh a listing by the keys and common prefixes it holds. An empty
+	 * listing still takes an entry.
+	 */
+	private static long weight(ObjectListing listing) {
+		return listing.size() + 1;
+	}
+
+	/**
+	 * Get the lock ordering the stores and removes of a key.
+	 */
+	private Object getLock(String cacheKey) {
+		return locks[(cacheKey.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	private static String cacheKey(String bucket, String key) {
+		// bucket names can not contain a '/'
+		return bucket + "/" + key;
+	}
+
+	/**
+	 * Get the version of a bucket.
+	 */
+	private AtomicLong version(String bucket) {
+		AtomicLong version = versions.get(bucket);
+
+		if (version == null) {
+			AtomicLong created = new AtomicLong();
+
+			version = versions.putIfAbsent(bucket, created);
+			if (version == null) {
+				version = created;
+			}
+		}
+
+		return version;
+	}
+
+	/**
+	 * Start the cache key of a listing with the bucket, its current version,
+	 * the kind of listing and the parameters common to both kinds. The
+	 * version is read before the listing, so a listing that raced a store is
+	 * cached under a version that is already out of date.
+	 */
+	private StringBuffer listingKey(String bucket, char kind, String prefix,
+			String delimiter, int maxKeys) {
+		StringBuffer buffer = new StringBuffer();
+
+		// bucket names can not contain a '/'
+		buffer.append(bucket).append('/').append(version(bucket).get());
+		buffer.append('/').append(kind).append(maxKeys);
+		append(buffer, ((prefix == null) ? "" : prefix));
+		append(buffer, delimiter);
+
+		return buffer;
+	}
+
+	/**
+	 * Append a parameter to the cache key of a listing, prefixed with its
+	 * length so that no two sets of parameters have the same key.
+	 */
+	private static void append(StringBuffer buffer, String parameter) {
+		if (parameter == null) {
+			buffer.append("/-");
+		} else {
+			buffer.append('/').append(parameter.length()).append(':').append(
+					parameter);
+		}
+	}
+
+	/**
+	 * Get the underlying DAO.
+	 * 
+	 * @return The underlying DAO.
+	 */
+	public S3ObjectDao getS3ObjectDao() {
+		return s3ObjectDao;
+	}
+
+	/**
+	 * Set the underlying DAO.
+	 * 
+	 * @param s3ObjectDao
+	 *            The underlying DAO.
+	 */
+	public void setS3ObjectDao(S3ObjectDao s3ObjectDao) {
+		this.s3ObjectDao = s3ObjectDao;
+	}
+
+	/**
+	 * Get the maximum number of cached objects.
+	 * 
+	 * @return The maximum number of cached objects.
+	 */
+	public int getMaxEntries() {
+		return cache.getMaxEntries();
+	}
+
+	/**
+	 * Set the maximum number of cached objects.
+	 * 
+	 * @param maxEntries
+	 *            The maximum number of cached objects.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		cache.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * Get the time to live of a cached object.
+	 * 
+	 * @return The time to live of a cached object, in milliseconds.
+	 *         <code>0</code> if cached objects do not expire.
+	 */
+	public long getTimeToLive() {
+		return cache.getTimeToLive();
+	}
+
+	/**
+	 * Set the time to live of a cached object.
+	 * 
+	 * @param timeToLive
+	 *            The time to live of a cached object, in milliseconds.
+	 *            <code>0</code> if cached objects do not expire.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		cache.setTimeToLive(timeToLive);
+	}
+
+	/**
+	 * Get the maximum number of cached listings.
+	 * 
+	 * @return The maximum number of cached listings.
+	 */
+	public int getListingMaxEntries() {
+		return listings.getMaxEntries();
+	}
+
+	/**
+	 * Set the maximum number of cached listings. A listing holds up to
+	 * 1000 object summaries; the summaries held are bounded with
+	 * <code>setListingMaxKeys</code>.
+	 * 
+	 * @param listingMaxEntries
+	 *            The maximum number of cached listings.
+	 */
+	public void setListingMaxEntries(int listingMaxEntries) {
+		listings.setMaxEntries(listingMaxEntries);
+	}
+
+	/**
+	 * Get the maximum number of keys and common prefixes held by the cached
+	 * listings.
+	 * 
+	 * @return The maximum number of keys and common prefixes.
+	 */
+	public long getListingMaxKeys() {
+		return listings.getMaxWeight();
+	}
+
+	/**
+	 * Set the maximum number of keys and common prefixes held by the cached
+	 * listings, which bounds the memory they take.
+	 * 
+	 * @param listingMaxKeys
+	 *            The maximum number of keys and common prefixes.
+	 *            <code>0</code> if not bounded.
+	 */
+	public void setListingMaxKeys(long listingMaxKeys) {
+		listings.setMaxWeight(listingMaxKeys);
+	}
+
+	/**
+	 * Get the time to live of a cached listing.
+	 * 
+	 * @return The time to live of a cached listing, in milliseconds.
+	 *         <code>0</code> if cached listings do not expire.
+	 */
+	public long getListingTimeToLive() {
+		return listings.getTimeToLive();
+	}
+
+	/**
+	 * Set the time to live of a cached listing.
+	 * 
+	 * @param listingTimeToLive
+	 *            The time to live of a cached listing, in milliseconds.
+	 *            <code>0</code> if cached listings do not expire.
+	 */
+	public void setListingTimeToLive(long listingTimeToLive) {
+		listings.setTimeToLive(listingTimeToLive);
+	}
+
+	/**
+	 * Get the listing cache, for its hit, miss and eviction counters.
+	 * 
+	 * @return The listing cache.
+	 */
+	public DaoCache<?> getListingCache() {
+		return listings;
+	}
+
+	/**
+	 * Get the cache, for its hit, miss and eviction counters.
+	 * 
+	 * @return The cache.
+	 */
+	public DaoCache<?> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Get the ratio of loads answered from the cache.
+	 * 
+	 * @return The ratio of loads answered from the cache, between
+	 *         <code>0</code> and <code>1</code>.
+	 */
+	public double getHitRatio() {
+		return cache.getHitRatio();
+	}
+}
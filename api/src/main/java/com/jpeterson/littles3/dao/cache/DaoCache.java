@@ -0,0 +1,372 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least recently used cache with an optional time to live, used
+ * by the caching DAO decorators.
+ * <p>
+ * Values loaded from the underlying DAO are added with
+ * <code>putIfCurrent</code>, passing the <code>getStamp()</code> taken before
+ * the load. If the entry was written or removed in the meantime, the loaded
+ * value may be stale and is not cached.
+ * </p>
+ * <p>
+ * Besides the number of entries, the cache can be bounded by the total
+ * weight of the entries, for values of very different sizes. Each entry
+ * weighs <code>1</code> unless put with a weight.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class DaoCache<V> {
+	/**
+	 * Default maximum number of entries.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/**
+	 * Default time to live of an entry, in milliseconds. A value of
+	 * <code>0</code> means entries do not expire.
+	 */
+	public static final long DEFAULT_TIME_TO_LIVE = 0;
+
+	private LinkedHashMap<String, Entry<V>> entries;
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+	private long maxWeight = 0;
+
+	private long weight = 0;
+
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	private long stamp = 0;
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create an empty cache.
+	 */
+	public DaoCache() {
+		entries = new LinkedHashMap<String, Entry<V>>(256, 0.75f, true);
+	}
+
+	/**
+	 * Get a cached value.
+	 * 
+	 * @param key
+	 *            The key of the value.
+	 * @return The cached value, or <code>null</code> if there is no cached
+	 *         value or it has expired.
+	 */
+	public V get(String key) {
+		Entry<V> entry;
+
+		synchronized (entries) {
+			entry = entries.get(key);
+			if ((entry != null) && (timeToLive > 0)
+					&& (System.currentTimeMillis() - entry.created > timeToLive)) {
+				entries.remove(key);
+				weight -= entry.weight;
+				entry = null;
+			}
+		}
+
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		return entry.value;
+	}
+
+	/**
+	 * Get the current stamp of the cache, to be passed to
+	 * <code>putIfCurrent</code>.
+	 * 
+	 * @return The current stamp of the cache.
+	 */
+	public long getStamp() {
+		synchronized (entries) {
+			return stamp;
+		}
+	}
+
+	/**
+	 * Cache a value that was loaded from the underlying store, unless the
+	 * cache has been written to since <code>stamp</code> was taken.
+	 * 
+	 * @param key
+	 *            The key of the value.
+	 * @param value
+	 *            The value.
+	 * @param stamp
+	 *            The value of <code>getStamp()</code> taken before the value
+	 *            was loaded.
+	 */
+	public void putIfCurrent(String key, V value, long stamp) {
+		synchronized (entries) {
+			if (stamp == this.stamp) {
+				intPut(key, value, 1);
+			}
+		}
+	}
+
+	/**
+	 * Cache a value that was written to the underlying store.
+	 * 
+	 * @param key
+	 *            The key of the value.
+	 * @param value
+	 *            The value.
+	 */
+	public void put(String key, V value) {
+		put(key, value, 1);
+	}
+
+	/**
+	 * Cache a value that was written to the underlying store, or that is
+	 * derived from it, with a weight counted against the maximum weight.
+	 * 
+	 * @param key
+	 *            The key of the value.
+	 * @param value
+	 *            The value.
+	 * @param weight
+	 *            The weight of the value.
+	 */
+	public void put(String key, V value, long weight) {
+		synchronized (entries) {
+			++stamp;
+			intPut(key, value, weight);
+		}
+	}
+
+	/**
+	 * Remove a value that was removed from the underlying store.
+	 * 
+	 * @param key
+	 *            The key of the value.
+	 */
+	public void remove(String key) {
+		synchronized (entries) {
+			Entry<V> entry;
+
+			++stamp;
+			if ((entry = entries.remove(key)) != null) {
+				weight -= entry.weight;
+			}
+		}
+	}
+
+	/**
+	 * Remove all values.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			++stamp;
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	/**
+	 * Must be called with the <code>entries</code> lock held.
+	 */
+	private void intPut(String key, V value, long weight) {
+		Entry<V> previous = entries.put(key, new Entry<V>(value, weight));
+
+		if (previous != null) {
+			this.weight -= previous.weight;
+		}
+		this.weight += weight;
+
+		for (Iterator<Map.Entry<String, Entry<V>>> iter = entries.entrySet()
+				.iterator(); ((entries.size() > maxEntries) || ((maxWeight > 0) && (this.weight > maxWeight)))
+				&& iter.hasNext();) {
+			this.weight -= iter.next().getValue().weight;
+			iter.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of entries currently cached.
+	 * 
+	 * @return The number of entries currently cached.
+	 */
+	public int getCount() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Get the maximum number of entries.
+	 * 
+	 * @return The maximum number of entries.
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Set the maximum number of entries. The least recently used entries are
+	 * evicted when the cache grows beyond this.
+	 * 
+	 * @param maxEntries
+	 *            The maximum number of entries.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		synchronized (entries) {
+			this.maxEntries = maxEntries;
+		}
+	}
+
+	/**
+	 * Get the total weight of the entries currently cached.
+	 * 
+	 * @return The total weight of the entries.
+	 */
+	public long getWeight() {
+		synchronized (entries) {
+			return weight;
+		}
+	}
+
+	/**
+	 * Get the maximum total weight of the entries.
+	 * 
+	 * @return The maximum total weight of the entries. <code>0</code> if the
+	 *         weight is not bounded.
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Set the maximum total weight of the entries. The least recently used
+	 * entries are evicted when the cache grows beyond this.
+	 * 
+	 * @param maxWeight
+	 *            The maximum total weight of the entries. <code>0</code> if
+	 *            the weight is not bounded.
+	 */
+	public void setMaxWeight(long maxWeight) {
+		synchronized (entries) {
+			this.maxWeight = maxWeight;
+		}
+	}
+
+	/**
+	 * Get the time to live of an entry.
+	 * 
+	 * @return The time to live of an entry, in milliseconds. <code>0</code>
+	 *         if entries do not expire.
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Set the time to live of an entry. An expiry bounds how long a change
+	 * made to the underlying store by another process goes unnoticed.
+	 * 
+	 * @param timeToLive
+	 *            The time to live of an entry, in milliseconds.
+	 *            <code>0</code> if entries do not expire.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Get the number of lookups that found a cached value.
+	 * 
+	 * @return The number of lookups that found a cached value.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups that did not find a cached value.
+	 * 
+	 * @return The number of lookups that did not find a cached value.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of entries evicted to keep the cache within its bound.
+	 * 
+	 * @return The number of entries evicted.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get the ratio of lookups that found a cached value.
+	 * 
+	 * @return The ratio of lookups that found a cached value, between
+	 *         <code>0</code> and <code>1</code>.
+	 */
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+
+		if (total == 0) {
+			return 0;
+		}
+
+		return (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", hits=" + getHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions()
+				+ ", hitRatio=" + getHitRatio();
+	}
+
+	private static class Entry<V> {
+		private V value;
+
+		private long created;
+
+		private long weight;
+
+		public Entry(V value, long weight) {
+			this.value = value;
+			this.created = System.currentTimeMillis();
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.codec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.AllUsersGroup;
+import com.jpeterson.littles3.bo.AuthenticatedUsersGroup;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.Grantee;
+import com.jpeterson.littles3.bo.ResourcePermission;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+
+/**
+ * A compact, versioned binary encoding of the metadata of objects and
+ * buckets, shared by the storage backends in place of Java serialization.
+ * <p>
+ * An encoded record starts with a header: the <code>MAGIC</code> byte, the
+ * record type and the encoding version. The magic byte can not start a Java
+ * serialization stream, nor a record written by the earlier Berkeley DB JE
+ * tuple bindings, so readers can tell the formats apart and keep reading
+ * records written before the codec was introduced. Fields are written with
+ * <code>DataOutput</code>; strings that may be <code>null</code> are
+ * preceded by a presence flag.
+ * </p>
+ * <p>
+ * To change the encoding, bump <code>VERSION</code> and keep decoding the
+ * older versions.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class MetadataCodec {
+	/**
+	 * First byte of an encoded record.
+	 */
+	public static final int MAGIC = 0xB3;
+
+	/**
+	 * Current encoding version.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * First byte of a Java serialization stream.
+	 */
+	private static final int JAVA_SERIALIZATION_MAGIC = 0xAC;
+
+	private static final int TYPE_S3OBJECT = 1;
+
+	private static final int TYPE_BUCKET = 2;
+
+	private static final int GRANTEE_CANONICAL_USER = 1;
+
+	private static final int GRANTEE_ALL_USERS_GROUP = 2;
+
+	private static final int GRANTEE_AUTHENTICATED_USERS_GROUP = 3;
+
+	private MetadataCodec() {
+	}
+
+	/**
+	 * Determine if a record starting with a byte was written by this codec.
+	 * 
+	 * @param firstByte
+	 *            The first byte of the record, as an unsigned value.
+	 * @return <code>True</code> if the record was written by this codec.
+	 */
+	public static boolean isEncoded(int firstByte) {
+		return (firstByte == MAGIC);
+	}
+
+	/**
+	 * Encode the metadata of an object.
+	 * 
+	 * @param s3Object
+	 *            The object.
+	 * @param out
+	 *            Where to write the encoded object.
+	 * @throws IOException
+	 *             Unable to write the encoded object.
+	 */
+	public static void encode(S3Object s3Object, DataOutput out)
+			throws IOException {
+		URL storageUrl = s3Object.getStorageUrl();
+		List<String> names = new ArrayList<String>();
+
+		writeHeader(out, TYPE_S3OBJECT);
+		writeString(out, s3Object.getBucket());
+		writeString(out, s3Object.getKey());
+		writeString(out, (storageUrl == null) ? null : storageUrl.toString());
+		out.writeLong(s3Object.getContentLength());
+		writeString(out, s3Object.getContentType());
+		writeString(out, s3Object.getContentMD5());
+		writeString(out, s3Object.getContentDisposition());
+		writeString(out, s3Object.getETag());
+		out.writeLong(s3Object.getLastModified());
+
+		for (Iterator<String> iter = s3Object.getMetadataNames(); iter
+				.hasNext();) {
+			names.add(iter.next());
+		}
+		out.writeInt(names.size());
+		for (String name : names) {
+			List<String> values = new ArrayList<String>();
+
+			for (Iterator<String> iter = s3Object.getMetadataValues(name); iter
+					.hasNext();) {
+				values.add(iter.next());
+			}
+			out.writeUTF(name);
+			out.writeInt(values.size());
+			for (String value : values) {
+				out.writeUTF(value);
+			}
+		}
+
+		encodeAcp(s3Object.getAcp(), out);
+	}
+
+	/**
+	 * Decode the metadata of an object written by <code>encode</code>.
+	 * 
+	 * @param in
+	 *            Where to read the encoded object from.
+	 * @param factory
+	 *            Creates the object.
+	 * @return The object.
+	 * @throws IOException
+	 *             Unable to read the encoded object, or the record is not an
+	 *             encoded object.
+	 */
+	public static S3Object decodeS3Object(DataInput in, S3ObjectFactory factory)
+			throws IOException {
+		String bucket;
+		String key;
+		String storageUrl;
+		S3Object s3Object;
+		int names;
+
+		readHeader(in, TYPE_S3OBJECT);
+
+		bucket = readString(in);
+		key = readString(in);
+		storageUrl = readString(in);
+		s3Object = factory.createS3Object(bucket, key,
+				(storageUrl == null) ? null : new URL(storageUrl));
+		s3Object.setContentLength(in.readLong());
+		s3Object.setContentType(readString(in));
+		s3Object.setContentMD5(readString(in));
+		s3Object.setContentDisposition(readString(in));
+		s3Object.setETag(readString(in));
+		s3Object.setLastModified(in.readLong());
+
+		names = in.readInt();
+		for (int i = 0; i < names; i++) {
+			String name = in.readUTF();
+			int values = in.readInt();
+
+			for (int j = 0; j < values; j++) {
+				s3Object.addMetadata(name, in.readUTF());
+			}
+		}
+
+		s3Object.setAcp(decodeAcp(in));
+
+		return s3Object;
+	}
+
+	/**
+	 * Decode only the fields of an object written by <code>encode</code> that
+	 * are needed to list it. Skips the storage URL, the metadata and the
+	 * grants instead of building them.
+	 * 
+	 * @param in
+	 *            Where to read the encoded object from.
+	 * @return The summary of the object.
+	 * @throws IOException
+	 *             Unable to read the encoded object, or the record is not an
+	 *             encoded object.
+	 */
+	public static S3ObjectSummary decodeS3ObjectSummary(DataInput in)
+			throws IOException {
+		return decodeS3ObjectSummary(in, true);
+	}
+
+	/**
+	 * Decode only the fields of an object written by <code>encode</code> that
+	 * are needed to list it, optionally leaving out the owner. Without the
+	 * owner, reading stops after the last modified time.
+	 * 
+	 * @param in
+	 *            Where to read the encoded object from.
+	 * @param owner
+	 *            <code>True</code> to decode the owner.
+	 * @return The summary of the object.
+	 * @throws IOException
+	 *             Unable to read the encoded object, or the record is not an
+	 *             encoded object.
+	 */
+	public static S3ObjectSummary decodeS3ObjectSummary(DataInput in,
+			boolean owner) throws IOException {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		int names;
+
+		readHeader(in, TYPE_S3OBJECT);
+
+		readString(in); // bucket
+		summary.setKey(readString(in));
+		readString(in); // storage URL
+		summary.setSize(in.readLong());
+		readString(in); // content type
+		readString(in); // content MD5
+		readString(in); // content disposition
+		summary.setETag(readString(in));
+		summary.setLastModified(in.readLong());
+
+		if (!owner) {
+			return summary;
+		}
+
+		names = in.readInt();
+		for (int i = 0; i < names; i++) {
+			int values;
+
+			in.readUTF();
+			values = in.readInt();
+			for (int j = 0; j < values; j++) {
+				in.readUTF();
+			}
+		}
+
+		// the owner precedes the grants
+		if (in.readBoolean() && in.readBoolean()) {
+			CanonicalUser user = readCanonicalUser(in);
+
+			summary.setOwnerId(user.getId());
+			summary.setOwnerDisplayName(user.getDisplayName());
+		}
+
+		return summary;
+	}
+
+	/**
+	 * Encode the metadata of a bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @param out
+	 *            Where to write the encoded bucket.
+	 * @throws IOException
+	 *             Unable to write the encoded bucket.
+	 */
+	public static void encode(Bucket bucket, DataOutput out) throws IOException {
+		Date created = bucket.getCreated();
+
+		writeHeader(out, TYPE_BUCKET);
+		writeString(out, bucket.getName());
+		out.writeBoolean(created != null);
+		if (created != null) {
+			out.writeLong(created.getTime());
+		}
+
+		encodeAcp(bucket.getAcp(), out);
+	}
+
+	/**
+	 * Decode the metadata of a bucket written by <code>encode</code>.
+	 * 
+	 * @param in
+	 *            Where to read the encoded bucket from.
+	 * @return The bucket.
+	 * @throws IOException
+	 *             Unable to read the encoded bucket, or the record is not an
+	 *             encoded bucket.
+	 */
+	public static Bucket decodeBucket(DataInput in) throws IOException {
+		Bucket bucket = new Bucket();
+
+		readHeader(in, TYPE_BUCKET);
+
+		bucket.setName(readString(in));
+		if (in.readBoolean()) {
+			bucket.setCreated(new Date(in.readLong()));
+		}
+
+		bucket.setAcp(decodeAcp(in));
+
+		return bucket;
+	}
+
+	/**
+	 * Read the metadata of an object, either encoded by this codec or written
+	 * with Java serialization by an earlier version.
+	 * 
+	 * @param in
+	 *            Where to read the object from.
+	 * @param factory
+	 *            Creates the object, if encoded by this codec.
+	 * @return The object.
+	 * @throws IOException
+	 *             Unable to read the object.
+	 */
+	public static S3Object readS3Object(InputStream in, S3ObjectFactory factory)
+			throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in);
+
+		if (isEncoded(peek(buffered))) {
+			return decodeS3Object(new DataInputStream(buffered), factory);
+		}
+
+		return (S3Object) readSerialized(buffered);
+	}
+
+	/**
+	 * Read the metadata of a bucket, either encoded by this codec or written
+	 * with Java serialization by an earlier version.
+	 * 
+	 * @param in
+	 *            Where to read the bucket from.
+	 * @return The bucket.
+	 * @throws IOException
+	 *             Unable to read the bucket.
+	 */
+	public static Bucket readBucket(InputStream in) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in);
+
+		if (isEncoded(peek(buffered))) {
+			return decodeBucket(new DataInputStream(buffered));
+		}
+
+		return (Bucket) readSerialized(buffered);
+	}
+
+	private static int peek(InputStream in) throws IOException {
+		int first;
+
+		in.mark(1);
+		first = in.read();
+		in.reset();
+
+		return first;
+	}
+
+	private static Object readSerialized(InputStream in) throws IOException {
+		if (peek(in) != JAVA_SERIALIZATION_MAGIC) {
+			throw new IOException("Unrecognized metadata format");
+		}
+
+		try {
+			return new ObjectInputStream(in).readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to read serialized metadata: "
+					+ e.getMessage());
+		}
+	}
+
+	private static void encodeAcp(Acp acp, DataOutput out) throws IOException {
+		CanonicalUser owner;
+		Enumeration grants;
+		ResourcePermission grant;
+		Grantee grantee;
+
+		out.writeBoolean(acp != null);
+		if (acp == null) {
+			return;
+		}
+
+		owner = acp.getOwner();
+		out.writeBoolean(owner != null);
+		if (owner != null) {
+			out.writeUTF(owner.getId());
+			writeString(out, owner.getDisplayName());
+		}
+
+		out.writeInt(acp.size());
+		grants = acp.grants();
+		for (int i = acp.size(); i > 0; i--) {
+			if (!grants.hasMoreElements()) {
+				throw new IllegalArgumentException(
+						"ACP grant size doesn't match number of grants");
+			}
+
+			grant = (ResourcePermission) grants.nextElement();
+			grantee = grant.getGrantee();
+			if (grantee instanceof CanonicalUser) {
+				out.writeByte(GRANTEE_CANONICAL_USER);
+				out.writeUTF(((CanonicalUser) grantee).getId());
+				writeString(out, ((CanonicalUser) grantee).getDisplayName());
+			} else if (grantee instanceof AllUsersGroup) {
+				out.writeByte(GRANTEE_ALL_USERS_GROUP);
+			} else if (grantee instanceof AuthenticatedUsersGroup) {
+				out.writeByte(GRANTEE_AUTHENTICATED_USERS_GROUP);
+			} else {
+				throw new IllegalArgumentException("Unsupported grantee: "
+						+ grantee);
+			}
+			out.writeUTF(grant.getActions());
+		}
+	}
+
+	private static Acp decodeAcp(DataInput in) throws IOException {
+		Acp acp;
+		int grants;
+
+		if (!in.readBoolean()) {
+			return null;
+		}
+
+		acp = new Acp();
+		if (in.readBoolean()) {
+			acp.setOwner(readCanonicalUser(in));
+		}
+
+		grants = in.readInt();
+		for (int i = 0; i < grants; i++) {
+			int granteeType = in.readByte();
+			Grantee grantee;
+
+			switch (granteeType) {
+			case GRANTEE_CANONICAL_USER:
+				grantee = readCanonicalUser(in);
+				break;
+
+			case GRANTEE_ALL_USERS_GROUP:
+				grantee = AllUsersGroup.getInstance();
+				break;
+
+			case GRANTEE_AUTHENTICATED_USERS_GROUP:
+				grantee = AuthenticatedUsersGroup.getInstance();
+				break;
+
+			default:
+				throw new IOException("Unsupported grantee type: "
+						+ granteeType);
+			}
+
+			acp.grant(grantee, in.readUTF());
+		}
+
+		return acp;
+	}
+
+	private static CanonicalUser readCanonicalUser(DataInput in)
+			throws IOException {
+		CanonicalUser user = new CanonicalUser(in.readUTF());
+
+		user.setDisplayName(readString(in));
+
+		return user;
+	}
+
+	private static void writeHeader(DataOutput out, int type)
+			throws IOException {
+		out.writeByte(MAGIC);
+		out.writeByte(type);
+		out.writeByte(VERSION);
+	}
+
+	private static void readHeader(DataInput in, int type) throws IOException {
+		int magic = in.readUnsignedByte();
+		int actualType = in.readUnsignedByte();
+		int version = in.readUnsignedByte();
+
+		if (magic != MAGIC) {
+			throw new IOException("Not an encoded record");
+		}
+		if (actualType != type) {
+			throw new IOException("Unexpected record type: " + actualType);
+		}
+		if (version != VERSION) {
+			throw new IOException("Unsupported record version: " + version);
+		}
+	}
+
+	private static void writeString(DataOutput out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.codec;
+
+import java.net.URL;
+
+import com.jpeterson.littles3.bo.S3Object;
+
+/**
+ * Creates the <code>S3Object</code> implementation of a storage backend when
+ * an object is decoded by the <code>MetadataCodec</code>.
+ * 
+ * @author Jesse Peterson
+ */
+public interface S3ObjectFactory {
+	/**
+	 * Create an object.
+	 * 
+	 * @param bucket
+	 *            The bucket of the object.
+	 * @param key
+	 *            The key of the object.
+	 * @param storageUrl
+	 *            The URL of the object data.
+	 * @return The object.
+	 */
+	public S3Object createS3Object(String bucket, String key, URL storageUrl);
+}
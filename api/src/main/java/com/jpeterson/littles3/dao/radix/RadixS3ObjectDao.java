@@ -0,0 +1,525 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.radix;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.littles3.dao.KeyRange;
+import com.jpeterson.littles3.dao.S3ObjectDao;
+
+/**
+ * An <code>S3ObjectDao</code> decorator that answers listings from a memory
+ * resident <code>RadixTree</code> of the keys of each bucket, in front of
+ * any other <code>S3ObjectDao</code> implementation. Loads, stores and
+ * removes go to the underlying DAO; stores and removes are applied to the
+ * tree of the bucket once written.
+ * <p>
+ * The tree of a bucket is built the first time the bucket is listed, by
+ * listing the underlying DAO a page at a time. Each page is read and added
+ * holding the write lock of the bucket, so writes made during the build are
+ * neither lost nor undone. The trees of all buckets are held within a
+ * budget of estimated heap; the least recently used trees are dropped to
+ * stay within it and built again when next listed. A bucket whose tree
+ * would not fit in the budget on its own is listed by the underlying DAO
+ * until an object is removed from it.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class RadixS3ObjectDao implements S3ObjectDao {
+	public static final int MAXIMUM_MAX_KEYS = 1000;
+
+	/**
+	 * Default budget of estimated heap for the trees of all buckets, in
+	 * bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Number of write locks the buckets are striped over.
+	 */
+	private static final int WRITE_LOCK_STRIPES = 64;
+
+	private Log logger;
+
+	private S3ObjectDao s3ObjectDao;
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	/**
+	 * The resident trees, least recently used first. Guarded by itself,
+	 * as are <code>building</code> and <code>bytes</code>.
+	 */
+	private LinkedHashMap<String, RadixTree> trees = new LinkedHashMap<String, RadixTree>(
+			16, 0.75f, true);
+
+	/**
+	 * The trees being built.
+	 */
+	private Map<String, RadixTree> building = new HashMap<String, RadixTree>();
+
+	private long bytes = 0;
+
+	private long evictions = 0;
+
+	/**
+	 * The buckets whose trees do not fit in the budget.
+	 */
+	private ConcurrentHashMap<String, Boolean> oversized = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Serialize the writers of a bucket with the pages of a build.
+	 */
+	private Object[] writeLocks;
+
+	/**
+	 * Serialize the builds of a bucket, so that concurrent first listings
+	 * build its tree once.
+	 */
+	private Object[] buildLocks;
+
+	/**
+	 * Create a radix tree decorator. The underlying DAO must be set with
+	 * <code>setS3ObjectDao</code>.
+	 */
+	public RadixS3ObjectDao() {
+		super();
+		logger = LogFactory.getLog(this.getClass());
+
+		writeLocks = new Object[WRITE_LOCK_STRIPES];
+		buildLocks = new Object[WRITE_LOCK_STRIPES];
+		for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+			writeLocks[i] = new Object();
+			buildLocks[i] = new Object();
+		}
+	}
+
+	public S3Object loadS3Object(String bucket, String key)
+			throws DataAccessException {
+		return s3ObjectDao.loadS3Object(bucket, key);
+	}
+
+	public S3Object storeS3Object(S3Object s3Object)
+			throws DataAccessException {
+		String bucket = s3Object.getBucket();
+
+		synchronized (writeLock(bucket)) {
+			S3Object replaced;
+
+			try {
+				replaced = s3ObjectDao.storeS3Object(s3Object);
+			} catch (DataAccessException e) {
+				// the store may have been partly written
+				drop(bucket);
+				throw e;
+			}
+
+			synchronized (trees) {
+				RadixTree tree = tree(bucket);
+
+				if (tree != null) {
+					change(bucket, tree.put(s3Object.getKey(),
+							new S3ObjectSummary(s3Object)));
+				}
+			}
+
+			return replaced;
+		}
+	}
+
+	public void removeS3Object(S3Object s3Object) throws DataAccessException {
+		String bucket = s3Object.getBucket();
+
+		synchronized (writeLock(bucket)) {
+			try {
+				s3ObjectDao.removeS3Object(s3Object);
+			} catch (DataAccessException e) {
+				drop(bucket);
+				throw e;
+			}
+
+			synchronized (trees) {
+				RadixTree tree = tree(bucket);
+
+				if (tree != null) {
+					change(bucket, tree.remove(s3Object.getKey()));
+				}
+			}
+		}
+
+		// the tree may fit now
+		oversized.remove(bucket);
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException {
+		RadixTree tree = retrieveTree(bucket);
+		ContinuationToken position = null;
+
+		if (tree == null) {
+			return s3ObjectDao.listKeys(bucket, prefix, marker, delimiter,
+					maxKeys);
+		}
+
+		if (prefix == null) {
+			prefix = "";
+		}
+
+		// validate the marker, should start with prefix
+		if (marker != null) {
+			if (!marker.startsWith(prefix)) {
+				logger.info("marker[" + marker + "] doesn't start with prefix["
+						+ prefix + "], ignoring marker");
+				marker = null;
+			} else {
+				position = KeyRange.markerPosition(marker, prefix.length(),
+						delimiter);
+			}
+		}
+
+		return listKeys(tree, bucket, prefix, marker, position, delimiter,
+				maxKeys);
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException {
+		RadixTree tree = retrieveTree(bucket);
+
+		if (tree == null) {
+			return s3ObjectDao.listKeys(bucket, prefix, position, delimiter,
+					maxKeys, fetchOwner);
+		}
+
+		if (prefix == null) {
+			prefix = "";
+		}
+
+		// the tree holds the owners, it costs nothing to list them
+		return listKeys(tree, bucket, prefix, null, position, delimiter,
+				maxKeys);
+	}
+
+	public Usage getUsage(String bucket) throws DataAccessException {
+		return s3ObjectDao.getUsage(bucket);
+	}
+
+	public SortedMap<String, Usage> getPrefixUsage(String bucket)
+			throws DataAccessException {
+		return s3ObjectDao.getPrefixUsage(bucket);
+	}
+
+	/**
+	 * List the keys of a bucket from its tree.
+	 */
+	private ObjectListing listKeys(RadixTree tree, String bucket,
+			String prefix, String marker, ContinuationToken position,
+			String delimiter, int maxKeys) {
+		ObjectListing listing;
+		String from = null;
+		boolean inclusive = true;
+
+		if ((delimiter != null) && (delimiter.equals(""))) {
+			delimiter = null;
+		}
+
+		if (maxKeys > MAXIMUM_MAX_KEYS) {
+			maxKeys = MAXIMUM_MAX_KEYS;
+		}
+
+		listing = new ObjectListing(bucket, prefix, marker, delimiter, maxKeys);
+
+		if ((position != null) && (position.getKey().compareTo(prefix) >= 0)) {
+			// a position before the prefix starts at the prefix
+			switch (position.getSeek()) {
+			case ContinuationToken.SEEK_AT:
+				from = position.getKey();
+				break;
+			case ContinuationToken.SEEK_AFTER:
+				from = position.getKey();
+				inclusive = false;
+				break;
+			case ContinuationToken.SEEK_AFTER_PREFIX:
+				from = KeyRange.prefixEnd(position.getKey());
+				if (from == null) {
+					// nothing sorts after the prefix
+					return listing;
+				}
+				break;
+			}
+		}
+
+		if (maxKeys > 0) {
+			tree.list(listing, prefix, from, inclusive, delimiter, maxKeys);
+		}
+
+		return listing;
+	}
+
+	/**
+	 * Get the tree of a bucket, building it if it is not resident.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The tree of the bucket, or <code>null</code> if it does not
+	 *         fit in the budget.
+	 * @throws DataAccessException
+	 *             Unable to list the bucket.
+	 */
+	private RadixTree retrieveTree(String bucket) throws DataAccessException {
+		RadixTree tree;
+
+		synchronized (trees) {
+			tree = trees.get(bucket);
+		}
+
+		if ((tree != null) || (maxBytes <= 0) || oversized.containsKey(bucket)) {
+			return tree;
+		}
+
+		synchronized (buildLock(bucket)) {
+			synchronized (trees) {
+				tree = trees.get(bucket);
+				if (tree != null) {
+					return tree;
+				}
+				tree = new RadixTree();
+				building.put(bucket, tree);
+			}
+
+			try {
+				if (!build(bucket, tree)) {
+					logger.info("Bucket " + bucket
+							+ " does not fit in the radix tree budget of "
+							+ maxBytes + " bytes");
+					oversized.put(bucket, Boolean.TRUE);
+					return null;
+				}
+
+				synchronized (trees) {
+					if (building.get(bucket) != tree) {
+						// dropped by a failed write
+						return null;
+					}
+					trees.put(bucket, tree);
+					bytes += tree.getBytes();
+					trim();
+				}
+			} finally {
+				synchronized (trees) {
+					building.remove(bucket);
+				}
+			}
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("Built the radix tree of bucket " + bucket
+						+ ", keys: " + tree.size() + ", bytes: "
+						+ tree.getBytes());
+			}
+
+			return tree;
+		}
+	}
+
+	/**
+	 * Add the keys of a bucket to a tree, a page at a time.
+	 * 
+	 * @return <code>False</code> if the tree grew larger than the budget.
+	 */
+	private boolean build(String bucket, RadixTree tree)
+			throws DataAccessException {
+		ContinuationToken position = null;
+		ObjectListing page;
+
+		do {
+			synchronized (writeLock(bucket)) {
+				page = s3ObjectDao.listKeys(bucket, "", position, null,
+						MAXIMUM_MAX_KEYS, true);
+				for (S3ObjectSummary summary : page.getContents()) {
+					tree.put(summary.getKey(), summary);
+				}
+			}
+
+			if (tree.getBytes() > maxBytes) {
+				return false;
+			}
+
+			position = page.getNextContinuationToken();
+		} while (position != null);
+
+		return true;
+	}
+
+	/**
+	 * Get the resident or building tree of a bucket. Must be called holding
+	 * the <code>trees</code> lock.
+	 */
+	private RadixTree tree(String bucket) {
+		RadixTree tree = building.get(bucket);
+
+		return (tree != null) ? tree : trees.get(bucket);
+	}
+
+	/**
+	 * Account for a change in the size of a tree. Must be called holding the
+	 * <code>trees</code> lock.
+	 */
+	private void change(String bucket, long delta) {
+		if (trees.containsKey(bucket)) {
+			bytes += delta;
+			trim();
+		}
+	}
+
+	/**
+	 * Drop the tree of a bucket that may no longer match the underlying DAO.
+	 */
+	private void drop(String bucket) {
+		synchronized (trees) {
+			RadixTree tree = trees.remove(bucket);
+
+			if (tree != null) {
+				bytes -= tree.getBytes();
+			}
+			building.remove(bucket);
+		}
+	}
+
+	/**
+	 * Drop the least recently used trees until the resident trees fit in
+	 * the budget. Must be called holding the <code>trees</code> lock.
+	 */
+	private void trim() {
+		for (Iterator<Map.Entry<String, RadixTree>> iter = trees.entrySet()
+				.iterator(); (bytes > maxBytes) && iter.hasNext();) {
+			Map.Entry<String, RadixTree> entry = iter.next();
+
+			iter.remove();
+			bytes -= entry.getValue().getBytes();
+			evictions++;
+			if (logger.isDebugEnabled()) {
+				logger.debug("Evicted the radix tree of bucket "
+						+ entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Get the write lock of a bucket.
+	 */
+	private Object writeLock(String bucket) {
+		return writeLocks[(bucket.hashCode() & 0x7fffffff) % writeLocks.length];
+	}
+
+	/**
+	 * Get the build lock of a bucket.
+	 */
+	private Object buildLock(String bucket) {
+		return buildLocks[(bucket.hashCode() & 0x7fffffff) % buildLocks.length];
+	}
+
+	/**
+	 * Get the underlying DAO.
+	 * 
+	 * @return The underlying DAO.
+	 */
+	public S3ObjectDao getS3ObjectDao() {
+		return s3ObjectDao;
+	}
+
+	/**
+	 * Set the underlying DAO.
+	 * 
+	 * @param s3ObjectDao
+	 *            The underlying DAO.
+	 */
+	public void setS3ObjectDao(S3ObjectDao s3ObjectDao) {
+		this.s3ObjectDao = s3ObjectDao;
+	}
+
+	/**
+	 * Get the budget of estimated heap for the trees of all buckets.
+	 * 
+	 * @return The budget, in bytes.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the budget of estimated heap for the trees of all buckets.
+	 * <code>0</code> lists every bucket from the underlying DAO.
+	 * 
+	 * @param maxBytes
+	 *            The budget, in bytes.
+	 */
+	public void setMaxBytes(long maxBytes) {
+		synchronized (trees) {
+			this.maxBytes = maxBytes;
+			trim();
+		}
+		oversized.clear();
+	}
+
+	/**
+	 * Get the estimated heap taken by the resident trees.
+	 * 
+	 * @return The estimated heap taken by the resident trees, in bytes.
+	 */
+	public long getBytes() {
+		synchronized (trees) {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Get the number of buckets whose trees are resident.
+	 * 
+	 * @return The number of buckets whose trees are resident.
+	 */
+	public int getResidentBuckets() {
+		synchronized (trees) {
+			return trees.size();
+		}
+	}
+
+	/**
+	 * Get the number of trees dropped to stay within the budget.
+	 * 
+	 * @return The number of trees dropped to stay within the budget.
+	 */
+	public long getEvictions() {
+		synchronized (trees) {
+			return evictions;
+		}
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.radix;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+
+/**
+ * A memory resident index of the keys of a bucket, a compressed radix tree
+ * mapping each key to the summary of its object. Keys sharing a prefix share
+ * the nodes of the prefix, and a node with a single child is merged into the
+ * edge above it.
+ * <p>
+ * A listing descends the tree to the node of its prefix, skips the subtrees
+ * sorting before its position without visiting their keys, and rolls a whole
+ * subtree up into a common prefix as soon as the path to it contains the
+ * delimiter, again without visiting its keys.
+ * </p>
+ * <p>
+ * The tree keeps an estimate of the heap it takes, so that the indexes of
+ * several buckets can be held within a memory budget. Listings may run
+ * concurrently; changes are exclusive.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class RadixTree {
+	/**
+	 * Estimated heap taken by a node without its label.
+	 */
+	private static final int NODE_BYTES = 48;
+
+	/**
+	 * Estimated heap taken by a string without its characters.
+	 */
+	private static final int STRING_BYTES = 40;
+
+	/**
+	 * Estimated heap taken by a summary without its strings.
+	 */
+	private static final int SUMMARY_BYTES = 48;
+
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private Node root = new Node("");
+
+	private int size = 0;
+
+	private long bytes = nodeBytes("");
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Get the summary of the object stored under a key.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The summary, or <code>null</code> if there is no such key.
+	 */
+	public S3ObjectSummary get(String key) {
+		lock.readLock().lock();
+		try {
+			Node node = root;
+			int i = 0;
+
+			while (i < key.length()) {
+				node = node.child(key.charAt(i));
+				if ((node == null) || !key.startsWith(node.label, i)) {
+					return null;
+				}
+				i += node.label.length();
+			}
+
+			return node.value;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace the summary of the object stored under a key.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The summary of the object.
+	 * @return The change in the estimated heap taken by the tree, in bytes.
+	 */
+	public long put(String key, S3ObjectSummary value) {
+		lock.writeLock().lock();
+		try {
+			long before = bytes;
+			Node node = root;
+			int i = 0;
+
+			while (i < key.length()) {
+				int index = node.indexOf(key.charAt(i));
+				Node child;
+				int common;
+
+				if (index < 0) {
+					child = new Node(key.substring(i));
+					node.insert(-(index + 1), child);
+					bytes += nodeBytes(child.label);
+					node = child;
+					break;
+				}
+
+				child = node.children[index];
+				common = commonLength(child.label, key, i);
+				if (common < child.label.length()) {
+					// split the edge where the key leaves it
+					Node split = new Node(child.label.substring(0, common));
+
+					bytes += nodeBytes(split.label) - 2 * common;
+					child.label = child.label.substring(common);
+					split.children = new Node[] { child };
+					split.count = 1;
+					node.children[index] = split;
+					child = split;
+				}
+				node = child;
+				i += common;
+			}
+
+			if (node.value == null) {
+				size++;
+			} else {
+				bytes -= summaryBytes(node.value);
+			}
+			node.value = value;
+			bytes += summaryBytes(value);
+
+			return bytes - before;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a key.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The change in the estimated heap taken by the tree, in bytes.
+	 *         <code>0</code> if there was no such key.
+	 */
+	public long remove(String key) {
+		lock.writeLock().lock();
+		try {
+			long before = bytes;
+			Node parent = null;
+			Node node = root;
+			int i = 0;
+
+			while (i < key.length()) {
+				parent = node;
+				node = node.child(key.charAt(i));
+				if ((node == null) || !key.startsWith(node.label, i)) {
+					return 0;
+				}
+				i += node.label.length();
+			}
+
+			if (node.value == null) {
+				return 0;
+			}
+
+			bytes -= summaryBytes(node.value);
+			node.value = null;
+			size--;
+
+			if (parent == null) {
+				// the empty key, held by the root
+			} else if (node.count == 0) {
+				parent.delete(parent.indexOf(node.label.charAt(0)));
+				bytes -= nodeBytes(node.label);
+				if ((parent != root) && (parent.value == null)
+						&& (parent.count == 1)) {
+					merge(parent);
+				}
+			} else if (node.count == 1) {
+				merge(node);
+			}
+
+			return bytes - before;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Fill in a page of a listing.
+	 * 
+	 * @param listing
+	 *            The listing to add the objects and common prefixes to.
+	 * @param prefix
+	 *            The prefix of the keys to list. Not <code>null</code>.
+	 * @param from
+	 *            The key to start the list from. <code>null</code> to start
+	 *            at the first key starting with <code>prefix</code>.
+	 * @param inclusive
+	 *            <code>True</code> to list the key <code>from</code> if it
+	 *            exists.
+	 * @param delimiter
+	 *            Used to roll up common keys into a summary. May be
+	 *            <code>null</code>.
+	 * @param maxKeys
+	 *            The maximum number of objects and common prefixes to add.
+	 */
+	public void list(ObjectListing listing, String prefix, String from,
+			boolean inclusive, String delimiter, int maxKeys) {
+		lock.readLock().lock();
+		try {
+			Node node = root;
+			int i = 0;
+
+			// descend to the node holding the keys starting with prefix
+			while (i < prefix.length()) {
+				node = node.child(prefix.charAt(i));
+				if (node == null) {
+					return;
+				}
+				if (prefix.startsWith(node.label, i)) {
+					i += node.label.length();
+				} else if (node.label.startsWith(prefix.substring(i))) {
+					i += node.label.length();
+					break;
+				} else {
+					return;
+				}
+			}
+
+			new Walk(listing, prefix.length(), from, inclusive, delimiter,
+					maxKeys).walk(node, new StringBuffer(prefix.substring(0, i
+					- node.label.length())
+					+ node.label), 0, from != null);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of keys.
+	 * 
+	 * @return The number of keys.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the estimated heap taken by the tree.
+	 * 
+	 * @return The estimated heap taken by the tree, in bytes.
+	 */
+	public long getBytes() {
+		lock.readLock().lock();
+		try {
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Merge a node without a value into its only child.
+	 */
+	private void merge(Node node) {
+		Node child = node.children[0];
+
+		bytes -= nodeBytes(child.label) - 2 * child.label.length();
+		node.label = node.label + child.label;
+		node.value = child.value;
+		node.children = child.children;
+		node.count = child.count;
+	}
+
+	private static int commonLength(String label, String key, int offset) {
+		int length = Math.min(label.length(), key.length() - offset);
+		int i = 0;
+
+		while ((i < length) && (label.charAt(i) == key.charAt(offset + i))) {
+			i++;
+		}
+
+		return i;
+	}
+
+	private static long nodeBytes(String label) {
+		return NODE_BYTES + STRING_BYTES + 2 * label.length();
+	}
+
+	private static long summaryBytes(S3ObjectSummary summary) {
+		return SUMMARY_BYTES + stringBytes(summary.getKey())
+				+ stringBytes(summary.getETag())
+				+ stringBytes(summary.getOwnerId())
+				+ stringBytes(summary.getOwnerDisplayName());
+	}
+
+	private static long stringBytes(String value) {
+		return (value == null) ? 0 : STRING_BYTES + 2 * value.length();
+	}
+
+	/**
+	 * A node of the tree. The path to a node is the concatenation of the
+	 * labels from the root; the children are held in order of the first
+	 * character of their labels, which are distinct.
+	 */
+	private static class Node {
+		private String label;
+
+		private S3ObjectSummary value;
+
+		private Node[] children = NO_CHILDREN;
+
+		private int count = 0;
+
+		public Node(String label) {
+			this.label = label;
+		}
+
+		public Node child(char c) {
+			int index = indexOf(c);
+
+			return (index < 0) ? null : children[index];
+		}
+
+		/**
+		 * Binary search for the child whose label starts with a character.
+		 * Returns <code>-(insertion point + 1)</code> if there is none.
+		 */
+		public int indexOf(char c) {
+			int low = 0;
+			int high = count - 1;
+
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				char first = children[mid].label.charAt(0);
+
+				if (first < c) {
+					low = mid + 1;
+				} else if (first > c) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+
+			return -(low + 1);
+		}
+
+		public void insert(int index, Node child) {
+			if (count == children.length) {
+				Node[] grown = new Node[Math.max(2, count * 2)];
+
+				System.arraycopy(children, 0, grown, 0, count);
+				children = grown;
+			}
+			System.arraycopy(children, index, children, index + 1, count
+					- index);
+			children[index] = child;
+			count++;
+		}
+
+		public void delete(int index) {
+			count--;
+			System.arraycopy(children, index + 1, children, index, count
+					- index);
+			children[count] = null;
+		}
+	}
+
+	/**
+	 * The state of a listing descending the tree.
+	 */
+	private static class Walk {
+		private static final int BELOW = -1;
+
+		private static final int PARTIAL = 0;
+
+		private static final int ABOVE = 1;
+
+		private ObjectListing listing;
+
+		private int prefixLength;
+
+		private String from;
+
+		private boolean inclusive;
+
+		private String delimiter;
+
+		private int maxKeys;
+
+		public Walk(ObjectListing listing, int prefixLength, String from,
+				boolean inclusive, String delimiter, int maxKeys) {
+			this.listing = listing;
+			this.prefixLength = prefixLength;
+			this.from = from;
+			this.inclusive = inclusive;
+			this.delimiter = delimiter;
+			this.maxKeys = maxKeys;
+		}
+
+		/**
+		 * List a subtree.
+		 * 
+		 * @param node
+		 *            The root of the subtree.
+		 * @param path
+		 *            The path to the node.
+		 * @param offset
+		 *            The length of the start of the path known to be the
+		 *            start of <code>from</code>.
+		 * @param bounded
+		 *            <code>True</code> if the subtree may hold keys sorting
+		 *            before <code>from</code>.
+		 * @return <code>False</code> if the listing is full.
+		 */
+		public boolean walk(Node node, StringBuffer path, int offset,
+				boolean bounded) {
+			int length = path.length();
+			int delimiterIndex;
+
+			if (bounded) {
+				switch (compare(path, offset)) {
+				case BELOW:
+					return true;
+				case ABOVE:
+					bounded = false;
+					break;
+				}
+			}
+
+			if ((delimiter != null) && (length > prefixLength)
+					&& ((delimiterIndex = path.indexOf(delimiter, prefixLength)) >= 0)) {
+				if (bounded && !hasKeyFrom(node, path)) {
+					return true;
+				}
+				if (listing.size() >= maxKeys) {
+					listing.setTruncated(true);
+					return false;
+				}
+				listing.addCommonPrefix(path.substring(0, delimiterIndex
+						+ delimiter.length()));
+				return true;
+			}
+
+			if ((node.value != null)
+					&& (!bounded || (inclusive && (length == from.length())))) {
+				if (listing.size() >= maxKeys) {
+					listing.setTruncated(true);
+					return false;
+				}
+				listing.addContent(node.value);
+			}
+
+			for (int i = 0; i < node.count; i++) {
+				Node child = node.children[i];
+
+				path.append(child.label);
+				try {
+					if (!walk(child, path, length, bounded)) {
+						return false;
+					}
+				} finally {
+					path.setLength(length);
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Determine if a subtree, whose path <code>from</code> starts with,
+		 * holds a key that is listed.
+		 */
+		private boolean hasKeyFrom(Node node, StringBuffer path) {
+			int length = path.length();
+
+			if ((node.value != null) && inclusive && (length == from.length())) {
+				return true;
+			}
+
+			for (int i = 0; i < node.count; i++) {
+				Node child = node.children[i];
+
+				path.append(child.label);
+				try {
+					switch (compare(path, length)) {
+					case ABOVE:
+						return true;
+					case PARTIAL:
+						if (hasKeyFrom(child, path)) {
+							return true;
+						}
+					}
+				} finally {
+					path.setLength(length);
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * Compare a path, whose first <code>offset</code> characters
+		 * <code>from</code> starts with, to <code>from</code>.
+		 * 
+		 * @return <code>BELOW</code> if every key under the path sorts before
+		 *         <code>from</code>, <code>ABOVE</code> if every key under
+		 *         the path sorts after it, or <code>PARTIAL</code> if
+		 *         <code>from</code> starts with the path.
+		 */
+		private int compare(StringBuffer path, int offset) {
+			int length = Math.min(path.length(), from.length());
+
+			for (int i = offset; i < length; i++) {
+				char a = path.charAt(i);
+				char b = from.charAt(i);
+
+				if (a != b) {
+					return (a < b) ? BELOW : ABOVE;
+				}
+			}
+
+			return (path.length() <= from.length()) ? PARTIAL : ABOVE;
+		}
+	}
+}
@@ -18,13 +18,20 @@ package com.jpeterson.littles3.service;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.SortedMap;
 
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataRetrievalFailureException;
 
 import com.jpeterson.littles3.bo.Bucket;
 import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.DataUsage;
+import com.jpeterson.littles3.bo.MultipartUpload;
+import com.jpeterson.littles3.bo.ObjectListing;
 import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.UploadPart;
+import com.jpeterson.littles3.bo.Usage;
 import com.jpeterson.littles3.dao.BucketDao;
 import com.jpeterson.littles3.dao.S3ObjectDao;
 
@@ -66,6 +73,30 @@ public interface StorageService {
 
 	public void store(S3Object s3Object) throws DataAccessException;
 
+	/**
+	 * Store an S3Object in place of another with the same key. Readers see
+	 * either the old or the new object, never neither, and the data of the
+	 * old object is deleted after the new object is stored, possibly in the
+	 * background.
+	 * 
+	 * <p>
+	 * The object actually replaced is read as the new object is stored, so
+	 * the data of an object stored concurrently since
+	 * <code>oldS3Object</code> was loaded is also deleted.
+	 * </p>
+	 * 
+	 * @param oldS3Object
+	 *            The object being replaced, as loaded before the new data was
+	 *            written, or <code>null</code> if there was none.
+	 * @param s3Object
+	 *            The replacing object.
+	 * @throws DataAccessException
+	 *             Unable to store the replacing object. The old object is
+	 *             left in place.
+	 */
+	public void replace(S3Object oldS3Object, S3Object s3Object)
+			throws DataAccessException;
+
 	public void remove(S3Object s3Object) throws DataAccessException;
 
 	public void setS3ObjectDao(S3ObjectDao s3ObjectDao);
@@ -102,18 +133,223 @@ public interface StorageService {
 	public void deleteBucket(Bucket bucket) throws IOException;
 
 	/**
-	 * Find the buckets for a user.
+	 * Find the buckets owned by a user.
 	 * 
 	 * @param username
-	 *            The username of the user who uses the buckets.
-	 * @return A list of the Buckets. Will be empty if the user has no buckets.
+	 *            The id of the user who owns the buckets.
+	 * @return A list of the Buckets, ordered by name, with their creation
+	 *         dates. Will be empty if the user has no buckets.
 	 * @throws IOException
 	 *             Unable to find a user's buckets.
 	 */
 	public List<Bucket> findBuckets(String username) throws IOException;
 
-	public String listKeys(Bucket bucket, String prefix, String marker,
-			String delimiter, int maxKeys) throws DataAccessException;
+	public ObjectListing listKeys(Bucket bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException;
+
+	/**
+	 * List the keys of a bucket, resuming from the position an earlier
+	 * listing stopped at.
+	 * 
+	 * @param bucket
+	 *            The bucket containing the keys to list.
+	 * @param prefix
+	 *            Restrict the list to keys that begin with the prefix.
+	 * @param position
+	 *            Where to start the list. May be <code>null</code>.
+	 * @param delimiter
+	 *            Used to roll up common keys into a summary.
+	 * @param maxKeys
+	 *            Limit the number of results.
+	 * @param fetchOwner
+	 *            <code>True</code> if the owners of the objects are listed.
+	 * @return A page of the listing.
+	 * @throws DataAccessException
+	 *             Unable to generate the list.
+	 */
+	public ObjectListing listKeys(Bucket bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException;
+
+	/**
+	 * Get the number of objects in a bucket and their total size. Kept up to
+	 * date as objects are stored and removed; does not list the bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @return The usage of the bucket.
+	 * @throws DataAccessException
+	 *             Unable to read the usage.
+	 */
+	public Usage getUsage(Bucket bucket) throws DataAccessException;
+
+	/**
+	 * Get the usage of the key prefixes of a bucket, by prefix, up to the
+	 * configured prefix depth.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @return The usage of each prefix holding objects. Empty if usage is
+	 *         kept per bucket only.
+	 * @throws DataAccessException
+	 *             Unable to read the usage.
+	 */
+	public SortedMap<String, Usage> getPrefixUsage(Bucket bucket)
+			throws DataAccessException;
+
+	/**
+	 * Get the storage used by deduplicated object data, across all buckets,
+	 * and the space saved by storing identical data once.
+	 * 
+	 * @return The usage of the deduplicated data, or <code>null</code> if
+	 *         object data is not deduplicated.
+	 * @throws DataAccessException
+	 *             Unable to read the usage.
+	 */
+	public DataUsage getDataUsage() throws DataAccessException;
+
+	/**
+	 * Check that an object can be stored in a bucket without taking the
+	 * bucket over its quota. The quota is soft: concurrent stores that each
+	 * pass the check may together exceed it.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @param replaced
+	 *            The object the new object replaces. <code>null</code> if
+	 *            the key is new.
+	 * @param contentLength
+	 *            The size of the new object, in bytes.
+	 * @throws QuotaExceededException
+	 *             Storing the object would exceed the quota.
+	 * @throws DataAccessException
+	 *             Unable to read the usage.
+	 */
+	public void checkQuota(Bucket bucket, S3Object replaced, long contentLength)
+			throws QuotaExceededException, DataAccessException;
+
+	/**
+	 * Initiate a multipart upload.
+	 * 
+	 * @param s3Object
+	 *            The object to create when the upload is completed, as
+	 *            created by {@link #createS3Object(Bucket, String,
+	 *            CanonicalUser)}, with its content type, metadata and access
+	 *            control policy set. Its data is not written.
+	 * @return The upload.
+	 * @throws IOException
+	 *             Unable to initiate the upload.
+	 */
+	public MultipartUpload initiateMultipartUpload(S3Object s3Object)
+			throws IOException;
+
+	/**
+	 * Load a multipart upload.
+	 * 
+	 * @param bucket
+	 *            The name of the bucket the object is uploaded to.
+	 * @param key
+	 *            The object key.
+	 * @param uploadId
+	 *            The id of the upload.
+	 * @return The upload.
+	 * @throws DataRetrievalFailureException
+	 *             There is no such upload for the <code>bucket</code> and
+	 *             <code>key</code>.
+	 * @throws DataAccessException
+	 *             Unable to load the upload.
+	 */
+	public MultipartUpload loadMultipartUpload(String bucket, String key,
+			String uploadId) throws DataAccessException;
+
+	/**
+	 * Create a part of a multipart upload, to write the part data to. Parts
+	 * may be written concurrently.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @param partNumber
+	 *            The number of the part, from <code>1</code>.
+	 * @return An S3Object to write the part data to and, once written, to
+	 *         {@link #storePart(MultipartUpload, int, S3Object) store}.
+	 * @throws IOException
+	 *             Unable to create the part.
+	 */
+	public S3Object createPart(MultipartUpload upload, int partNumber)
+			throws IOException;
+
+	/**
+	 * Store a written part of a multipart upload, in place of any part
+	 * uploaded earlier with the same number.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @param partNumber
+	 *            The number of the part, from <code>1</code>.
+	 * @param part
+	 *            The part, as created by
+	 *            {@link #createPart(MultipartUpload, int)}, with its data
+	 *            written and its ETag and content length set.
+	 * @return The stored part.
+	 * @throws DataRetrievalFailureException
+	 *             The upload was completed or aborted.
+	 * @throws DataAccessException
+	 *             Unable to store the part.
+	 */
+	public UploadPart storePart(MultipartUpload upload, int partNumber,
+			S3Object part) throws DataAccessException;
+
+	/**
+	 * List the parts of a multipart upload.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @return The uploaded parts, ordered by part number.
+	 * @throws DataAccessException
+	 *             Unable to list the parts.
+	 */
+	public List<UploadPart> listParts(MultipartUpload upload)
+			throws DataAccessException;
+
+	/**
+	 * Complete a multipart upload, storing its object in place of any object
+	 * with the same key. The object is assembled from the named parts
+	 * without copying their data.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @param parts
+	 *            The parts of the object, in ascending order of part number,
+	 *            each with the part number and ETag of an uploaded part.
+	 * @return The stored object. Its ETag is the MD5 digest of the MD5
+	 *         digests of the parts, followed by <code>-</code> and the
+	 *         number of parts.
+	 * @throws InvalidPartOrderException
+	 *             The parts are not in ascending order of part number.
+	 * @throws InvalidPartException
+	 *             A part was not uploaded, or its ETag does not match.
+	 * @throws EntityTooSmallException
+	 *             A part other than the last is smaller than the minimum
+	 *             part size.
+	 * @throws QuotaExceededException
+	 *             Storing the object would exceed the quota of the bucket.
+	 * @throws IOException
+	 *             Unable to complete the upload.
+	 */
+	public S3Object completeMultipartUpload(MultipartUpload upload,
+			List<UploadPart> parts) throws IOException;
+
+	/**
+	 * Abort a multipart upload, deleting its parts.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @throws DataAccessException
+	 *             Unable to abort the upload.
+	 */
+	public void abortMultipartUpload(MultipartUpload upload)
+			throws DataAccessException;
 
 	public void setBucketDao(BucketDao bucketDao);
 }
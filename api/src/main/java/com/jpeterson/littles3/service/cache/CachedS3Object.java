@@ -0,0 +1,172 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.service.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.util.io.BufferPool;
+
+/**
+ * An immutable, in-memory copy of an <code>S3Object</code>, metadata and
+ * content, held by the <code>ObjectCache</code>. The content is held in a
+ * <code>ByteBuffer</code>, which may be a direct buffer living outside of the
+ * Java heap.
+ * 
+ * @author Jesse Peterson
+ */
+public class CachedS3Object extends S3Object {
+	/**
+	 * If incompatible serialization changes are made, mostly deleting methods,
+	 * this must be changed.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	private transient ByteBuffer content;
+
+	/**
+	 * Create a cached copy of an object.
+	 * 
+	 * @param s3Object
+	 *            The object to copy the metadata from.
+	 * @param content
+	 *            The object content. The buffer is owned by this object from
+	 *            now on and must not be modified.
+	 */
+	public CachedS3Object(S3Object s3Object, ByteBuffer content) {
+		super();
+		setBucket(s3Object.getBucket());
+		setKey(s3Object.getKey());
+		setStorageUrl(s3Object.getStorageUrl());
+		setContentLength(content.remaining());
+		setContentType(s3Object.getContentType());
+		setContentMD5(s3Object.getContentMD5());
+		setContentDisposition(s3Object.getContentDisposition());
+		setETag(s3Object.getETag());
+		setLastModified(s3Object.getLastModified());
+		setAcp(s3Object.getAcp());
+		for (Iterator<String> names = s3Object.getMetadataNames(); names
+				.hasNext();) {
+			String name = names.next();
+			for (Iterator<String> values = s3Object.getMetadataValues(name); values
+					.hasNext();) {
+				addMetadata(name, values.next());
+			}
+		}
+		this.content = content;
+	}
+
+	/**
+	 * Get the number of bytes of content held by this object.
+	 * 
+	 * @return The number of bytes of content held by this object.
+	 */
+	public int getSize() {
+		return content.remaining();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		if (content.hasArray()) {
+			return new ByteArrayInputStream(content.array(), content
+					.arrayOffset()
+					+ content.position(), content.remaining());
+		}
+
+		byte[] copy = new byte[content.remaining()];
+		content.duplicate().get(copy);
+
+		return new ByteArrayInputStream(copy);
+	}
+
+	/**
+	 * The cached content is read only.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             Always.
+	 */
+	@Override
+	public OutputStream getOutputStream() {
+		throw new UnsupportedOperationException(
+				"Cached object content is read only");
+	}
+
+	/**
+	 * Write a portion of the cached content to an <code>OutputStream</code>
+	 * without opening the underlying storage.
+	 * 
+	 * @param position
+	 *            The position in the object data to start writing from.
+	 * @param count
+	 *            The number of bytes to write.
+	 * @param out
+	 *            The <code>OutputStream</code> to write the data to.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             Unable to write to <code>out</code>.
+	 * @Override
+	 */
+	public long transferTo(long position, long count, OutputStream out)
+			throws IOException {
+		int size = content.remaining();
+
+		if ((position >= size) || (count <= 0)) {
+			return 0;
+		}
+
+		int length = (int) Math.min(count, size - position);
+
+		if (content.hasArray()) {
+			out.write(content.array(), content.arrayOffset()
+					+ content.position() + (int) position, length);
+		} else {
+			ByteBuffer source = content.duplicate();
+			BufferPool pool = BufferPool.getInstance();
+			byte[] buffer = pool.acquire();
+			int chunk;
+
+			source.position(source.position() + (int) position);
+			try {
+				for (int remaining = length; remaining > 0; remaining -= chunk) {
+					chunk = Math.min(buffer.length, remaining);
+					source.get(buffer, 0, chunk);
+					out.write(buffer, 0, chunk);
+				}
+			} finally {
+				pool.release(buffer);
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * The cached content can not be deleted. Invalidate the cache entry
+	 * instead.
+	 * 
+	 * @return <code>false</code>
+	 */
+	@Override
+	public boolean deleteData() {
+		return false;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.service.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.S3Object;
+
+/**
+ * A size bounded, least recently used cache of small objects, metadata and
+ * content. A hit avoids both loading the object metadata and opening the
+ * object data.
+ * <p>
+ * The cache is bounded by the total number of content bytes held, and only
+ * objects no larger than <code>maxObjectSize</code> are admitted. Content can
+ * optionally be held in direct buffers, outside of the Java heap.
+ * </p>
+ * <p>
+ * Writers must call <code>invalidate</code> whenever an object is stored or
+ * removed. To keep a reader that loaded an object before an invalidation
+ * from caching the stale copy, a reader takes a <code>getStamp()</code>
+ * before loading the object and passes it to <code>put</code>; the object is
+ * not cached if an invalidation has happened in the meantime.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class ObjectCache {
+	/**
+	 * Default maximum number of content bytes held by the cache.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Default maximum size of a single cached object.
+	 */
+	public static final int DEFAULT_MAX_OBJECT_SIZE = 64 * 1024;
+
+	private Log logger;
+
+	private LinkedHashMap<String, CachedS3Object> entries;
+
+	private long size = 0;
+
+	private long maxSize = DEFAULT_MAX_SIZE;
+
+	private int maxObjectSize = DEFAULT_MAX_OBJECT_SIZE;
+
+	private boolean direct = false;
+
+	private AtomicLong stamp = new AtomicLong();
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create an empty cache.
+	 */
+	public ObjectCache() {
+		logger = LogFactory.getLog(this.getClass());
+		entries = new LinkedHashMap<String, CachedS3Object>(256, 0.75f, true);
+	}
+
+	/**
+	 * Get a cached object.
+	 * 
+	 * @param bucket
+	 *            The bucket of the object.
+	 * @param key
+	 *            The key of the object.
+	 * @return The cached object, or <code>null</code> if the object is not
+	 *         cached.
+	 */
+	public CachedS3Object get(String bucket, String key) {
+		CachedS3Object cached;
+
+		synchronized (entries) {
+			cached = entries.get(cacheKey(bucket, key));
+		}
+
+		if (cached == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+
+		return cached;
+	}
+
+	/**
+	 * Determine if an object is small enough to be cached.
+	 * 
+	 * @param s3Object
+	 *            The object.
+	 * @return <code>True</code> if the object can be cached,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean isCacheable(S3Object s3Object) {
+		long length = s3Object.getContentLength();
+
+		return (length >= 0) && (length <= maxObjectSize)
+				&& (length <= maxSize);
+	}
+
+	/**
+	 * Read the content of an object into the cache.
+	 * 
+	 * @param s3Object
+	 *            The object to cache.
+	 * @param stamp
+	 *            The value of <code>getStamp()</code> taken before
+	 *            <code>s3Object</code> was loaded.
+	 * @return The cached copy of the object, or <code>null</code> if the
+	 *         object can not be cached. The cached copy is returned even if it
+	 *         was invalidated while being read, in which case it is simply not
+	 *         retained.
+	 * @throws IOException
+	 *             Unable to read the object content.
+	 */
+	public CachedS3Object put(S3Object s3Object, long stamp)
+			throws IOException {
+		ByteArrayOutputStream out;
+		ByteBuffer content;
+		CachedS3Object cached;
+
+		if (!isCacheable(s3Object)) {
+			return null;
+		}
+
+		out = new ByteArrayOutputStream((int) s3Object.getContentLength());
+		s3Object.transferTo(0, s3Object.getContentLength(), out);
+		if (direct) {
+			byte[] data = out.toByteArray();
+			content = ByteBuffer.allocateDirect(data.length);
+			content.put(data);
+			content.flip();
+		} else {
+			content = ByteBuffer.wrap(out.toByteArray());
+		}
+		cached = new CachedS3Object(s3Object, content);
+
+		synchronized (entries) {
+			if (stamp != this.stamp.get()) {
+				// invalidated while the content was read
+				return cached;
+			}
+
+			CachedS3Object previous = entries.put(cacheKey(s3Object
+					.getBucket(), s3Object.getKey()), cached);
+			if (previous != null) {
+				size -= previous.getSize();
+			}
+			size += cached.getSize();
+
+			evict();
+		}
+
+		return cached;
+	}
+
+	/**
+	 * Remove an object from the cache. Must be called whenever an object is
+	 * stored or removed.
+	 * 
+	 * @param bucket
+	 *            The bucket of the object.
+	 * @param key
+	 *            The key of the object.
+	 */
+	public void invalidate(String bucket, String key) {
+		CachedS3Object previous;
+
+		synchronized (entries) {
+			stamp.incrementAndGet();
+			previous = entries.remove(cacheKey(bucket, key));
+			if (previous != null) {
+				size -= previous.getSize();
+			}
+		}
+	}
+
+	/**
+	 * Remove all objects from the cache.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			stamp.incrementAndGet();
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Get the current stamp of the cache, to be passed to <code>put</code>.
+	 * 
+	 * @return The current stamp of the cache.
+	 */
+	public long getStamp() {
+		return stamp.get();
+	}
+
+	/**
+	 * Evict the least recently used objects until the cache is within its
+	 * size bound. Must be called with the <code>entries</code> lock held.
+	 */
+	private void evict() {
+		for (Iterator<Map.Entry<String, CachedS3Object>> iter = entries
+				.entrySet().iterator(); (size > maxSize) && iter.hasNext();) {
+			CachedS3Object eldest = iter.next().getValue();
+			iter.remove();
+			size -= eldest.getSize();
+			evictions.incrementAndGet();
+			if (logger.isDebugEnabled()) {
+				logger.debug("Evicted " + eldest.getBucket() + "/"
+						+ eldest.getKey());
+			}
+		}
+	}
+
+	private static String cacheKey(String bucket, String key) {
+		// bucket names can not contain a '/'
+		return bucket + "/" + key;
+	}
+
+	/**
+	 * Get the number of objects currently cached.
+	 * 
+	 * @return The number of objects currently cached.
+	 */
+	public int getCount() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Get the number of content bytes currently cached.
+	 * 
+	 * @return The number of content bytes currently cached.
+	 */
+	public long getSize() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+
+	/**
+	 * Get the maximum number of content bytes held by the cache.
+	 * 
+	 * @return The maximum number of content bytes held by the cache.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Set the maximum number of content bytes held by the cache.
+	 * 
+	 * @param maxSize
+	 *            The maximum number of content bytes held by the cache.
+	 */
+	public void setMaxSize(long maxSize) {
+		synchronized (entries) {
+			this.maxSize = maxSize;
+			evict();
+		}
+	}
+
+	/**
+	 * Get the maximum size of a single cached object.
+	 * 
+	 * @return The maximum size of a single cached object, in bytes.
+	 */
+	public int getMaxObjectSize() {
+		return maxObjectSize;
+	}
+
+	/**
+	 * Set the maximum size of a single cached object.
+	 * 
+	 * @param maxObjectSize
+	 *            The maximum size of a single cached object, in bytes.
+	 */
+	public void setMaxObjectSize(int maxObjectSize) {
+		this.maxObjectSize = maxObjectSize;
+	}
+
+	/**
+	 * Determine if object content is held in direct buffers.
+	 * 
+	 * @return <code>True</code> if object content is held in direct buffers,
+	 *         outside of the Java heap.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Set if object content is held in direct buffers. Only affects objects
+	 * cached from now on.
+	 * 
+	 * @param direct
+	 *            <code>True</code> to hold object content in direct buffers,
+	 *            outside of the Java heap.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+
+	/**
+	 * Get the number of lookups that found a cached object.
+	 * 
+	 * @return The number of lookups that found a cached object.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups that did not find a cached object.
+	 * 
+	 * @return The number of lookups that did not find a cached object.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of objects evicted to keep the cache within its size
+	 * bound.
+	 * 
+	 * @return The number of objects evicted.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ObjectCache[count=" + getCount() + ", size=" + getSize()
+				+ ", maxSize=" + maxSize + ", hits=" + getHits() + ", misses="
+				+ getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
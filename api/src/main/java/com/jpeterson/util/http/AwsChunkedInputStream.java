@@ -0,0 +1,192 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.http;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an <code>aws-chunked</code> request body: a sequence of chunks,
+ * each a line with the hex encoded size of the chunk data and optional
+ * extensions such as <code>chunk-signature</code>, then the data and a line
+ * end. A chunk of size <code>0</code>, optionally followed by trailer lines,
+ * ends the body. The chunk signatures are not verified.
+ * 
+ * @author Jesse Peterson
+ */
+public class AwsChunkedInputStream extends FilterInputStream {
+	/**
+	 * The content encoding of an <code>aws-chunked</code> body.
+	 */
+	public static final String CONTENT_ENCODING = "aws-chunked";
+
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private long remaining = 0;
+
+	private boolean started = false;
+
+	private boolean ended = false;
+
+	/**
+	 * Create a decoder of an <code>aws-chunked</code> body.
+	 * 
+	 * @param in
+	 *            The encoded body.
+	 */
+	public AwsChunkedInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+
+		return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+	}
+
+	/**
+	 * Read decoded data.
+	 * 
+	 * @throws EOFException
+	 *             The body ended before the last chunk.
+	 * @throws MalformedChunkException
+	 *             The body is not <code>aws-chunked</code> encoded.
+	 * @throws IOException
+	 *             An I/O error occurs.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read;
+
+		if (len == 0) {
+			return 0;
+		}
+
+		if ((remaining == 0) && !nextChunk()) {
+			return -1;
+		}
+
+		read = in.read(b, off, (int) Math.min(len, remaining));
+		if (read == -1) {
+			throw new EOFException("Body ended within a chunk");
+		}
+		remaining -= read;
+
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] b = new byte[(int) Math.min(n, 4096)];
+		long skipped = 0;
+		int read;
+
+		while ((skipped < n)
+				&& ((read = read(b, 0, (int) Math.min(b.length, n - skipped))) != -1)) {
+			skipped += read;
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read the header of the next chunk.
+	 * 
+	 * @return <code>True</code> if there is chunk data to read,
+	 *         <code>false</code> at the end of the body.
+	 */
+	private boolean nextChunk() throws IOException {
+		String line;
+		int end;
+
+		if (ended) {
+			return false;
+		}
+
+		if (started && (readLine(false).length() != 0)) {
+			throw new MalformedChunkException("Malformed aws-chunked body: "
+					+ "chunk data not followed by a line end");
+		}
+		started = true;
+
+		line = readLine(false);
+		end = line.indexOf(';');
+		try {
+			remaining = Long.parseLong(((end == -1) ? line : line.substring(
+					0, end)).trim(), 16);
+		} catch (NumberFormatException e) {
+			throw new MalformedChunkException("Malformed aws-chunked chunk size: " + line);
+		}
+		if (remaining < 0) {
+			throw new MalformedChunkException("Malformed aws-chunked chunk size: " + line);
+		}
+
+		if (remaining == 0) {
+			// the last chunk, skip the trailers
+			while (readLine(true).length() != 0) {
+				// trailer
+			}
+			ended = true;
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read a line, without its line end.
+	 * 
+	 * @param last
+	 *            <code>True</code> if the body may end instead of the line.
+	 */
+	private String readLine(boolean last) throws IOException {
+		StringBuffer line = new StringBuffer();
+		int c;
+
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				if (last) {
+					break;
+				}
+				throw new EOFException("Body ended within a chunk header");
+			}
+			if (line.length() >= MAX_LINE_LENGTH) {
+				throw new MalformedChunkException("aws-chunked line too long");
+			}
+			line.append((char) c);
+		}
+
+		if ((line.length() > 0) && (line.charAt(line.length() - 1) == '\r')) {
+			line.setLength(line.length() - 1);
+		}
+
+		return line.toString();
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.http;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * Evaluates the HTTP conditional request headers (<code>If-Match</code>,
+ * <code>If-None-Match</code>, <code>If-Modified-Since</code>,
+ * <code>If-Unmodified-Since</code> and <code>If-Range</code>) against the
+ * entity tag and last modified timestamp of a resource. Only metadata is
+ * needed, so a request can be answered before the resource data is opened.
+ * <p>
+ * Entity tags may be given with or without the surrounding quotes. HTTP dates
+ * only have a precision of one second, so timestamps are compared in whole
+ * seconds.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class Preconditions {
+	/**
+	 * The request should be processed normally.
+	 */
+	public static final int PROCEED = 0;
+
+	/**
+	 * HTTP status code for "Not Modified".
+	 */
+	public static final int SC_NOT_MODIFIED = 304;
+
+	/**
+	 * HTTP status code for "Precondition Failed".
+	 */
+	public static final int SC_PRECONDITION_FAILED = 412;
+
+	/**
+	 * Evaluate the conditional headers of a <code>GET</code> or
+	 * <code>HEAD</code> request. <code>If-Unmodified-Since</code> is only
+	 * considered when there is no <code>If-Match</code>, and
+	 * <code>If-Modified-Since</code> is only considered when there is no
+	 * <code>If-None-Match</code>. Dates that can not be parsed are ignored.
+	 * 
+	 * @param ifMatch
+	 *            The <code>If-Match</code> header value, or <code>null</code>.
+	 * @param ifNoneMatch
+	 *            The <code>If-None-Match</code> header value, or
+	 *            <code>null</code>.
+	 * @param ifModifiedSince
+	 *            The <code>If-Modified-Since</code> header value, or
+	 *            <code>null</code>.
+	 * @param ifUnmodifiedSince
+	 *            The <code>If-Unmodified-Since</code> header value, or
+	 *            <code>null</code>.
+	 * @param eTag
+	 *            The current entity tag of the resource, or <code>null</code>
+	 *            if unknown.
+	 * @param lastModified
+	 *            The last modified timestamp of the resource, in milliseconds.
+	 * @return <code>PROCEED</code> if the request should be processed,
+	 *         otherwise <code>SC_NOT_MODIFIED</code> or
+	 *         <code>SC_PRECONDITION_FAILED</code>.
+	 */
+	public static int evaluate(String ifMatch, String ifNoneMatch,
+			String ifModifiedSince, String ifUnmodifiedSince, String eTag,
+			long lastModified) {
+		long date;
+
+		if (ifMatch != null) {
+			if (!matches(ifMatch, eTag, true)) {
+				return SC_PRECONDITION_FAILED;
+			}
+		} else if (ifUnmodifiedSince != null) {
+			date = parseDate(ifUnmodifiedSince);
+			if ((date != -1) && (toSeconds(lastModified) > toSeconds(date))) {
+				return SC_PRECONDITION_FAILED;
+			}
+		}
+
+		if (ifNoneMatch != null) {
+			if (matches(ifNoneMatch, eTag, false)) {
+				return SC_NOT_MODIFIED;
+			}
+		} else if (ifModifiedSince != null) {
+			date = parseDate(ifModifiedSince);
+			if ((date != -1) && (toSeconds(lastModified) <= toSeconds(date))) {
+				return SC_NOT_MODIFIED;
+			}
+		}
+
+		return PROCEED;
+	}
+
+	/**
+	 * Determine if a <code>Range</code> request should be honored based on
+	 * its <code>If-Range</code> header. The value is either an entity tag,
+	 * which must match strongly, or an HTTP date, which must equal the last
+	 * modified timestamp.
+	 * 
+	 * @param ifRange
+	 *            The <code>If-Range</code> header value, or <code>null</code>.
+	 * @param eTag
+	 *            The current entity tag of the resource, or <code>null</code>
+	 *            if unknown.
+	 * @param lastModified
+	 *            The last modified timestamp of the resource, in milliseconds.
+	 * @return <code>True</code> if the range should be sent,
+	 *         <code>false</code> if the entire resource should be sent.
+	 */
+	public static boolean isRangeCurrent(String ifRange, String eTag,
+			long lastModified) {
+		long date;
+
+		if (ifRange == null) {
+			return true;
+		}
+
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return matches(ifRange, eTag, true);
+		}
+
+		date = parseDate(ifRange);
+		if (date == -1) {
+			return false;
+		}
+
+		return toSeconds(lastModified) == toSeconds(date);
+	}
+
+	/**
+	 * Determine if an entity tag matches a list of entity tags from an
+	 * <code>If-Match</code> or <code>If-None-Match</code> header.
+	 * 
+	 * @param value
+	 *            The header value. Either <code>*</code> or a comma separated
+	 *            list of entity tags.
+	 * @param eTag
+	 *            The current entity tag of the resource, or <code>null</code>
+	 *            if unknown.
+	 * @param strong
+	 *            If <code>true</code>, weak entity tags never match.
+	 * @return <code>True</code> if the entity tag matches, <code>false</code>
+	 *         otherwise.
+	 */
+	public static boolean matches(String value, String eTag, boolean strong) {
+		String[] tags;
+		String tag;
+
+		if (value.trim().equals("*")) {
+			return eTag != null;
+		}
+
+		if (eTag == null) {
+			return false;
+		}
+
+		eTag = unquote(eTag);
+		tags = value.split(",");
+		for (int i = 0; i < tags.length; i++) {
+			tag = tags[i].trim();
+			if (tag.startsWith("W/")) {
+				if (strong) {
+					continue;
+				}
+				tag = tag.substring(2);
+			}
+
+			if (unquote(tag).equals(eTag)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Parse an HTTP date.
+	 * 
+	 * @param value
+	 *            The date value.
+	 * @return The date in milliseconds, or <code>-1</code> if the value can
+	 *         not be parsed.
+	 */
+	public static long parseDate(String value) {
+		try {
+			return DateUtil.parseDate(value.trim()).getTime();
+		} catch (DateParseException e) {
+			return -1;
+		}
+	}
+
+	private static String unquote(String tag) {
+		if ((tag.length() >= 2) && tag.startsWith("\"") && tag.endsWith("\"")) {
+			return tag.substring(1, tag.length() - 1);
+		}
+
+		return tag;
+	}
+
+	private static long toSeconds(long milliseconds) {
+		return milliseconds / 1000;
+	}
+}
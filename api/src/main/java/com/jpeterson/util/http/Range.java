@@ -145,7 +145,8 @@ public class Range implements Rangeable {
 	 * mergeable if the start of the second range is between the start and end
 	 * of the first range or the end of the second range is between the start
 	 * and end of the first range or start of one is one less than the end of
-	 * the other.
+	 * the other. An unresolved suffix range is never mergeable, as its
+	 * position is not known until it is resolved.
 	 * 
 	 * @param range
 	 *            The range to test against this range.
@@ -155,6 +156,10 @@ public class Range implements Rangeable {
 	public boolean combinable(Range range) {
 		long point;
 
+		if ((start < 0) || (range.getStart() < 0)) {
+			return false;
+		}
+
 		point = range.getStart();
 
 		if ((point >= start) && (point <= end)) {
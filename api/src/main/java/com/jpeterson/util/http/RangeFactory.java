@@ -31,6 +31,8 @@ public class RangeFactory {
 	 * @return The <code>RangeSet</code> based on the <code>value</code>.
 	 * @throws IllegalArgumentException
 	 *             Unable to process the <code>value</code>.
+	 * @throws NumberFormatException
+	 *             A range value is not a number.
 	 */
 	public static RangeSet processRangeHeader(String value)
 			throws IllegalArgumentException {
@@ -43,10 +45,15 @@ public class RangeFactory {
 
 			for (int i = 0; i < rangeValues.length; i++) {
 				if (rangeValues[i].startsWith("-")) {
-					// negative range
-					// TODO implement
-					throw new UnsupportedOperationException(
-							"Suffix byte ranges not yet implemented: " + value);
+					// suffix range, the last N bytes
+					long suffixLength = Long.parseLong(rangeValues[i]
+							.substring(1));
+					if (suffixLength <= 0) {
+						throw new IllegalArgumentException(
+								"Suffix byte range length must be positive: "
+										+ value);
+					}
+					rangeSet.add(new Range(-suffixLength));
 				} else {
 					int dash = rangeValues[i].indexOf('-');
 					if (rangeValues[i].endsWith("-")) {
@@ -53,7 +53,29 @@ public class RangeInputStream extends FilterInputStream {
 	 *             value minimum is 0 and the read index also starts at 0.
 	 */
 	public RangeInputStream(InputStream in, Range range) {
+		this(in, range, 0);
+	}
+
+	/**
+	 * Create a new <code>RangeInputStream</code> based on the provided
+	 * <code>InputStream</code> that is already positioned at
+	 * <code>index</code> and apply the provided <code>Range</code>. This
+	 * allows a stream that has been positioned directly at the range start,
+	 * such as one backed by a <code>FileChannel</code>, to be limited to the
+	 * range without skipping any data.
+	 * 
+	 * @param in
+	 *            The <code>InputStream</code> to filter.
+	 * @param range
+	 *            The <code>Range</code> to apply.
+	 * @param index
+	 *            The current position of <code>in</code>.
+	 * @throws IllegalArgumentException
+	 *             Thrown if <code>index</code> is beyond the range start.
+	 */
+	public RangeInputStream(InputStream in, Range range, long index) {
 		super(in);
+		this.index = index;
 		setRange(range);
 	}
 
@@ -93,15 +115,9 @@ public class RangeInputStream extends FilterInputStream {
 	 *             if an I/O error occurs.
 	 */
 	public int read() throws IOException {
-		long count;
-		long start;
-
 		// skip data before the range
-		start = range.getStart();
-		while (index < start) {
-			// get rid of the data in front
-			count = in.skip(start - index);
-			index += count;
+		if (!skipToStart()) {
+			return -1;
 		}
 
 		// have we reached the end of the range
@@ -196,16 +212,12 @@ public class RangeInputStream extends FilterInputStream {
 			return 0;
 		}
 
-		long count;
-		long start, end;
+		long end;
 		int read;
 
 		// skip data before the range
-		start = range.getStart();
-		while (index < start) {
-			// get rid of the data in front
-			count = in.skip(start - index);
-			index += count;
+		if (!skipToStart()) {
+			return -1;
 		}
 
 		// have we reached the end of the range
@@ -223,8 +235,40 @@ public class RangeInputStream extends FilterInputStream {
 			read = in.read(b, off, len);
 		}
 
-		index += read;
+		if (read > 0) {
+			index += read;
+		}
 
 		return read;
 	}
+
+	/**
+	 * Skip the data in front of the range start. <code>skip</code> may skip
+	 * fewer bytes than requested, or none at all, so a single byte is read
+	 * when no progress is made to distinguish that from the end of the stream.
+	 * 
+	 * @return <code>True</code> if the stream is positioned at or after the
+	 *         range start, <code>false</code> if the end of the stream was
+	 *         reached first.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private boolean skipToStart() throws IOException {
+		long start = range.getStart();
+		long count;
+
+		while (index < start) {
+			// get rid of the data in front
+			count = in.skip(start - index);
+			if (count <= 0) {
+				if (in.read() == -1) {
+					return false;
+				}
+				count = 1;
+			}
+			index += count;
+		}
+
+		return true;
+	}
 }
@@ -42,12 +42,15 @@ public class RangeSet extends AbstractSet implements Rangeable {
 	/**
 	 * If the range is relative, it is resolved to an absolute range based on
 	 * the absolute length. This also "squeezes" the range to ensure that it is
-	 * contained by the <code>absoluteLength</code>.
+	 * contained by the <code>absoluteLength</code>. Ranges that start beyond
+	 * the absolute length are unsatisfiable and are removed from the set. The
+	 * remaining ranges are sorted and any overlapping or adjacent ranges are
+	 * merged.
 	 * 
 	 * @param absoluteLength
 	 *            The absolute length that this range is a subset of.
 	 * @throws IllegalStateException
-	 *             Thrown if the range start is larger than the absolute length
+	 *             Thrown if no range starts within the absolute length
 	 */
 	@SuppressWarnings("unchecked")
 	public void resolve(long absoluteLength) {
@@ -56,14 +59,13 @@ public class RangeSet extends AbstractSet implements Rangeable {
 
 		for (Iterator iter = ranges.iterator(); iter.hasNext();) {
 			range = (Range) iter.next();
-			range.resolve(absoluteLength);
+
+			if (range.getStart() < absoluteLength) {
+				range.resolve(absoluteLength);
+			}
 
 			if (range.getStart() >= absoluteLength) {
 				// outside of absolute length
-			} else if (range.getEnd() >= absoluteLength) {
-				// squeeze to absolute length
-				range.setEnd(absoluteLength - 1);
-				error = false;
 			} else {
 				error = false;
 			}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of large, reusable <code>byte[]</code> buffers used when copying
+ * object data between streams. Reusing the buffers avoids allocating a fresh
+ * buffer for every request and allows a much larger buffer than would be
+ * reasonable to allocate per request.
+ * 
+ * @author Jesse Peterson
+ */
+public class BufferPool {
+	/**
+	 * Default size of a pooled buffer, in bytes.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Default maximum number of idle buffers retained by the pool.
+	 */
+	public static final int DEFAULT_MAX_POOLED = 64;
+
+	private static BufferPool instance = new BufferPool();
+
+	private ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	private AtomicInteger pooled = new AtomicInteger();
+
+	private volatile int bufferSize;
+
+	private volatile int maxPooled;
+
+	/**
+	 * Create a pool with the default buffer size and maximum number of pooled
+	 * buffers.
+	 */
+	public BufferPool() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+	}
+
+	/**
+	 * Create a pool.
+	 * 
+	 * @param bufferSize
+	 *            The size of each buffer, in bytes.
+	 * @param maxPooled
+	 *            The maximum number of idle buffers retained by the pool.
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		setBufferSize(bufferSize);
+		setMaxPooled(maxPooled);
+	}
+
+	/**
+	 * Get the shared pool instance.
+	 * 
+	 * @return The shared pool instance.
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the size of the buffers handed out by this pool.
+	 * 
+	 * @return The size of the buffers handed out by this pool, in bytes.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Set the size of the buffers handed out by this pool. Idle buffers of a
+	 * different size are discarded.
+	 * 
+	 * @param bufferSize
+	 *            The size of the buffers handed out by this pool, in bytes.
+	 * @throws IllegalArgumentException
+	 *             Thrown if <code>bufferSize</code> is not positive.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be positive: "
+					+ bufferSize);
+		}
+		this.bufferSize = bufferSize;
+		buffers.clear();
+		pooled.set(0);
+	}
+
+	/**
+	 * Get the maximum number of idle buffers retained by the pool.
+	 * 
+	 * @return The maximum number of idle buffers retained by the pool.
+	 */
+	public int getMaxPooled() {
+		return maxPooled;
+	}
+
+	/**
+	 * Set the maximum number of idle buffers retained by the pool.
+	 * 
+	 * @param maxPooled
+	 *            The maximum number of idle buffers retained by the pool.
+	 */
+	public void setMaxPooled(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Get a buffer from the pool, allocating a new one if the pool is empty.
+	 * The buffer should be returned with <code>release</code> when no longer
+	 * needed.
+	 * 
+	 * @return A buffer of <code>getBufferSize()</code> bytes.
+	 */
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+
+		if (buffer == null) {
+			return new byte[bufferSize];
+		}
+		pooled.decrementAndGet();
+
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers that are the wrong size, or that
+	 * would exceed the maximum number of pooled buffers, are dropped.
+	 * 
+	 * @param buffer
+	 *            The buffer to return.
+	 */
+	public void release(byte[] buffer) {
+		if ((buffer == null) || (buffer.length != bufferSize)) {
+			return;
+		}
+
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * Copy up to <code>count</code> bytes from the input stream to the output
+	 * stream using a pooled buffer.
+	 * 
+	 * @param in
+	 *            The stream to read from.
+	 * @param out
+	 *            The stream to write to.
+	 * @param count
+	 *            The maximum number of bytes to copy.
+	 * @return The number of bytes copied. Less than <code>count</code> if the
+	 *         input stream ended first.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public long copy(InputStream in, OutputStream out, long count)
+			throws IOException {
+		byte[] buffer = acquire();
+		long copied = 0;
+		int read;
+
+		try {
+			while (copied < count) {
+				read = in.read(buffer, 0, (int) Math.min(buffer.length, count
+						- copied));
+				if (read == -1) {
+					break;
+				}
+				out.write(buffer, 0, read);
+				copied += read;
+			}
+		} finally {
+			release(buffer);
+		}
+
+		return copied;
+	}
+}
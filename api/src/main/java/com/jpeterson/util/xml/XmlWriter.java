@@ -0,0 +1,344 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an XML document as UTF-8 straight to an output stream, without
+ * building the document in memory.
+ * <p>
+ * Element tags are <code>Tag</code> instances holding their start, end and
+ * empty tags already encoded, so writing a tag is a copy of bytes. Text is
+ * escaped and encoded as it is written. Characters that can not appear in an
+ * XML document are replaced by <code>U+FFFD</code>.
+ * </p>
+ * <p>
+ * Output is buffered; <code>flush()</code> or <code>close()</code> when
+ * done. Not thread safe.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class XmlWriter {
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] DECLARATION = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+
+	private static final byte[] AMP = ascii("&amp;");
+
+	private static final byte[] LT = ascii("&lt;");
+
+	private static final byte[] GT = ascii("&gt;");
+
+	private static final byte[] QUOT = ascii("&quot;");
+
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private OutputStream out;
+
+	private byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int count = 0;
+
+	/**
+	 * Create a writer.
+	 * 
+	 * @param out
+	 *            Where to write the document.
+	 */
+	public XmlWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write the XML declaration.
+	 * 
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void declaration() throws IOException {
+		write(DECLARATION);
+	}
+
+	/**
+	 * Write the start tag of an element.
+	 * 
+	 * @param tag
+	 *            The element.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void start(Tag tag) throws IOException {
+		write(tag.start);
+	}
+
+	/**
+	 * Write the end tag of an element.
+	 * 
+	 * @param tag
+	 *            The element.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void end(Tag tag) throws IOException {
+		write(tag.end);
+	}
+
+	/**
+	 * Write an empty element.
+	 * 
+	 * @param tag
+	 *            The element.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void empty(Tag tag) throws IOException {
+		write(tag.empty);
+	}
+
+	/**
+	 * Write an element holding text.
+	 * 
+	 * @param tag
+	 *            The element.
+	 * @param text
+	 *            The text. An empty element is written if <code>null</code>
+	 *            or empty.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void element(Tag tag, String text) throws IOException {
+		if ((text == null) || (text.length() == 0)) {
+			empty(tag);
+			return;
+		}
+
+		write(tag.start);
+		text(text);
+		write(tag.end);
+	}
+
+	/**
+	 * Write an element holding a number.
+	 * 
+	 * @param tag
+	 *            The element.
+	 * @param value
+	 *            The number.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void element(Tag tag, long value) throws IOException {
+		write(tag.start);
+		text(Long.toString(value));
+		write(tag.end);
+	}
+
+	/**
+	 * Write an element holding a boolean.
+	 * 
+	 * @param tag
+	 *            The element.
+	 * @param value
+	 *            The boolean.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void element(Tag tag, boolean value) throws IOException {
+		write(tag.start);
+		text(value ? "true" : "false");
+		write(tag.end);
+	}
+
+	/**
+	 * Write escaped text.
+	 * 
+	 * @param text
+	 *            The text.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void text(String text) throws IOException {
+		int length = text.length();
+		char c;
+
+		for (int i = 0; i < length; i++) {
+			c = text.charAt(i);
+
+			if (count + 4 > buffer.length) {
+				flushBuffer();
+			}
+
+			if (c < 0x80) {
+				switch (c) {
+				case '&':
+					write(AMP);
+					break;
+				case '<':
+					write(LT);
+					break;
+				case '>':
+					write(GT);
+					break;
+				case '"':
+					write(QUOT);
+					break;
+				case '\t':
+				case '\n':
+				case '\r':
+					buffer[count++] = (byte) c;
+					break;
+				default:
+					if (c < 0x20) {
+						writeChar(REPLACEMENT);
+					} else {
+						buffer[count++] = (byte) c;
+					}
+				}
+			} else if (Character.isHighSurrogate(c) && (i + 1 < length)
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+
+				buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (Character.isHighSurrogate(c)
+					|| Character.isLowSurrogate(c) || (c == '\uFFFE')
+					|| (c == '\uFFFF')) {
+				// unpaired surrogate, or not a character
+				writeChar(REPLACEMENT);
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	/**
+	 * Write the buffered output and flush the output stream.
+	 * 
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Write the buffered output and close the output stream.
+	 * 
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Encode a character of the Basic Multilingual Plane, other than a
+	 * surrogate, as UTF-8. The buffer must have room for 3 bytes.
+	 */
+	private void writeChar(char c) {
+		if (c < 0x80) {
+			buffer[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte) (0xc0 | (c >> 6));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		} else {
+			buffer[count++] = (byte) (0xe0 | (c >> 12));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		if (count + bytes.length > buffer.length) {
+			flushBuffer();
+			if (bytes.length > buffer.length) {
+				out.write(bytes);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * An element name, with its tags encoded once.
+	 */
+	public static class Tag {
+		private final byte[] start;
+
+		private final byte[] end;
+
+		private final byte[] empty;
+
+		/**
+		 * Create an element without attributes.
+		 * 
+		 * @param name
+		 *            The element name. Must be ASCII.
+		 */
+		public Tag(String name) {
+			this(name, null);
+		}
+
+		/**
+		 * Create an element with fixed attributes, such as a namespace
+		 * declaration, written on its start tag.
+		 * 
+		 * @param name
+		 *            The element name. Must be ASCII.
+		 * @param attributes
+		 *            The attributes, already escaped, for example
+		 *            <code>xmlns="http://example.com/"</code>. May be
+		 *            <code>null</code>. Must be ASCII.
+		 */
+		public Tag(String name, String attributes) {
+			String open = (attributes == null) ? name : name + " "
+					+ attributes;
+
+			start = ascii("<" + open + ">");
+			end = ascii("</" + name + ">");
+			empty = ascii("<" + open + "/>");
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class ContinuationTokenTest extends TestCase {
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ContinuationTokenTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("ContinuationTokenTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ContinuationTokenTest.class);
+	}
+
+	/**
+	 * Test encoding and decoding a token.
+	 */
+	public void test_encode() {
+		String[] keys = { "", "a", "ab", "abc", "photos/2007/",
+				"caf\u00e9 \u20ac \ud834\udd1e", "??>>??" };
+		int[] seeks = { ContinuationToken.SEEK_AT,
+				ContinuationToken.SEEK_AFTER,
+				ContinuationToken.SEEK_AFTER_PREFIX };
+
+		for (int i = 0; i < keys.length; i++) {
+			for (int j = 0; j < seeks.length; j++) {
+				String token = new ContinuationToken(keys[i], seeks[j])
+						.encode();
+				ContinuationToken position;
+
+				assertTrue("Not URL safe: " + token, token
+						.matches("[A-Za-z0-9_-]+"));
+				position = ContinuationToken.decode(token);
+				assertEquals("Unexpected value", keys[i], position.getKey());
+				assertEquals("Unexpected value", seeks[j], position.getSeek());
+			}
+		}
+	}
+
+	/**
+	 * Test decoding tokens that were not encoded by a position.
+	 */
+	public void test_decodeInvalid() {
+		String[] tokens = { "", "A", "!!!!", "A=AA", "AAAA", "BwBh" };
+
+		for (int i = 0; i < tokens.length; i++) {
+			try {
+				ContinuationToken.decode(tokens[i]);
+				fail("Expected exception for: " + tokens[i]);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
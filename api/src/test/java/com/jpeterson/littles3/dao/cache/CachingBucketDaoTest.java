@@ -0,0 +1,125 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.dao.BucketDao;
+
+public class CachingBucketDaoTest extends TestCase {
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CachingBucketDaoTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("CachingBucketDaoTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CachingBucketDaoTest.class);
+	}
+
+	/**
+	 * Test that changing a loaded bucket does not change the cached bucket
+	 * until it is stored, nor after a failed store.
+	 */
+	public void test_copy() {
+		MyBucketDao target = new MyBucketDao();
+		CachingBucketDao dao = new CachingBucketDao();
+		Bucket bucket = new Bucket();
+		Bucket loaded;
+		Acp acp = new Acp();
+		Acp stored;
+
+		dao.setBucketDao(target);
+
+		bucket.setName("bucket");
+		dao.storeBucket(bucket);
+		stored = bucket.getAcp();
+
+		loaded = dao.loadBucket("bucket");
+		assertNotSame("Unexpected value", loaded, dao.loadBucket("bucket"));
+		loaded.setAcp(acp);
+		assertSame("Unexpected value", stored, dao.loadBucket("bucket")
+				.getAcp());
+
+		target.fail = true;
+		try {
+			dao.storeBucket(loaded);
+			fail("Expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+		assertSame("Unexpected value", stored, dao.loadBucket("bucket")
+				.getAcp());
+
+		target.fail = false;
+		dao.storeBucket(loaded);
+		assertSame("Unexpected value", acp, dao.loadBucket("bucket").getAcp());
+		assertEquals("Unexpected value", 1, target.loads);
+	}
+
+	private class MyBucketDao implements BucketDao {
+		private Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+		private int loads = 0;
+
+		private boolean fail = false;
+
+		public Bucket loadBucket(String name) throws DataAccessException {
+			++loads;
+			Bucket bucket = buckets.get(name);
+			if (bucket == null) {
+				throw new DataRetrievalFailureException("Could not find Bucket");
+			}
+			return bucket;
+		}
+
+		public void storeBucket(Bucket bucket) throws DataAccessException {
+			if (fail) {
+				throw new DataRetrievalFailureException("Could not store Bucket");
+			}
+			buckets.put(bucket.getName(), bucket);
+		}
+
+		public void removeBucket(Bucket bucket) throws DataAccessException {
+			buckets.remove(bucket.getName());
+		}
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.cache;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.littles3.dao.S3ObjectDao;
+
+public class CachingS3ObjectDaoTest extends TestCase {
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CachingS3ObjectDaoTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("CachingS3ObjectDaoTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CachingS3ObjectDaoTest.class);
+	}
+
+	/**
+	 * Test that loads are answered from the cache and that stores and removes
+	 * are written through.
+	 */
+	public void test_writeThrough() {
+		MyS3ObjectDao target = new MyS3ObjectDao();
+		CachingS3ObjectDao dao = new CachingS3ObjectDao();
+		S3Object s3Object = new MyS3Object("bucket", "key");
+
+		dao.setS3ObjectDao(target);
+
+		s3Object.setETag("etag");
+		dao.storeS3Object(s3Object);
+		assertEquals("Unexpected value", 1, target.stores);
+		assertEquals("Unexpected value", "etag", dao.loadS3Object("bucket",
+				"key").getETag());
+		assertEquals("Unexpected value", 0, target.loads);
+
+		dao.getCache().clear();
+		assertSame("Unexpected value", s3Object, dao.loadS3Object("bucket",
+				"key"));
+		assertEquals("Unexpected value", "etag", dao.loadS3Object("bucket",
+				"key").getETag());
+		assertEquals("Unexpected value", 1, target.loads);
+
+		dao.removeS3Object(s3Object);
+		try {
+			dao.loadS3Object("bucket", "key");
+			fail("Expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+		assertEquals("Unexpected value", 2, target.loads);
+	}
+
+	/**
+	 * Test that changing a loaded or stored object does not change the cached
+	 * object until it is stored.
+	 */
+	public void test_copy() {
+		MyS3ObjectDao target = new MyS3ObjectDao();
+		CachingS3ObjectDao dao = new CachingS3ObjectDao();
+		S3Object s3Object = new MyS3Object("bucket", "key");
+		S3Object loaded;
+		Acp acp = new Acp();
+
+		dao.setS3ObjectDao(target);
+
+		s3Object.setETag("etag");
+		s3Object.addMetadata("name", "value");
+		dao.storeS3Object(s3Object);
+		s3Object.setETag("changed");
+
+		loaded = dao.loadS3Object("bucket", "key");
+		assertNotSame("Unexpected value", loaded, dao.loadS3Object("bucket",
+				"key"));
+		assertEquals("Unexpected value", "etag", loaded.getETag());
+		loaded.setAcp(acp);
+		loaded.addMetadata("name", "other");
+		assertNull("Unexpected value", dao.loadS3Object("bucket", "key")
+				.getAcp());
+		assertEquals("Unexpected value", "[value]", values(dao.loadS3Object(
+				"bucket", "key"), "name"));
+
+		dao.storeS3Object(loaded);
+		assertSame("Unexpected value", acp, dao.loadS3Object("bucket", "key")
+				.getAcp());
+		assertEquals("Unexpected value", "[value, other]", values(dao
+				.loadS3Object("bucket", "key"), "name"));
+		assertEquals("Unexpected value", 0, target.loads);
+	}
+
+	/**
+	 * Test that concurrent stores of a key leave the object the underlying
+	 * DAO stored last in the cache.
+	 */
+	public void test_storeConcurrent() throws Exception {
+		final MySlowS3ObjectDao target = new MySlowS3ObjectDao();
+		final CachingS3ObjectDao dao = new CachingS3ObjectDao();
+		final S3Object first = new MyS3Object("bucket", "key");
+		final S3Object second = new MyS3Object("bucket", "key");
+		Thread firstStore;
+		Thread secondStore;
+
+		dao.setS3ObjectDao(target);
+
+		first.setETag("first");
+		second.setETag("second");
+		target.slow = first;
+
+		firstStore = new Thread() {
+			@Override
+			public void run() {
+				dao.storeS3Object(first);
+			}
+		};
+		secondStore = new Thread() {
+			@Override
+			public void run() {
+				dao.storeS3Object(second);
+			}
+		};
+
+		// the first object is stored, but its store has not returned
+		firstStore.start();
+		target.entered.await();
+		secondStore.start();
+		secondStore.join(500);
+		target.proceed.countDown();
+		firstStore.join();
+		secondStore.join();
+
+		assertEquals("Unexpected value", target.loadS3Object("bucket",
+				"key").getETag(), dao.loadS3Object("bucket", "key").getETag());
+	}
+
+	/**
+	 * Test that repeated listings are answered from the cache until a store
+	 * or remove in the bucket.
+	 */
+	public void test_listingCache() {
+		MyS3ObjectDao target = new MyS3ObjectDao();
+		CachingS3ObjectDao dao = new CachingS3ObjectDao();
+		S3Object s3Object = new MyS3Object("bucket", "key");
+		ContinuationToken position = new ContinuationToken("a",
+				ContinuationToken.SEEK_AFTER);
+		ObjectListing listing;
+
+		dao.setS3ObjectDao(target);
+
+		listing = dao.listKeys("bucket", "p", null, "/", 10);
+		assertSame("Unexpected value", listing, dao.listKeys("bucket", "p",
+				null, "/", 10));
+		assertEquals("Unexpected value", 1, target.lists);
+
+		// different parameters are different listings
+		dao.listKeys("bucket", "p", null, null, 10);
+		dao.listKeys("bucket", "p", "m", "/", 10);
+		dao.listKeys("bucket", "p", null, "/", 5);
+		dao.listKeys("bucket", "p/", null, null, 10);
+		dao.listKeys("other", "p", null, "/", 10);
+		dao.listKeys("bucket", "p", position, "/", 10, false);
+		dao.listKeys("bucket", "p", position, "/", 10, true);
+		dao.listKeys("bucket", "p", null, "/", 10, false);
+		assertEquals("Unexpected value", 9, target.lists);
+		dao.listKeys("bucket", "p", position, "/", 10, false);
+		assertEquals("Unexpected value", 9, target.lists);
+
+		// a store in another bucket doesn't invalidate
+		dao.storeS3Object(new MyS3Object("other", "key"));
+		assertSame("Unexpected value", listing, dao.listKeys("bucket", "p",
+				null, "/", 10));
+		assertEquals("Unexpected value", 9, target.lists);
+
+		dao.storeS3Object(s3Object);
+		assertNotSame("Unexpected value", listing, listing = dao.listKeys(
+				"bucket", "p", null, "/", 10));
+		assertEquals("Unexpected value", 10, target.lists);
+		dao.listKeys("bucket", "p", position, "/", 10, false);
+		assertEquals("Unexpected value", 11, target.lists);
+
+		dao.removeS3Object(s3Object);
+		assertNotSame("Unexpected value", listing, dao.listKeys("bucket",
+				"p", null, "/", 10));
+		assertEquals("Unexpected value", 12, target.lists);
+	}
+
+	private String values(S3Object s3Object, String name) {
+		List<String> values = new ArrayList<String>();
+
+		for (Iterator<String> iter = s3Object.getMetadataValues(name); iter
+				.hasNext();) {
+			values.add(iter.next());
+		}
+
+		return values.toString();
+	}
+
+	private class MyS3ObjectDao implements S3ObjectDao {
+		private Map<String, S3Object> objects = new HashMap<String, S3Object>();
+
+		private int loads = 0;
+
+		private int stores = 0;
+
+		private int lists = 0;
+
+		public S3Object loadS3Object(String bucket, String key)
+				throws DataAccessException {
+			++loads;
+			S3Object s3Object = objects.get(bucket + "/" + key);
+			if (s3Object == null) {
+				throw new DataRetrievalFailureException(
+						"Could not find S3Object");
+			}
+			return s3Object;
+		}
+
+		public S3Object storeS3Object(S3Object s3Object)
+				throws DataAccessException {
+			++stores;
+			return objects.put(s3Object.getBucket() + "/" + s3Object.getKey(),
+					s3Object);
+		}
+
+		public void removeS3Object(S3Object s3Object)
+				throws DataAccessException {
+			objects.remove(s3Object.getBucket() + "/" + s3Object.getKey());
+		}
+
+		public ObjectListing listKeys(String bucket, String prefix,
+				String marker, String delimiter, int maxKeys)
+				throws DataAccessException {
+			++lists;
+			return new ObjectListing(bucket, prefix, marker, delimiter,
+					maxKeys);
+		}
+
+		public ObjectListing listKeys(String bucket, String prefix,
+				ContinuationToken position, String delimiter, int maxKeys,
+				boolean fetchOwner) throws DataAccessException {
+			++lists;
+			return new ObjectListing(bucket, prefix, null, delimiter, maxKeys);
+		}
+
+		public Usage getUsage(String bucket) throws DataAccessException {
+			return null;
+		}
+
+		public SortedMap<String, Usage> getPrefixUsage(String bucket)
+				throws DataAccessException {
+			return null;
+		}
+	}
+
+	/**
+	 * Holds the store of one object after it is stored, until released.
+	 */
+	private class MySlowS3ObjectDao extends MyS3ObjectDao {
+		private S3Object slow;
+
+		private CountDownLatch entered = new CountDownLatch(1);
+
+		private CountDownLatch proceed = new CountDownLatch(1);
+
+		@Override
+		public S3Object storeS3Object(S3Object s3Object)
+				throws DataAccessException {
+			S3Object replaced;
+
+			synchronized (this) {
+				replaced = super.storeS3Object(s3Object);
+			}
+			if (s3Object == slow) {
+				entered.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			return replaced;
+		}
+	}
+
+	private class MyS3Object extends S3Object {
+		private static final long serialVersionUID = 1L;
+
+		public MyS3Object(String bucket, String key) {
+			super();
+			setBucket(bucket);
+			setKey(key);
+		}
+
+		@Override
+		public boolean deleteData() {
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+	}
+}
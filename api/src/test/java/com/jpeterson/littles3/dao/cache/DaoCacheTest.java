@@ -0,0 +1,128 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.cache;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class DaoCacheTest extends TestCase {
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public DaoCacheTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("DaoCacheTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(DaoCacheTest.class);
+	}
+
+	/**
+	 * Test the size bound and the hit ratio.
+	 */
+	public void test_maxEntries() {
+		DaoCache<String> cache = new DaoCache<String>();
+
+		cache.setMaxEntries(2);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		assertEquals("Unexpected value", "A", cache.get("a"));
+		cache.put("c", "C");
+
+		assertEquals("Unexpected value", 2, cache.getCount());
+		assertNull("Unexpected value", cache.get("b"));
+		assertEquals("Unexpected value", "A", cache.get("a"));
+		assertEquals("Unexpected value", "C", cache.get("c"));
+		assertEquals("Unexpected value", 1, cache.getEvictions());
+		assertEquals("Unexpected value", 0.75, cache.getHitRatio(), 0.001);
+	}
+
+	/**
+	 * Test the weight bound, with entries replaced and removed.
+	 */
+	public void test_maxWeight() {
+		DaoCache<String> cache = new DaoCache<String>();
+
+		cache.setMaxWeight(10);
+		cache.put("a", "A", 4);
+		cache.put("b", "B", 4);
+		cache.put("a", "A", 2);
+		assertEquals("Unexpected value", 6, cache.getWeight());
+		assertEquals("Unexpected value", "A", cache.get("a"));
+
+		cache.put("c", "C", 5);
+		assertNull("Unexpected value", cache.get("b"));
+		assertEquals("Unexpected value", 7, cache.getWeight());
+		assertEquals("Unexpected value", 1, cache.getEvictions());
+
+		// too heavy to be cached at all
+		cache.put("d", "D", 11);
+		assertNull("Unexpected value", cache.get("d"));
+		assertEquals("Unexpected value", 0, cache.getCount());
+		assertEquals("Unexpected value", 0, cache.getWeight());
+
+		cache.put("e", "E");
+		cache.remove("e");
+		assertEquals("Unexpected value", 0, cache.getWeight());
+	}
+
+	/**
+	 * Test expiry of entries.
+	 */
+	public void test_timeToLive() throws InterruptedException {
+		DaoCache<String> cache = new DaoCache<String>();
+
+		cache.setTimeToLive(50);
+		cache.put("a", "A");
+		assertEquals("Unexpected value", "A", cache.get("a"));
+		Thread.sleep(100);
+		assertNull("Unexpected value", cache.get("a"));
+		assertEquals("Unexpected value", 0, cache.getCount());
+	}
+
+	/**
+	 * Test that a value loaded before a write is not cached.
+	 */
+	public void test_putIfCurrent() {
+		DaoCache<String> cache = new DaoCache<String>();
+		long stamp;
+
+		stamp = cache.getStamp();
+		cache.putIfCurrent("a", "A", stamp);
+		assertEquals("Unexpected value", "A", cache.get("a"));
+
+		stamp = cache.getStamp();
+		cache.remove("a");
+		cache.putIfCurrent("a", "stale", stamp);
+		assertNull("Unexpected value", cache.get("a"));
+	}
+}
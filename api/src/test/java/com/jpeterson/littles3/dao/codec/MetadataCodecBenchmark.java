@@ -0,0 +1,166 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.AllUsersGroup;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ResourcePermission;
+import com.jpeterson.littles3.bo.S3Object;
+
+/**
+ * Compares the encoded size and the encode/decode time of object metadata
+ * with <code>MetadataCodec</code> against Java serialization. Not run as part
+ * of the unit tests.
+ * <p>
+ * Usage: <code>MetadataCodecBenchmark [iterations] [rounds]</code>
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class MetadataCodecBenchmark {
+	private static final S3ObjectFactory factory = new S3ObjectFactory() {
+		public S3Object createS3Object(String bucket, String key,
+				URL storageUrl) {
+			BenchmarkS3Object s3Object = new BenchmarkS3Object();
+
+			s3Object.setBucket(bucket);
+			s3Object.setKey(key);
+			s3Object.setStorageUrl(storageUrl);
+
+			return s3Object;
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0])
+				: 100000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		S3Object s3Object = createS3Object();
+		byte[] serialized = serialize(s3Object);
+		byte[] encoded = encode(s3Object);
+
+		System.out.println("Java serialization: " + serialized.length
+				+ " bytes");
+		System.out.println("MetadataCodec: " + encoded.length + " bytes");
+
+		// the first rounds also warm up the JIT
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				deserialize(serialize(s3Object));
+			}
+			report("Java serialization", iterations, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				decode(encode(s3Object));
+			}
+			report("MetadataCodec", iterations, System.nanoTime() - start);
+		}
+	}
+
+	private static S3Object createS3Object() throws IOException {
+		S3Object s3Object = new BenchmarkS3Object();
+		Acp acp = new Acp();
+		CanonicalUser owner = new CanonicalUser(
+				"a9a7b886d6fd24a52fe8ca5bef65f89a64e0193f23000e241bf9b1c61be666e9");
+
+		owner.setDisplayName("owner");
+		acp.setOwner(owner);
+		acp.grant(owner, ResourcePermission.ACTION_FULL_CONTROL);
+		acp.grant(AllUsersGroup.getInstance(), ResourcePermission.ACTION_READ);
+
+		s3Object.setBucket("bucket");
+		s3Object.setKey("photos/2007/01/img_0001.jpg");
+		s3Object.setStorageUrl(new URL(
+				"file:/var/littleS3/objects/bucket/0123456789abcdef"));
+		s3Object.setContentLength(123456);
+		s3Object.setContentType("image/jpeg");
+		s3Object.setETag("d41d8cd98f00b204e9800998ecf8427e");
+		s3Object.setLastModified(System.currentTimeMillis());
+		s3Object.addMetadata("x-amz-meta-camera", "EOS");
+		s3Object.setAcp(acp);
+
+		return s3Object;
+	}
+
+	private static byte[] serialize(S3Object s3Object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+		out.writeObject(s3Object);
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	private static S3Object deserialize(byte[] data) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				data));
+
+		return (S3Object) in.readObject();
+	}
+
+	private static byte[] encode(S3Object s3Object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+
+		MetadataCodec.encode(s3Object, new DataOutputStream(bytes));
+
+		return bytes.toByteArray();
+	}
+
+	private static S3Object decode(byte[] data) throws IOException {
+		return MetadataCodec.decodeS3Object(new DataInputStream(
+				new ByteArrayInputStream(data)), factory);
+	}
+
+	private static void report(String name, int iterations, long nanos) {
+		System.out.println(name + ": " + (nanos / iterations)
+				+ " ns per encode and decode");
+	}
+
+	private static class BenchmarkS3Object extends S3Object {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean deleteData() {
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Date;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.AllUsersGroup;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ResourcePermission;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+
+public class MetadataCodecTest extends TestCase {
+	private Log logger;
+
+	private static final S3ObjectFactory factory = new S3ObjectFactory() {
+		public S3Object createS3Object(String bucket, String key,
+				URL storageUrl) {
+			MyS3Object s3Object = new MyS3Object();
+
+			s3Object.setBucket(bucket);
+			s3Object.setKey(key);
+			s3Object.setStorageUrl(storageUrl);
+
+			return s3Object;
+		}
+	};
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public MetadataCodecTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("MetadataCodecTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(MetadataCodecTest.class);
+	}
+
+	/**
+	 * Test encoding and decoding an object.
+	 */
+	public void test_s3Object() throws IOException {
+		S3Object s3Object = createS3Object();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		S3Object decoded;
+
+		MetadataCodec.encode(s3Object, new DataOutputStream(bytes));
+		assertEquals("Unexpected value", MetadataCodec.MAGIC,
+				bytes.toByteArray()[0] & 0xff);
+
+		decoded = MetadataCodec.decodeS3Object(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())), factory);
+		assertS3Object(decoded);
+
+		decoded = MetadataCodec.readS3Object(new ByteArrayInputStream(bytes
+				.toByteArray()), factory);
+		assertS3Object(decoded);
+	}
+
+	/**
+	 * Test decoding only the listing fields of an object.
+	 */
+	public void test_s3ObjectSummary() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		S3ObjectSummary summary;
+
+		MetadataCodec.encode(createS3Object(), new DataOutputStream(bytes));
+		summary = MetadataCodec.decodeS3ObjectSummary(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals("Unexpected value", "key", summary.getKey());
+		assertEquals("Unexpected value", 1234, summary.getSize());
+		assertEquals("Unexpected value", "etag", summary.getETag());
+		assertEquals("Unexpected value", 1000L, summary.getLastModified());
+		assertEquals("Unexpected value", "ownerId", summary.getOwnerId());
+		assertEquals("Unexpected value", "Owner", summary
+				.getOwnerDisplayName());
+
+		summary = MetadataCodec.decodeS3ObjectSummary(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())), false);
+		assertEquals("Unexpected value", "etag", summary.getETag());
+		assertEquals("Unexpected value", 1000L, summary.getLastModified());
+		assertNull("Should not decode the owner", summary.getOwnerId());
+	}
+
+	/**
+	 * Test reading an object that was Java serialized by an earlier version.
+	 */
+	public void test_readSerializedS3Object() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+		out.writeObject(createS3Object());
+		out.close();
+
+		assertS3Object(MetadataCodec.readS3Object(new ByteArrayInputStream(
+				bytes.toByteArray()), factory));
+	}
+
+	/**
+	 * Test encoding and decoding a bucket, and reading a bucket that was Java
+	 * serialized by an earlier version.
+	 */
+	public void test_bucket() throws IOException {
+		Bucket bucket = new Bucket();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out;
+
+		bucket.setName("bucket");
+		bucket.setCreated(new Date(1000L));
+		bucket.setAcp(createAcp());
+
+		MetadataCodec.encode(bucket, new DataOutputStream(bytes));
+		assertBucket(MetadataCodec.readBucket(new ByteArrayInputStream(bytes
+				.toByteArray())));
+
+		bytes.reset();
+		out = new ObjectOutputStream(bytes);
+		out.writeObject(bucket);
+		out.close();
+		assertBucket(MetadataCodec.readBucket(new ByteArrayInputStream(bytes
+				.toByteArray())));
+	}
+
+	/**
+	 * Test that an unknown version or record type is refused.
+	 */
+	public void test_invalid() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] data;
+
+		MetadataCodec.encode(createS3Object(), new DataOutputStream(bytes));
+		data = bytes.toByteArray();
+
+		try {
+			MetadataCodec.decodeBucket(new DataInputStream(
+					new ByteArrayInputStream(data)));
+			fail("Expected exception");
+		} catch (IOException e) {
+			// expected
+		}
+
+		data[2] = (byte) (MetadataCodec.VERSION + 1);
+		try {
+			MetadataCodec.readS3Object(new ByteArrayInputStream(data), factory);
+			fail("Expected exception");
+		} catch (IOException e) {
+			// expected
+		}
+
+		try {
+			MetadataCodec.readS3Object(new ByteArrayInputStream(new byte[] {
+					1, 2, 3 }), factory);
+			fail("Expected exception");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private S3Object createS3Object() throws IOException {
+		S3Object s3Object = new MyS3Object();
+
+		s3Object.setBucket("bucket");
+		s3Object.setKey("key");
+		s3Object.setStorageUrl(new URL("file:/tmp/data"));
+		s3Object.setContentLength(1234);
+		s3Object.setContentType("text/plain");
+		s3Object.setContentMD5("md5");
+		s3Object.setETag("etag");
+		s3Object.setLastModified(1000L);
+		s3Object.addMetadata("name", "value1");
+		s3Object.addMetadata("name", "value2");
+		s3Object.setAcp(createAcp());
+
+		return s3Object;
+	}
+
+	private Acp createAcp() {
+		Acp acp = new Acp();
+		CanonicalUser owner = new CanonicalUser("ownerId");
+
+		owner.setDisplayName("Owner");
+		acp.setOwner(owner);
+		acp.grant(owner, ResourcePermission.ACTION_FULL_CONTROL);
+		acp.grant(AllUsersGroup.getInstance(), ResourcePermission.ACTION_READ);
+
+		return acp;
+	}
+
+	private void assertS3Object(S3Object s3Object) {
+		assertEquals("Unexpected value", "bucket", s3Object.getBucket());
+		assertEquals("Unexpected value", "key", s3Object.getKey());
+		assertEquals("Unexpected value", "file:/tmp/data", s3Object
+				.getStorageUrl().toString());
+		assertEquals("Unexpected value", 1234, s3Object.getContentLength());
+		assertEquals("Unexpected value", "text/plain", s3Object
+				.getContentType());
+		assertEquals("Unexpected value", "md5", s3Object.getContentMD5());
+		assertNull("Unexpected value", s3Object.getContentDisposition());
+		assertEquals("Unexpected value", "etag", s3Object.getETag());
+		assertEquals("Unexpected value", 1000L, s3Object.getLastModified());
+		assertEquals("Unexpected value", "value1", s3Object
+				.getMetadataValue("name"));
+		assertAcp(s3Object.getAcp());
+	}
+
+	private void assertBucket(Bucket bucket) {
+		assertEquals("Unexpected value", "bucket", bucket.getName());
+		assertEquals("Unexpected value", 1000L, bucket.getCreated().getTime());
+		assertAcp(bucket.getAcp());
+	}
+
+	private void assertAcp(Acp acp) {
+		assertEquals("Unexpected value", "ownerId", acp.getOwner().getId());
+		assertEquals("Unexpected value", "Owner", acp.getOwner()
+				.getDisplayName());
+		assertEquals("Unexpected value", 2, acp.size());
+
+		acp.checkPermission(new ResourcePermission(AllUsersGroup
+				.getInstance(), ResourcePermission.ACTION_READ));
+		acp.checkPermission(new ResourcePermission(
+				new CanonicalUser("ownerId"),
+				ResourcePermission.ACTION_WRITE_ACP));
+	}
+
+	private static class MyS3Object extends S3Object {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean deleteData() {
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+	}
+}
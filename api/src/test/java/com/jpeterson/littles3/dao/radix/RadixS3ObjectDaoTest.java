@@ -0,0 +1,238 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.radix;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.littles3.dao.KeyRange;
+import com.jpeterson.littles3.dao.S3ObjectDao;
+
+public class RadixS3ObjectDaoTest extends TestCase {
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public RadixS3ObjectDaoTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("RadixS3ObjectDaoTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(RadixS3ObjectDaoTest.class);
+	}
+
+	/**
+	 * Test that the tree is built once, kept up to date by stores and
+	 * removes, and lists as the underlying DAO does.
+	 */
+	public void test_listKeys() {
+		MyS3ObjectDao target = new MyS3ObjectDao();
+		RadixS3ObjectDao dao = new RadixS3ObjectDao();
+		String[] keys = { "a", "b/1", "b/2", "b/3/x", "c", "d/1", "e" };
+
+		dao.setS3ObjectDao(target);
+		for (int i = 0; i < keys.length; i++) {
+			dao.storeS3Object(new MyS3Object("bucket", keys[i]));
+		}
+		for (int i = 0; i < 2500; i++) {
+			dao.storeS3Object(new MyS3Object("bucket", "f/" + i));
+		}
+
+		assertEquals("Unexpected value", "[a, c, e] [b/, d/, f/] false null",
+				RadixTreeTest.toString(dao.listKeys("bucket", null, null, "/",
+						100)));
+		// built a page at a time
+		assertEquals("Unexpected value", 3, target.lists);
+		assertEquals("Unexpected value", 1, dao.getResidentBuckets());
+
+		assertEquals("Unexpected value",
+				RadixTreeTest.toString(target.listKeys("bucket", "b/",
+						"b/1", "/", 2)), RadixTreeTest.toString(dao.listKeys(
+						"bucket", "b/", "b/1", "/", 2)));
+		assertEquals("Unexpected value", RadixTreeTest.toString(target
+				.listKeys("bucket", "", new ContinuationToken("b/",
+						ContinuationToken.SEEK_AFTER_PREFIX), "/", 2, true)),
+				RadixTreeTest.toString(dao.listKeys("bucket", "",
+						new ContinuationToken("b/",
+								ContinuationToken.SEEK_AFTER_PREFIX), "/", 2,
+						true)));
+		assertEquals("Unexpected value", 1000, dao.listKeys("bucket", "f/",
+				null, null, 5000).getContents().size());
+		assertEquals("Unexpected value", 5, target.lists);
+
+		dao.removeS3Object(new MyS3Object("bucket", "c"));
+		dao.storeS3Object(new MyS3Object("bucket", "b0"));
+		assertEquals("Unexpected value",
+				"[a, b0, e] [b/, d/, f/] false null", RadixTreeTest
+						.toString(dao.listKeys("bucket", null, null, "/", 100)));
+		assertEquals("Unexpected value", 5, target.lists);
+	}
+
+	/**
+	 * Test that the least recently used trees are dropped to stay within the
+	 * budget, and that a bucket too large for the budget is listed by the
+	 * underlying DAO.
+	 */
+	public void test_budget() {
+		MyS3ObjectDao target = new MyS3ObjectDao();
+		RadixS3ObjectDao dao = new RadixS3ObjectDao();
+		long bytes;
+
+		dao.setS3ObjectDao(target);
+		for (int i = 0; i < 10; i++) {
+			dao.storeS3Object(new MyS3Object("one", "key" + i));
+			dao.storeS3Object(new MyS3Object("two", "key" + i));
+		}
+		for (int i = 0; i < 30; i++) {
+			dao.storeS3Object(new MyS3Object("large", "key" + i));
+		}
+
+		dao.listKeys("one", null, null, null, 100);
+		bytes = dao.getBytes();
+		assertTrue("Unexpected value", bytes > 0);
+		dao.setMaxBytes(bytes * 3 / 2);
+
+		dao.listKeys("two", null, null, null, 100);
+		assertEquals("Unexpected value", 1, dao.getResidentBuckets());
+		assertEquals("Unexpected value", 1, dao.getEvictions());
+		assertEquals("Unexpected value", bytes, dao.getBytes());
+		assertEquals("Unexpected value", 2, target.lists);
+
+		target.lists = 0;
+		dao.listKeys("large", null, null, null, 100);
+		dao.listKeys("large", null, null, null, 100);
+		assertEquals("Unexpected value", 3, target.lists);
+		assertEquals("Unexpected value", 1, dao.getResidentBuckets());
+
+		// removing an object tries again
+		dao.removeS3Object(new MyS3Object("large", "key0"));
+		dao.listKeys("large", null, null, null, 100);
+		assertEquals("Unexpected value", 5, target.lists);
+	}
+
+	private class MyS3ObjectDao implements S3ObjectDao {
+		private SortedMap<String, SortedMap<String, S3ObjectSummary>> buckets = new TreeMap<String, SortedMap<String, S3ObjectSummary>>();
+
+		private int lists = 0;
+
+		public S3Object loadS3Object(String bucket, String key)
+				throws DataAccessException {
+			return null;
+		}
+
+		public S3Object storeS3Object(S3Object s3Object)
+				throws DataAccessException {
+			SortedMap<String, S3ObjectSummary> keys = buckets.get(s3Object
+					.getBucket());
+
+			if (keys == null) {
+				keys = new TreeMap<String, S3ObjectSummary>();
+				buckets.put(s3Object.getBucket(), keys);
+			}
+			keys.put(s3Object.getKey(), new S3ObjectSummary(s3Object));
+
+			return null;
+		}
+
+		public void removeS3Object(S3Object s3Object)
+				throws DataAccessException {
+			buckets.get(s3Object.getBucket()).remove(s3Object.getKey());
+		}
+
+		public ObjectListing listKeys(String bucket, String prefix,
+				String marker, String delimiter, int maxKeys)
+				throws DataAccessException {
+			++lists;
+			if (prefix == null) {
+				prefix = "";
+			}
+			return RadixTreeTest.reference(buckets.get(bucket), prefix,
+					(marker == null) ? null : KeyRange.markerPosition(marker,
+							prefix.length(), delimiter), delimiter, Math.min(
+							maxKeys, RadixS3ObjectDao.MAXIMUM_MAX_KEYS));
+		}
+
+		public ObjectListing listKeys(String bucket, String prefix,
+				ContinuationToken position, String delimiter, int maxKeys,
+				boolean fetchOwner) throws DataAccessException {
+			++lists;
+			return RadixTreeTest.reference(buckets.get(bucket), prefix,
+					position, delimiter, Math.min(maxKeys,
+							RadixS3ObjectDao.MAXIMUM_MAX_KEYS));
+		}
+
+		public Usage getUsage(String bucket) throws DataAccessException {
+			return null;
+		}
+
+		public SortedMap<String, Usage> getPrefixUsage(String bucket)
+				throws DataAccessException {
+			return null;
+		}
+	}
+
+	private class MyS3Object extends S3Object {
+		private static final long serialVersionUID = 1L;
+
+		public MyS3Object(String bucket, String key) {
+			super();
+			setBucket(bucket);
+			setKey(key);
+			setETag("etag");
+		}
+
+		@Override
+		public boolean deleteData() {
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+	}
+}
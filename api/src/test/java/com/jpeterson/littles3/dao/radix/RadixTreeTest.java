@@ -0,0 +1,256 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.radix;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.dao.KeyRange;
+
+public class RadixTreeTest extends TestCase {
+	private static final String ALPHABET = "ab/-";
+
+	private static final String[] DELIMITERS = { null, "/", "b/" };
+
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public RadixTreeTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("RadixTreeTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(RadixTreeTest.class);
+	}
+
+	/**
+	 * Test splitting and merging edges.
+	 */
+	public void test_putRemove() {
+		RadixTree tree = new RadixTree();
+		long empty = tree.getBytes();
+		long bytes = 0;
+
+		bytes += tree.put("photos/2007/a", summary("photos/2007/a"));
+		bytes += tree.put("photos/2008/b", summary("photos/2008/b"));
+		bytes += tree.put("photos/", summary("photos/"));
+		bytes += tree.put("photos/2007/a", summary("photos/2007/a"));
+		assertEquals("Unexpected value", 3, tree.size());
+		assertEquals("Unexpected value", empty + bytes, tree.getBytes());
+		assertEquals("Unexpected value", "photos/", tree.get("photos/")
+				.getKey());
+		assertNull("Unexpected value", tree.get("photos"));
+		assertNull("Unexpected value", tree.get("photos/2007/"));
+		assertNull("Unexpected value", tree.get("photos/2007/ab"));
+
+		assertEquals("Unexpected value", 0, tree.remove("photos/200"));
+		bytes += tree.remove("photos/");
+		bytes += tree.remove("photos/2007/a");
+		assertEquals("Unexpected value", 1, tree.size());
+		assertEquals("Unexpected value", "photos/2008/b", tree.get(
+				"photos/2008/b").getKey());
+		bytes += tree.remove("photos/2008/b");
+		assertEquals("Unexpected value", 0, tree.size());
+		assertEquals("Unexpected value", 0, bytes);
+		assertEquals("Unexpected value", empty, tree.getBytes());
+	}
+
+	/**
+	 * Test listings against a sorted map, for random keys, prefixes,
+	 * positions and delimiters.
+	 */
+	public void test_list() {
+		Random random = new Random(17);
+		RadixTree tree = new RadixTree();
+		TreeMap<String, S3ObjectSummary> map = new TreeMap<String, S3ObjectSummary>();
+		long bytes = tree.getBytes();
+
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 40; i++) {
+				String key = randomString(random, 1, 6);
+
+				if (random.nextInt(4) == 0) {
+					map.remove(key);
+					bytes += tree.remove(key);
+				} else {
+					map.put(key, summary(key));
+					bytes += tree.put(key, summary(key));
+				}
+			}
+			assertEquals("Unexpected value", map.size(), tree.size());
+			assertEquals("Unexpected value", bytes, tree.getBytes());
+
+			for (int i = 0; i < 200; i++) {
+				String prefix = randomString(random, 0, 2);
+				String delimiter = DELIMITERS[random.nextInt(DELIMITERS.length)];
+				int maxKeys = (random.nextInt(3) == 0) ? 1000 : random
+						.nextInt(5) + 1;
+				ContinuationToken position = null;
+
+				if (random.nextBoolean()) {
+					position = new ContinuationToken(randomString(random, 0,
+							4), random.nextInt(3));
+				}
+
+				assertEquals("prefix[" + prefix + "], position["
+						+ ((position == null) ? null : position.getKey() + "/"
+								+ position.getSeek()) + "], delimiter["
+						+ delimiter + "], maxKeys[" + maxKeys + "]",
+						toString(reference(map, prefix, position, delimiter,
+								maxKeys)), toString(list(tree, prefix,
+								position, delimiter, maxKeys)));
+			}
+		}
+	}
+
+	/**
+	 * List the keys of a sorted map the way the DAOs list a bucket.
+	 */
+	static ObjectListing reference(SortedMap<String, S3ObjectSummary> map,
+			String prefix, ContinuationToken position, String delimiter,
+			int maxKeys) {
+		ObjectListing listing = new ObjectListing("bucket", prefix, null,
+				delimiter, maxKeys);
+		SortedMap<String, S3ObjectSummary> tail;
+		String lastCommonPrefix = null;
+
+		if ((position == null) || (position.getKey().compareTo(prefix) < 0)) {
+			tail = map.tailMap(prefix);
+		} else if (position.getSeek() == ContinuationToken.SEEK_AT) {
+			tail = map.tailMap(position.getKey());
+		} else if (position.getSeek() == ContinuationToken.SEEK_AFTER) {
+			tail = map.tailMap(position.getKey() + "\u0000");
+		} else if (KeyRange.prefixEnd(position.getKey()) != null) {
+			tail = map.tailMap(KeyRange.prefixEnd(position.getKey()));
+		} else {
+			return listing;
+		}
+
+		for (Iterator<String> iter = tail.keySet().iterator(); iter.hasNext();) {
+			String key = iter.next();
+			String commonPrefix;
+
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+
+			commonPrefix = KeyRange.commonPrefix(key, prefix.length(),
+					delimiter);
+			if ((commonPrefix != null)
+					&& commonPrefix.equals(lastCommonPrefix)) {
+				continue;
+			}
+
+			if (listing.size() >= maxKeys) {
+				listing.setTruncated(true);
+				break;
+			}
+
+			if (commonPrefix != null) {
+				listing.addCommonPrefix(commonPrefix);
+				lastCommonPrefix = commonPrefix;
+			} else {
+				listing.addContent(map.get(key));
+			}
+		}
+
+		return listing;
+	}
+
+	/**
+	 * Describe the keys, common prefixes and continuation of a listing.
+	 */
+	static String toString(ObjectListing listing) {
+		List<String> keys = new ArrayList<String>();
+		ContinuationToken next = listing.getNextContinuationToken();
+
+		for (S3ObjectSummary summary : listing.getContents()) {
+			keys.add(summary.getKey());
+		}
+
+		return keys + " " + listing.getCommonPrefixes() + " "
+				+ listing.isTruncated() + " "
+				+ ((next == null) ? null : next.encode());
+	}
+
+	static S3ObjectSummary summary(String key) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+
+		summary.setKey(key);
+		summary.setETag("etag");
+		summary.setOwnerId("ownerId");
+
+		return summary;
+	}
+
+	private ObjectListing list(RadixTree tree, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys) {
+		ObjectListing listing = new ObjectListing("bucket", prefix, null,
+				delimiter, maxKeys);
+
+		if ((position == null) || (position.getKey().compareTo(prefix) < 0)) {
+			tree.list(listing, prefix, null, true, delimiter, maxKeys);
+		} else if (position.getSeek() == ContinuationToken.SEEK_AFTER_PREFIX) {
+			if (KeyRange.prefixEnd(position.getKey()) != null) {
+				tree.list(listing, prefix, KeyRange.prefixEnd(position
+						.getKey()), true, delimiter, maxKeys);
+			}
+		} else {
+			tree.list(listing, prefix, position.getKey(),
+					position.getSeek() == ContinuationToken.SEEK_AT,
+					delimiter, maxKeys);
+		}
+
+		return listing;
+	}
+
+	private String randomString(Random random, int min, int max) {
+		int length = min + random.nextInt(max - min + 1);
+		StringBuffer buffer = new StringBuffer();
+
+		for (int i = 0; i < length; i++) {
+			buffer.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.service.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.S3Object;
+
+public class ObjectCacheTest extends TestCase {
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ObjectCacheTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("ObjectCacheTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ObjectCacheTest.class);
+	}
+
+	/**
+	 * Test caching an object and reading it back.
+	 */
+	public void test_put() {
+		ObjectCache cache = new ObjectCache();
+		MyS3Object s3Object = new MyS3Object("key", "0123456789");
+		CachedS3Object cached;
+
+		s3Object.addMetadata("name", "value");
+
+		assertNull("Unexpected value", cache.get("bucket", "key"));
+		try {
+			cached = cache.put(s3Object, cache.getStamp());
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+			return;
+		}
+
+		assertNotNull("Unexpected value", cached);
+		assertSame("Unexpected value", cached, cache.get("bucket", "key"));
+		assertEquals("Unexpected value", 10, cached.getContentLength());
+		assertEquals("Unexpected value", "etag", cached.getETag());
+		assertEquals("Unexpected value", "value", cached
+				.getMetadataValue("name"));
+		assertEquals("Unexpected value", "23456", read(cached, 2, 5));
+		assertEquals("Unexpected value", 1, cache.getHits());
+		assertEquals("Unexpected value", 1, cache.getMisses());
+		assertEquals("Unexpected value", 10, cache.getSize());
+	}
+
+	/**
+	 * Test caching an object in a direct buffer.
+	 */
+	public void test_direct() {
+		ObjectCache cache = new ObjectCache();
+		CachedS3Object cached;
+
+		cache.setDirect(true);
+		try {
+			cached = cache.put(new MyS3Object("key", "0123456789"), cache
+					.getStamp());
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+			return;
+		}
+
+		assertEquals("Unexpected value", "789", read(cached, 7, 10));
+	}
+
+	/**
+	 * Test the size bounds and least recently used eviction.
+	 */
+	public void test_eviction() {
+		ObjectCache cache = new ObjectCache();
+
+		cache.setMaxSize(20);
+		cache.setMaxObjectSize(10);
+		try {
+			assertNull("Unexpected value", cache.put(new MyS3Object("big",
+					"0123456789a"), cache.getStamp()));
+			cache.put(new MyS3Object("a", "0123456789"), cache.getStamp());
+			cache.put(new MyS3Object("b", "0123456789"), cache.getStamp());
+			assertNotNull("Unexpected value", cache.get("bucket", "a"));
+			cache.put(new MyS3Object("c", "0123456789"), cache.getStamp());
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+			return;
+		}
+
+		assertNotNull("Unexpected value", cache.get("bucket", "a"));
+		assertNull("Unexpected value", cache.get("bucket", "b"));
+		assertNotNull("Unexpected value", cache.get("bucket", "c"));
+		assertEquals("Unexpected value", 1, cache.getEvictions());
+		assertEquals("Unexpected value", 20, cache.getSize());
+	}
+
+	/**
+	 * Test invalidation, including an invalidation that happens while an
+	 * object is being loaded.
+	 */
+	public void test_invalidate() {
+		ObjectCache cache = new ObjectCache();
+		long stamp;
+
+		try {
+			cache.put(new MyS3Object("key", "0123456789"), cache.getStamp());
+			cache.invalidate("bucket", "key");
+			assertNull("Unexpected value", cache.get("bucket", "key"));
+			assertEquals("Unexpected value", 0, cache.getSize());
+
+			stamp = cache.getStamp();
+			cache.invalidate("bucket", "key");
+			assertNotNull("Unexpected value", cache.put(new MyS3Object("key",
+					"0123456789"), stamp));
+			assertNull("Unexpected value", cache.get("bucket", "key"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+		}
+	}
+
+	private String read(CachedS3Object cached, long position, long count) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try {
+			cached.transferTo(position, count, out);
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+		}
+
+		return out.toString();
+	}
+
+	private class MyS3Object extends S3Object {
+		private static final long serialVersionUID = 1L;
+
+		private byte[] data;
+
+		public MyS3Object(String key, String data) {
+			super();
+			this.data = data.getBytes();
+			setBucket("bucket");
+			setKey(key);
+			setContentLength(this.data.length);
+			setETag("etag");
+		}
+
+		@Override
+		public boolean deleteData() {
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class AwsChunkedInputStreamTest extends TestCase {
+	private static final String SIGNATURE = ";chunk-signature=ad80c730a21e5b8d04586a2213dd63b9a0e99e0e2307b0ade35a65485a288648";
+
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public AwsChunkedInputStreamTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("AwsChunkedInputStreamTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(AwsChunkedInputStreamTest.class);
+	}
+
+	/**
+	 * Test decoding signed chunks, unsigned chunks and trailers.
+	 */
+	public void test_read() throws IOException {
+		assertEquals("Unexpected value", "hello world!", decode("5"
+				+ SIGNATURE + "\r\nhello\r\n7" + SIGNATURE
+				+ "\r\n world!\r\n0" + SIGNATURE + "\r\n\r\n"));
+		assertEquals("Unexpected value", "0123456789abcdefg", decode("a\r\n"
+				+ "0123456789\r\n7\r\nabcdefg\r\n0\r\n"
+				+ "x-amz-checksum-crc32:AAAAAA==\r\n\r\n"));
+		// no final line end
+		assertEquals("Unexpected value", "abc", decode("3\r\nabc\r\n0\r\n"));
+		assertEquals("Unexpected value", "", decode("0" + SIGNATURE
+				+ "\r\n\r\n"));
+	}
+
+	/**
+	 * Test that a truncated body is an <code>EOFException</code>, and a
+	 * malformed body a <code>MalformedChunkException</code>.
+	 */
+	public void test_malformed() {
+		String[] truncated = { "", "5\r\nhel", "5\r\nhello\r\n", "5\r\nhello" };
+		String[] malformed = { "x\r\nhello\r\n0\r\n\r\n",
+				"5\r\nhelloXX\r\n0\r\n\r\n", "-5\r\nhello\r\n0\r\n\r\n" };
+
+		for (int i = 0; i < truncated.length; i++) {
+			try {
+				decode(truncated[i]);
+				fail("Expected exception: " + truncated[i]);
+			} catch (EOFException e) {
+				// expected
+			} catch (IOException e) {
+				fail("Unexpected exception: " + e);
+			}
+		}
+
+		for (int i = 0; i < malformed.length; i++) {
+			try {
+				decode(malformed[i]);
+				fail("Expected exception: " + malformed[i]);
+			} catch (MalformedChunkException e) {
+				// expected
+			} catch (IOException e) {
+				fail("Unexpected exception: " + e);
+			}
+		}
+	}
+
+	private String decode(String body) throws IOException {
+		InputStream in = new AwsChunkedInputStream(new ByteArrayInputStream(
+				body.getBytes("ISO-8859-1")));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4];
+		int read;
+
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		// stays at the end
+		assertEquals("Unexpected value", -1, in.read());
+
+		return out.toString("ISO-8859-1");
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.http;
+
+import java.util.Date;
+
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PreconditionsTest extends TestCase {
+	private Log logger;
+
+	private static final String ETAG = "7e9f3ab5c5f9d7d6e7c3c0b2a4f1e8d2";
+
+	private static final long LAST_MODIFIED = 1190000000123L;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public PreconditionsTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("PreconditionsTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PreconditionsTest.class);
+	}
+
+	/**
+	 * Test matching entity tags.
+	 */
+	public void test_matches() {
+		assertTrue(Preconditions.matches("\"" + ETAG + "\"", ETAG, true));
+		assertTrue(Preconditions.matches(ETAG, ETAG, true));
+		assertTrue(Preconditions.matches("\"abc\", \"" + ETAG + "\"", ETAG,
+				true));
+		assertTrue(Preconditions.matches("*", ETAG, true));
+		assertFalse(Preconditions.matches("*", null, true));
+		assertFalse(Preconditions.matches("\"abc\"", ETAG, true));
+		assertFalse(Preconditions.matches("W/\"" + ETAG + "\"", ETAG, true));
+		assertTrue(Preconditions.matches("W/\"" + ETAG + "\"", ETAG, false));
+	}
+
+	/**
+	 * Test <code>If-None-Match</code> and <code>If-Modified-Since</code>.
+	 */
+	public void test_notModified() {
+		String sameDate = DateUtil.formatDate(new Date(LAST_MODIFIED));
+		String earlierDate = DateUtil.formatDate(new Date(
+				LAST_MODIFIED - 60000));
+
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(null, null,
+				null, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.SC_NOT_MODIFIED, Preconditions.evaluate(
+				null, "\"" + ETAG + "\"", null, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(null,
+				"\"abc\"", null, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.SC_NOT_MODIFIED, Preconditions.evaluate(
+				null, null, sameDate, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(null, null,
+				earlierDate, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(null, null,
+				"not a date", null, ETAG, LAST_MODIFIED));
+
+		// If-None-Match takes precedence over If-Modified-Since
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(null,
+				"\"abc\"", sameDate, null, ETAG, LAST_MODIFIED));
+	}
+
+	/**
+	 * Test <code>If-Match</code> and <code>If-Unmodified-Since</code>.
+	 */
+	public void test_preconditionFailed() {
+		String sameDate = DateUtil.formatDate(new Date(LAST_MODIFIED));
+		String earlierDate = DateUtil.formatDate(new Date(
+				LAST_MODIFIED - 60000));
+
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate("\"" + ETAG
+				+ "\"", null, null, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.SC_PRECONDITION_FAILED, Preconditions
+				.evaluate("\"abc\"", null, null, null, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(null, null,
+				null, sameDate, ETAG, LAST_MODIFIED));
+		assertEquals(Preconditions.SC_PRECONDITION_FAILED, Preconditions
+				.evaluate(null, null, null, earlierDate, ETAG, LAST_MODIFIED));
+
+		// If-Match is evaluated before If-None-Match
+		assertEquals(Preconditions.SC_PRECONDITION_FAILED, Preconditions
+				.evaluate("\"abc\"", "\"" + ETAG + "\"", null, null, ETAG,
+						LAST_MODIFIED));
+	}
+
+	/**
+	 * Test <code>If-Range</code>.
+	 */
+	public void test_ifRange() {
+		assertTrue(Preconditions.isRangeCurrent(null, ETAG, LAST_MODIFIED));
+		assertTrue(Preconditions.isRangeCurrent("\"" + ETAG + "\"", ETAG,
+				LAST_MODIFIED));
+		assertFalse(Preconditions.isRangeCurrent("\"abc\"", ETAG,
+				LAST_MODIFIED));
+		assertFalse(Preconditions.isRangeCurrent("W/\"" + ETAG + "\"", ETAG,
+				LAST_MODIFIED));
+		assertTrue(Preconditions.isRangeCurrent(DateUtil.formatDate(new Date(
+				LAST_MODIFIED)), ETAG, LAST_MODIFIED));
+		assertFalse(Preconditions.isRangeCurrent(DateUtil.formatDate(new Date(
+				LAST_MODIFIED - 60000)), ETAG, LAST_MODIFIED));
+	}
+}
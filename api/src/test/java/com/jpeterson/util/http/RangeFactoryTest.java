@@ -70,10 +70,24 @@ public class RangeFactoryTest extends TestCase {
 		assertEquals("Unexpected range", new Range(500, 999), ranges[0]);
 
 		value = "bytes=-500";
+		rangeSet = RangeFactory.processRangeHeader(value);
+
+		ranges = (Range[]) rangeSet.toArray(new Range[0]);
+
+		assertEquals("Unexpected number of ranges", 1, ranges.length);
+		assertEquals("Unexpected range", new Range(-500), ranges[0]);
+
+		rangeSet.resolve(10000);
+		ranges = (Range[]) rangeSet.toArray(new Range[0]);
+
+		assertEquals("Unexpected number of ranges", 1, ranges.length);
+		assertEquals("Unexpected range", new Range(9500, 9999), ranges[0]);
+
+		value = "bytes=-0";
 		try {
 			rangeSet = RangeFactory.processRangeHeader(value);
 			fail("Expected exception");
-		} catch (UnsupportedOperationException e) {
+		} catch (IllegalArgumentException e) {
 			// expected
 		}
 
@@ -88,12 +102,18 @@ public class RangeFactoryTest extends TestCase {
 		assertEquals("Unexpected range", range, ranges[0]);
 
 		value = "bytes=0-0,-1";
-		try {
-			rangeSet = RangeFactory.processRangeHeader(value);
-			fail("Expected exception");
-		} catch (UnsupportedOperationException e) {
-			// expected
-		}
+		rangeSet = RangeFactory.processRangeHeader(value);
+
+		ranges = (Range[]) rangeSet.toArray(new Range[0]);
+
+		assertEquals("Unexpected number of ranges", 2, ranges.length);
+
+		rangeSet.resolve(10000);
+		ranges = (Range[]) rangeSet.toArray(new Range[0]);
+
+		assertEquals("Unexpected number of ranges", 2, ranges.length);
+		assertEquals("Unexpected range", new Range(0, 0), ranges[0]);
+		assertEquals("Unexpected range", new Range(9999, 9999), ranges[1]);
 
 		value = "bytes=500-600,601-999";
 		rangeSet = RangeFactory.processRangeHeader(value);
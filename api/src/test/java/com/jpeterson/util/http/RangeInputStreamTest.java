@@ -326,6 +326,63 @@ public class RangeInputStreamTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Test a stream that is already positioned at the range start.
+	 */
+	public void test_positionedStream() {
+		// Stream of bytes: 56789abcdef, positioned at 5
+		// Range: bytes=7-9
+		// RangeInputStream: 789
+
+		String data = "56789abcdef";
+		ByteArrayInputStream dataStream;
+		RangeInputStream in;
+		byte[] b;
+		int count;
+
+		try {
+			dataStream = new ByteArrayInputStream(data.getBytes());
+			in = new RangeInputStream(dataStream, new Range(7, 9), 5);
+
+			b = new byte[10];
+			count = in.read(b, 0, b.length);
+
+			assertEquals("Unexpected number of bytes read", 3, count);
+			assertEquals("Unexpected data", "789", new String(b, 0, count));
+			assertEquals(-1, in.read(b, 0, b.length));
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+		}
+
+		try {
+			new RangeInputStream(new ByteArrayInputStream(data.getBytes()),
+					new Range(2, 3), 5);
+			fail("Should throw and exception");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test a range that starts beyond the end of the stream.
+	 */
+	public void test_rangeBeyondEnd() {
+		ByteArrayInputStream dataStream;
+		RangeInputStream in;
+
+		try {
+			dataStream = new ByteArrayInputStream("0123".getBytes());
+			in = new RangeInputStream(dataStream, new Range(10, 20));
+
+			assertEquals(-1, in.read());
+			assertEquals(-1, in.read(new byte[4], 0, 4));
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+		}
+	}
+
 	/**
 	 * Simple test of the <code>FileInputStream</code> <code>skip()</code>
 	 * method. I was trying to verify what return value the skip() provides when
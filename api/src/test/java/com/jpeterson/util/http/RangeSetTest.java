@@ -244,6 +244,47 @@ public class RangeSetTest extends TestCase {
 		assertFalse("Unexpected range", iter.hasNext());
 	}
 
+	/**
+	 * Resolve where some ranges are unsatisfiable and a suffix range overlaps
+	 * another range once resolved.
+	 */
+	public void test_unsatisfiable() {
+		RangeSet rangeSet = new RangeSet();
+		Iterator iter;
+
+		rangeSet.add(new Range(1, 2));
+		rangeSet.add(new Range(20, 30));
+		rangeSet.add(new Range(-3));
+		rangeSet.add(new Range(8));
+
+		rangeSet.resolve(12);
+
+		iter = rangeSet.iterator();
+		assertTrue("Expected another range", iter.hasNext());
+		assertEquals("Unexpected range", new Range(1, 2), iter.next());
+		assertTrue("Expected another range", iter.hasNext());
+		assertEquals("Unexpected range", new Range(8, 11), iter.next());
+		assertFalse("Unexpected range", iter.hasNext());
+
+		rangeSet = new RangeSet();
+		rangeSet.add(new Range(20, 30));
+		try {
+			rangeSet.resolve(12);
+			fail("Expected exception");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		rangeSet = new RangeSet();
+		rangeSet.add(new Range(-3));
+		try {
+			rangeSet.resolve(0);
+			fail("Expected exception");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * Test the inclusion interface.
 	 */
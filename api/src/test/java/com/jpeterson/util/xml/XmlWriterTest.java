@@ -0,0 +1,140 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.util.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.util.xml.XmlWriter.Tag;
+
+public class XmlWriterTest extends TestCase {
+	private static final Tag ROOT = new Tag("Root", "xmlns=\"urn:test\"");
+
+	private static final Tag NAME = new Tag("Name");
+
+	private Log logger;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public XmlWriterTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("XmlWriterTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(XmlWriterTest.class);
+	}
+
+	/**
+	 * Test writing the declaration and elements.
+	 */
+	public void test_elements() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XmlWriter xml = new XmlWriter(out);
+
+		xml.declaration();
+		xml.start(ROOT);
+		xml.element(NAME, "value");
+		xml.element(NAME, (String) null);
+		xml.element(NAME, 42L);
+		xml.element(NAME, true);
+		xml.empty(NAME);
+		xml.end(ROOT);
+		xml.flush();
+
+		assertEquals("Unexpected value",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+						+ "<Root xmlns=\"urn:test\"><Name>value</Name>"
+						+ "<Name/><Name>42</Name><Name>true</Name><Name/>"
+						+ "</Root>", out.toString("UTF-8"));
+	}
+
+	/**
+	 * Test escaping markup characters.
+	 */
+	public void test_escape() throws IOException {
+		assertEquals("Unexpected value", "a&amp;b&lt;c&gt;d&quot;e'f",
+				write("a&b<c>d\"e'f"));
+		assertEquals("Unexpected value", "tab\tline\r\n", write("tab\tline\r\n"));
+	}
+
+	/**
+	 * Test encoding characters as UTF-8, including surrogate pairs.
+	 */
+	public void test_utf8() throws IOException {
+		String text = "caf\u00e9 \u20ac \ud834\udd1e";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XmlWriter xml = new XmlWriter(out);
+
+		xml.text(text);
+		xml.flush();
+
+		assertTrue("Unexpected value", Arrays.equals(text
+				.getBytes("UTF-8"), out.toByteArray()));
+	}
+
+	/**
+	 * Test replacing characters that can not appear in XML.
+	 */
+	public void test_replacement() throws IOException {
+		assertEquals("Unexpected value", "a\ufffdb", write("a\u0001b"));
+		assertEquals("Unexpected value", "a\ufffdb", write("a\ud834b"));
+		assertEquals("Unexpected value", "a\ufffd", write("a\udd1e"));
+		assertEquals("Unexpected value", "\ufffd\ufffd", write("\ufffe\uffff"));
+	}
+
+	/**
+	 * Test writing text longer than the buffer.
+	 */
+	public void test_longText() throws IOException {
+		StringBuffer buffer = new StringBuffer();
+
+		for (int i = 0; i < 10000; i++) {
+			buffer.append("\u20ac&");
+		}
+
+		assertEquals("Unexpected value", buffer.toString().replaceAll("&",
+				"&amp;"), write(buffer.toString()));
+	}
+
+	private String write(String text) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XmlWriter xml = new XmlWriter(out);
+
+		xml.text(text);
+		xml.close();
+
+		return out.toString("UTF-8");
+	}
+}
@@ -25,6 +25,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.jpeterson.util.http.Range;
+import com.jpeterson.util.http.RangeInputStream;
+import com.jpeterson.util.io.BufferPool;
 
 public class FileS3Object extends S3Object {
 	/**
@@ -163,6 +170,131 @@ public class FileS3Object extends S3Object {
 		return in;
 	}
 
+	/**
+	 * Get the local file holding the object data.
+	 * 
+	 * @return The local file holding the object data, or <code>null</code>
+	 *         if the storage URL can not be converted to a file.
+	 */
+	public File getStorageFile() {
+		try {
+			return new File(getStorageUrl().toURI());
+		} catch (URISyntaxException e) {
+			logger.error("Can not convert storage URL to a URI", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Overrides the default implementation to position the file channel
+	 * directly at <code>start</code>, so the cost of reading a range depends
+	 * only on the length of the range.
+	 * 
+	 * @param start
+	 *            The position of the first byte of the range, inclusive.
+	 * @param end
+	 *            The position of the last byte of the range, inclusive.
+	 * @return An <code>InputStream</code> to read the range of Object data
+	 *         from. The stream ends after the byte at <code>end</code>.
+	 * @throws IOException
+	 *             Unable to read the object data.
+	 * @Override
+	 */
+	public InputStream openRange(long start, long end) throws IOException {
+		File storageFile = getStorageFile();
+		FileInputStream in;
+
+		if (storageFile == null) {
+			throw new IOException("Unable to read data for object: " + key);
+		}
+
+		in = new FileInputStream(storageFile);
+		try {
+			in.getChannel().position(start);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+
+		return new RangeInputStream(in, new Range(start, end), start);
+	}
+
+	/**
+	 * Overrides the default implementation to read the object data with a
+	 * <code>FileChannel</code>. If <code>out</code> is also a
+	 * <code>WritableByteChannel</code>, the data is sent with
+	 * <code>FileChannel.transferTo</code>, letting the operating system copy
+	 * the data directly from the file to the destination. Otherwise the data
+	 * is read with positional reads into a pooled buffer.
+	 * 
+	 * @param position
+	 *            The position in the object data to start writing from.
+	 * @param count
+	 *            The number of bytes to write.
+	 * @param out
+	 *            The <code>OutputStream</code> to write the data to.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             Unable to read the object data or write to <code>out</code>.
+	 * @Override
+	 */
+	public long transferTo(long position, long count, OutputStream out)
+			throws IOException {
+		File storageFile = getStorageFile();
+		FileInputStream in;
+		FileChannel channel;
+		long transferred = 0;
+
+		if (storageFile == null) {
+			throw new IOException("Unable to read data for object: " + key);
+		}
+
+		in = new FileInputStream(storageFile);
+		try {
+			channel = in.getChannel();
+			count = Math.min(count, channel.size() - position);
+
+			if (out instanceof WritableByteChannel) {
+				WritableByteChannel target = (WritableByteChannel) out;
+				long written;
+
+				while (transferred < count) {
+					written = channel.transferTo(position + transferred, count
+							- transferred, target);
+					if (written <= 0) {
+						break;
+					}
+					transferred += written;
+				}
+			} else {
+				BufferPool pool = BufferPool.getInstance();
+				byte[] buffer = pool.acquire();
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+				int read;
+
+				try {
+					while (transferred < count) {
+						byteBuffer.clear();
+						byteBuffer.limit((int) Math.min(buffer.length, count
+								- transferred));
+						read = channel.read(byteBuffer, position + transferred);
+						if (read == -1) {
+							break;
+						}
+						out.write(buffer, 0, read);
+						transferred += read;
+					}
+				} finally {
+					pool.release(buffer);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return transferred;
+	}
+
 	@Override
 	public OutputStream getOutputStream() {
 		File storageLocation;
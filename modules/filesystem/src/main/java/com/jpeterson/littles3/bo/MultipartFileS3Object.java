@@ -0,0 +1,403 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An object assembled from the parts of a multipart upload. The storage URL
+ * is a manifest file listing the files of the parts, in order, so completing
+ * an upload never copies the part data; the object data is read across the
+ * part files.
+ * 
+ * @author Jesse Peterson
+ */
+public class MultipartFileS3Object extends FileS3Object {
+	/**
+	 * If incompatible serialization changes are made, mostly deleting methods,
+	 * this must be changed.
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The extension of manifest files. A <code>file</code> storage URL ending
+	 * with it is the storage URL of a <code>MultipartFileS3Object</code>.
+	 */
+	public static final String EXTENSION = ".manifest";
+
+	private static final int VERSION = 1;
+
+	private transient List<UploadPart> parts;
+
+	/**
+	 * Create a new <code>S3Object</code> whose data is read from the part
+	 * files listed in a manifest.
+	 * 
+	 * @param bucket
+	 *            The object bucket.
+	 * @param key
+	 *            The object key.
+	 * @param storageUrl
+	 *            The <code>file</code> URL of the manifest.
+	 * @throws IllegalArgumentException
+	 *             Thrown if the <code>storageUrl</code> is not a
+	 *             <code>file</code> protocol.
+	 */
+	public MultipartFileS3Object(String bucket, String key, URL storageUrl) {
+		super(bucket, key, storageUrl);
+	}
+
+	/**
+	 * Determine if a storage URL is the URL of a manifest.
+	 * 
+	 * @param storageUrl
+	 *            The storage URL.
+	 * @return <code>True</code> if the storage URL is the URL of a manifest.
+	 */
+	public static boolean isManifest(URL storageUrl) {
+		return (storageUrl != null) && storageUrl.getPath().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Write the manifest, listing the parts the object is assembled from. The
+	 * manifest is synced to disk and then renamed into place, so it is
+	 * either complete or missing.
+	 * 
+	 * @param parts
+	 *            The parts of the object, in order.
+	 * @throws IOException
+	 *             Unable to write the manifest.
+	 */
+	public void writeManifest(List<UploadPart> parts) throws IOException {
+		File manifest = getManifestFile();
+		File temporaryFile = new File(manifest.getPath() + ".tmp");
+		FileOutputStream fos;
+		DataOutputStream out;
+
+		manifest.getParentFile().mkdirs();
+		fos = new FileOutputStream(temporaryFile, false);
+		out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(parts.size());
+			for (UploadPart part : parts) {
+				out.writeInt(part.getPartNumber());
+				out.writeUTF(part.getStorageUrl().toString());
+				out.writeLong(part.getSize());
+				out.writeUTF(part.getETag());
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!temporaryFile.renameTo(manifest)) {
+			temporaryFile.delete();
+			throw new IOException("Unable to rename " + temporaryFile + " to "
+					+ manifest);
+		}
+
+		this.parts = Collections
+				.unmodifiableList(new ArrayList<UploadPart>(parts));
+	}
+
+	/**
+	 * Get the parts the object is assembled from, reading the manifest on
+	 * first use.
+	 * 
+	 * @return The parts of the object, in order.
+	 * @throws IOException
+	 *             Unable to read the manifest.
+	 */
+	public List<UploadPart> getParts() throws IOException {
+		if (parts == null) {
+			File manifest = getManifestFile();
+			DataInputStream in;
+			List<UploadPart> read = new ArrayList<UploadPart>();
+
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(manifest)));
+			try {
+				int version = in.readInt();
+				int count;
+
+				if (version != VERSION) {
+					throw new IOException("Unsupported manifest version "
+							+ version + ": " + manifest);
+				}
+
+				count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					int partNumber = in.readInt();
+					URL storageUrl = new URL(in.readUTF());
+					long size = in.readLong();
+
+					read.add(new UploadPart(partNumber, in.readUTF(), size,
+							manifest.lastModified(), storageUrl));
+				}
+			} finally {
+				in.close();
+			}
+
+			parts = Collections.unmodifiableList(read);
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Overrides the default implementation to provide the total length of
+	 * the parts.
+	 * 
+	 * @return The length of the object data in bytes.
+	 * @Override
+	 */
+	public long getContentLength() {
+		long length = 0;
+
+		try {
+			for (UploadPart part : getParts()) {
+				length += part.getSize();
+			}
+		} catch (IOException e) {
+			logger.error("Unable to read manifest: " + getStorageUrl(), e);
+			return 0;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Overrides the default implementation, as the object data is not held
+	 * in a single file.
+	 * 
+	 * @return <code>null</code>.
+	 * @Override
+	 */
+	public File getStorageFile() {
+		return null;
+	}
+
+	/**
+	 * Get the manifest file.
+	 * 
+	 * @return The manifest file.
+	 * @throws IOException
+	 *             The storage URL can not be converted to a file.
+	 */
+	public File getManifestFile() throws IOException {
+		try {
+			return new File(getStorageUrl().toURI());
+		} catch (URISyntaxException e) {
+			IOException ioe = new IOException(
+					"Can not convert storage URL to a URI: " + getStorageUrl());
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Overrides the default implementation to delete the part files and then
+	 * the manifest.
+	 * 
+	 * @return <code>True</code> if the manifest was deleted.
+	 * @Override
+	 */
+	public boolean deleteData() {
+		try {
+			for (UploadPart part : getParts()) {
+				new FileS3Object(bucket, key, part.getStorageUrl())
+						.deleteData();
+			}
+		} catch (IOException e) {
+			logger.error("Unable to read manifest, part files not deleted: "
+					+ getStorageUrl(), e);
+		}
+
+		return super.deleteData();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		try {
+			return new PartsInputStream(0, Long.MAX_VALUE);
+		} catch (IOException e) {
+			logger.warn("Unable to read manifest: " + getStorageUrl(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Overrides the default implementation to open only the part files
+	 * holding the range.
+	 * 
+	 * @param start
+	 *            The position of the first byte of the range, inclusive.
+	 * @param end
+	 *            The position of the last byte of the range, inclusive.
+	 * @return An <code>InputStream</code> to read the range of Object data
+	 *         from. The stream ends after the byte at <code>end</code>.
+	 * @throws IOException
+	 *             Unable to read the object data.
+	 * @Override
+	 */
+	public InputStream openRange(long start, long end) throws IOException {
+		return new PartsInputStream(start, end - start + 1);
+	}
+
+	/**
+	 * Overrides the default implementation to transfer the range from each
+	 * part file in turn.
+	 * 
+	 * @param position
+	 *            The position in the object data to start writing from.
+	 * @param count
+	 *            The number of bytes to write.
+	 * @param out
+	 *            The <code>OutputStream</code> to write the data to.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             Unable to read the object data or write to <code>out</code>.
+	 * @Override
+	 */
+	public long transferTo(long position, long count, OutputStream out)
+			throws IOException {
+		long offset = 0;
+		long transferred = 0;
+
+		for (UploadPart part : getParts()) {
+			long size = part.getSize();
+
+			if ((transferred < count) && (position + transferred < offset + size)) {
+				long start = position + transferred - offset;
+				long length = Math.min(size - start, count - transferred);
+				long written = new FileS3Object(bucket, key, part
+						.getStorageUrl()).transferTo(start, length, out);
+
+				transferred += written;
+				if (written < length) {
+					// part file shorter than recorded
+					break;
+				}
+			}
+			offset += size;
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Reads a range of the object data, opening each part file as it is
+	 * reached.
+	 */
+	private class PartsInputStream extends InputStream {
+		private List<UploadPart> parts;
+
+		private int index = 0;
+
+		private long offset = 0;
+
+		private long position;
+
+		private long remaining;
+
+		private InputStream current;
+
+		private PartsInputStream(long position, long count) throws IOException {
+			this.parts = getParts();
+			this.position = position;
+			this.remaining = count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+
+			return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (remaining > 0) {
+				int read;
+
+				if (current == null) {
+					if (!next()) {
+						return -1;
+					}
+				}
+
+				read = current.read(b, off, (int) Math.min(len, remaining));
+				if (read == -1) {
+					current.close();
+					current = null;
+					continue;
+				}
+
+				position += read;
+				remaining -= read;
+				return read;
+			}
+
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			remaining = 0;
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+
+		/**
+		 * Open the part file holding <code>position</code>.
+		 */
+		private boolean next() throws IOException {
+			while (index < parts.size()) {
+				UploadPart part = parts.get(index++);
+				long start = offset;
+
+				offset += part.getSize();
+				if (position < offset) {
+					current = new FileS3Object(bucket, key, part
+							.getStorageUrl()).openRange(position - start,
+							part.getSize() - 1);
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+}
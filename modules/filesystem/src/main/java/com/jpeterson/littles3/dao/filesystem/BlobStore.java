@@ -0,0 +1,685 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.javaexchange.RandomGUID;
+import com.jpeterson.littles3.bo.DataUsage;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.util.io.BufferPool;
+
+/**
+ * Object data stored by content, so identical data is stored once. Each blob
+ * is named by the MD5 digest and length of its data, and has a reference
+ * directory holding a record per object, by <code>bucket/key</code>, that
+ * references it. The data is deleted when the last reference is released.
+ * <p>
+ * Object data is written to the incoming directory first, and interned once
+ * its digest is known. Interning data identical to a stored blob adds a
+ * reference and discards the new copy; the data is compared byte for byte
+ * first, so a digest collision never serves one object's data for another.
+ * </p>
+ * <p>
+ * References are a set rather than a count, so adding or releasing a
+ * reference twice, as a retried reclaim does, is harmless. Each reference is
+ * a file of its own, named by the digest of the reference, so adding or
+ * releasing one costs the same however many objects share the blob: the
+ * last reference is released when the emptied reference directory can be
+ * deleted. The number of references is only counted by <code>open()</code>.
+ * </p>
+ * <p>
+ * A reference is recorded before the object's meta data is stored, and
+ * released after it is removed: a crash in between leaves an extra
+ * reference, never a missing one. Reference records are written aside and
+ * renamed into place; the references of a new blob are written before the
+ * data is moved in, and the reference directory is deleted before the data,
+ * so <code>open()</code> can drop what a crash left half done.
+ * </p>
+ * <p>
+ * Changes to a blob are serialized per blob. The caller serializes storing
+ * and removing the objects of a reference with
+ * <code>getReferenceLock(String)</code>.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class BlobStore {
+	private static final int VERSION = 1;
+
+	private static final String INCOMING = "incoming";
+
+	private static final String REFERENCES_EXTENSION = ".refs";
+
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	private static final int LOCKS = 64;
+
+	private Log logger;
+
+	private File directory;
+
+	private File incomingDirectory;
+
+	private Object[] locks;
+
+	private Object[] referenceLocks;
+
+	private AtomicLong blobs = new AtomicLong();
+
+	private AtomicLong storedBytes = new AtomicLong();
+
+	private AtomicLong references = new AtomicLong();
+
+	private AtomicLong referencedBytes = new AtomicLong();
+
+	/**
+	 * Create a store of the blobs in a directory. It must be opened with
+	 * <code>open()</code>.
+	 * 
+	 * @param directory
+	 *            The directory holding the blobs.
+	 */
+	public BlobStore(File directory) {
+		logger = LogFactory.getLog(this.getClass());
+		// absolute, to compare with the files of storage URLs
+		this.directory = directory.getAbsoluteFile();
+		incomingDirectory = new File(this.directory, INCOMING);
+
+		locks = new Object[LOCKS];
+		referenceLocks = new Object[LOCKS];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+			referenceLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Open the store: delete the incoming data and the records left by a
+	 * crash, and count the blobs and their references. Must be called before
+	 * any data is written to the incoming directory.
+	 * 
+	 * @throws IOException
+	 *             Unable to read the references.
+	 */
+	public synchronized void open() throws IOException {
+		File[] directories;
+		File[] files;
+
+		files = incomingDirectory.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				// never interned
+				files[i].delete();
+			}
+		}
+
+		blobs.set(0);
+		storedBytes.set(0);
+		references.set(0);
+		referencedBytes.set(0);
+
+		directories = directory.listFiles();
+		if (directories == null) {
+			return;
+		}
+
+		for (int i = 0; i < directories.length; i++) {
+			if (!directories[i].isDirectory()
+					|| directories[i].equals(incomingDirectory)) {
+				continue;
+			}
+
+			files = directories[i].listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (int j = 0; j < files.length; j++) {
+				String name = files[j].getName();
+
+				if (name.endsWith(TEMPORARY_EXTENSION)) {
+					files[j].delete();
+				} else if (name.endsWith(REFERENCES_EXTENSION)) {
+					File data = new File(directories[i], name.substring(0, name
+							.length()
+							- REFERENCES_EXTENSION.length()));
+					int referencing = countReferences(files[j]);
+
+					if (!data.exists() || (referencing == 0)) {
+						// a new blob never moved in, or a released blob
+						deleteReferences(files[j]);
+						data.delete();
+						continue;
+					}
+
+					blobs.incrementAndGet();
+					storedBytes.addAndGet(data.length());
+					references.addAndGet(referencing);
+					referencedBytes.addAndGet(data.length() * referencing);
+				} else if (!new File(directories[i], name
+						+ REFERENCES_EXTENSION).exists()) {
+					// released, and the record deleted
+					files[j].delete();
+				}
+			}
+		}
+
+		logger.info("Opened blob store " + directory + ": " + getUsage());
+	}
+
+	/**
+	 * Generate a new URL in the incoming directory, to write object data to
+	 * before it is interned.
+	 * 
+	 * @return A URL for the data of a new object.
+	 * @throws IOException
+	 *             Unable to generate the URL.
+	 */
+	public URL createIncomingUrl() throws IOException {
+		File file;
+
+		do {
+			file = new File(incomingDirectory, new RandomGUID().valueAfterMD5);
+		} while (file.exists());
+
+		return file.toURI().toURL();
+	}
+
+	/**
+	 * Determine if a storage URL is of data written to the incoming
+	 * directory, and not yet interned.
+	 * 
+	 * @param url
+	 *            The storage URL.
+	 * @return <code>True</code> if the data is incoming.
+	 */
+	public boolean isIncoming(URL url) {
+		File file = toFile(url);
+
+		return (file != null) && incomingDirectory.equals(file.getParentFile());
+	}
+
+	/**
+	 * Determine if a storage URL is of a blob.
+	 * 
+	 * @param url
+	 *            The storage URL.
+	 * @return <code>True</code> if the URL is of a blob.
+	 */
+	public boolean isBlob(URL url) {
+		File file = toFile(url);
+
+		return (file != null) && (file.getParentFile() != null)
+				&& directory.equals(file.getParentFile().getParentFile())
+				&& !incomingDirectory.equals(file.getParentFile());
+	}
+
+	/**
+	 * Get the name of the blob of some data.
+	 * 
+	 * @param md5
+	 *            The hex encoded MD5 digest of the data.
+	 * @param length
+	 *            The length of the data.
+	 * @return The name of the blob, or <code>null</code> if
+	 *         <code>md5</code> is not a hex encoded MD5 digest.
+	 */
+	public static String getName(String md5, long length) {
+		if ((md5 == null) || (md5.length() != 32) || (length < 0)) {
+			return null;
+		}
+
+		for (int i = 0; i < md5.length(); i++) {
+			if (Character.digit(md5.charAt(i), 16) < 0) {
+				return null;
+			}
+		}
+
+		return md5.toLowerCase() + "-" + length;
+	}
+
+	/**
+	 * Get the storage URL of a blob.
+	 * 
+	 * @param name
+	 *            The name of the blob.
+	 * @return The storage URL of the blob, which may not be stored.
+	 * @throws MalformedURLException
+	 *             Unable to convert the blob's file to a URL.
+	 */
+	public URL getUrl(String name) throws MalformedURLException {
+		return getDataFile(name).toURI().toURL();
+	}
+
+	/**
+	 * Intern incoming data: store it as a blob referenced by
+	 * <code>reference</code> or, if the blob is already stored, add the
+	 * reference and discard the incoming copy.
+	 * 
+	 * @param incoming
+	 *            The storage URL of the incoming data.
+	 * @param name
+	 *            The name of the blob, from <code>getName</code>.
+	 * @param reference
+	 *            The object referencing the data, as <code>bucket/key</code>.
+	 * @return The storage URL of the blob, or <code>null</code> if a blob
+	 *         with the same name holds different data. The incoming data is
+	 *         then left in place.
+	 * @throws IOException
+	 *             Unable to store the blob or its references.
+	 */
+	public URL intern(URL incoming, String name, String reference)
+			throws IOException {
+		File incomingFile = toFile(incoming);
+		File data = getDataFile(name);
+		File referencesDirectory = getReferencesDirectory(name);
+
+		if ((incomingFile == null) || !isIncoming(incoming)) {
+			throw new IOException("Not incoming data: " + incoming);
+		}
+
+		synchronized (getLock(name)) {
+			if (data.exists() && referencesDirectory.isDirectory()) {
+				if (!isSameContent(incomingFile, data)) {
+					logger.warn("Digest collision on blob " + name
+							+ ", data not deduplicated");
+					return null;
+				}
+
+				if (!isReferenced(referencesDirectory, reference)) {
+					writeReference(referencesDirectory, reference);
+					references.incrementAndGet();
+					referencedBytes.addAndGet(data.length());
+				}
+
+				if (!incomingFile.delete()) {
+					logger.warn("Unable to delete duplicate data: "
+							+ incomingFile);
+				}
+			} else {
+				// recorded first, so the data is never unreferenced
+				deleteReferences(referencesDirectory);
+				if (!referencesDirectory.mkdirs()) {
+					throw new IOException("Unable to create directory "
+							+ referencesDirectory);
+				}
+				writeReference(referencesDirectory, reference);
+
+				if (!incomingFile.renameTo(data)) {
+					// some platforms will not rename over an existing file
+					data.delete();
+					if (!incomingFile.renameTo(data)) {
+						deleteReferences(referencesDirectory);
+						throw new IOException("Unable to rename "
+								+ incomingFile + " to " + data);
+					}
+				}
+
+				blobs.incrementAndGet();
+				storedBytes.addAndGet(data.length());
+				references.incrementAndGet();
+				referencedBytes.addAndGet(data.length());
+			}
+		}
+
+		return data.toURI().toURL();
+	}
+
+	/**
+	 * Determine if a blob is referenced by an object.
+	 * 
+	 * @param url
+	 *            The storage URL of the blob.
+	 * @param reference
+	 *            The object, as <code>bucket/key</code>.
+	 * @return <code>True</code> if the blob is stored and referenced by the
+	 *         object.
+	 * @throws IOException
+	 *             Unable to read the references.
+	 */
+	public boolean isReferenced(URL url, String reference) throws IOException {
+		String name = toName(url);
+
+		synchronized (getLock(name)) {
+			return isReferenced(getReferencesDirectory(name), reference);
+		}
+	}
+
+	/**
+	 * Add a reference to a stored blob. Does nothing if the object already
+	 * references it.
+	 * 
+	 * @param url
+	 *            The storage URL of the blob.
+	 * @param reference
+	 *            The object referencing the blob, as <code>bucket/key</code>.
+	 * @return <code>True</code> if the blob is referenced, or
+	 *         <code>false</code> if it is no longer stored.
+	 * @throws IOException
+	 *             Unable to record the reference.
+	 */
+	public boolean addReference(URL url, String reference) throws IOException {
+		String name = toName(url);
+		File data = getDataFile(name);
+		File referencesDirectory = getReferencesDirectory(name);
+
+		synchronized (getLock(name)) {
+			if (!data.exists() || !referencesDirectory.isDirectory()) {
+				return false;
+			}
+
+			if (!isReferenced(referencesDirectory, reference)) {
+				writeReference(referencesDirectory, reference);
+				references.incrementAndGet();
+				referencedBytes.addAndGet(data.length());
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Release a reference to a blob, deleting the blob if it was the last.
+	 * Does nothing if the object does not reference the blob.
+	 * 
+	 * @param url
+	 *            The storage URL of the blob.
+	 * @param reference
+	 *            The object releasing the blob, as <code>bucket/key</code>.
+	 * @return <code>True</code> if the reference was released.
+	 * @throws IOException
+	 *             Unable to update the references, or to delete the blob.
+	 */
+	public boolean release(URL url, String reference) throws IOException {
+		String name = toName(url);
+		File data = getDataFile(name);
+		File referencesDirectory = getReferencesDirectory(name);
+
+		synchronized (getLock(name)) {
+			File record = getReferenceFile(referencesDirectory, reference);
+			long length = data.length();
+
+			if (!reference.equals(readReference(record))) {
+				return false;
+			}
+
+			if (!record.delete()) {
+				throw new IOException("Unable to delete reference: " + record);
+			}
+
+			// a directory is only deleted once empty
+			if (referencesDirectory.delete()) {
+				// a crash before the data is deleted leaves data without
+				// references, dropped by open()
+				if (data.exists() && !data.delete()) {
+					throw new IOException("Unable to delete blob: " + data);
+				}
+				blobs.decrementAndGet();
+				storedBytes.addAndGet(-length);
+			}
+			references.decrementAndGet();
+			referencedBytes.addAndGet(-length);
+
+			return true;
+		}
+	}
+
+	/**
+	 * Get the lock serializing the stores and removes of an object. Held
+	 * while the object's meta data is stored or removed together with its
+	 * reference, so a concurrent store and remove of the same key can not
+	 * leave meta data referencing a released blob.
+	 * 
+	 * @param reference
+	 *            The object, as <code>bucket/key</code>.
+	 * @return The lock.
+	 */
+	public Object getReferenceLock(String reference) {
+		return referenceLocks[(reference.hashCode() & 0x7fffffff)
+				% referenceLocks.length];
+	}
+
+	/**
+	 * Get the storage used by the blobs, and the space saved.
+	 * 
+	 * @return The usage of the blobs.
+	 */
+	public DataUsage getUsage() {
+		return new DataUsage(new Usage(references.get(), referencedBytes
+				.get()), new Usage(blobs.get(), storedBytes.get()));
+	}
+
+	/**
+	 * Compare the data of two files.
+	 */
+	private boolean isSameContent(File a, File b) throws IOException {
+		BufferPool pool = BufferPool.getInstance();
+		InputStream inA;
+		InputStream inB;
+		byte[] bufferA;
+		byte[] bufferB;
+
+		if (a.length() != b.length()) {
+			return false;
+		}
+
+		inA = new FileInputStream(a);
+		try {
+			inB = new FileInputStream(b);
+			try {
+				bufferA = pool.acquire();
+				bufferB = pool.acquire();
+				try {
+					DataInputStream dataB = new DataInputStream(inB);
+					int count;
+
+					while ((count = inA.read(bufferA)) > 0) {
+						dataB.readFully(bufferB, 0, count);
+						for (int i = 0; i < count; i++) {
+							if (bufferA[i] != bufferB[i]) {
+								return false;
+							}
+						}
+					}
+					return inB.read() < 0;
+				} finally {
+					pool.release(bufferA);
+					pool.release(bufferB);
+				}
+			} finally {
+				inB.close();
+			}
+		} finally {
+			inA.close();
+		}
+	}
+
+	/**
+	 * Determine if a reference directory holds the record of a reference.
+	 * 
+	 * @throws IOException
+	 *             Unable to read the record, or it is of another reference
+	 *             with the same digest.
+	 */
+	private boolean isReferenced(File referencesDirectory, String reference)
+			throws IOException {
+		File record = getReferenceFile(referencesDirectory, reference);
+		String recorded = readReference(record);
+
+		if (recorded == null) {
+			return false;
+		} else if (!recorded.equals(reference)) {
+			throw new IOException("Digest collision on reference " + reference
+					+ " with " + recorded + ": " + record);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read the reference of a record.
+	 * 
+	 * @return The reference, or <code>null</code> if there is no record.
+	 */
+	private String readReference(File record) throws IOException {
+		DataInputStream in;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(record)));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			int version = in.readInt();
+
+			if (version != VERSION) {
+				throw new IOException("Unsupported reference record version "
+						+ version);
+			}
+
+			return in.readUTF();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the record of a reference aside, sync it and rename it into
+	 * place.
+	 */
+	private void writeReference(File referencesDirectory, String reference)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		File record = getReferenceFile(referencesDirectory, reference);
+		File temporaryFile = new File(record.getPath() + TEMPORARY_EXTENSION);
+		FileOutputStream fos;
+
+		out.writeInt(VERSION);
+		out.writeUTF(reference);
+		out.close();
+
+		fos = new FileOutputStream(temporaryFile, false);
+		try {
+			fos.write(bytes.toByteArray());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		if (!temporaryFile.renameTo(record)) {
+			temporaryFile.delete();
+			throw new IOException("Unable to rename " + temporaryFile + " to "
+					+ record);
+		}
+	}
+
+	/**
+	 * Count the references of a blob, deleting the records a crash left
+	 * partly written.
+	 */
+	private int countReferences(File referencesDirectory) {
+		File[] files = referencesDirectory.listFiles();
+		int count = 0;
+
+		if (files == null) {
+			return 0;
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(TEMPORARY_EXTENSION)) {
+				files[i].delete();
+			} else {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Delete a reference directory and its records.
+	 */
+	private void deleteReferences(File referencesDirectory) {
+		File[] files = referencesDirectory.listFiles();
+
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		referencesDirectory.delete();
+	}
+
+	private File getDataFile(String name) {
+		return new File(new File(directory, name.substring(0, 2)), name);
+	}
+
+	private File getReferencesDirectory(String name) {
+		return new File(new File(directory, name.substring(0, 2)), name
+				+ REFERENCES_EXTENSION);
+	}
+
+	private File getReferenceFile(File referencesDirectory, String reference)
+			throws IOException {
+		// keys may be longer than a file name, and hold any character
+		return new File(referencesDirectory, DigestUtils.md5Hex(reference
+				.getBytes("UTF-8")));
+	}
+
+	private String toName(URL url) throws IOException {
+		if (!isBlob(url)) {
+			throw new IOException("Not a blob: " + url);
+		}
+
+		return toFile(url).getName();
+	}
+
+	private File toFile(URL url) {
+		try {
+			return new File(url.toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			// not a file URL
+			return null;
+		}
+	}
+
+	private Object getLock(String name) {
+		return locks[(name.hashCode() & 0x7fffffff) % locks.length];
+	}
+}
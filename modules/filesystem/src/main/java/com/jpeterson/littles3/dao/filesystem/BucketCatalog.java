@@ -0,0 +1,409 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+
+/**
+ * The names, owners and creation dates of all of the buckets, indexed by
+ * owner. The catalog is held in memory and written through to a single file
+ * on every change, so finding the buckets of an owner does not touch the file
+ * system.
+ * <p>
+ * The buckets are stored apart from the catalog, so a change to a bucket is
+ * bracketed by <code>startChange()</code> and <code>endChange()</code>. A
+ * marker file is kept while a change is in progress, and a catalog left
+ * marked by a crash or a failed write is not loaded, to be rebuilt from the
+ * buckets.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class BucketCatalog {
+	private static final int VERSION = 1;
+
+	private Log logger;
+
+	private File file;
+
+	private File changingFile;
+
+	private int changing;
+
+	private Map<String, Entry> names = new HashMap<String, Entry>();
+
+	private Map<String, SortedMap<String, Entry>> owners = new HashMap<String, SortedMap<String, Entry>>();
+
+	/**
+	 * Create a catalog persisted to a file. The file is not read until
+	 * <code>load()</code>.
+	 * 
+	 * @param file
+	 *            The file holding the catalog.
+	 */
+	public BucketCatalog(File file) {
+		logger = LogFactory.getLog(this.getClass());
+		this.file = file;
+		changingFile = new File(file.getPath() + ".changing");
+	}
+
+	/**
+	 * Read the catalog from its file.
+	 * 
+	 * @return <code>True</code> if the catalog was read, <code>false</code>
+	 *         if there is no file, or it was left marked as being changed.
+	 * @throws IOException
+	 *             Unable to read the file.
+	 */
+	public synchronized boolean load() throws IOException {
+		DataInputStream in;
+
+		if (changingFile.exists()) {
+			logger.info("Bucket catalog was being changed, not loaded: "
+					+ file);
+			return false;
+		}
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+
+		names.clear();
+		owners.clear();
+		try {
+			int version = in.readInt();
+			int count;
+
+			if (version != VERSION) {
+				throw new IOException("Unsupported bucket catalog version "
+						+ version + ": " + file);
+			}
+
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				String owner = in.readBoolean() ? in.readUTF() : null;
+				long created = in.readLong();
+
+				index(new Entry(name, owner, created));
+			}
+		} finally {
+			in.close();
+		}
+
+		logger.debug("Loaded " + names.size() + " buckets from " + file);
+		return true;
+	}
+
+	/**
+	 * Replace the whole catalog, as when it is first built from the buckets
+	 * already stored.
+	 * 
+	 * @param buckets
+	 *            All of the buckets.
+	 * @throws IOException
+	 *             Unable to write the catalog.
+	 */
+	public synchronized void replace(Collection<Bucket> buckets)
+			throws IOException {
+		names.clear();
+		owners.clear();
+		for (Bucket bucket : buckets) {
+			index(entry(bucket, null));
+		}
+		save();
+		if (changing == 0) {
+			changingFile.delete();
+		}
+	}
+
+	/**
+	 * Mark the catalog as being changed, before a bucket is stored or
+	 * removed. Once the bucket and the catalog are both changed,
+	 * <code>endChange()</code> drops the mark; if either fails, the mark is
+	 * kept until the catalog is rebuilt.
+	 * 
+	 * @throws IOException
+	 *             Unable to write the mark.
+	 */
+	public synchronized void startChange() throws IOException {
+		if (changing++ == 0) {
+			FileOutputStream out;
+
+			file.getParentFile().mkdirs();
+			out = new FileOutputStream(changingFile);
+			try {
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Drop the mark of a change started by <code>startChange()</code>, once
+	 * the bucket and the catalog are both changed.
+	 */
+	public synchronized void endChange() {
+		if ((--changing == 0) && !changingFile.delete()) {
+			logger.warn("Unable to delete " + changingFile);
+		}
+	}
+
+	/**
+	 * Add a bucket to the catalog, or update its owner. A bucket without a
+	 * creation date keeps the one already in the catalog.
+	 * 
+	 * @param bucket
+	 *            The bucket.
+	 * @throws IOException
+	 *             Unable to write the catalog.
+	 */
+	public synchronized void put(Bucket bucket) throws IOException {
+		Entry previous = names.get(bucket.getName());
+		Entry entry = entry(bucket, previous);
+
+		if (entry.equals(previous)) {
+			return;
+		}
+
+		if (previous != null) {
+			unindex(previous);
+		}
+		index(entry);
+		save();
+	}
+
+	/**
+	 * Remove a bucket from the catalog.
+	 * 
+	 * @param name
+	 *            The name of the bucket.
+	 * @throws IOException
+	 *             Unable to write the catalog.
+	 */
+	public synchronized void remove(String name) throws IOException {
+		Entry previous = names.get(name);
+
+		if (previous == null) {
+			return;
+		}
+
+		unindex(previous);
+		save();
+	}
+
+	/**
+	 * Find the buckets of an owner.
+	 * 
+	 * @param owner
+	 *            The id of the owner.
+	 * @return The buckets of the owner, ordered by name, with their names,
+	 *         owners and creation dates.
+	 */
+	public synchronized List<Bucket> find(String owner) {
+		SortedMap<String, Entry> entries = owners.get(owner);
+		List<Bucket> buckets = new ArrayList<Bucket>();
+
+		if (entries != null) {
+			for (Entry entry : entries.values()) {
+				buckets.add(entry.toBucket());
+			}
+		}
+
+		return buckets;
+	}
+
+	/**
+	 * Determine if the catalog holds exactly a set of buckets.
+	 * 
+	 * @param names
+	 *            The names of all of the buckets.
+	 * @return <code>True</code> if the catalog holds the buckets, and no
+	 *         other.
+	 */
+	public synchronized boolean matches(Set<String> names) {
+		return this.names.keySet().equals(names);
+	}
+
+	/**
+	 * Get the number of buckets in the catalog.
+	 * 
+	 * @return The number of buckets.
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	private Entry entry(Bucket bucket, Entry previous) {
+		String owner = null;
+		long created;
+
+		if ((bucket.getAcp() != null) && (bucket.getAcp().getOwner() != null)) {
+			owner = bucket.getAcp().getOwner().getId();
+		}
+
+		if (bucket.getCreated() != null) {
+			created = bucket.getCreated().getTime();
+		} else if (previous != null) {
+			created = previous.created;
+		} else {
+			created = System.currentTimeMillis();
+		}
+
+		return new Entry(bucket.getName(), owner, created);
+	}
+
+	private void index(Entry entry) {
+		names.put(entry.name, entry);
+		if (entry.owner != null) {
+			SortedMap<String, Entry> entries = owners.get(entry.owner);
+
+			if (entries == null) {
+				entries = new TreeMap<String, Entry>();
+				owners.put(entry.owner, entries);
+			}
+			entries.put(entry.name, entry);
+		}
+	}
+
+	private void unindex(Entry entry) {
+		names.remove(entry.name);
+		if (entry.owner != null) {
+			SortedMap<String, Entry> entries = owners.get(entry.owner);
+
+			entries.remove(entry.name);
+			if (entries.isEmpty()) {
+				owners.remove(entry.owner);
+			}
+		}
+	}
+
+	/**
+	 * Write the catalog aside, sync it and rename, so a failure leaves the
+	 * previous catalog in place.
+	 */
+	private void save() throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos;
+		DataOutputStream out;
+
+		file.getParentFile().mkdirs();
+		fos = new FileOutputStream(temporaryFile, false);
+		out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(names.size());
+			for (Entry entry : names.values()) {
+				out.writeUTF(entry.name);
+				out.writeBoolean(entry.owner != null);
+				if (entry.owner != null) {
+					out.writeUTF(entry.owner);
+				}
+				out.writeLong(entry.created);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!temporaryFile.renameTo(file)) {
+			// some platforms will not rename over an existing file
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				temporaryFile.delete();
+				throw new IOException("Unable to rename " + temporaryFile
+						+ " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * A bucket in the catalog. Immutable.
+	 */
+	private static class Entry {
+		private final String name;
+
+		private final String owner;
+
+		private final long created;
+
+		private Entry(String name, String owner, long created) {
+			this.name = name;
+			this.owner = owner;
+			this.created = created;
+		}
+
+		private Bucket toBucket() {
+			Bucket bucket = new Bucket();
+			Acp acp = new Acp();
+
+			acp.setOwner(new CanonicalUser(owner));
+			bucket.setAcp(acp);
+			bucket.setName(name);
+			bucket.setCreated(new Date(created));
+
+			return bucket;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Entry)) {
+				return false;
+			}
+
+			Entry other = (Entry) obj;
+			return name.equals(other.name)
+					&& ((owner == null) ? (other.owner == null) : owner
+							.equals(other.owner))
+					&& (created == other.created);
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+	}
+}
@@ -1,12 +1,12 @@
 package com.jpeterson.littles3.dao.filesystem;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.logging.Log;
@@ -17,6 +17,7 @@ import org.springframework.dao.DataRetrievalFailureException;
 
 import com.jpeterson.littles3.bo.Bucket;
 import com.jpeterson.littles3.dao.BucketDao;
+import com.jpeterson.littles3.dao.codec.MetadataCodec;
 
 /**
  * An implementation of <code>BucketDao</code> that uses the file system to
@@ -34,7 +35,8 @@ public class FileBucketDao extends FileBase implements BucketDao {
 	}
 
 	/**
-	 * This method will load the bucket from a Java serialized file.
+	 * This method will load the bucket from a file encoded by
+	 * <code>MetadataCodec</code>, or Java serialized by an earlier version.
 	 * 
 	 * @param bucket
 	 *            The name of the bucket to load.
@@ -44,7 +46,6 @@ public class FileBucketDao extends FileBase implements BucketDao {
 	public Bucket loadBucket(String bucket) throws DataAccessException {
 		File serializedBucketFile;
 		FileInputStream fis = null;
-		ObjectInputStream in = null;
 		Bucket theBucket = null;
 
 		serializedBucketFile = new File(generateMetaStoragePath()
@@ -53,9 +54,11 @@ public class FileBucketDao extends FileBase implements BucketDao {
 
 		try {
 			fis = new FileInputStream(serializedBucketFile);
-			in = new ObjectInputStream(fis);
-			theBucket = (Bucket) in.readObject();
-			in.close();
+			try {
+				theBucket = MetadataCodec.readBucket(fis);
+			} finally {
+				fis.close();
+			}
 
 			return theBucket;
 		} catch (FileNotFoundException e) {
@@ -63,15 +66,12 @@ public class FileBucketDao extends FileBase implements BucketDao {
 					+ bucket);
 		} catch (IOException e) {
 			throw new DataAccessResourceFailureException(
-					"Unable to store Bucket: " + bucket, e);
-		} catch (ClassNotFoundException e) {
-			throw new DataAccessResourceFailureException(
-					"Unable to store Bucket: " + bucket, e);
+					"Unable to load Bucket: " + bucket, e);
 		}
 	}
 
 	/**
-	 * This method will remove a Java serialized file representing the bucket.
+	 * This method will remove the file representing the bucket.
 	 * 
 	 * @param bucket
 	 *            The name of the bucket to remove.
@@ -118,7 +118,8 @@ public class FileBucketDao extends FileBase implements BucketDao {
 	}
 
 	/**
-	 * This method will store the bucket as a Java serialized file.
+	 * This method will store the bucket as a file encoded by
+	 * <code>MetadataCodec</code>.
 	 * 
 	 * @param bucket
 	 *            The bucket to store.
@@ -128,8 +129,7 @@ public class FileBucketDao extends FileBase implements BucketDao {
 	public void storeBucket(Bucket bucket) throws DataAccessException {
 		File bucketDirectory;
 		File serializedBucketFile;
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
+		DataOutputStream out;
 
 		// create bucket meta storage directory if necessary
 		bucketDirectory = new File(generateMetaStoragePath().append(
@@ -147,10 +147,13 @@ public class FileBucketDao extends FileBase implements BucketDao {
 				+ EXTENSION);
 
 		try {
-			fos = new FileOutputStream(serializedBucketFile, false);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(bucket);
-			out.close();
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(serializedBucketFile, false)));
+			try {
+				MetadataCodec.encode(bucket, out);
+			} finally {
+				out.close();
+			}
 		} catch (IOException e) {
 			throw new DataAccessResourceFailureException(
 					"Unable to store Bucket: " + bucket, e);
@@ -1,20 +1,15 @@
 package com.jpeterson.littles3.dao.filesystem;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.TimeZone;
-import java.util.TreeSet;
+import java.util.SortedMap;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.logging.Log;
@@ -24,10 +19,13 @@ import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DataRetrievalFailureException;
 
 import com.javaexchange.RandomGUID;
-import com.jpeterson.littles3.bo.Acp;
-import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
 import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.littles3.dao.KeyRange;
 import com.jpeterson.littles3.dao.S3ObjectDao;
+import com.jpeterson.littles3.dao.codec.MetadataCodec;
 
 /**
  * An implementation of <code>S3ObjectDao</code> that uses the file system to
@@ -40,44 +38,91 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 
 	public static final int MAXIMUM_MAX_KEYS = 1000;
 
-	private static SimpleDateFormat iso8601 = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+	/**
+	 * Configuration property defining the number of key index journal records
+	 * between checkpoints of the key index.
+	 */
+	public static final String CONFIG_KEY_INDEX_CHECKPOINT_INTERVAL = "keyIndex.checkpointInterval";
 
-	private static TimeZone utc = TimeZone.getTimeZone("UTC");
+	/**
+	 * Configuration property defining if each key index journal record is
+	 * forced to the storage device.
+	 */
+	public static final String CONFIG_KEY_INDEX_SYNC = "keyIndex.sync";
 
-	static {
-		iso8601.setTimeZone(utc);
-	}
+	/**
+	 * Configuration property defining the number of <code>/</code> separated
+	 * levels of key prefixes the key index keeps the usage of. <code>0</code>,
+	 * the default, keeps the usage of the bucket only.
+	 */
+	public static final String CONFIG_KEY_INDEX_USAGE_PREFIX_DEPTH = "keyIndex.usagePrefixDepth";
+
+	/**
+	 * Configuration property defining the budget, in bytes, for the key
+	 * indexes kept resident across all of the buckets. Defaults to
+	 * <code>KeyIndexManager.DEFAULT_MAX_BYTES</code>.
+	 */
+	public static final String CONFIG_KEY_INDEX_MAX_BYTES = "keyIndex.maxBytes";
+
+	/**
+	 * Number of write locks the buckets are striped over.
+	 */
+	private static final int WRITE_LOCK_STRIPES = 64;
+
+	private KeyIndexManager keyIndexes = new KeyIndexManager() {
+		@Override
+		protected KeyIndex newKeyIndex(String bucket) {
+			Configuration configuration = getConfiguration();
+			KeyIndex keys = new KeyIndex(new File(generateMetaStoragePath()
+					.append(bucket).append(fileSeparator).toString()));
+
+			keys.setCheckpointInterval(configuration.getInt(
+					CONFIG_KEY_INDEX_CHECKPOINT_INTERVAL,
+					KeyIndex.DEFAULT_CHECKPOINT_INTERVAL));
+			keys.setSync(configuration.getBoolean(CONFIG_KEY_INDEX_SYNC, false));
+			keys.setUsagePrefixDepth(configuration.getInt(
+					CONFIG_KEY_INDEX_USAGE_PREFIX_DEPTH, 0));
+
+			return keys;
+		}
+	};
+
+	/**
+	 * Serialize the writers of a bucket. Readers take no lock: they read an
+	 * immutable snapshot of the key index, and object files are replaced by a
+	 * rename, so a reader never sees a partly written file.
+	 */
+	private Object[] writeLocks;
 
 	public FileS3ObjectDao() {
 		super();
 		logger = LogFactory.getLog(this.getClass());
 		logger.debug("FileS3ObjectDao created");
+
+		writeLocks = new Object[WRITE_LOCK_STRIPES];
+		for (int i = 0; i < writeLocks.length; i++) {
+			writeLocks[i] = new Object();
+		}
 	}
 
 	public S3Object loadS3Object(String bucket, String key) {
-		Map<String, String> keys;
+		KeyIndex keys = acquireKeyIndex(bucket);
 
-		// load key index
 		try {
-			keys = retrieveKeyIndex(bucket, true);
-		} catch (IOException e) {
-			throw new DataAccessResourceFailureException(
-					"Unable to load the key index for bucket: " + bucket, e);
+			return intLoadS3Object(keys, bucket, key);
+		} finally {
+			keyIndexes.release(bucket);
 		}
-
-		return intLoadS3Object(keys, bucket, key);
 	}
 
-	protected S3Object intLoadS3Object(Map<String, String> keys, String bucket,
-			String key) throws DataAccessException {
+	protected S3Object intLoadS3Object(KeyIndex keys, String bucket, String key)
+			throws DataAccessException {
 		S3Object s3Object = null;
 		String relativeSerializedObjectFile;
 		File serializedObjectFile;
 		FileInputStream fis = null;
-		ObjectInputStream in = null;
 
-		relativeSerializedObjectFile = keys.get(key);
+		relativeSerializedObjectFile = lookupKey(keys, bucket, key);
 		if (relativeSerializedObjectFile == null) {
 			throw new DataRetrievalFailureException("Could not find S3Object");
 		}
@@ -88,9 +133,13 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 
 		try {
 			fis = new FileInputStream(serializedObjectFile);
-			in = new ObjectInputStream(fis);
-			s3Object = (S3Object) in.readObject();
-			in.close();
+			try {
+				// also reads objects Java serialized by earlier versions
+				s3Object = MetadataCodec.readS3Object(fis, FileS3ObjectFactory
+						.getInstance());
+			} finally {
+				fis.close();
+			}
 
 			return s3Object;
 		} catch (FileNotFoundException e) {
@@ -101,35 +150,55 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 			throw new DataRetrievalFailureException(
 					"Could not find object in bucket: " + bucket + " key: "
 							+ key);
-		} catch (ClassNotFoundException e) {
-			throw new DataRetrievalFailureException(
-					"Could not find object in bucket: " + bucket + " key: "
-							+ key);
 		}
 	}
 
-	public void storeS3Object(S3Object s3Object) throws DataAccessException {
+	private String lookupKey(KeyIndex keys, String bucket, String key)
+			throws DataAccessException {
+		KeyIndexEntry entry;
+
+		try {
+			entry = keys.get(key);
+		} catch (IOException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to read the key index for bucket: " + bucket, e);
+		}
+
+		return (entry == null) ? null : entry.getFile();
+	}
+
+	public S3Object storeS3Object(S3Object s3Object)
+			throws DataAccessException {
 		String bucketDirectoryPath;
-		File serializedObjectFile;
 		String bucket = s3Object.getBucket();
-		Map<String, String> keys;
-		String relativeSerializedObjectFile;
-		String key = s3Object.getKey();
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
+		KeyIndex keys;
 
 		bucketDirectoryPath = generateMetaStoragePath().append(bucket).append(
 				fileSeparator).toString();
 
-		// load key index
+		keys = acquireKeyIndex(bucket);
 		try {
-			keys = retrieveKeyIndex(bucket, true);
-		} catch (IOException e) {
-			throw new DataAccessResourceFailureException(
-					"Unable to load the key index for bucket: " + bucket, e);
+			// serialize writers of the bucket, so concurrent stores of a new
+			// key don't each allocate a file
+			synchronized (writeLock(bucket)) {
+				return intStoreS3Object(keys, s3Object, bucketDirectoryPath);
+			}
+		} finally {
+			keyIndexes.release(bucket);
 		}
+	}
 
-		relativeSerializedObjectFile = keys.get(key);
+	private S3Object intStoreS3Object(KeyIndex keys, S3Object s3Object,
+			String bucketDirectoryPath) throws DataAccessException {
+		File serializedObjectFile;
+		File temporaryFile;
+		S3Object replaced = null;
+		String bucket = s3Object.getBucket();
+		String relativeSerializedObjectFile;
+		String key = s3Object.getKey();
+		DataOutputStream out;
+
+		relativeSerializedObjectFile = lookupKey(keys, bucket, key);
 		if (relativeSerializedObjectFile == null) {
 			// find a random file to serialize the object to
 			String guid;
@@ -147,49 +216,93 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 		} else {
 			serializedObjectFile = new File(bucketDirectoryPath
 					+ relativeSerializedObjectFile);
+			replaced = readReplaced(serializedObjectFile);
 		}
 
 		// make sure the directory for the serialized object file exists
 		serializedObjectFile.getParentFile().mkdirs();
 
+		// write aside and rename, so readers see the old or the new object
+		temporaryFile = new File(serializedObjectFile.getPath() + ".tmp");
 		try {
-			fos = new FileOutputStream(serializedObjectFile, false);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(s3Object);
-			out.close();
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temporaryFile, false)));
+			try {
+				MetadataCodec.encode(s3Object, out);
+			} finally {
+				out.close();
+			}
+
+			if (!temporaryFile.renameTo(serializedObjectFile)) {
+				// some platforms will not rename over an existing file
+				serializedObjectFile.delete();
+				if (!temporaryFile.renameTo(serializedObjectFile)) {
+					temporaryFile.delete();
+					throw new IOException("Unable to rename " + temporaryFile
+							+ " to " + serializedObjectFile);
+				}
+			}
 		} catch (IOException e) {
 			throw new DataAccessResourceFailureException(
 					"Unable to store S3Object: " + serializedObjectFile, e);
 		}
 
 		// update the key index
-		keys.put(key, relativeSerializedObjectFile);
-
-		// save the key index
 		try {
-			storeKeyIndex(bucket, keys);
+			keys.put(new KeyIndexEntry(relativeSerializedObjectFile, s3Object));
 		} catch (IOException e) {
 			throw new DataAccessResourceFailureException(
 					"Unable to store the key index for bucket: " + bucket, e);
 		}
+
+		return replaced;
+	}
+
+	/**
+	 * Read the object about to be replaced, under the bucket's write lock.
+	 * 
+	 * @return The object, or <code>null</code> if it can not be read.
+	 */
+	private S3Object readReplaced(File serializedObjectFile) {
+		FileInputStream fis;
+
+		try {
+			fis = new FileInputStream(serializedObjectFile);
+			try {
+				return MetadataCodec.readS3Object(fis, FileS3ObjectFactory
+						.getInstance());
+			} finally {
+				fis.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to read the replaced object: "
+					+ serializedObjectFile, e);
+			return null;
+		}
 	}
 
 	public void removeS3Object(S3Object s3Object) throws DataAccessException {
-		Map<String, String> keys;
-		String relativeSerializedObjectFile;
-		File serializedObjectFile;
+		KeyIndex keys;
 		String bucket = s3Object.getBucket();
-		String key = s3Object.getKey();
 
-		// load key index
+		keys = acquireKeyIndex(bucket);
 		try {
-			keys = retrieveKeyIndex(bucket, true);
-		} catch (IOException e) {
-			throw new DataAccessResourceFailureException(
-					"Unable to load the key index for bucket: " + bucket, e);
+			synchronized (writeLock(bucket)) {
+				intRemoveS3Object(keys, s3Object);
+			}
+		} finally {
+			keyIndexes.release(bucket);
 		}
+	}
 
-		relativeSerializedObjectFile = keys.get(key);
+	private void intRemoveS3Object(KeyIndex keys, S3Object s3Object)
+			throws DataAccessException {
+		String relativeSerializedObjectFile;
+		File serializedObjectFile;
+		String bucket = s3Object.getBucket();
+		String key = s3Object.getKey();
+
+		relativeSerializedObjectFile = lookupKey(keys, bucket, key);
 		if (relativeSerializedObjectFile == null) {
 			throw new DataRetrievalFailureException("Could not find S3Object");
 		}
@@ -208,31 +321,39 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 		serializedObjectFile.getParentFile().delete();
 
 		// update the key index
-		keys.remove(key);
-
-		// save the key index
 		try {
-			storeKeyIndex(bucket, keys);
+			keys.remove(key);
 		} catch (IOException e) {
 			throw new DataAccessResourceFailureException(
 					"Unable to store the key index for bucket: " + bucket, e);
 		}
 	}
 
-	public String listKeys(String bucket, String prefix, String marker,
-			String delimiter, int maxKeys) throws DataAccessException {
-		Map<String, String> keys;
-		int results = 0;
-		S3Object o = null;
-		boolean truncated = false;
-		List<S3Object> contents = new ArrayList<S3Object>();
-		List<String> commonPrefixes = new ArrayList<String>();
-		int prefixLength;
-		String key = null;
-		boolean processed;
-		int delimiterIndex;
-		String currentPrefix;
-		String commonPrefix = null;
+	public Usage getUsage(String bucket) throws DataAccessException {
+		KeyIndex keys = acquireKeyIndex(bucket);
+
+		try {
+			return keys.getUsage();
+		} finally {
+			keyIndexes.release(bucket);
+		}
+	}
+
+	public SortedMap<String, Usage> getPrefixUsage(String bucket)
+			throws DataAccessException {
+		KeyIndex keys = acquireKeyIndex(bucket);
+
+		try {
+			return keys.getPrefixUsage();
+		} finally {
+			keyIndexes.release(bucket);
+		}
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException {
+		ContinuationToken position = null;
 
 		if (logger.isDebugEnabled()) {
 			logger.debug("listKeys: bucket[" + bucket + "], prefix[" + prefix
@@ -243,7 +364,65 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 		if (prefix == null) {
 			prefix = "";
 		}
-		prefixLength = prefix.length();
+
+		// validate the marker, should start with prefix
+		if (marker != null) {
+			if (!marker.startsWith(prefix)) {
+				logger.info("marker[" + marker + "] doesn't start with prefix["
+						+ prefix + "], ignoring marker");
+				marker = null;
+			} else {
+				position = KeyRange.markerPosition(marker, prefix.length(),
+						delimiter);
+			}
+		}
+
+		return listKeys(bucket, prefix, marker, position, delimiter, maxKeys);
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException {
+		if (logger.isDebugEnabled()) {
+			logger.debug("listKeys: bucket[" + bucket + "], prefix[" + prefix
+					+ "], position[" + ((position == null) ? null : position
+					.encode()) + "], delimiter[" + delimiter + "], maxKeys["
+					+ maxKeys + "]");
+		}
+
+		if (prefix == null) {
+			prefix = "";
+		}
+
+		// the owner is held in the key index, it costs nothing to list
+		return listKeys(bucket, prefix, null, position, delimiter, maxKeys);
+	}
+
+	/**
+	 * List the keys of a bucket from a position.
+	 * 
+	 * @param bucket
+	 *            The bucket containing the keys to list.
+	 * @param prefix
+	 *            The prefix of the keys to list. Not <code>null</code>.
+	 * @param marker
+	 *            The marker the listing was requested with, to report in the
+	 *            listing. May be <code>null</code>.
+	 * @param position
+	 *            Where to start the list. May be <code>null</code>.
+	 * @param delimiter
+	 *            Used to roll up common keys into a summary.
+	 * @param maxKeys
+	 *            Limit the number of results.
+	 * @return A page of the listing.
+	 * @throws DataAccessException
+	 *             Unable to generate the list.
+	 */
+	private ObjectListing listKeys(String bucket, String prefix,
+			String marker, ContinuationToken position, String delimiter,
+			int maxKeys) throws DataAccessException {
+		KeyIndex keys;
+		ObjectListing listing;
 
 		if ((delimiter != null) && (delimiter.equals(""))) {
 			// make delimiter null for performance reasons
@@ -254,173 +433,79 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 			maxKeys = MAXIMUM_MAX_KEYS;
 		}
 
-		// load key index
+		listing = new ObjectListing(bucket, prefix, marker, delimiter, maxKeys);
+
+		keys = acquireKeyIndex(bucket);
 		try {
-			keys = retrieveKeyIndex(bucket, true);
-		} catch (IOException e) {
-			throw new DataAccessResourceFailureException(
-					"Unable to load the key index for bucket: " + bucket, e);
+			list(keys, listing, prefix, position, delimiter, maxKeys);
+		} finally {
+			keyIndexes.release(bucket);
 		}
 
-		if (maxKeys > 0) {
-			// validate the marker, should start with prefix
-			if (marker != null) {
-				if (!marker.startsWith(prefix)) {
-					logger.info("marker[" + marker
-							+ "] doesn't start with prefix[" + prefix
-							+ "], ignoring marker");
-					marker = null;
-				}
-			}
+		return listing;
+	}
 
-			TreeSet<String> orderedKeys = new TreeSet<String>(keys.keySet());
-			Iterator<String> objectKeys = orderedKeys.iterator();
-
-			if (marker != null) {
-				// skip to key starting with marker
-				while (objectKeys.hasNext()) {
-					if (objectKeys.next().equals(marker)) {
-						if (logger.isDebugEnabled()) {
-							logger.debug("Found marker key: " + marker);
-						}
-						// skip the marker
-						if (objectKeys.hasNext()) {
-							key = objectKeys.next();
-							if (logger.isDebugEnabled()) {
-								logger.debug("Key after marker: " + key);
-							}
-						}
-						break;
-					}
-				}
+	/**
+	 * Fill in a page of a listing from a key index.
+	 */
+	private void list(KeyIndex keys, ObjectListing listing, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys)
+			throws DataAccessException {
+		String bucket = listing.getBucket();
+		int prefixLength = prefix.length();
+		KeyIndexEntry entry;
+		String key;
+		String commonPrefix;
+
+		if (maxKeys > 0) {
+			Iterator<KeyIndexEntry> objectKeys;
+
+			if ((position == null) || (position.getKey().compareTo(prefix) < 0)) {
+				// seek to the first key starting with prefix
+				objectKeys = keys.iterator(prefix, true);
+			} else if (position.getSeek() == ContinuationToken.SEEK_AFTER_PREFIX) {
+				// the common prefix was listed by an earlier request
+				objectKeys = iteratorAfter(keys, position.getKey());
 			} else {
-				// skip to key starting with prefix
-				while (objectKeys.hasNext()) {
-					key = objectKeys.next();
-					if (key.startsWith(prefix)) {
-						if (logger.isDebugEnabled()) {
-							logger.debug("Found key with prefix [" + prefix
-									+ "]: " + key);
-						}
-						break;
-					}
-				}
+				objectKeys = keys.iterator(position.getKey(), position
+						.getSeek() == ContinuationToken.SEEK_AT);
 			}
 
-			while ((key != null) && (key.startsWith(prefix))) {
+			while (objectKeys.hasNext()) {
+				entry = objectKeys.next();
+				key = entry.getKey();
 
-				if (results >= maxKeys) {
-					truncated = true;
+				// restrict to results that begin with the prefix
+				if (!key.startsWith(prefix)) {
 					break;
 				}
 
-				// valid result
-				o = intLoadS3Object(keys, bucket, key);
+				if (listing.size() >= maxKeys) {
+					listing.setTruncated(true);
+					break;
+				}
 
 				// is it a content or a common prefix?
-				processed = false;
-				if (delimiter != null) {
-					key = o.getKey();
-					if ((delimiterIndex = key.indexOf(delimiter, prefixLength)) != -1) {
-						// include the delimiter in the common
-						// prefix
-						currentPrefix = key.substring(0, delimiterIndex
-								+ delimiter.length());
-						if (currentPrefix.equals(commonPrefix)) {
-							// skip common prefix
-							processed = true;
-						} else {
-							// new common prefix
-							commonPrefix = currentPrefix;
-							commonPrefixes.add(commonPrefix);
-							++results;
-							processed = true;
-						}
+				commonPrefix = KeyRange.commonPrefix(key, prefixLength,
+						delimiter);
+				if (commonPrefix != null) {
+					listing.addCommonPrefix(commonPrefix);
+
+					// seek past the keys rolled up into the common prefix
+					objectKeys = iteratorAfter(keys, commonPrefix);
+				} else {
+					if (!entry.hasSummary()) {
+						// indexed by an earlier version, load the object
+						entry = new KeyIndexEntry(entry.getFile(),
+								intLoadS3Object(keys, bucket, key));
 					}
-				}
-				if (!processed) {
 					if (logger.isDebugEnabled()) {
-						logger.debug("Found a content key: " + o);
+						logger.debug("Found a content key: " + key);
 					}
-					contents.add(o);
-					++results;
-					processed = true;
-				}
-
-				if (objectKeys.hasNext()) {
-					key = objectKeys.next();
-				} else {
-					key = null;
+					listing.addContent(entry.toSummary());
 				}
 			}
 		}
-
-		// generate XML from results
-
-		StringBuffer buffer = new StringBuffer();
-
-		buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-		buffer
-				.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
-		buffer.append("<Name>").append(bucket).append("</Name>");
-		if (prefix.equals("")) {
-			buffer.append("<Prefix/>");
-		} else {
-			buffer.append("<Prefix>").append(prefix).append("</Prefix>");
-		}
-		if ((marker == null) || (marker.equals(""))) {
-			buffer.append("<Marker/>");
-		} else {
-			buffer.append("<Marker>").append(marker).append("</Marker>");
-		}
-		buffer.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
-		if (delimiter == null) {
-			buffer.append("<Delimiter/>");
-		} else {
-			buffer.append("<Delimiter>").append(delimiter).append(
-					"</Delimiter>");
-			// next marker is last key
-			if (results > 0) {
-				buffer.append("<NextMarker>").append(o.getKey()).append(
-						"</NextMarker>");
-			}
-		}
-		buffer.append("<IsTruncated>").append(truncated).append(
-				"</IsTruncated>");
-
-		// print out contents
-		for (S3Object s3Object : contents) {
-			buffer.append("<Contents>");
-			buffer.append("<Key>").append(s3Object.getKey()).append("</Key>");
-			buffer.append("<LastModified>").append(
-					iso8601.format(s3Object.getLastModified())).append(
-					"</LastModified>");
-			buffer.append("<ETag>\"").append(s3Object.getETag()).append(
-					"\"</ETag>");
-			buffer.append("<Size>").append(s3Object.getContentLength()).append(
-					"</Size>");
-			buffer.append("<Owner>");
-			Acp acp = s3Object.getAcp();
-			CanonicalUser owner = acp.getOwner();
-			buffer.append("<ID>").append(owner.getId()).append("</ID>");
-			buffer.append("<DisplayName>").append(owner.getDisplayName())
-					.append("</DisplayName>");
-			buffer.append("</Owner>");
-			buffer.append("<StorageClass>STANDARD</StorageClass>");
-			buffer.append("</Contents>");
-		}
-
-		// print common prefixes
-		for (Iterator<String> iter = commonPrefixes.iterator(); iter.hasNext();) {
-			buffer.append("<CommonPrefixes>");
-			buffer.append("<Prefix>").append((String) iter.next()).append(
-					"</Prefix>");
-			buffer.append("</CommonPrefixes>");
-		}
-
-		buffer.append("</ListBucketResult>");
-
-		return buffer.toString();
 	}
 
 	/**
@@ -458,75 +543,82 @@ public class FileS3ObjectDao extends FileBase implements S3ObjectDao {
 		return buffer;
 	}
 
-	@SuppressWarnings("unchecked")
-	private Map<String, String> retrieveKeyIndex(String bucket, boolean create)
-			throws IOException {
-		File serializedKeyIndex;
-		FileInputStream fis = null;
-		ObjectInputStream in = null;
-		HashMap<String, String> keys = null;
-
-		serializedKeyIndex = new File(generateMetaStoragePath().append(bucket)
-				.append(fileSeparator).toString(), "keys" + EXTENSION);
-
+	/**
+	 * Get the key index of a bucket, opening it if it is not resident. The
+	 * index is pinned, and must be released with
+	 * <code>keyIndexes.release(bucket)</code> once used.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The key index of the bucket.
+	 * @throws DataAccessResourceFailureException
+	 *             Unable to open the key index.
+	 */
+	protected KeyIndex acquireKeyIndex(String bucket)
+			throws DataAccessException {
 		try {
-			fis = new FileInputStream(serializedKeyIndex);
-			in = new ObjectInputStream(fis);
-			keys = (HashMap<String, String>) in.readObject();
-			in.close();
-		} catch (FileNotFoundException e) {
-			// create the key index
-			keys = new HashMap<String, String>();
-			storeKeyIndex(bucket, keys);
+			return keyIndexes.acquire(bucket);
 		} catch (IOException e) {
 			throw new DataAccessResourceFailureException(
-					"Unable to store Bucket: " + bucket, e);
-		} catch (ClassNotFoundException e) {
-			throw new DataAccessResourceFailureException(
-					"Unable to store Bucket: " + bucket, e);
+					"Unable to load the key index for bucket: " + bucket, e);
 		}
+	}
 
-		return keys;
+	/**
+	 * Get the manager of the resident key indexes, for its budget and
+	 * statistics.
+	 * 
+	 * @return The manager of the resident key indexes.
+	 */
+	public KeyIndexManager getKeyIndexManager() {
+		return keyIndexes;
 	}
 
-	private void storeKeyIndex(String bucket, Map<String, String> keys)
-			throws IOException {
-		File bucketDirectory;
-		File serializedKeyIndex;
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
-		File parent;
-
-		bucketDirectory = new File(generateMetaStoragePath().append(bucket)
-				.append(fileSeparator).toString());
-		serializedKeyIndex = new File(bucketDirectory, "keys" + EXTENSION);
-
-		if (keys.isEmpty()) {
-			// delete any existing serialized key index
-			if (serializedKeyIndex.delete()) {
-				// delete named bucket directory, if empty
-				parent = serializedKeyIndex.getParentFile();
-				if (parent.delete()) {
-					// delete 'objects' directory, if empty
-					parent = parent.getParentFile();
-					parent.delete();
-				}
-			}
-		} else {
-			// create bucket meta storage directory if necessary
-			if (!bucketDirectory.exists()) {
-				if (!bucketDirectory.mkdirs()) {
-					throw new IOException(
-							"Could not create objects meta directory: "
-									+ bucketDirectory);
-				}
-			}
+	@Override
+	public void setConfiguration(Configuration configuration) {
+		super.setConfiguration(configuration);
+		keyIndexes.setMaxBytes(configuration.getLong(
+				CONFIG_KEY_INDEX_MAX_BYTES, KeyIndexManager.DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 * Iterate over the keys of an index that sort after every key starting
+	 * with a prefix.
+	 * 
+	 * @param keys
+	 *            The key index.
+	 * @param prefix
+	 *            The prefix to skip.
+	 * @return An iterator starting after the keys starting with
+	 *         <code>prefix</code>.
+	 */
+	private Iterator<KeyIndexEntry> iteratorAfter(KeyIndex keys, String prefix) {
+		String end = KeyRange.prefixEnd(prefix);
 
-			// persist the key index
-			fos = new FileOutputStream(serializedKeyIndex, false);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(keys);
-			out.close();
+		if (end == null) {
+			return Collections.<KeyIndexEntry> emptyList().iterator();
 		}
+
+		return keys.iterator(end, true);
+	}
+
+	/**
+	 * Get the write lock of a bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The lock serializing the writers of the bucket.
+	 */
+	private Object writeLock(String bucket) {
+		return writeLocks[(bucket.hashCode() & 0x7fffffff) % writeLocks.length];
+	}
+
+	/**
+	 * Checkpoint and close all the resident key indexes. Called when the
+	 * application is shut down, so the next start doesn't need to replay the
+	 * journals.
+	 */
+	public void destroy() {
+		keyIndexes.destroy();
 	}
 }
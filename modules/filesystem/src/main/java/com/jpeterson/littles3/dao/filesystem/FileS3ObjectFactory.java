@@ -0,0 +1,61 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.net.URL;
+
+import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.bo.MultipartFileS3Object;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.dao.codec.S3ObjectFactory;
+
+/**
+ * Creates <code>FileS3Object</code>s for the <code>MetadataCodec</code>.
+ * 
+ * @author Jesse Peterson
+ */
+public class FileS3ObjectFactory implements S3ObjectFactory {
+	private static final FileS3ObjectFactory instance = new FileS3ObjectFactory();
+
+	/**
+	 * Get the shared instance.
+	 * 
+	 * @return The shared instance.
+	 */
+	public static FileS3ObjectFactory getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Create a <code>FileS3Object</code>, or a
+	 * <code>MultipartFileS3Object</code> if the storage URL is a manifest.
+	 * 
+	 * @param bucket
+	 *            The bucket of the object.
+	 * @param key
+	 *            The key of the object.
+	 * @param storageUrl
+	 *            The <code>file</code> URL of the object data.
+	 * @return The object.
+	 */
+	public S3Object createS3Object(String bucket, String key, URL storageUrl) {
+		if (MultipartFileS3Object.isManifest(storageUrl)) {
+			return new MultipartFileS3Object(bucket, key, storageUrl);
+		}
+		return new FileS3Object(bucket, key, storageUrl);
+	}
+}
@@ -0,0 +1,1470 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.Usage;
+
+/**
+ * The index of the keys in a bucket, mapping each key to a
+ * <code>KeyIndexEntry</code>: the relative path of its serialized object file
+ * and the summary of the object needed to list it.
+ * <p>
+ * The keys are stored on disk in a sorted run, <code>keys.idx</code>: blocks
+ * of key/value entries in key order, followed by a sparse index holding the
+ * first key and the offset of each block. Only the sparse index is held in
+ * memory, so finding a key, or the first key at or after a marker or prefix,
+ * is a binary search of the sparse index and a read of one block.
+ * </p>
+ * <p>
+ * Changes are held in a sorted in-memory table, overlaying the run, and are
+ * appended to a journal, <code>keys.journal</code>, so a change costs one
+ * small append. Every <code>checkpointInterval</code> changes, the run and the
+ * in-memory table are merged into a new run and the journal is truncated.
+ * Opening the index loads the sparse index and replays the journal.
+ * </p>
+ * <p>
+ * Each journal record is framed by its length and a CRC-32 of its content. A
+ * record torn by a crash is detected on replay and truncated from the
+ * journal. Records are idempotent, so replaying a journal that was already
+ * included in a checkpoint is harmless.
+ * </p>
+ * <p>
+ * The index also keeps the usage of the bucket, the number of keys and the
+ * total size of their objects, and optionally the usage of each key prefix up
+ * to <code>usagePrefixDepth</code> levels of <code>/</code>. Usage is
+ * adjusted by each change, from the entry it replaces, so replaying a change
+ * twice leaves it unchanged, and is saved with the run. Objects indexed by an
+ * earlier version, without a summary, count as zero bytes until stored again.
+ * </p>
+ * <p>
+ * A bucket index written by an earlier version, <code>keys.ser</code>, is
+ * converted to a sorted run when opened.
+ * </p>
+ * <p>
+ * Changes are serialized by the index lock, but readers never take it. The
+ * run and the in-memory table are published together as an immutable
+ * <code>Snapshot</code>; a change copies the small table of recent changes and
+ * publishes a new snapshot, so a reader always sees a consistent index, as of
+ * some change, without waiting for a writer.
+ * </p>
+ *
+ * @author Jesse Peterson
+ */
+public class KeyIndex {
+	/**
+	 * Name of the checkpoint file, the sorted run.
+	 */
+	public static final String CHECKPOINT = "keys.idx";
+
+	/**
+	 * Name of the serialized <code>HashMap</code> checkpoint file written by
+	 * earlier versions.
+	 */
+	public static final String LEGACY_CHECKPOINT = "keys" + FileBase.EXTENSION;
+
+	/**
+	 * Name of the journal file.
+	 */
+	public static final String JOURNAL = "keys.journal";
+
+	/**
+	 * Default number of journal records between checkpoints.
+	 */
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+	/**
+	 * Default size, in bytes, of a block of the sorted run.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	private static final int MAGIC = 0x4c534b49;
+
+	private static final int VERSION = 3;
+
+	/**
+	 * Run version holding only the relative path of each key.
+	 */
+	private static final int VERSION_PATH_ONLY = 1;
+
+	/**
+	 * Run version without the usage.
+	 */
+	private static final int VERSION_NO_USAGE = 2;
+
+	/**
+	 * Delimiter of the levels of the key prefixes usage is kept for.
+	 */
+	private static final char USAGE_DELIMITER = '/';
+
+	/**
+	 * Journal operation adding a key with only a relative path.
+	 */
+	private static final byte OP_PUT = 1;
+
+	private static final byte OP_REMOVE = 2;
+
+	private static final byte OP_PUT_ENTRY = 3;
+
+	/**
+	 * Number of recent changes copied on each change before they are folded
+	 * into the table of older changes.
+	 */
+	private static final int RECENT_LIMIT = 256;
+
+	/**
+	 * Number of times a reader retries when a writer closes the run under it.
+	 */
+	private static final int READ_ATTEMPTS = 3;
+
+	/**
+	 * Estimated memory, in bytes, of an index apart from its tables: the
+	 * object itself, its snapshot and the cached block of the run.
+	 */
+	private static final int INDEX_BYTES = 512 + 2 * DEFAULT_BLOCK_SIZE;
+
+	/**
+	 * Estimated memory, in bytes, of a change held in memory: the table
+	 * entry, the key and its <code>KeyIndexEntry</code>.
+	 */
+	private static final int CHANGE_BYTES = 256;
+
+	/**
+	 * Estimated memory, in bytes, of a block in the sparse index, apart from
+	 * the characters of its first key.
+	 */
+	private static final int BLOCK_BYTES = 64;
+
+	/**
+	 * Estimated memory, in bytes, of the usage of a key prefix.
+	 */
+	private static final int PREFIX_USAGE_BYTES = 128;
+
+	private Log logger;
+
+	private File directory;
+
+	private volatile Snapshot snapshot = new Snapshot(null,
+			new TreeMap<String, KeyIndexEntry>(),
+			new TreeMap<String, KeyIndexEntry>(), 0, 0);
+
+	/**
+	 * Usage of each key prefix. Changed only under the index lock, and
+	 * replaced as a whole when loaded.
+	 */
+	private volatile ConcurrentHashMap<String, Usage> prefixUsage = new ConcurrentHashMap<String, Usage>();
+
+	private int usagePrefixDepth = 0;
+
+	private FileOutputStream journal;
+
+	private int journalRecords = 0;
+
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private boolean sync = false;
+
+	/**
+	 * Create a key index. The index must be opened with <code>open()</code>
+	 * before use.
+	 *
+	 * @param directory
+	 *            The bucket meta directory holding the index files.
+	 */
+	public KeyIndex(File directory) {
+		logger = LogFactory.getLog(this.getClass());
+		this.directory = directory;
+	}
+
+	/**
+	 * Load the sparse index of the sorted run and replay the journal.
+	 *
+	 * @throws IOException
+	 *             Unable to read the index.
+	 */
+	public synchronized void open() throws IOException {
+		File checkpoint = new File(directory, CHECKPOINT);
+		File legacy = new File(directory, LEGACY_CHECKPOINT);
+		boolean convert = false;
+		Run run;
+
+		prefixUsage = new ConcurrentHashMap<String, Usage>();
+		if (checkpoint.exists()) {
+			run = new Run(checkpoint);
+			if (run.hasUsage(usagePrefixDepth)) {
+				snapshot = new Snapshot(run,
+						new TreeMap<String, KeyIndexEntry>(),
+						new TreeMap<String, KeyIndexEntry>(), run.getCount(),
+						run.getBytes());
+				prefixUsage = new ConcurrentHashMap<String, Usage>(run
+						.getPrefixUsage());
+			} else {
+				// written by an earlier version, or for another depth
+				snapshot = new Snapshot(run,
+						new TreeMap<String, KeyIndexEntry>(),
+						new TreeMap<String, KeyIndexEntry>(), run.getCount(),
+						countUsage(run));
+				convert = true;
+			}
+			if (legacy.exists()) {
+				// left over from an interrupted conversion
+				legacy.delete();
+			}
+		} else if (legacy.exists()) {
+			loadLegacy(legacy);
+			convert = true;
+		}
+
+		replay();
+
+		if (convert) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Get the entry of a key. Does not wait for writers.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The entry, or <code>null</code> if the key is not in the index.
+	 * @throws IOException
+	 *             Unable to read the sorted run.
+	 */
+	public KeyIndexEntry get(String key) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return snapshot.get(key);
+			} catch (ClosedChannelException e) {
+				if (attempt == READ_ATTEMPTS) {
+					throw e;
+				}
+				awaitWriter();
+			}
+		}
+	}
+
+	/**
+	 * Add or replace a key.
+	 *
+	 * @param entry
+	 *            The entry of the key.
+	 * @throws IOException
+	 *             Unable to write the journal.
+	 */
+	public synchronized void put(KeyIndexEntry entry) throws IOException {
+		append(OP_PUT_ENTRY, entry.getKey(), entry);
+		applyPut(entry);
+		checkpointIfDue();
+	}
+
+	/**
+	 * Remove a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The entry the key mapped to, or <code>null</code> if the key was
+	 *         not in the index.
+	 * @throws IOException
+	 *             Unable to write the journal.
+	 */
+	public synchronized KeyIndexEntry remove(String key) throws IOException {
+		KeyIndexEntry value = get(key);
+
+		if (value == null) {
+			return null;
+		}
+
+		if (snapshot.count == 1) {
+			// last key, remove the index altogether
+			delete();
+			return value;
+		}
+
+		append(OP_REMOVE, key, null);
+		applyRemove(key);
+		checkpointIfDue();
+
+		return value;
+	}
+
+	/**
+	 * Iterate over the entries in the index, in key order, starting at a key.
+	 * The iterator seeks to its starting point and reads the run a block at a
+	 * time, so iterating over a page of keys costs time proportional to the
+	 * page, not to the size of the index.
+	 * <p>
+	 * The iterator is weakly consistent: it never takes the index lock, and
+	 * may or may not reflect changes made after it was created.
+	 * </p>
+	 *
+	 * @param from
+	 *            The key to start at. <code>null</code> starts at the first
+	 *            key.
+	 * @param inclusive
+	 *            <code>True</code> to include <code>from</code> itself, if it
+	 *            is in the index, <code>false</code> to start after it.
+	 * @return An iterator over the entries, in key order.
+	 */
+	public Iterator<KeyIndexEntry> iterator(String from, boolean inclusive) {
+		if (from == null) {
+			from = "";
+		} else if (!inclusive) {
+			from = successor(from);
+		}
+
+		return new KeyIterator(from);
+	}
+
+	/**
+	 * Get the number of keys in the index.
+	 *
+	 * @return The number of keys in the index.
+	 */
+	public int size() {
+		return snapshot.count;
+	}
+
+	/**
+	 * Get the usage of the bucket: the number of keys and the total size of
+	 * their objects. Does not wait for writers.
+	 *
+	 * @return The usage of the bucket.
+	 */
+	public Usage getUsage() {
+		Snapshot current = snapshot;
+
+		return new Usage(current.count, current.bytes);
+	}
+
+	/**
+	 * Get the usage of each key prefix, up to
+	 * <code>usagePrefixDepth</code> levels. Does not wait for writers.
+	 *
+	 * @return The usage of each key prefix holding keys, by prefix. Empty if
+	 *         <code>usagePrefixDepth</code> is <code>0</code>.
+	 */
+	public SortedMap<String, Usage> getPrefixUsage() {
+		return new TreeMap<String, Usage>(prefixUsage);
+	}
+
+	/**
+	 * Estimate the memory held by the index: the sparse index of the sorted
+	 * run, the changes not yet merged into it and the usage of the key
+	 * prefixes. Does not wait for writers.
+	 *
+	 * @return The estimated memory held by the index, in bytes.
+	 */
+	public long getResidentBytes() {
+		Snapshot current = snapshot;
+		long bytes = INDEX_BYTES + (long) prefixUsage.size()
+				* PREFIX_USAGE_BYTES;
+
+		if (current.run != null) {
+			bytes += current.run.getResidentBytes();
+		}
+
+		return bytes + (long) (current.frozen.size() + current.recent.size())
+				* CHANGE_BYTES;
+	}
+
+	/**
+	 * Determine if the index holds changes in memory that are only in the
+	 * journal, not yet merged into the sorted run by a checkpoint.
+	 *
+	 * @return <code>True</code> if there are changes to checkpoint.
+	 */
+	public boolean isDirty() {
+		Snapshot current = snapshot;
+
+		return !current.frozen.isEmpty() || !current.recent.isEmpty();
+	}
+
+	/**
+	 * Merge the changes into a new sorted run and truncate the journal. The
+	 * run is written to a temporary file and renamed, so a crash leaves either
+	 * the old or the new run.
+	 *
+	 * @throws IOException
+	 *             Unable to write the checkpoint.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		File checkpoint = new File(directory, CHECKPOINT);
+		File temporary = new File(directory, CHECKPOINT + ".tmp");
+		Snapshot current = snapshot;
+		int written;
+		Run run;
+
+		closeJournal();
+
+		if (current.count == 0) {
+			delete();
+			return;
+		}
+
+		if (current.frozen.isEmpty() && current.recent.isEmpty()
+				&& (current.run != null)
+				&& current.run.hasUsage(usagePrefixDepth)) {
+			// nothing to merge
+			new File(directory, JOURNAL).delete();
+			journalRecords = 0;
+			return;
+		}
+
+		makeDirectory();
+		written = writeRun(temporary, current);
+
+		if (!temporary.renameTo(checkpoint)) {
+			// some platforms will not rename over an existing, or open, file
+			if (current.run != null) {
+				current.run.retire();
+			}
+			checkpoint.delete();
+			if (!temporary.renameTo(checkpoint)) {
+				throw new IOException("Unable to rename " + temporary + " to "
+						+ checkpoint);
+			}
+		}
+
+		run = new Run(checkpoint);
+		snapshot = new Snapshot(run, new TreeMap<String, KeyIndexEntry>(),
+				new TreeMap<String, KeyIndexEntry>(), written, run.getBytes());
+		prefixUsage = new ConcurrentHashMap<String, Usage>(run
+				.getPrefixUsage());
+
+		// readers still on the old run retry on the new snapshot
+		if (current.run != null) {
+			current.run.retire();
+		}
+
+		new File(directory, LEGACY_CHECKPOINT).delete();
+		new File(directory, JOURNAL).delete();
+		journalRecords = 0;
+	}
+
+	/**
+	 * Close the journal and the sorted run. The index can still be used; the
+	 * files are reopened when needed.
+	 *
+	 * @throws IOException
+	 *             Unable to close the files.
+	 */
+	public synchronized void close() throws IOException {
+		Run run = snapshot.run;
+
+		closeJournal();
+		if (run != null) {
+			run.close();
+		}
+	}
+
+	/**
+	 * Get the number of journal records between checkpoints.
+	 *
+	 * @return The number of journal records between checkpoints.
+	 */
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Set the number of journal records between checkpoints. This also bounds
+	 * the number of changes held in memory.
+	 *
+	 * @param checkpointInterval
+	 *            The number of journal records between checkpoints.
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Get the size of a block of the sorted run.
+	 *
+	 * @return The size of a block of the sorted run, in bytes.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Set the size of a block of the sorted run. Smaller blocks make a lookup
+	 * read less, at the cost of a larger sparse index. Only affects runs
+	 * written from now on.
+	 *
+	 * @param blockSize
+	 *            The size of a block of the sorted run, in bytes.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Determine if each journal record is forced to the storage device.
+	 *
+	 * @return <code>True</code> if each journal record is forced to the
+	 *         storage device.
+	 */
+	public boolean isSync() {
+		return sync;
+	}
+
+	/**
+	 * Set if each journal record is forced to the storage device. Otherwise a
+	 * record is handed to the operating system, which survives a process
+	 * crash but not a power failure.
+	 *
+	 * @param sync
+	 *            <code>True</code> to force each journal record to the
+	 *            storage device.
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Get the number of levels of key prefixes usage is kept for.
+	 *
+	 * @return The number of levels of key prefixes usage is kept for.
+	 */
+	public int getUsagePrefixDepth() {
+		return usagePrefixDepth;
+	}
+
+	/**
+	 * Set the number of levels of key prefixes usage is kept for. With a depth
+	 * of 2, the key <code>a/b/c</code> counts towards <code>a/</code> and
+	 * <code>a/b/</code>. <code>0</code>, the default, keeps only the usage
+	 * of the bucket. Must be set before the index is opened.
+	 *
+	 * @param usagePrefixDepth
+	 *            The number of levels of key prefixes usage is kept for.
+	 */
+	public void setUsagePrefixDepth(int usagePrefixDepth) {
+		this.usagePrefixDepth = usagePrefixDepth;
+	}
+
+	/**
+	 * Get the smallest key that sorts after a key.
+	 */
+	private static String successor(String key) {
+		return key + '\u0000';
+	}
+
+	/**
+	 * Get the entry of the first key in the index at or after a key. Does not
+	 * wait for writers.
+	 *
+	 * @param from
+	 *            The key to start at.
+	 * @return The entry of the first key at or after <code>from</code>, or
+	 *         <code>null</code> if there is none.
+	 */
+	private KeyIndexEntry ceiling(String from) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return snapshot.ceiling(from);
+			} catch (ClosedChannelException e) {
+				if (attempt == READ_ATTEMPTS) {
+					throw e;
+				}
+				awaitWriter();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a writer that closed the run under a reader to publish the
+	 * next snapshot.
+	 */
+	private synchronized void awaitWriter() {
+		// holding the index lock is enough
+	}
+
+	private void applyPut(KeyIndexEntry entry) throws IOException {
+		Snapshot current = snapshot;
+		KeyIndexEntry replaced = current.get(entry.getKey());
+		int count = current.count;
+		long bytes = current.bytes + entry.getSize();
+
+		if (replaced == null) {
+			++count;
+		} else {
+			bytes -= replaced.getSize();
+			countPrefixUsage(prefixUsage, replaced, -1);
+		}
+		countPrefixUsage(prefixUsage, entry, 1);
+		publish(current, entry.getKey(), entry, count, bytes);
+	}
+
+	private void applyRemove(String key) throws IOException {
+		Snapshot current = snapshot;
+		KeyIndexEntry removed = current.get(key);
+
+		if (removed == null) {
+			return;
+		}
+		countPrefixUsage(prefixUsage, removed, -1);
+		// mask the key in the run until the next checkpoint
+		publish(current, key, null, current.count - 1, current.bytes
+				- removed.getSize());
+	}
+
+	/**
+	 * Add an entry to, or with a <code>sign</code> of <code>-1</code> remove
+	 * it from, the usage of the key prefixes it starts with.
+	 */
+	private void countPrefixUsage(Map<String, Usage> usage,
+			KeyIndexEntry entry, int sign) {
+		String key = entry.getKey();
+		int end = -1;
+		String prefix;
+		Usage prefixTotal;
+
+		for (int level = 0; level < usagePrefixDepth; level++) {
+			end = key.indexOf(USAGE_DELIMITER, end + 1);
+			if (end == -1) {
+				return;
+			}
+
+			prefix = key.substring(0, end + 1);
+			prefixTotal = usage.get(prefix);
+			if (prefixTotal == null) {
+				prefixTotal = Usage.EMPTY;
+			}
+			prefixTotal = prefixTotal.add(sign, sign * entry.getSize());
+			if (prefixTotal.isEmpty()) {
+				usage.remove(prefix);
+			} else {
+				usage.put(prefix, prefixTotal);
+			}
+		}
+	}
+
+	/**
+	 * Count the usage of the keys of a run, written by an earlier version or
+	 * for another usage prefix depth. Returns the total size of the objects
+	 * and fills in the usage of the key prefixes.
+	 */
+	private long countUsage(Run run) throws IOException {
+		Run.Cursor stored = run.new Cursor();
+		long bytes = 0;
+
+		while (stored.next()) {
+			bytes += stored.value.getSize();
+			countPrefixUsage(prefixUsage, stored.value, 1);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Publish a snapshot with one more change. Copies the recent changes,
+	 * folding them into a copy of the older changes when there are enough of
+	 * them, so a change copies a small table most of the time.
+	 */
+	private void publish(Snapshot current, String key, KeyIndexEntry value,
+			int count, long bytes) {
+		TreeMap<String, KeyIndexEntry> frozen = current.frozen;
+		TreeMap<String, KeyIndexEntry> recent = new TreeMap<String, KeyIndexEntry>(
+				current.recent);
+
+		recent.put(key, value);
+		if (recent.size() >= RECENT_LIMIT) {
+			frozen = new TreeMap<String, KeyIndexEntry>(frozen);
+			frozen.putAll(recent);
+			recent = new TreeMap<String, KeyIndexEntry>();
+		}
+
+		snapshot = new Snapshot(current.run, frozen, recent, count, bytes);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void loadLegacy(File legacy) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+				new FileInputStream(legacy)));
+		HashMap<String, String> keys;
+		TreeMap<String, KeyIndexEntry> entries = new TreeMap<String, KeyIndexEntry>();
+
+		try {
+			keys = (HashMap<String, String>) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to read key index checkpoint: "
+					+ legacy + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+
+		for (Map.Entry<String, String> key : keys.entrySet()) {
+			KeyIndexEntry entry = new KeyIndexEntry(key.getKey(), key
+					.getValue());
+
+			entries.put(key.getKey(), entry);
+			countPrefixUsage(prefixUsage, entry, 1);
+		}
+		// the objects were not summarized, their sizes are unknown
+		snapshot = new Snapshot(null, entries,
+				new TreeMap<String, KeyIndexEntry>(), entries.size(), 0);
+	}
+
+	/**
+	 * Write the merge of the run and the changes of a snapshot to a new run,
+	 * followed by the usage counted from the keys written. Returns the number
+	 * of keys written.
+	 */
+	private int writeRun(File file, Snapshot current) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				fos));
+		ArrayList<String> firstKeys = new ArrayList<String>();
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		TreeMap<String, KeyIndexEntry> merged = new TreeMap<String, KeyIndexEntry>(
+				current.frozen);
+		Iterator<Map.Entry<String, KeyIndexEntry>> changes;
+		Map.Entry<String, KeyIndexEntry> change;
+		Run.Cursor stored = (current.run == null) ? null : current.run.new Cursor();
+		boolean hasStored = (stored != null) && stored.next();
+		long blockStart = -1;
+		long indexOffset;
+		int written = 0;
+		long bytes = 0;
+		TreeMap<String, Usage> usage = new TreeMap<String, Usage>();
+		int compare;
+		String key;
+		KeyIndexEntry value;
+
+		merged.putAll(current.recent);
+		changes = merged.entrySet().iterator();
+		change = changes.hasNext() ? changes.next() : null;
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			while (hasStored || (change != null)) {
+				if (!hasStored) {
+					compare = 1;
+				} else if (change == null) {
+					compare = -1;
+				} else {
+					compare = stored.key.compareTo(change.getKey());
+				}
+
+				if (compare < 0) {
+					key = stored.key;
+					value = stored.value;
+					hasStored = stored.next();
+				} else {
+					if (compare == 0) {
+						// replaced or removed
+						hasStored = stored.next();
+					}
+					key = change.getKey();
+					value = change.getValue();
+					change = changes.hasNext() ? changes.next() : null;
+					if (value == null) {
+						continue;
+					}
+				}
+
+				if ((blockStart < 0) || (out.size() - blockStart >= blockSize)) {
+					blockStart = out.size();
+					firstKeys.add(key);
+					offsets.add(new Long(blockStart));
+				}
+				out.writeUTF(key);
+				value.write(out);
+				++written;
+				bytes += value.getSize();
+				countPrefixUsage(usage, value, 1);
+			}
+
+			indexOffset = out.size();
+			out.writeInt(firstKeys.size());
+			for (int i = 0; i < firstKeys.size(); i++) {
+				out.writeUTF(firstKeys.get(i));
+				out.writeLong(offsets.get(i).longValue());
+			}
+			out.writeInt(written);
+			out.writeLong(bytes);
+			out.writeInt(usagePrefixDepth);
+			out.writeInt(usage.size());
+			for (Map.Entry<String, Usage> prefix : usage.entrySet()) {
+				out.writeUTF(prefix.getKey());
+				out.writeLong(prefix.getValue().getObjects());
+				out.writeLong(prefix.getValue().getBytes());
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (written != current.count) {
+			logger.warn("Key index " + directory + " counted " + current.count
+					+ " keys, wrote " + written);
+		}
+		if (bytes != current.bytes) {
+			logger.warn("Key index " + directory + " counted " + current.bytes
+					+ " bytes, wrote " + bytes);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Replay the journal on top of the checkpoint, truncating any torn or
+	 * corrupt tail.
+	 */
+	private void replay() throws IOException {
+		File journalFile = new File(directory, JOURNAL);
+		DataInputStream in;
+		long valid = 0;
+		int length;
+		int crc;
+		byte[] record;
+		CRC32 checksum = new CRC32();
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(journalFile)));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+
+		journalRecords = 0;
+		try {
+			while (true) {
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				try {
+					if ((length <= 0) || (length > 1024 * 1024)) {
+						throw new IOException("Invalid record length: "
+								+ length);
+					}
+					crc = in.readInt();
+					record = new byte[length];
+					in.readFully(record);
+					checksum.reset();
+					checksum.update(record);
+					if ((int) checksum.getValue() != crc) {
+						throw new IOException("Record checksum mismatch");
+					}
+				} catch (IOException e) {
+					logger.warn("Truncating key index journal " + journalFile
+							+ " at " + valid + ": " + e.getMessage());
+					break;
+				}
+
+				apply(record);
+				valid += 8 + length;
+				++journalRecords;
+			}
+		} finally {
+			in.close();
+		}
+
+		if (valid < journalFile.length()) {
+			RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+			try {
+				file.setLength(valid);
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record));
+		byte op = in.readByte();
+		String key = in.readUTF();
+
+		if (op == OP_PUT_ENTRY) {
+			applyPut(KeyIndexEntry.read(key, in));
+		} else if (op == OP_PUT) {
+			applyPut(new KeyIndexEntry(key, in.readUTF()));
+		} else if (op == OP_REMOVE) {
+			applyRemove(key);
+		} else {
+			throw new IOException("Unknown key index journal operation: "
+					+ op);
+		}
+	}
+
+	private void append(byte op, String key, KeyIndexEntry value)
+			throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(64 + key
+				.length());
+		DataOutputStream out = new DataOutputStream(record);
+		CRC32 checksum = new CRC32();
+		byte[] content;
+
+		// content
+		out.writeByte(op);
+		out.writeUTF(key);
+		if (value != null) {
+			value.write(out);
+		}
+		out.flush();
+		content = record.toByteArray();
+		checksum.update(content);
+
+		// frame
+		record.reset();
+		out.writeInt(content.length);
+		out.writeInt((int) checksum.getValue());
+		out.write(content);
+		out.flush();
+
+		if (journal == null) {
+			makeDirectory();
+			journal = new FileOutputStream(new File(directory, JOURNAL), true);
+		}
+
+		// a single write, so a crash can only tear the last record
+		journal.write(record.toByteArray());
+		if (sync) {
+			journal.getFD().sync();
+		}
+		++journalRecords;
+	}
+
+	private void checkpointIfDue() throws IOException {
+		if (journalRecords >= checkpointInterval) {
+			checkpoint();
+		}
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal != null) {
+			try {
+				journal.close();
+			} finally {
+				journal = null;
+			}
+		}
+	}
+
+	private void makeDirectory() throws IOException {
+		if (!directory.exists()) {
+			if (!directory.mkdirs()) {
+				throw new IOException("Could not create objects meta directory: "
+						+ directory);
+			}
+		}
+	}
+
+	/**
+	 * Delete the index files, and the bucket meta directory and its parent if
+	 * they are empty.
+	 */
+	private void delete() throws IOException {
+		Run run = snapshot.run;
+		File parent;
+
+		closeJournal();
+		snapshot = new Snapshot(null, new TreeMap<String, KeyIndexEntry>(),
+				new TreeMap<String, KeyIndexEntry>(), 0, 0);
+		prefixUsage = new ConcurrentHashMap<String, Usage>();
+		if (run != null) {
+			run.retire();
+		}
+		journalRecords = 0;
+		new File(directory, JOURNAL).delete();
+		new File(directory, CHECKPOINT).delete();
+		new File(directory, LEGACY_CHECKPOINT).delete();
+
+		// delete named bucket directory, if empty
+		if (directory.delete()) {
+			// delete 'objects' directory, if empty
+			parent = directory.getParentFile();
+			parent.delete();
+		}
+	}
+
+	/**
+	 * Iterates over the keys by seeking to the successor of the last key
+	 * returned, so it survives changes and checkpoints made while it is in
+	 * use.
+	 */
+	private class KeyIterator implements Iterator<KeyIndexEntry> {
+		private String from;
+
+		private KeyIndexEntry next;
+
+		private boolean fetched = false;
+
+		public KeyIterator(String from) {
+			this.from = from;
+		}
+
+		public boolean hasNext() {
+			if (!fetched) {
+				try {
+					next = ceiling(from);
+				} catch (IOException e) {
+					throw new IllegalStateException("Unable to read key index "
+							+ directory + ": " + e.getMessage());
+				}
+				fetched = true;
+			}
+
+			return (next != null);
+		}
+
+		public KeyIndexEntry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			from = successor(next.getKey());
+			fetched = false;
+
+			return next;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * An immutable view of the index: a sorted run, overlaid by the changes
+	 * since it was written. Recent changes take precedence over older changes,
+	 * which take precedence over the run. The tables are never modified once
+	 * published.
+	 */
+	private static class Snapshot {
+		private final Run run;
+
+		private final TreeMap<String, KeyIndexEntry> frozen;
+
+		private final TreeMap<String, KeyIndexEntry> recent;
+
+		private final int count;
+
+		private final long bytes;
+
+		public Snapshot(Run run, TreeMap<String, KeyIndexEntry> frozen,
+				TreeMap<String, KeyIndexEntry> recent, int count, long bytes) {
+			this.run = run;
+			this.frozen = frozen;
+			this.recent = recent;
+			this.count = count;
+			this.bytes = bytes;
+		}
+
+		public KeyIndexEntry get(String key) throws IOException {
+			if (recent.containsKey(key)) {
+				return recent.get(key);
+			}
+			if (frozen.containsKey(key)) {
+				return frozen.get(key);
+			}
+			if (run == null) {
+				return null;
+			}
+
+			return run.get(key);
+		}
+
+		public KeyIndexEntry ceiling(String from) throws IOException {
+			while (true) {
+				String changed = min(firstKey(recent.tailMap(from)),
+						firstKey(frozen.tailMap(from)));
+				KeyIndexEntry stored = (run == null) ? null : run.ceiling(from);
+				KeyIndexEntry value;
+
+				if (changed == null) {
+					return stored;
+				}
+				if ((stored != null) && (stored.getKey().compareTo(changed) < 0)) {
+					return stored;
+				}
+				value = recent.containsKey(changed) ? recent.get(changed)
+						: frozen.get(changed);
+				if (value != null) {
+					return value;
+				}
+
+				// removed, move past it
+				from = successor(changed);
+			}
+		}
+
+		private static String firstKey(SortedMap<String, KeyIndexEntry> map) {
+			return map.isEmpty() ? null : map.firstKey();
+		}
+
+		private static String min(String a, String b) {
+			if (a == null) {
+				return b;
+			}
+			if (b == null) {
+				return a;
+			}
+
+			return (a.compareTo(b) <= 0) ? a : b;
+		}
+	}
+
+	/**
+	 * A sorted run on disk. Holds the sparse index and the most recently read
+	 * block in memory. Safe for concurrent readers: blocks are read with
+	 * positional reads of a shared channel, which is opened when needed.
+	 * Once retired by a checkpoint, the channel is closed and reading the run
+	 * throws <code>ClosedChannelException</code>.
+	 */
+	private static class Run {
+		private final File file;
+
+		private final String[] firstKeys;
+
+		private final long[] offsets;
+
+		private final long indexOffset;
+
+		private final int version;
+
+		private final int count;
+
+		private final long bytes;
+
+		/**
+		 * The usage prefix depth the usage was counted for, or
+		 * <code>-1</code> if the run has no usage.
+		 */
+		private final int usagePrefixDepth;
+
+		private final Map<String, Usage> prefixUsage = new HashMap<String, Usage>();
+
+		private final long residentBytes;
+
+		private RandomAccessFile raf;
+
+		private boolean retired = false;
+
+		private volatile Block cached;
+
+		public Run(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			long length;
+			byte[] index;
+			DataInputStream in;
+
+			this.file = file;
+			try {
+				length = raf.length();
+
+				if ((length < 24) || (raf.readInt() != MAGIC)) {
+					throw new IOException("Not a key index: " + file);
+				}
+				version = raf.readInt();
+				if ((version != VERSION) && (version != VERSION_NO_USAGE)
+						&& (version != VERSION_PATH_ONLY)) {
+					throw new IOException("Unsupported key index version: "
+							+ file);
+				}
+
+				raf.seek(length - 12);
+				indexOffset = raf.readLong();
+				if ((raf.readInt() != MAGIC) || (indexOffset < 8)
+						|| (indexOffset > length - 16)) {
+					throw new IOException("Corrupt key index: " + file);
+				}
+
+				index = new byte[(int) (length - 12 - indexOffset)];
+				raf.seek(indexOffset);
+				raf.readFully(index);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+			this.raf = raf;
+
+			in = new DataInputStream(new ByteArrayInputStream(index));
+			firstKeys = new String[in.readInt()];
+			offsets = new long[firstKeys.length];
+			for (int i = 0; i < firstKeys.length; i++) {
+				firstKeys[i] = in.readUTF();
+				offsets[i] = in.readLong();
+			}
+			count = in.readInt();
+			if (version >= VERSION) {
+				bytes = in.readLong();
+				usagePrefixDepth = in.readInt();
+				for (int i = in.readInt(); i > 0; i--) {
+					prefixUsage.put(in.readUTF(), new Usage(in.readLong(), in
+							.readLong()));
+				}
+			} else {
+				bytes = 0;
+				usagePrefixDepth = -1;
+			}
+
+			long estimate = (long) prefixUsage.size() * PREFIX_USAGE_BYTES;
+			for (int i = 0; i < firstKeys.length; i++) {
+				estimate += BLOCK_BYTES + 2 * firstKeys[i].length();
+			}
+			residentBytes = estimate;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public Map<String, Usage> getPrefixUsage() {
+			return prefixUsage;
+		}
+
+		/**
+		 * Get the estimated memory held by the sparse index and the usage of
+		 * the run, in bytes.
+		 */
+		public long getResidentBytes() {
+			return residentBytes;
+		}
+
+		/**
+		 * Determine if the run holds the usage, counted for a usage prefix
+		 * depth.
+		 */
+		public boolean hasUsage(int depth) {
+			return usagePrefixDepth == depth;
+		}
+
+		public KeyIndexEntry get(String key) throws IOException {
+			int i = findBlock(key);
+			Block block;
+			int j;
+
+			if ((i < 0) || (key.compareTo(firstKeys[i]) < 0)) {
+				return null;
+			}
+
+			block = readBlock(i);
+			j = Arrays.binarySearch(block.keys, key);
+
+			return (j >= 0) ? block.values[j] : null;
+		}
+
+		public KeyIndexEntry ceiling(String from) throws IOException {
+			int i = findBlock(from);
+			Block block;
+			int j;
+
+			if (i < 0) {
+				return null;
+			}
+
+			block = readBlock(i);
+			j = Arrays.binarySearch(block.keys, from);
+			if (j < 0) {
+				j = -(j + 1);
+			}
+			if (j < block.keys.length) {
+				return block.values[j];
+			}
+			if (i + 1 < firstKeys.length) {
+				return readBlock(i + 1).values[0];
+			}
+
+			return null;
+		}
+
+		/**
+		 * Find the last block whose first key is at or before a key, or the
+		 * first block if the key sorts before all the blocks. Returns
+		 * <code>-1</code> if the run is empty.
+		 */
+		private int findBlock(String key) {
+			int i;
+
+			if (firstKeys.length == 0) {
+				return -1;
+			}
+
+			i = Arrays.binarySearch(firstKeys, key);
+			if (i < 0) {
+				i = -(i + 1) - 1;
+			}
+
+			return Math.max(i, 0);
+		}
+
+		private Block readBlock(int i) throws IOException {
+			Block block = cached;
+			long end;
+			ByteBuffer data;
+			FileChannel channel;
+			DataInputStream in;
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<KeyIndexEntry> values = new ArrayList<KeyIndexEntry>();
+			String key;
+
+			if ((block != null) && (block.index == i)) {
+				return block;
+			}
+
+			end = (i + 1 < offsets.length) ? offsets[i + 1] : indexOffset;
+			data = ByteBuffer.allocate((int) (end - offsets[i]));
+			channel = channel();
+			while (data.hasRemaining()) {
+				if (channel.read(data, offsets[i] + data.position()) < 0) {
+					throw new EOFException("Truncated key index: " + file);
+				}
+			}
+
+			in = new DataInputStream(new ByteArrayInputStream(data.array()));
+			while (in.available() > 0) {
+				key = in.readUTF();
+				keys.add(key);
+				if (version == VERSION_PATH_ONLY) {
+					values.add(new KeyIndexEntry(key, in.readUTF()));
+				} else {
+					values.add(KeyIndexEntry.read(key, in));
+				}
+			}
+
+			block = new Block(i, keys.toArray(new String[keys.size()]), values
+					.toArray(new KeyIndexEntry[values.size()]));
+			cached = block;
+
+			return block;
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (retired) {
+				throw new ClosedChannelException();
+			}
+			if (raf == null) {
+				raf = new RandomAccessFile(file, "r");
+			}
+
+			return raf.getChannel();
+		}
+
+		public synchronized void close() throws IOException {
+			cached = null;
+			if (raf != null) {
+				try {
+					raf.close();
+				} finally {
+					raf = null;
+				}
+			}
+		}
+
+		/**
+		 * Close the run for good, once it has been replaced.
+		 */
+		public synchronized void retire() throws IOException {
+			retired = true;
+			close();
+		}
+
+		/**
+		 * Reads the entries of the run in order.
+		 */
+		private class Cursor {
+			private int i = 0;
+
+			private int j = 0;
+
+			private String key;
+
+			private KeyIndexEntry value;
+
+			public boolean next() throws IOException {
+				Block block;
+
+				while (i < firstKeys.length) {
+					block = readBlock(i);
+					if (j < block.keys.length) {
+						key = block.keys[j];
+						value = block.values[j];
+						++j;
+						return true;
+					}
+					++i;
+					j = 0;
+				}
+
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A block of a sorted run, read into memory.
+	 */
+	private static class Block {
+		private final int index;
+
+		private final String[] keys;
+
+		private final KeyIndexEntry[] values;
+
+		public Block(int index, String[] keys, KeyIndexEntry[] values) {
+			this.index = index;
+			this.keys = keys;
+			this.values = values;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+
+/**
+ * An entry of the <code>KeyIndex</code>: the relative path of the serialized
+ * object file of a key, and a summary of the object holding the fields needed
+ * to list it, so a listing doesn't have to load each object.
+ * <p>
+ * Entries converted from an index written by an earlier version have no
+ * summary, until the object is stored again.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class KeyIndexEntry {
+	private String key;
+
+	private String file;
+
+	private boolean summary;
+
+	private long size;
+
+	private String eTag;
+
+	private long lastModified;
+
+	private String ownerId;
+
+	private String ownerDisplayName;
+
+	/**
+	 * Create an entry without a summary.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param file
+	 *            The relative path of the serialized object file.
+	 */
+	public KeyIndexEntry(String key, String file) {
+		this.key = key;
+		this.file = file;
+		this.summary = false;
+	}
+
+	/**
+	 * Create an entry with a summary of an object.
+	 * 
+	 * @param file
+	 *            The relative path of the serialized object file.
+	 * @param s3Object
+	 *            The object.
+	 */
+	public KeyIndexEntry(String file, S3Object s3Object) {
+		Acp acp = s3Object.getAcp();
+		CanonicalUser owner = (acp == null) ? null : acp.getOwner();
+
+		this.key = s3Object.getKey();
+		this.file = file;
+		this.summary = true;
+		this.size = s3Object.getContentLength();
+		this.eTag = s3Object.getETag();
+		this.lastModified = s3Object.getLastModified();
+		if (owner != null) {
+			this.ownerId = owner.getId();
+			this.ownerDisplayName = owner.getDisplayName();
+		}
+	}
+
+	/**
+	 * Get the key.
+	 * 
+	 * @return The key.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Get the relative path of the serialized object file.
+	 * 
+	 * @return The relative path of the serialized object file.
+	 */
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * Determine if the entry holds a summary of the object.
+	 * 
+	 * @return <code>True</code> if the summary fields are set,
+	 *         <code>false</code> if the object must be loaded to list it.
+	 */
+	public boolean hasSummary() {
+		return summary;
+	}
+
+	/**
+	 * Get the size of the object.
+	 * 
+	 * @return The size of the object, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the ETag of the object.
+	 * 
+	 * @return The ETag of the object.
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * Get the last modified time of the object.
+	 * 
+	 * @return The last modified time of the object, in milliseconds since the
+	 *         epoch.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Get the canonical user id of the owner of the object.
+	 * 
+	 * @return The canonical user id of the owner of the object.
+	 */
+	public String getOwnerId() {
+		return ownerId;
+	}
+
+	/**
+	 * Get the display name of the owner of the object.
+	 * 
+	 * @return The display name of the owner of the object.
+	 */
+	public String getOwnerDisplayName() {
+		return ownerDisplayName;
+	}
+
+	/**
+	 * Get the summary of the object, to list it.
+	 * 
+	 * @return The summary of the object.
+	 */
+	public S3ObjectSummary toSummary() {
+		S3ObjectSummary summary = new S3ObjectSummary();
+
+		summary.setKey(key);
+		summary.setSize(size);
+		summary.setETag(eTag);
+		summary.setLastModified(lastModified);
+		summary.setOwnerId(ownerId);
+		summary.setOwnerDisplayName(ownerDisplayName);
+
+		return summary;
+	}
+
+	/**
+	 * Write the entry, without the key.
+	 * 
+	 * @param out
+	 *            Where to write the entry.
+	 * @throws IOException
+	 *             Unable to write the entry.
+	 */
+	void write(DataOutput out) throws IOException {
+		out.writeUTF(file);
+		out.writeBoolean(summary);
+		if (summary) {
+			out.writeLong(size);
+			writeString(out, eTag);
+			out.writeLong(lastModified);
+			writeString(out, ownerId);
+			writeString(out, ownerDisplayName);
+		}
+	}
+
+	/**
+	 * Read an entry written by <code>write</code>.
+	 * 
+	 * @param key
+	 *            The key of the entry.
+	 * @param in
+	 *            Where to read the entry from.
+	 * @return The entry.
+	 * @throws IOException
+	 *             Unable to read the entry.
+	 */
+	static KeyIndexEntry read(String key, DataInput in) throws IOException {
+		KeyIndexEntry entry = new KeyIndexEntry(key, in.readUTF());
+
+		if (in.readBoolean()) {
+			entry.summary = true;
+			entry.size = in.readLong();
+			entry.eTag = readString(in);
+			entry.lastModified = in.readLong();
+			entry.ownerId = readString(in);
+			entry.ownerDisplayName = readString(in);
+		}
+
+		return entry;
+	}
+
+	private static void writeString(DataOutput out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	@Override
+	public String toString() {
+		return key + "=" + file;
+	}
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the key indexes of the buckets in use resident, so thousands of
+ * buckets can be served without holding every index in memory or reopening
+ * an index on every request.
+ * <p>
+ * An index is opened the first time its bucket is used. The indexes are kept
+ * within a budget of <code>maxBytes</code>, by the estimate of
+ * <code>KeyIndex.getResidentBytes()</code>; when over budget, the least
+ * recently used indexes are checkpointed, which writes the changes held in
+ * memory back to their sorted runs, and closed. An index is pinned between
+ * <code>acquire</code> and <code>release</code>, and is never evicted while
+ * pinned. A single index larger than the budget is closed each time it is
+ * released.
+ * </p>
+ * <p>
+ * The residency of each resident or pinned bucket, and the time spent opening
+ * its index, are kept for monitoring. A bucket is forgotten once its index is
+ * closed, so the buckets ever used are not all held in memory.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public abstract class KeyIndexManager {
+	/**
+	 * Default budget for the resident key indexes, in bytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private Log logger;
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	/**
+	 * The buckets resident, pinned, or being closed.
+	 */
+	private Map<String, Resident> buckets = new HashMap<String, Resident>();
+
+	/**
+	 * The buckets with an open index, least recently used first.
+	 */
+	private LinkedHashMap<String, Resident> resident = new LinkedHashMap<String, Resident>(
+			16, 0.75f, true);
+
+	private long bytes = 0;
+
+	private long loads = 0;
+
+	private long loadNanos = 0;
+
+	private long evictions = 0;
+
+	public KeyIndexManager() {
+		logger = LogFactory.getLog(this.getClass());
+	}
+
+	/**
+	 * Create the key index of a bucket. The index is opened by the manager.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The key index of the bucket, not yet opened.
+	 */
+	protected abstract KeyIndex newKeyIndex(String bucket);
+
+	/**
+	 * Get the key index of a bucket, opening it if it is not resident, and pin
+	 * it until <code>release</code>.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The key index of the bucket.
+	 * @throws IOException
+	 *             Unable to open the key index.
+	 */
+	public KeyIndex acquire(String bucket) throws IOException {
+		Resident holder;
+		boolean acquired = false;
+
+		synchronized (this) {
+			holder = buckets.get(bucket);
+			if (holder == null) {
+				holder = new Resident(bucket);
+				buckets.put(bucket, holder);
+			}
+			++holder.pins;
+			++holder.hits;
+			// most recently used
+			resident.get(bucket);
+		}
+
+		try {
+			synchronized (holder) {
+				if (holder.keys == null) {
+					load(holder);
+				}
+				acquired = true;
+
+				return holder.keys;
+			}
+		} finally {
+			if (!acquired) {
+				synchronized (this) {
+					--holder.pins;
+					forget(holder);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unpin the key index of a bucket, and evict the least recently used
+	 * indexes if over budget.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 */
+	public void release(String bucket) {
+		List<Resident> victims = new ArrayList<Resident>();
+
+		synchronized (this) {
+			Resident holder = buckets.get(bucket);
+
+			--holder.pins;
+			if (holder.keys != null) {
+				// the index grows and shrinks with the changes it holds
+				long current = holder.keys.getResidentBytes();
+
+				bytes += current - holder.bytes;
+				holder.bytes = current;
+			}
+
+			if (bytes > maxBytes) {
+				long remaining = bytes;
+
+				for (Resident candidate : resident.values()) {
+					if (remaining <= maxBytes) {
+						break;
+					}
+					if ((candidate.pins == 0) && !candidate.evicting) {
+						candidate.evicting = true;
+						victims.add(candidate);
+						remaining -= candidate.bytes;
+					}
+				}
+			}
+		}
+
+		for (Resident victim : victims) {
+			evict(victim);
+		}
+	}
+
+	/**
+	 * Checkpoint and close all of the resident key indexes.
+	 */
+	public void destroy() {
+		List<Resident> holders;
+
+		synchronized (this) {
+			holders = new ArrayList<Resident>(resident.values());
+		}
+
+		for (Resident holder : holders) {
+			synchronized (holder) {
+				KeyIndex keys;
+
+				synchronized (this) {
+					keys = holder.keys;
+					if (keys == null) {
+						continue;
+					}
+					unload(holder);
+				}
+				close(holder.bucket, keys);
+
+				synchronized (this) {
+					forget(holder);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the budget for the resident key indexes.
+	 * 
+	 * @return The budget for the resident key indexes, in bytes.
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the budget for the resident key indexes. Takes effect as indexes
+	 * are released.
+	 * 
+	 * @param maxBytes
+	 *            The budget for the resident key indexes, in bytes.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Get the estimated memory held by the resident key indexes, as of their
+	 * last release.
+	 * 
+	 * @return The estimated memory held by the resident key indexes, in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the number of buckets whose key index is resident.
+	 * 
+	 * @return The number of resident key indexes.
+	 */
+	public synchronized int getResidentBuckets() {
+		return resident.size();
+	}
+
+	/**
+	 * Get the number of times a key index was opened.
+	 * 
+	 * @return The number of key indexes opened.
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Get the total time spent opening key indexes.
+	 * 
+	 * @return The total time spent opening key indexes, in milliseconds.
+	 */
+	public synchronized long getLoadTime() {
+		return loadNanos / 1000000;
+	}
+
+	/**
+	 * Get the number of key indexes evicted to stay within the budget.
+	 * 
+	 * @return The number of key indexes evicted.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Get the residency of a bucket's key index.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The residency of the bucket's key index, or <code>null</code>
+	 *         if the index is neither resident nor pinned.
+	 */
+	public synchronized Residency getResidency(String bucket) {
+		Resident holder = buckets.get(bucket);
+
+		return (holder == null) ? null : holder.toResidency();
+	}
+
+	/**
+	 * Get the residency of the key index of every bucket resident or pinned.
+	 * 
+	 * @return The residency of the key indexes, by bucket name.
+	 */
+	public synchronized SortedMap<String, Residency> getResidency() {
+		SortedMap<String, Residency> residency = new TreeMap<String, Residency>();
+
+		for (Resident holder : buckets.values()) {
+			residency.put(holder.bucket, holder.toResidency());
+		}
+
+		return residency;
+	}
+
+	/**
+	 * Open the key index of a bucket. Called holding the bucket's lock.
+	 */
+	private void load(Resident holder) throws IOException {
+		long start = System.nanoTime();
+		KeyIndex keys = newKeyIndex(holder.bucket);
+		long elapsed;
+
+		keys.open();
+		elapsed = System.nanoTime() - start;
+
+		synchronized (this) {
+			holder.keys = keys;
+			holder.bytes = keys.getResidentBytes();
+			++holder.loads;
+			holder.loadNanos += elapsed;
+			holder.lastLoadNanos = elapsed;
+			++loads;
+			loadNanos += elapsed;
+			bytes += holder.bytes;
+			resident.put(holder.bucket, holder);
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Opened key index of bucket " + holder.bucket
+					+ " in " + (elapsed / 1000000) + "ms, " + holder.bytes
+					+ " bytes");
+		}
+	}
+
+	/**
+	 * Checkpoint and close the key index of a bucket, unless it was pinned
+	 * again since it was chosen.
+	 */
+	private void evict(Resident holder) {
+		synchronized (holder) {
+			KeyIndex keys;
+
+			synchronized (this) {
+				holder.evicting = false;
+				keys = holder.keys;
+				if ((holder.pins > 0) || (keys == null)) {
+					return;
+				}
+				unload(holder);
+				++holder.evictions;
+				++evictions;
+			}
+
+			// acquirers of the bucket wait on its lock until it is closed
+			close(holder.bucket, keys);
+
+			synchronized (this) {
+				forget(holder);
+			}
+		}
+	}
+
+	/**
+	 * Forget the index of a bucket. Called holding the bucket's lock and the
+	 * manager lock.
+	 */
+	private void unload(Resident holder) {
+		holder.keys = null;
+		bytes -= holder.bytes;
+		holder.bytes = 0;
+		resident.remove(holder.bucket);
+	}
+
+	/**
+	 * Drop the holder of a bucket whose index is closed, unless it was pinned
+	 * again. Called holding the manager lock, once the index is closed: an
+	 * acquirer creating a new holder must not open the index while it is
+	 * still being closed.
+	 */
+	private void forget(Resident holder) {
+		if ((holder.pins == 0) && (holder.keys == null)
+				&& (buckets.get(holder.bucket) == holder)) {
+			buckets.remove(holder.bucket);
+		}
+	}
+
+	private void close(String bucket, KeyIndex keys) {
+		try {
+			// the changes are also in the journal, so a failed checkpoint is
+			// replayed when the index is next opened
+			keys.checkpoint();
+		} catch (IOException e) {
+			logger.error("Unable to checkpoint key index of bucket " + bucket,
+					e);
+		}
+		try {
+			keys.close();
+		} catch (IOException e) {
+			logger.error("Unable to close key index of bucket " + bucket, e);
+		}
+	}
+
+	/**
+	 * The state of a bucket's key index. The index is opened and closed
+	 * holding the lock of this object; the other fields are guarded by the
+	 * manager.
+	 */
+	private static class Resident {
+		private final String bucket;
+
+		private KeyIndex keys;
+
+		private long bytes = 0;
+
+		private int pins = 0;
+
+		private boolean evicting = false;
+
+		private long hits = 0;
+
+		private long loads = 0;
+
+		private long loadNanos = 0;
+
+		private long lastLoadNanos = 0;
+
+		private long evictions = 0;
+
+		public Resident(String bucket) {
+			this.bucket = bucket;
+		}
+
+		public Residency toResidency() {
+			return new Residency(bucket, keys != null, bytes, (keys != null)
+					&& keys.isDirty(), hits, loads, loadNanos / 1000000,
+					lastLoadNanos / 1000000, evictions);
+		}
+	}
+
+	/**
+	 * The residency of a bucket's key index, as of when it was taken.
+	 * Immutable.
+	 */
+	public static class Residency {
+		private final String bucket;
+
+		private final boolean resident;
+
+		private final long bytes;
+
+		private final boolean dirty;
+
+		private final long hits;
+
+		private final long loads;
+
+		private final long loadTime;
+
+		private final long lastLoadTime;
+
+		private final long evictions;
+
+		public Residency(String bucket, boolean resident, long bytes,
+				boolean dirty, long hits, long loads, long loadTime,
+				long lastLoadTime, long evictions) {
+			this.bucket = bucket;
+			this.resident = resident;
+			this.bytes = bytes;
+			this.dirty = dirty;
+			this.hits = hits;
+			this.loads = loads;
+			this.loadTime = loadTime;
+			this.lastLoadTime = lastLoadTime;
+			this.evictions = evictions;
+		}
+
+		/**
+		 * @return The bucket name.
+		 */
+		public String getBucket() {
+			return bucket;
+		}
+
+		/**
+		 * @return <code>True</code> if the key index is open.
+		 */
+		public boolean isResident() {
+			return resident;
+		}
+
+		/**
+		 * @return The estimated memory held by the key index, in bytes.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return <code>True</code> if the key index holds changes not yet
+		 *         checkpointed.
+		 */
+		public boolean isDirty() {
+			return dirty;
+		}
+
+		/**
+		 * @return The number of times the key index was acquired.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return The number of times the key index was opened.
+		 */
+		public long getLoads() {
+			return loads;
+		}
+
+		/**
+		 * @return The total time spent opening the key index, in
+		 *         milliseconds.
+		 */
+		public long getLoadTime() {
+			return loadTime;
+		}
+
+		/**
+		 * @return The time spent opening the key index the last time, in
+		 *         milliseconds.
+		 */
+		public long getLastLoadTime() {
+			return lastLoadTime;
+		}
+
+		/**
+		 * @return The number of times the key index was evicted.
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		@Override
+		public String toString() {
+			return bucket + ": resident=" + resident + ", bytes=" + bytes
+					+ ", dirty=" + dirty + ", hits=" + hits + ", loads="
+					+ loads + ", loadTime=" + loadTime + "ms, evictions="
+					+ evictions;
+		}
+	}
+}
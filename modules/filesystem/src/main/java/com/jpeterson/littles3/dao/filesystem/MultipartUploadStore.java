@@ -0,0 +1,372 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.MultipartUpload;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.UploadPart;
+import com.jpeterson.littles3.dao.codec.MetadataCodec;
+
+/**
+ * The multipart uploads in progress. Each upload is a directory holding an
+ * upload record, with the object to create, and a record per uploaded part.
+ * Records are written aside and renamed into place, so a record is either
+ * complete or missing.
+ * <p>
+ * Only the records are kept here: the part data is written by the caller,
+ * concurrently and outside of any lock, before the part is stored. Storing a
+ * part, listing the parts and removing an upload are serialized per upload.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class MultipartUploadStore {
+	private static final int VERSION = 1;
+
+	private static final String UPLOAD = "upload";
+
+	private static final String PART_EXTENSION = ".part";
+
+	private static final int LOCKS = 64;
+
+	private Log logger;
+
+	private File directory;
+
+	private Object[] locks;
+
+	/**
+	 * Create a store of the uploads in a directory.
+	 * 
+	 * @param directory
+	 *            The directory holding the uploads.
+	 */
+	public MultipartUploadStore(File directory) {
+		logger = LogFactory.getLog(this.getClass());
+		this.directory = directory;
+
+		locks = new Object[LOCKS];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Record a new upload.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @throws IOException
+	 *             Unable to record the upload.
+	 */
+	public void create(MultipartUpload upload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		File uploadDirectory = getUploadDirectory(upload.getUploadId());
+
+		if (!uploadDirectory.mkdirs()) {
+			throw new IOException("Unable to create upload directory: "
+					+ uploadDirectory);
+		}
+
+		out.writeInt(VERSION);
+		out.writeLong(upload.getInitiated());
+		MetadataCodec.encode(upload.getS3Object(), out);
+		out.close();
+
+		write(new File(uploadDirectory, UPLOAD), bytes.toByteArray());
+	}
+
+	/**
+	 * Load an upload.
+	 * 
+	 * @param uploadId
+	 *            The id of the upload.
+	 * @return The upload, or <code>null</code> if there is no such upload.
+	 * @throws IOException
+	 *             Unable to read the upload record.
+	 */
+	public MultipartUpload load(String uploadId) throws IOException {
+		DataInputStream in;
+
+		if (!isValidId(uploadId)) {
+			return null;
+		}
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(
+							getUploadDirectory(uploadId), UPLOAD))));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			long initiated;
+			S3Object s3Object;
+
+			readVersion(in);
+			initiated = in.readLong();
+			s3Object = MetadataCodec.decodeS3Object(in, FileS3ObjectFactory
+					.getInstance());
+
+			return new MultipartUpload(uploadId, initiated, s3Object);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Store a part, in place of any part with the same number.
+	 * 
+	 * @param uploadId
+	 *            The id of the upload.
+	 * @param part
+	 *            The part, with its data written.
+	 * @return The part replaced, or <code>null</code> if there was none.
+	 *         Its data is no longer referenced.
+	 * @throws FileNotFoundException
+	 *             There is no such upload.
+	 * @throws IOException
+	 *             Unable to record the part.
+	 */
+	public UploadPart putPart(String uploadId, UploadPart part)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		File uploadDirectory = getUploadDirectory(uploadId);
+		File record = new File(uploadDirectory, part.getPartNumber()
+				+ PART_EXTENSION);
+
+		out.writeInt(VERSION);
+		out.writeInt(part.getPartNumber());
+		out.writeUTF(part.getStorageUrl().toString());
+		out.writeLong(part.getSize());
+		out.writeUTF(part.getETag());
+		out.writeLong(part.getLastModified());
+		out.close();
+
+		synchronized (getLock(uploadId)) {
+			UploadPart replaced;
+
+			if (!isValidId(uploadId)
+					|| !new File(uploadDirectory, UPLOAD).exists()) {
+				throw new FileNotFoundException("No such upload: " + uploadId);
+			}
+
+			replaced = readPart(record);
+			write(record, bytes.toByteArray());
+
+			return replaced;
+		}
+	}
+
+	/**
+	 * List the parts of an upload.
+	 * 
+	 * @param uploadId
+	 *            The id of the upload.
+	 * @return The parts, ordered by part number.
+	 * @throws FileNotFoundException
+	 *             There is no such upload.
+	 * @throws IOException
+	 *             Unable to read the part records.
+	 */
+	public List<UploadPart> listParts(String uploadId) throws IOException {
+		synchronized (getLock(uploadId)) {
+			return readParts(uploadId);
+		}
+	}
+
+	/**
+	 * Remove an upload and its part records. Once removed, no more parts can
+	 * be stored.
+	 * 
+	 * @param uploadId
+	 *            The id of the upload.
+	 * @return The parts of the upload when it was removed, ordered by part
+	 *         number.
+	 * @throws FileNotFoundException
+	 *             There is no such upload, or it was already removed.
+	 * @throws IOException
+	 *             Unable to read the part records.
+	 */
+	public List<UploadPart> remove(String uploadId) throws IOException {
+		synchronized (getLock(uploadId)) {
+			File uploadDirectory = getUploadDirectory(uploadId);
+			List<UploadPart> parts = readParts(uploadId);
+			File[] files;
+
+			// removing the upload record first ends the upload
+			if (!new File(uploadDirectory, UPLOAD).delete()) {
+				throw new IOException("Unable to remove upload: " + uploadId);
+			}
+
+			files = uploadDirectory.listFiles();
+			if (files != null) {
+				for (int i = 0; i < files.length; i++) {
+					files[i].delete();
+				}
+			}
+			if (!uploadDirectory.delete()) {
+				logger.warn("Unable to delete upload directory: "
+						+ uploadDirectory);
+			}
+
+			return parts;
+		}
+	}
+
+	private List<UploadPart> readParts(String uploadId) throws IOException {
+		File uploadDirectory = getUploadDirectory(uploadId);
+		SortedMap<Integer, UploadPart> parts = new TreeMap<Integer, UploadPart>();
+		File[] files;
+
+		if (!isValidId(uploadId)
+				|| !new File(uploadDirectory, UPLOAD).exists()) {
+			throw new FileNotFoundException("No such upload: " + uploadId);
+		}
+
+		files = uploadDirectory.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(PART_EXTENSION)) {
+				UploadPart part = readPart(files[i]);
+
+				if (part != null) {
+					parts.put(new Integer(part.getPartNumber()), part);
+				}
+			}
+		}
+
+		return new ArrayList<UploadPart>(parts.values());
+	}
+
+	/**
+	 * Read a part record.
+	 * 
+	 * @return The part, or <code>null</code> if there is no record.
+	 */
+	private UploadPart readPart(File record) throws IOException {
+		DataInputStream in;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(record)));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		try {
+			int partNumber;
+			URL storageUrl;
+			long size;
+			String eTag;
+
+			readVersion(in);
+			partNumber = in.readInt();
+			storageUrl = new URL(in.readUTF());
+			size = in.readLong();
+			eTag = in.readUTF();
+
+			return new UploadPart(partNumber, eTag, size, in.readLong(),
+					storageUrl);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readVersion(DataInputStream in) throws IOException {
+		int version = in.readInt();
+
+		if (version != VERSION) {
+			throw new IOException("Unsupported upload record version "
+					+ version);
+		}
+	}
+
+	/**
+	 * Write a record aside, sync it and rename it into place.
+	 */
+	private void write(File file, byte[] bytes) throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporaryFile, false);
+
+		try {
+			out.write(bytes);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (!temporaryFile.renameTo(file)) {
+			// some platforms will not rename over an existing file
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				temporaryFile.delete();
+				throw new IOException("Unable to rename " + temporaryFile
+						+ " to " + file);
+			}
+		}
+	}
+
+	private File getUploadDirectory(String uploadId) {
+		return new File(directory, uploadId);
+	}
+
+	private Object getLock(String uploadId) {
+		return locks[(uploadId.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	/**
+	 * Upload ids are generated hex strings; anything else could name a file
+	 * outside of the upload directory.
+	 */
+	private boolean isValidId(String uploadId) {
+		if ((uploadId == null) || (uploadId.length() == 0)) {
+			return false;
+		}
+
+		for (int i = 0; i < uploadId.length(); i++) {
+			char c = uploadId.charAt(i);
+
+			if (!(((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'z'))
+					|| ((c >= 'A') && (c <= 'Z')))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.service.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.javaexchange.RandomGUID;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.dao.S3ObjectDao;
+import com.jpeterson.littles3.dao.filesystem.BlobStore;
+import com.jpeterson.littles3.dao.filesystem.FileS3ObjectFactory;
+
+/**
+ * Deletes the data of replaced objects in the background, so replacing an
+ * object does not wait for the old data to be deleted.
+ * <p>
+ * Reclaiming is a two phase commit with the store of the replacing object.
+ * <code>prepare</code> durably records the data to reclaim, before the new
+ * meta data is stored; <code>commit</code> queues the record once the store
+ * succeeded, and <code>abort</code> drops it if the store failed. The records
+ * are files in a directory of their own, so the data of objects replaced
+ * before a crash is reclaimed when the reclaimer is next started.
+ * </p>
+ * <p>
+ * Before deleting the data, a record is checked against the object's current
+ * meta data, and the data is kept if it is still referenced: a crash between
+ * <code>prepare</code> and the store never loses the object.
+ * </p>
+ * <p>
+ * Content-addressed data is not deleted but released: the reference of the
+ * replaced object is dropped from the blob, which is deleted once no object
+ * references it.
+ * </p>
+ * <p>
+ * A committed record is reclaimed once a grace interval has elapsed, so a
+ * request still reading the replaced data, opened before the replacing object
+ * was stored, is not cut short. Records left by an earlier run are reclaimed
+ * as soon as the reclaimer is started, and the records of a bucket about to be
+ * deleted are reclaimed at once with <code>reclaimBucket</code>.
+ * </p>
+ * <p>
+ * The data is deleted by at most <code>threads</code> threads.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class DataReclaimer {
+	/**
+	 * The extension of the record files.
+	 */
+	public static final String EXTENSION = ".reclaim";
+
+	private static final int LOCKS = 64;
+
+	private Log logger;
+
+	private File directory;
+
+	private S3ObjectDao s3ObjectDao;
+
+	private BlobStore blobStore;
+
+	private int threads;
+
+	private long delay;
+
+	private ScheduledThreadPoolExecutor executor;
+
+	private Object[] locks;
+
+	private AtomicInteger pending = new AtomicInteger();
+
+	private AtomicLong reclaimed = new AtomicLong();
+
+	/**
+	 * Create a reclaimer. It must be started with <code>start()</code>.
+	 * 
+	 * @param directory
+	 *            The directory holding the records of the data to reclaim.
+	 * @param s3ObjectDao
+	 *            The DAO holding the current meta data of the objects.
+	 * @param threads
+	 *            The maximum number of threads deleting data.
+	 */
+	public DataReclaimer(File directory, S3ObjectDao s3ObjectDao, int threads) {
+		logger = LogFactory.getLog(this.getClass());
+		this.directory = directory;
+		this.s3ObjectDao = s3ObjectDao;
+		this.threads = Math.max(threads, 1);
+
+		locks = new Object[LOCKS];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Set the store of the content-addressed object data, before the
+	 * reclaimer is started.
+	 * 
+	 * @param blobStore
+	 *            The store of the content-addressed object data.
+	 *            <code>null</code> if object data is not deduplicated.
+	 */
+	public void setBlobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+
+	/**
+	 * Set the grace interval between the commit of a record and the deletion
+	 * of its data, before the reclaimer is started. Defaults to
+	 * <code>0</code>.
+	 * 
+	 * @param delay
+	 *            The grace interval, in milliseconds.
+	 */
+	public void setDelay(long delay) {
+		this.delay = Math.max(delay, 0);
+	}
+
+	/**
+	 * Start the threads deleting data, and queue the records left by an
+	 * earlier run.
+	 */
+	public synchronized void start() {
+		File[] files;
+		final AtomicInteger number = new AtomicInteger();
+
+		executor = new ScheduledThreadPoolExecutor(threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "DataReclaimer-"
+								+ number.incrementAndGet());
+
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// records still in their grace interval are not waited for on shut down
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(delay == 0);
+
+		files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(EXTENSION)) {
+				// no request reads data opened before the last shut down
+				queue(files[i], 0);
+			} else if (files[i].getName().endsWith(".tmp")) {
+				// never prepared
+				files[i].delete();
+			}
+		}
+		if (pending.get() > 0) {
+			logger.info("Reclaiming the data of " + pending.get()
+					+ " objects replaced before the last shut down");
+		}
+	}
+
+	/**
+	 * Stop the threads deleting data, waiting up to ten seconds for the
+	 * queued records. Records not yet processed, or still in their grace
+	 * interval, are kept, and are queued when the reclaimer is next started.
+	 */
+	public synchronized void shutdown() {
+		if (executor == null) {
+			return;
+		}
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+		pending.set(0);
+	}
+
+	/**
+	 * Durably record the data of an object about to be replaced.
+	 * 
+	 * @param s3Object
+	 *            The object about to be replaced.
+	 * @return The record, to <code>commit</code> once the replacing object is
+	 *         stored, or <code>abort</code> if it could not be.
+	 * @throws IOException
+	 *             Unable to write the record.
+	 */
+	public File prepare(S3Object s3Object) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		String guid = new RandomGUID().valueAfterMD5;
+		File temporary = new File(directory, guid + ".tmp");
+		File record = new File(directory, guid + EXTENSION);
+		FileOutputStream fos;
+
+		out.writeUTF(s3Object.getBucket());
+		out.writeUTF(s3Object.getKey());
+		out.writeUTF(s3Object.getStorageUrl().toString());
+		out.flush();
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create reclaim directory: "
+					+ directory);
+		}
+
+		// write aside and rename, so a record is never seen partly written
+		fos = new FileOutputStream(temporary);
+		try {
+			fos.write(buffer.toByteArray());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!temporary.renameTo(record)) {
+			temporary.delete();
+			throw new IOException("Unable to rename " + temporary + " to "
+					+ record);
+		}
+
+		return record;
+	}
+
+	/**
+	 * Queue a prepared record, once the replacing object is stored. Its data
+	 * is reclaimed after the grace interval.
+	 * 
+	 * @param record
+	 *            The record returned by <code>prepare</code>.
+	 */
+	public void commit(File record) {
+		queue(record, delay);
+	}
+
+	/**
+	 * Drop a prepared record, when the replacing object could not be stored.
+	 * 
+	 * @param record
+	 *            The record returned by <code>prepare</code>.
+	 */
+	public void abort(File record) {
+		if (!record.delete()) {
+			logger.warn("Unable to delete reclaim record: " + record);
+		}
+	}
+
+	/**
+	 * Reclaim at once the data of the committed records of a bucket, without
+	 * waiting for their grace interval. Called before the bucket is deleted,
+	 * once it holds no objects, so its directory can be removed.
+	 * 
+	 * @param bucket
+	 *            The name of the bucket.
+	 */
+	public void reclaimBucket(String bucket) {
+		File[] files = directory.listFiles();
+
+		if (files == null) {
+			return;
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(EXTENSION)) {
+				reclaim(files[i], bucket);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of records queued and not yet processed.
+	 * 
+	 * @return The number of records waiting.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Get the number of objects whose data was deleted.
+	 * 
+	 * @return The number of objects whose data was deleted.
+	 */
+	public long getReclaimed() {
+		return reclaimed.get();
+	}
+
+	private synchronized void queue(final File record, long delay) {
+		if (executor == null) {
+			// processed when next started
+			return;
+		}
+
+		pending.incrementAndGet();
+		executor.schedule(new Runnable() {
+			public void run() {
+				try {
+					reclaim(record, null);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reclaim a record, serialized with any other reclaim of the same record.
+	 * A record already reclaimed is skipped.
+	 * 
+	 * @param bucket
+	 *            Only reclaim the record if it is of this bucket.
+	 *            <code>null</code> for any bucket.
+	 */
+	private void reclaim(File record, String bucket) {
+		synchronized (getLock(record)) {
+			DataInputStream in;
+			S3Object replaced;
+
+			if (!record.exists()) {
+				return;
+			}
+
+			try {
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(record)));
+				try {
+					String recordBucket = in.readUTF();
+
+					if ((bucket != null) && !bucket.equals(recordBucket)) {
+						return;
+					}
+					replaced = FileS3ObjectFactory.getInstance()
+							.createS3Object(recordBucket, in.readUTF(),
+									new URL(in.readUTF()));
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				logger.error("Unable to read reclaim record, dropped: "
+						+ record, e);
+				record.delete();
+				return;
+			}
+
+			if ((blobStore != null)
+					&& blobStore.isBlob(replaced.getStorageUrl())) {
+				release(record, replaced);
+			} else {
+				delete(record, replaced);
+			}
+		}
+	}
+
+	/**
+	 * Delete the data of a record, unless the object still references it, and
+	 * then the record.
+	 */
+	private void delete(File record, S3Object replaced) {
+		S3Object current;
+
+		try {
+			current = s3ObjectDao.loadS3Object(replaced.getBucket(), replaced
+					.getKey());
+		} catch (DataRetrievalFailureException e) {
+			current = null;
+		} catch (DataAccessException e) {
+			// try again when next started
+			logger.error("Unable to load object " + replaced.getBucket() + "/"
+					+ replaced.getKey() + ", keeping reclaim record: "
+					+ record, e);
+			return;
+		}
+
+		if ((current != null) && (current.getStorageUrl() != null)
+				&& replaced.getStorageUrl().toString().equals(
+						current.getStorageUrl().toString())) {
+			// the replacing object was never stored
+			logger.debug("Data still referenced, not reclaimed: "
+					+ replaced.getStorageUrl());
+		} else {
+			File data;
+
+			try {
+				data = new File(replaced.getStorageUrl().toURI());
+			} catch (URISyntaxException e) {
+				logger.error("Unable to convert storage URL, dropped: "
+						+ replaced.getStorageUrl(), e);
+				data = null;
+			}
+
+			if ((data != null) && data.exists()) {
+				if (!replaced.deleteData()) {
+					// try again when next started
+					return;
+				}
+				reclaimed.incrementAndGet();
+			}
+		}
+
+		record.delete();
+	}
+
+	/**
+	 * Release the reference of a record to content-addressed data, unless
+	 * the object still references it, and then delete the record. Serialized
+	 * with the stores and removes of the object.
+	 */
+	private void release(File record, S3Object replaced) {
+		String reference = replaced.getBucket() + "/" + replaced.getKey();
+
+		synchronized (blobStore.getReferenceLock(reference)) {
+			S3Object current;
+
+			try {
+				current = s3ObjectDao.loadS3Object(replaced.getBucket(),
+						replaced.getKey());
+			} catch (DataRetrievalFailureException e) {
+				current = null;
+			} catch (DataAccessException e) {
+				// try again when next started
+				logger.error("Unable to load object " + reference
+						+ ", keeping reclaim record: " + record, e);
+				return;
+			}
+
+			if ((current != null)
+					&& (current.getStorageUrl() != null)
+					&& replaced.getStorageUrl().toString().equals(
+							current.getStorageUrl().toString())) {
+				logger.debug("Data still referenced, not released: "
+						+ replaced.getStorageUrl());
+			} else {
+				try {
+					if (blobStore.release(replaced.getStorageUrl(), reference)) {
+						reclaimed.incrementAndGet();
+					}
+				} catch (IOException e) {
+					// try again when next started
+					logger.error("Unable to release " + replaced.getStorageUrl()
+							+ ", keeping reclaim record: " + record, e);
+					return;
+				}
+			}
+		}
+
+		record.delete();
+	}
+
+	private Object getLock(File record) {
+		return locks[(record.getName().hashCode() & 0x7fffffff) % locks.length];
+	}
+}
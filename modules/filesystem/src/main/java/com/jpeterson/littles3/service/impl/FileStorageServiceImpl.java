@@ -17,53 +17,204 @@
 package com.jpeterson.littles3.service.impl;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataRetrievalFailureException;
 
 import com.javaexchange.RandomGUID;
 import com.jpeterson.littles3.bo.Acp;
 import com.jpeterson.littles3.bo.Bucket;
 import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.DataUsage;
 import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.bo.MultipartFileS3Object;
+import com.jpeterson.littles3.bo.MultipartUpload;
+import com.jpeterson.littles3.bo.ObjectListing;
 import com.jpeterson.littles3.bo.ResourcePermission;
 import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.UploadPart;
+import com.jpeterson.littles3.bo.Usage;
 import com.jpeterson.littles3.dao.BucketDao;
 import com.jpeterson.littles3.dao.S3ObjectDao;
+import com.jpeterson.littles3.dao.filesystem.BlobStore;
+import com.jpeterson.littles3.dao.filesystem.BucketCatalog;
 import com.jpeterson.littles3.dao.filesystem.FileBase;
+import com.jpeterson.littles3.dao.filesystem.MultipartUploadStore;
 import com.jpeterson.littles3.service.BucketAlreadyExistsException;
 import com.jpeterson.littles3.service.BucketNotEmptyException;
+import com.jpeterson.littles3.service.EntityTooSmallException;
+import com.jpeterson.littles3.service.InvalidPartException;
+import com.jpeterson.littles3.service.InvalidPartOrderException;
+import com.jpeterson.littles3.service.QuotaExceededException;
 import com.jpeterson.littles3.service.StorageService;
 
 public class FileStorageServiceImpl extends FileBase implements StorageService {
+	/**
+	 * Configuration property defining the maximum number of objects in a
+	 * bucket. <code>0</code>, the default, is unlimited.
+	 */
+	public static final String CONFIG_QUOTA_OBJECTS = "quota.objects";
+
+	/**
+	 * Configuration property defining the maximum total size, in bytes, of the
+	 * objects in a bucket. <code>0</code>, the default, is unlimited.
+	 */
+	public static final String CONFIG_QUOTA_BYTES = "quota.bytes";
+
+	/**
+	 * Configuration property defining the name of the bucket catalog file, in
+	 * the meta data directory.
+	 */
+	public static final String CONFIG_BUCKET_CATALOG = "bucketCatalog";
+
+	private static final String BUCKET_CATALOG = "buckets.catalog";
+
+	/**
+	 * Configuration property defining the directory, in the meta data
+	 * directory, holding the records of the data of replaced objects still to
+	 * be deleted.
+	 */
+	public static final String CONFIG_DIRECTORY_RECLAIM = "dir.reclaim";
+
+	/**
+	 * Configuration property defining the maximum number of threads deleting
+	 * the data of replaced objects. Defaults to <code>1</code>.
+	 */
+	public static final String CONFIG_RECLAIM_THREADS = "reclaim.threads";
+
+	/**
+	 * Configuration property defining the grace interval, in milliseconds,
+	 * before the data of a replaced object is deleted, letting requests
+	 * already reading it complete. Defaults to one minute.
+	 */
+	public static final String CONFIG_RECLAIM_DELAY = "reclaim.delay";
+
+	private static final long RECLAIM_DELAY = 60 * 1000;
+
+	private static final String DIRECTORY_RECLAIM = "reclaim";
+
+	/**
+	 * Configuration property defining the directory, in the meta data
+	 * directory, holding the multipart uploads in progress.
+	 */
+	public static final String CONFIG_DIRECTORY_UPLOADS = "dir.uploads";
+
+	/**
+	 * Configuration property defining the minimum size, in bytes, of every
+	 * part of a multipart upload but the last. Defaults to 5 MB.
+	 */
+	public static final String CONFIG_MULTIPART_MIN_PART_SIZE = "multipart.minPartSize";
+
+	private static final String DIRECTORY_UPLOADS = "uploads";
+
+	private static final long MULTIPART_MIN_PART_SIZE = 5 * 1024 * 1024;
+
+	/**
+	 * Configuration property enabling content-addressed storage of object
+	 * data: identical data is stored once, and referenced by each object
+	 * holding it. Defaults to <code>false</code>. Data stored before it is
+	 * enabled is kept where it is.
+	 */
+	public static final String CONFIG_DEDUPLICATE = "storage.deduplicate";
+
+	/**
+	 * Configuration property defining the directory, in the storage location,
+	 * holding the content-addressed object data.
+	 */
+	public static final String CONFIG_DIRECTORY_BLOBS = "dir.blobs";
+
+	private static final String DIRECTORY_BLOBS = "blobs";
+
+	private static final int LOCKS = 64;
+
 	private Log logger;
 
+	private Object[] keyLocks;
+
+	private volatile BucketCatalog bucketCatalog;
+
+	private DataReclaimer dataReclaimer;
+
+	private MultipartUploadStore uploadStore;
+
+	private volatile BlobStore blobStore;
+
+	private volatile boolean blobStoreChecked;
+
 	private BucketDao bucketDao;
 
 	private S3ObjectDao s3ObjectDao;
 
 	public FileStorageServiceImpl() {
 		logger = LogFactory.getLog(this.getClass());
+
+		keyLocks = new Object[LOCKS];
+		for (int i = 0; i < keyLocks.length; i++) {
+			keyLocks[i] = new Object();
+		}
 	}
 
 	public S3Object createS3Object(Bucket bucket, String key,
 			CanonicalUser owner) throws IOException {
-		String guid;
-		File storageFile;
+		BlobStore blobStore = getBlobStore();
 		Acp acp;
 		S3Object s3Object;
+		URL storageUrl;
 
 		logger.debug("Creating S3Object for bucket[" + bucket.getName()
 				+ "] + key[" + key + "]");
 
+		acp = new Acp();
+		acp.setOwner(owner);
+
+		if (blobStore != null) {
+			// interned by content once stored
+			if (!new File(generateBucketStoragePath().append(
+					bucket.getName()).toString()).exists()) {
+				throw new IOException("Bucket doesn't exist");
+			}
+			storageUrl = blobStore.createIncomingUrl();
+		} else {
+			storageUrl = generateStorageUrl(bucket.getName());
+		}
+
+		s3Object = new FileS3Object(bucket.getName(), key, storageUrl);
+		s3Object.setAcp(acp);
+		return s3Object;
+	}
+
+	/**
+	 * Generate a new storage URL for object data in a bucket.
+	 */
+	private URL generateStorageUrl(String bucket) throws IOException {
+		String guid;
+		File storageFile;
 		String bucketPath = generateBucketStoragePath()
-				.append(bucket.getName()).append(fileSeparator).toString();
+				.append(bucket).append(fileSeparator).toString();
 		File bucketDirectory = new File(bucketPath);
 		if (!bucketDirectory.exists()) {
 			throw new IOException("Bucket doesn't exist");
@@ -76,13 +227,7 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 			storageFile = new File(bucketPath + guid.substring(0, 2), guid);
 		} while (storageFile.exists());
 
-		acp = new Acp();
-		acp.setOwner(owner);
-
-		s3Object = new FileS3Object(bucket.getName(), key, storageFile.toURI()
-				.toURL());
-		s3Object.setAcp(acp);
-		return s3Object;
+		return storageFile.toURI().toURL();
 	}
 
 	public S3Object load(String bucket, String key) throws DataAccessException {
@@ -92,7 +237,20 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 	}
 
 	public void store(S3Object s3Object) throws DataAccessException {
+		replace(null, s3Object);
+	}
+
+	/**
+	 * Store the meta data of an object, referencing its data first if it is
+	 * content-addressed.
+	 * 
+	 * @return The object replaced, read as the object is stored, or
+	 *         <code>null</code> if the key was new.
+	 */
+	private S3Object storeObject(S3Object s3Object) throws DataAccessException {
+		BlobStore blobStore = getBlobStore();
 		Acp acp;
+		String reference;
 
 		acp = s3Object.getAcp();
 		if (acp.size() == 0) {
@@ -100,12 +258,528 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 			acp.grant(acp.getOwner(), ResourcePermission.ACTION_FULL_CONTROL);
 		}
 
-		s3ObjectDao.storeS3Object(s3Object);
+		reference = getReference(s3Object);
+		if (blobStore == null) {
+			// ordered with the removes of the key
+			synchronized (getKeyLock(blobStore, reference)) {
+				return s3ObjectDao.storeS3Object(s3Object);
+			}
+		}
+
+		synchronized (getKeyLock(blobStore, reference)) {
+			URL storageUrl = s3Object.getStorageUrl();
+			boolean referenced = true;
+
+			// referenced before the meta data is stored
+			try {
+				if (blobStore.isIncoming(storageUrl)) {
+					referenced = intern(blobStore, s3Object, reference);
+				} else if (blobStore.isBlob(storageUrl)
+						&& !blobStore.addReference(storageUrl, reference)) {
+					throw new DataRetrievalFailureException(
+							"Data no longer stored for " + reference);
+				}
+			} catch (IOException e) {
+				throw new DataAccessResourceFailureException(
+						"Unable to reference the data of " + reference, e);
+			}
+
+			try {
+				return s3ObjectDao.storeS3Object(s3Object);
+			} catch (RuntimeException e) {
+				if (!referenced) {
+					releaseData(blobStore, s3Object, reference);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Intern the incoming data of an object by its MD5 digest, the ETag, and
+	 * its length. Data that can not be deduplicated is moved to the bucket.
+	 * 
+	 * @return <code>True</code> if the object already referenced the data.
+	 */
+	private boolean intern(BlobStore blobStore, S3Object s3Object,
+			String reference) throws IOException {
+		URL incoming = s3Object.getStorageUrl();
+		String name = null;
+		boolean referenced = true;
+		URL storageUrl = null;
+		File file;
+
+		try {
+			file = new File(incoming.toURI());
+		} catch (URISyntaxException e) {
+			IOException ioe = new IOException("Invalid storage URL: "
+					+ incoming);
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		if ((s3Object.getETag() != null)
+				&& (file.length() == s3Object.getContentLength())) {
+			name = BlobStore.getName(unquote(s3Object.getETag()), s3Object
+					.getContentLength());
+		}
+
+		if (name != null) {
+			referenced = blobStore.isReferenced(blobStore.getUrl(name),
+					reference);
+			storageUrl = blobStore.intern(incoming, name, reference);
+		}
+
+		if (storageUrl == null) {
+			File storageFile;
+
+			referenced = true;
+			storageUrl = generateStorageUrl(s3Object.getBucket());
+			try {
+				storageFile = new File(storageUrl.toURI());
+			} catch (URISyntaxException e) {
+				IOException ioe = new IOException("Invalid storage URL: "
+						+ storageUrl);
+				ioe.initCause(e);
+				throw ioe;
+			}
+			storageFile.getParentFile().mkdirs();
+			if (!file.renameTo(storageFile)) {
+				throw new IOException("Unable to rename " + file + " to "
+						+ storageFile);
+			}
+		}
+
+		s3Object.setStorageUrl(storageUrl);
+
+		return referenced;
+	}
+
+	public void replace(S3Object oldS3Object, S3Object s3Object)
+			throws DataAccessException {
+		DataReclaimer reclaimer = getDataReclaimer();
+		File record = null;
+		S3Object replaced;
+
+		// recorded before the store, so a crash in between never leaks it
+		if ((oldS3Object != null) && !isSameData(oldS3Object, s3Object)) {
+			try {
+				record = reclaimer.prepare(oldS3Object);
+			} catch (IOException e) {
+				throw new DataAccessResourceFailureException(
+						"Unable to record the data to reclaim for "
+								+ getReference(oldS3Object), e);
+			}
+		}
+
+		// the new meta data replaces the old in a single store
+		try {
+			replaced = storeObject(s3Object);
+		} catch (RuntimeException e) {
+			if (record != null) {
+				reclaimer.abort(record);
+			}
+			throw e;
+		}
+
+		if (record != null) {
+			reclaimer.commit(record);
+		}
+
+		// the old object was loaded before the data was written, and may
+		// since have been replaced by a concurrent store
+		if ((replaced != null) && !isSameData(replaced, s3Object)
+				&& ((oldS3Object == null) || !isSameData(replaced, oldS3Object))) {
+			try {
+				reclaimer.commit(reclaimer.prepare(replaced));
+			} catch (IOException e) {
+				logger.error("Unable to record the data to reclaim for "
+						+ getReference(replaced) + ", not reclaimed: "
+						+ replaced.getStorageUrl(), e);
+			}
+		}
+	}
+
+	private boolean isSameData(S3Object a, S3Object b) {
+		return a.getStorageUrl().toString().equals(
+				b.getStorageUrl().toString());
 	}
 
 	public void remove(S3Object s3Object) throws DataAccessException {
-		s3ObjectDao.removeS3Object(s3Object);
-		s3Object.deleteData();
+		BlobStore blobStore = getBlobStore();
+		String reference;
+
+		if ((blobStore != null)
+				&& blobStore.isIncoming(s3Object.getStorageUrl())) {
+			// never stored, so no meta data references it
+			s3Object.deleteData();
+			return;
+		}
+
+		// the object may have been replaced since it was loaded, and the meta
+		// data removed is then that of the replacing object
+		reference = getReference(s3Object);
+		synchronized (getKeyLock(blobStore, reference)) {
+			S3Object current;
+
+			try {
+				current = s3ObjectDao.loadS3Object(s3Object.getBucket(),
+						s3Object.getKey());
+			} catch (DataRetrievalFailureException e) {
+				current = null;
+			}
+
+			// released once no meta data references it
+			s3ObjectDao.removeS3Object(s3Object);
+			releaseData(blobStore, s3Object, reference);
+			if ((current != null) && !isSameData(current, s3Object)) {
+				releaseData(blobStore, current, reference);
+			}
+		}
+	}
+
+	/**
+	 * Release an object's reference to its data, or delete data that is not
+	 * content-addressed. A reference that can not be released is logged and
+	 * kept: it holds the data, but never loses it.
+	 */
+	private void releaseData(BlobStore blobStore, S3Object s3Object,
+			String reference) {
+		URL storageUrl = s3Object.getStorageUrl();
+
+		if ((blobStore == null) || !blobStore.isBlob(storageUrl)) {
+			s3Object.deleteData();
+			return;
+		}
+
+		try {
+			blobStore.release(storageUrl, reference);
+		} catch (IOException e) {
+			logger.error("Unable to release " + storageUrl + " for "
+					+ reference, e);
+		}
+	}
+
+	/**
+	 * Get the lock ordering the stores and removes of an object. Its data may
+	 * be content-addressed, and the lock then also guards its reference.
+	 */
+	private Object getKeyLock(BlobStore blobStore, String reference) {
+		if (blobStore != null) {
+			return blobStore.getReferenceLock(reference);
+		}
+		return keyLocks[(reference.hashCode() & 0x7fffffff) % keyLocks.length];
+	}
+
+	/**
+	 * Get the reference of an object to its content-addressed data.
+	 */
+	private String getReference(S3Object s3Object) {
+		return s3Object.getBucket() + "/" + s3Object.getKey();
+	}
+
+	public MultipartUpload initiateMultipartUpload(S3Object s3Object)
+			throws IOException {
+		MultipartUpload upload = new MultipartUpload(
+				new RandomGUID().valueAfterMD5, System.currentTimeMillis(),
+				s3Object);
+
+		logger.debug("Initiating multipart upload " + upload.getUploadId()
+				+ " for bucket[" + s3Object.getBucket() + "] + key["
+				+ s3Object.getKey() + "]");
+
+		getUploadStore().create(upload);
+
+		return upload;
+	}
+
+	public MultipartUpload loadMultipartUpload(String bucket, String key,
+			String uploadId) throws DataAccessException {
+		MultipartUpload upload;
+
+		try {
+			upload = getUploadStore().load(uploadId);
+		} catch (IOException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to load upload: " + uploadId, e);
+		}
+
+		if ((upload == null) || !upload.getBucket().equals(bucket)
+				|| !upload.getKey().equals(key)) {
+			throw new DataRetrievalFailureException("No such upload: "
+					+ uploadId);
+		}
+
+		return upload;
+	}
+
+	public S3Object createPart(MultipartUpload upload, int partNumber)
+			throws IOException {
+		Acp acp = new Acp();
+		S3Object part;
+
+		acp.setOwner(upload.getOwner());
+
+		part = new FileS3Object(upload.getBucket(), upload.getKey(),
+				generateStorageUrl(upload.getBucket()));
+		part.setAcp(acp);
+
+		return part;
+	}
+
+	public UploadPart storePart(MultipartUpload upload, int partNumber,
+			S3Object part) throws DataAccessException {
+		UploadPart uploadPart = new UploadPart(partNumber, part.getETag(),
+				part.getContentLength(), System.currentTimeMillis(), part
+						.getStorageUrl());
+		UploadPart replaced;
+
+		try {
+			replaced = getUploadStore().putPart(upload.getUploadId(),
+					uploadPart);
+		} catch (FileNotFoundException e) {
+			part.deleteData();
+			throw new DataRetrievalFailureException("No such upload: "
+					+ upload.getUploadId(), e);
+		} catch (IOException e) {
+			part.deleteData();
+			throw new DataAccessResourceFailureException(
+					"Unable to store part " + partNumber + " of upload: "
+							+ upload.getUploadId(), e);
+		}
+
+		if (replaced != null) {
+			deleteParts(upload, Collections.singletonList(replaced), null);
+		}
+
+		return uploadPart;
+	}
+
+	public List<UploadPart> listParts(MultipartUpload upload)
+			throws DataAccessException {
+		try {
+			return getUploadStore().listParts(upload.getUploadId());
+		} catch (FileNotFoundException e) {
+			throw new DataRetrievalFailureException("No such upload: "
+					+ upload.getUploadId(), e);
+		} catch (IOException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to list parts of upload: " + upload.getUploadId(),
+					e);
+		}
+	}
+
+	public S3Object completeMultipartUpload(MultipartUpload upload,
+			List<UploadPart> parts) throws IOException {
+		S3Object template = upload.getS3Object();
+		MultipartFileS3Object s3Object;
+		S3Object oldS3Object;
+		List<UploadPart> removed;
+		List<UploadPart> matched;
+		long contentLength = 0;
+
+		// validate first, so a bad request leaves the upload in place
+		matched = matchParts(listParts(upload), parts);
+		for (UploadPart part : matched) {
+			contentLength += part.getSize();
+		}
+
+		try {
+			oldS3Object = load(upload.getBucket(), upload.getKey());
+		} catch (DataRetrievalFailureException e) {
+			oldS3Object = null;
+		}
+		checkQuota(loadBucket(upload.getBucket()), oldS3Object, contentLength);
+
+		// ends the upload: no part can be stored or replaced from here on
+		try {
+			removed = getUploadStore().remove(upload.getUploadId());
+		} catch (FileNotFoundException e) {
+			throw new DataRetrievalFailureException("No such upload: "
+					+ upload.getUploadId(), e);
+		}
+
+		try {
+			matched = matchParts(removed, parts);
+
+			// the template's storage URL may be incoming, never stored
+			s3Object = new MultipartFileS3Object(upload.getBucket(), upload
+					.getKey(), new URL(generateStorageUrl(upload.getBucket())
+					.toString()
+					+ MultipartFileS3Object.EXTENSION));
+			s3Object.writeManifest(matched);
+		} catch (IOException e) {
+			deleteParts(upload, removed, null);
+			throw e;
+		}
+
+		s3Object.setAcp(template.getAcp());
+		s3Object.setContentType(template.getContentType());
+		s3Object.setContentDisposition(template.getContentDisposition());
+		for (Iterator<String> names = template.getMetadataNames(); names
+				.hasNext();) {
+			String name = names.next();
+
+			for (Iterator<String> values = template.getMetadataValues(name); values
+					.hasNext();) {
+				s3Object.addMetadata(name, values.next());
+			}
+		}
+		s3Object.setETag(multipartETag(matched));
+		s3Object.setContentLength(contentLength);
+		s3Object.setLastModified(System.currentTimeMillis());
+
+		try {
+			replace(oldS3Object, s3Object);
+		} catch (RuntimeException e) {
+			s3Object.deleteData();
+			deleteParts(upload, removed, matched);
+			throw e;
+		}
+
+		// parts uploaded but not named are not part of the object
+		deleteParts(upload, removed, matched);
+
+		return s3Object;
+	}
+
+	public void abortMultipartUpload(MultipartUpload upload)
+			throws DataAccessException {
+		List<UploadPart> removed;
+
+		try {
+			removed = getUploadStore().remove(upload.getUploadId());
+		} catch (FileNotFoundException e) {
+			throw new DataRetrievalFailureException("No such upload: "
+					+ upload.getUploadId(), e);
+		} catch (IOException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to abort upload: " + upload.getUploadId(), e);
+		}
+
+		deleteParts(upload, removed, null);
+	}
+
+	/**
+	 * Match the parts named to complete an upload to the uploaded parts.
+	 * 
+	 * @param uploaded
+	 *            The uploaded parts, ordered by part number.
+	 * @param requested
+	 *            The part numbers and ETags named to complete the upload.
+	 * @return The uploaded parts named, in order.
+	 */
+	private List<UploadPart> matchParts(List<UploadPart> uploaded,
+			List<UploadPart> requested) throws IOException {
+		Map<Integer, UploadPart> byNumber = new HashMap<Integer, UploadPart>();
+		List<UploadPart> matched = new ArrayList<UploadPart>();
+		long minPartSize = getConfiguration().getLong(
+				CONFIG_MULTIPART_MIN_PART_SIZE, MULTIPART_MIN_PART_SIZE);
+		int last = 0;
+
+		if (requested.isEmpty()) {
+			throw new InvalidPartException("No parts named");
+		}
+
+		for (UploadPart part : uploaded) {
+			byNumber.put(new Integer(part.getPartNumber()), part);
+		}
+
+		for (UploadPart request : requested) {
+			UploadPart part = byNumber.get(new Integer(request
+					.getPartNumber()));
+
+			if (request.getPartNumber() <= last) {
+				throw new InvalidPartOrderException("Part "
+						+ request.getPartNumber() + " follows part " + last);
+			}
+			last = request.getPartNumber();
+
+			if ((part == null)
+					|| !unquote(part.getETag()).equalsIgnoreCase(
+							unquote(request.getETag()))) {
+				throw new InvalidPartException("Part "
+						+ request.getPartNumber()
+						+ " was not uploaded with ETag " + request.getETag());
+			}
+
+			if (!matched.isEmpty()
+					&& (matched.get(matched.size() - 1).getSize() < minPartSize)) {
+				throw new EntityTooSmallException("Part "
+						+ matched.get(matched.size() - 1).getPartNumber()
+						+ " is smaller than " + minPartSize + " bytes");
+			}
+			matched.add(part);
+		}
+
+		return matched;
+	}
+
+	/**
+	 * Compute the ETag of an object assembled from parts, as S3 does: the MD5
+	 * digest of the binary MD5 digests of the parts, followed by
+	 * <code>-</code> and the number of parts.
+	 */
+	private String multipartETag(List<UploadPart> parts) throws IOException {
+		MessageDigest messageDigest;
+
+		try {
+			messageDigest = MessageDigest.getInstance("MD5");
+			for (UploadPart part : parts) {
+				messageDigest.update(Hex.decodeHex(unquote(part.getETag())
+						.toCharArray()));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			IOException ioe = new IOException("Unable to compute ETag");
+			ioe.initCause(e);
+			throw ioe;
+		} catch (DecoderException e) {
+			IOException ioe = new IOException("Unable to compute ETag");
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		return new String(Hex.encodeHex(messageDigest.digest())) + "-"
+				+ parts.size();
+	}
+
+	private String unquote(String eTag) {
+		if ((eTag.length() >= 2) && eTag.startsWith("\"")
+				&& eTag.endsWith("\"")) {
+			return eTag.substring(1, eTag.length() - 1);
+		}
+		return eTag;
+	}
+
+	/**
+	 * Delete the data of parts, except those kept.
+	 */
+	private void deleteParts(MultipartUpload upload, List<UploadPart> parts,
+			List<UploadPart> kept) {
+		for (UploadPart part : parts) {
+			if ((kept == null) || !kept.contains(part)) {
+				new FileS3Object(upload.getBucket(), upload.getKey(), part
+						.getStorageUrl()).deleteData();
+			}
+		}
+	}
+
+	/**
+	 * Get the store of the multipart uploads in progress, creating it on
+	 * first use.
+	 * 
+	 * @return The store of the multipart uploads in progress.
+	 */
+	protected synchronized MultipartUploadStore getUploadStore() {
+		if (uploadStore == null) {
+			uploadStore = new MultipartUploadStore(new File(
+					generateBucketMetaPath().append(
+							getConfiguration().getString(
+									CONFIG_DIRECTORY_UPLOADS,
+									DIRECTORY_UPLOADS)).toString()));
+		}
+
+		return uploadStore;
 	}
 
 	public Bucket createBucket(String name, CanonicalUser owner)
@@ -141,6 +815,7 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 	}
 
 	public void storeBucket(Bucket bucket) throws DataAccessException {
+		BucketCatalog catalog;
 		Acp acp;
 
 		acp = bucket.getAcp();
@@ -149,10 +824,28 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 			acp.grant(acp.getOwner(), ResourcePermission.ACTION_FULL_CONTROL);
 		}
 
+		try {
+			catalog = getBucketCatalog();
+			catalog.startChange();
+		} catch (IOException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to catalog bucket: " + bucket.getName(), e);
+		}
+
+		// on failure the catalog stays marked, and is rebuilt when next read
 		bucketDao.storeBucket(bucket);
+
+		try {
+			catalog.put(bucket);
+		} catch (IOException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to catalog bucket: " + bucket.getName(), e);
+		}
+		catalog.endChange();
 	}
 
 	public void deleteBucket(Bucket bucket) throws IOException {
+		BucketCatalog catalog;
 		File bucketDirectory;
 
 		logger.debug("Request to delete bucket: " + bucket.getName());
@@ -160,13 +853,28 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 		bucketDirectory = new File(generateBucketStoragePath().append(
 				bucket.getName()).append(fileSeparator).toString());
 
-		if (bucketDirectory.exists()) {
-			String[] files = bucketDirectory.list();
+		Usage usage = s3ObjectDao.getUsage(bucket.getName());
+		if (!usage.isEmpty()) {
+			logger.debug("Bucket not empty. Number of objects: "
+					+ usage.getObjects());
+			throw new BucketNotEmptyException("Bucket is not empty");
+		}
 
-			if (files.length > 0) {
-				logger.debug("Bucket not empty. Number of files in directory: "
-						+ files.length);
-				throw new BucketNotEmptyException("Bucket is not empty");
+		// the data of replaced objects is otherwise kept for the grace
+		// interval, and the bucket directory could not be removed
+		getDataReclaimer().reclaimBucket(bucket.getName());
+
+		// on failure the catalog stays marked, and is rebuilt when next read
+		catalog = getBucketCatalog();
+		catalog.startChange();
+
+		if (bucketDirectory.exists() && !bucketDirectory.delete()) {
+			// remove the emptied data directories, at most one per leading
+			// pair of characters of an object GUID
+			File[] directories = bucketDirectory.listFiles();
+
+			for (int i = 0; i < directories.length; i++) {
+				directories[i].delete();
 			}
 
 			if (!bucketDirectory.delete()) {
@@ -175,58 +883,268 @@ public class FileStorageServiceImpl extends FileBase implements StorageService {
 		}
 
 		bucketDao.removeBucket(bucket);
+		catalog.remove(bucket.getName());
+		catalog.endChange();
 	}
 
 	public List<Bucket> findBuckets(String username) throws IOException {
-		StringBuffer buffer = new StringBuffer();
-		Configuration configuration = getConfiguration();
-		String storageLocation = configuration
-				.getString(CONFIG_STORAGE_LOCATION);
-		String bucketDirectory = configuration.getString(
-				CONFIG_DIRECTORY_BUCKETS, DIRECTORY_BUCKETS);
-
 		logger.debug("Finding buckets for user " + username);
 
-		buffer.append(storageLocation);
+		return getBucketCatalog().find(username);
+	}
+
+	/**
+	 * Get the bucket catalog, reading it on first use. If there is no catalog
+	 * yet, or it can not be read, was left marked as being changed or does
+	 * not name the bucket directories, it is built from the bucket
+	 * directories and their stored meta data.
+	 * 
+	 * @return The bucket catalog.
+	 * @throws IOException
+	 *             Unable to read or build the catalog.
+	 */
+	protected BucketCatalog getBucketCatalog() throws IOException {
+		BucketCatalog catalog = bucketCatalog;
 
-		if (!storageLocation.endsWith(fileSeparator)) {
-			buffer.append(fileSeparator);
+		if (catalog == null) {
+			synchronized (this) {
+				catalog = bucketCatalog;
+				if (catalog == null) {
+					catalog = new BucketCatalog(new File(
+							generateBucketMetaPath().append(
+									getConfiguration().getString(
+											CONFIG_BUCKET_CATALOG,
+											BUCKET_CATALOG)).toString()));
+					if (!isCatalogLoaded(catalog)) {
+						catalog.replace(scanBuckets());
+					}
+					bucketCatalog = catalog;
+				}
+			}
 		}
 
-		buffer.append(bucketDirectory);
+		return catalog;
+	}
+
+	/**
+	 * Load the bucket catalog, and check it names the bucket directories.
+	 */
+	private boolean isCatalogLoaded(BucketCatalog catalog) {
+		File[] bucketFiles = new File(generateBucketStoragePath().toString())
+				.listFiles();
+		Set<String> names = new HashSet<String>();
 
-		if (!bucketDirectory.endsWith(fileSeparator)) {
-			buffer.append(fileSeparator);
+		try {
+			if (!catalog.load()) {
+				return false;
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to read the bucket catalog, rebuilding it", e);
+			return false;
 		}
 
-		File dir = new File(buffer.toString());
+		if (bucketFiles != null) {
+			for (int i = 0; i < bucketFiles.length; i++) {
+				if (bucketFiles[i].isDirectory()) {
+					names.add(bucketFiles[i].getName());
+				}
+			}
+		}
 
-		if (!dir.isDirectory()) {
-			return new ArrayList<Bucket>();
+		if (!catalog.matches(names)) {
+			logger.warn("The bucket catalog does not match the "
+					+ names.size() + " bucket directories, rebuilding it");
+			return false;
 		}
 
-		// TODO: apply username filter
+		return true;
+	}
 
+	/**
+	 * Find all of the buckets by listing the bucket directories. A bucket
+	 * whose meta data can not be loaded has no owner, and a bucket without a
+	 * creation date is dated by its directory.
+	 */
+	private List<Bucket> scanBuckets() {
+		File dir = new File(generateBucketStoragePath().toString());
 		File[] bucketFiles = dir.listFiles();
-		ArrayList<Bucket> buckets = new ArrayList<Bucket>();
+		List<Bucket> buckets = new ArrayList<Bucket>();
+
+		if (bucketFiles == null) {
+			return buckets;
+		}
 
+		logger.info("Building the bucket catalog from " + bucketFiles.length
+				+ " bucket directories");
 		for (int i = 0; i < bucketFiles.length; i++) {
-			Bucket bucket = new Bucket();
-			bucket.setName(bucketFiles[i].getName());
-			// TODO: not really creation date, need to add to database
-			bucket.setCreated(new Date(bucketFiles[i].lastModified()));
+			Bucket bucket;
+
+			if (!bucketFiles[i].isDirectory()) {
+				continue;
+			}
+
+			try {
+				bucket = bucketDao.loadBucket(bucketFiles[i].getName());
+			} catch (DataAccessException e) {
+				logger.warn("Unable to load bucket: "
+						+ bucketFiles[i].getName(), e);
+				bucket = new Bucket();
+				bucket.setName(bucketFiles[i].getName());
+			}
+
+			if (bucket.getCreated() == null) {
+				bucket.setCreated(new Date(bucketFiles[i].lastModified()));
+			}
 			buckets.add(bucket);
 		}
 
 		return buckets;
 	}
 
-	public String listKeys(Bucket bucket, String prefix, String marker,
-			String delimiter, int maxKeys) throws DataAccessException {
+	public ObjectListing listKeys(Bucket bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException {
 		return s3ObjectDao.listKeys(bucket.getName(), prefix, marker,
 				delimiter, maxKeys);
 	}
 
+	public ObjectListing listKeys(Bucket bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException {
+		return s3ObjectDao.listKeys(bucket.getName(), prefix, position,
+				delimiter, maxKeys, fetchOwner);
+	}
+
+	public Usage getUsage(Bucket bucket) throws DataAccessException {
+		return s3ObjectDao.getUsage(bucket.getName());
+	}
+
+	public SortedMap<String, Usage> getPrefixUsage(Bucket bucket)
+			throws DataAccessException {
+		return s3ObjectDao.getPrefixUsage(bucket.getName());
+	}
+
+	public void checkQuota(Bucket bucket, S3Object replaced, long contentLength)
+			throws QuotaExceededException, DataAccessException {
+		Configuration configuration = getConfiguration();
+		long maxObjects = configuration.getLong(CONFIG_QUOTA_OBJECTS, 0);
+		long maxBytes = configuration.getLong(CONFIG_QUOTA_BYTES, 0);
+		Usage usage;
+
+		if ((maxObjects <= 0) && (maxBytes <= 0)) {
+			return;
+		}
+
+		usage = s3ObjectDao.getUsage(bucket.getName());
+		if (replaced != null) {
+			// the replaced object is freed by the store
+			usage = usage.add(-1, -replaced.getContentLength());
+		}
+
+		if ((maxObjects > 0) && (usage.getObjects() + 1 > maxObjects)) {
+			throw new QuotaExceededException("Bucket " + bucket.getName()
+					+ " holds the maximum of " + maxObjects + " objects");
+		}
+
+		if ((maxBytes > 0) && (usage.getBytes() + contentLength > maxBytes)) {
+			throw new QuotaExceededException("Bucket " + bucket.getName()
+					+ " can not hold " + contentLength + " more bytes, "
+					+ usage.getBytes() + " of " + maxBytes + " used");
+		}
+	}
+
+	public DataUsage getDataUsage() {
+		BlobStore blobStore = getBlobStore();
+
+		return (blobStore == null) ? null : blobStore.getUsage();
+	}
+
+	/**
+	 * Get the store of the content-addressed object data, opening it on first
+	 * use.
+	 * 
+	 * @return The store of the content-addressed object data, or
+	 *         <code>null</code> if object data is not deduplicated.
+	 * @throws DataAccessResourceFailureException
+	 *             Unable to open the store.
+	 */
+	protected BlobStore getBlobStore() throws DataAccessException {
+		if (!blobStoreChecked) {
+			synchronized (this) {
+				if (!blobStoreChecked) {
+					Configuration configuration = getConfiguration();
+
+					if (configuration.getBoolean(CONFIG_DEDUPLICATE, false)) {
+						StringBuffer path = new StringBuffer(configuration
+								.getString(CONFIG_STORAGE_LOCATION));
+						BlobStore store;
+
+						if (!path.toString().endsWith(fileSeparator)) {
+							path.append(fileSeparator);
+						}
+						path.append(configuration.getString(
+								CONFIG_DIRECTORY_BLOBS, DIRECTORY_BLOBS));
+
+						store = new BlobStore(new File(path.toString()));
+						try {
+							store.open();
+						} catch (IOException e) {
+							throw new DataAccessResourceFailureException(
+									"Unable to open blob store: " + path, e);
+						}
+						blobStore = store;
+					}
+					blobStoreChecked = true;
+				}
+			}
+		}
+
+		return blobStore;
+	}
+
+	/**
+	 * Start the reclaimer of the data of replaced objects, which also
+	 * reclaims the data of objects replaced before the last shut down.
+	 */
+	public void init() {
+		getDataReclaimer();
+	}
+
+	/**
+	 * Stop the reclaimer of the data of replaced objects. Data not yet
+	 * reclaimed is reclaimed after the next start.
+	 */
+	public synchronized void destroy() {
+		if (dataReclaimer != null) {
+			dataReclaimer.shutdown();
+			dataReclaimer = null;
+		}
+	}
+
+	/**
+	 * Get the reclaimer of the data of replaced objects, starting it on first
+	 * use.
+	 * 
+	 * @return The reclaimer of the data of replaced objects.
+	 */
+	public synchronized DataReclaimer getDataReclaimer() {
+		if (dataReclaimer == null) {
+			Configuration configuration = getConfiguration();
+
+			dataReclaimer = new DataReclaimer(new File(generateBucketMetaPath()
+					.append(
+							configuration.getString(CONFIG_DIRECTORY_RECLAIM,
+									DIRECTORY_RECLAIM)).toString()),
+					s3ObjectDao, configuration.getInt(CONFIG_RECLAIM_THREADS, 1));
+			dataReclaimer.setBlobStore(getBlobStore());
+			dataReclaimer.setDelay(configuration.getLong(CONFIG_RECLAIM_DELAY,
+					RECLAIM_DELAY));
+			dataReclaimer.start();
+		}
+
+		return dataReclaimer;
+	}
+
 	public BucketDao getBucketDao() {
 		return bucketDao;
 	}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3;
+
+import java.io.File;
+
+/**
+ * File system helpers shared by the tests.
+ * 
+ * @author Jesse Peterson
+ */
+public class FileFixture {
+	private FileFixture() {
+	}
+
+	/**
+	 * Delete a file, or a directory with everything under it.
+	 * 
+	 * @param file
+	 *            The file or directory to delete.
+	 */
+	public static void delete(File file) {
+		File[] files = file.listFiles();
+
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				delete(files[i]);
+			}
+		}
+		file.delete();
+	}
+}
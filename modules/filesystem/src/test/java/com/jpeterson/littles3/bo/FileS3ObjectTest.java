@@ -206,6 +206,85 @@ public class FileS3ObjectTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Test writing a portion of the object data to an output stream.
+	 */
+	public void test_transferTo() {
+		File file;
+		FileS3Object s3Object;
+
+		try {
+			file = File.createTempFile("unitTest", null);
+
+			file.deleteOnExit();
+
+			FileOutputStream out = new FileOutputStream(file);
+
+			out.write("0123456789".getBytes());
+
+			out.close();
+
+			s3Object = new FileS3Object("bucket", "key", file.toURL());
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+			assertEquals("Unexpected value", 5, s3Object.transferTo(2, 5, baos));
+			assertEquals("Unexpected value", "23456", baos.toString());
+
+			baos = new ByteArrayOutputStream();
+
+			assertEquals("Unexpected value", 3, s3Object.transferTo(7, 100,
+					baos));
+			assertEquals("Unexpected value", "789", baos.toString());
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+			return;
+		}
+	}
+
+	/**
+	 * Test reading a range of the object data.
+	 */
+	public void test_openRange() {
+		File file;
+		FileS3Object s3Object;
+		InputStream in;
+		byte[] b = new byte[20];
+		int count;
+
+		try {
+			file = File.createTempFile("unitTest", null);
+
+			file.deleteOnExit();
+
+			FileOutputStream out = new FileOutputStream(file);
+
+			out.write("0123456789".getBytes());
+
+			out.close();
+
+			s3Object = new FileS3Object("bucket", "key", file.toURL());
+
+			in = s3Object.openRange(6, 8);
+			count = in.read(b, 0, b.length);
+			assertEquals("Unexpected value", 3, count);
+			assertEquals("Unexpected value", "678", new String(b, 0, count));
+			assertEquals("Unexpected value", -1, in.read());
+			in.close();
+
+			in = s3Object.openRange(8, 20);
+			count = in.read(b, 0, b.length);
+			assertEquals("Unexpected value", 2, count);
+			assertEquals("Unexpected value", "89", new String(b, 0, count));
+			in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("Unexpected exception");
+			return;
+		}
+	}
+
 	/**
 	 * Test the output stream method.
 	 */
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * Compares the throughput of the original 4 KB read/write loop used to send
+ * object data against <code>FileS3Object.transferTo</code>, both with a plain
+ * <code>OutputStream</code> (pooled buffer) and with an
+ * <code>OutputStream</code> that is also a <code>WritableByteChannel</code>
+ * (<code>FileChannel.transferTo</code>). Not run as part of the unit tests.
+ * <p>
+ * Usage: <code>FileS3ObjectTransferBenchmark [sizeInMegabytes] [iterations]</code>
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class FileS3ObjectTransferBenchmark {
+	public static void main(String[] args) throws Exception {
+		int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		File source = File.createTempFile("transferBenchmark", null);
+		File sink = File.createTempFile("transferBenchmarkSink", null);
+		source.deleteOnExit();
+		sink.deleteOnExit();
+
+		FileOutputStream fos = new FileOutputStream(source);
+		byte[] block = new byte[1024 * 1024];
+		new Random(0).nextBytes(block);
+		for (int i = 0; i < megabytes; i++) {
+			fos.write(block);
+		}
+		fos.close();
+
+		FileS3Object s3Object = new FileS3Object("bucket", "key", source
+				.toURI().toURL());
+		long length = s3Object.getContentLength();
+
+		for (int i = 0; i < iterations; i++) {
+			report("4 KB loop", length, loop(s3Object, sink));
+			report("transferTo stream", length, transferToStream(s3Object,
+					sink));
+			report("transferTo channel", length, transferToChannel(s3Object,
+					sink));
+		}
+	}
+
+	private static long loop(S3Object s3Object, File sink) throws IOException {
+		long start = System.nanoTime();
+		InputStream in = s3Object.getInputStream();
+		OutputStream out = new FileOutputStream(sink);
+		byte[] buffer = new byte[4096];
+		int count;
+
+		while ((count = in.read(buffer, 0, buffer.length)) > 0) {
+			out.write(buffer, 0, count);
+		}
+		in.close();
+		out.close();
+
+		return System.nanoTime() - start;
+	}
+
+	private static long transferToStream(S3Object s3Object, File sink)
+			throws IOException {
+		long start = System.nanoTime();
+		OutputStream out = new FileOutputStream(sink);
+
+		s3Object.transferTo(0, s3Object.getContentLength(), out);
+		out.close();
+
+		return System.nanoTime() - start;
+	}
+
+	private static long transferToChannel(S3Object s3Object, File sink)
+			throws IOException {
+		long start = System.nanoTime();
+		ChannelOutputStream out = new ChannelOutputStream(
+				new FileOutputStream(sink).getChannel());
+
+		s3Object.transferTo(0, s3Object.getContentLength(), out);
+		out.close();
+
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, long bytes, long nanos) {
+		double seconds = nanos / 1000000000.0;
+
+		System.out.println(name + ": " + (bytes / (1024 * 1024)) + " MB in "
+				+ (nanos / 1000000) + " ms, "
+				+ Math.round((bytes / (1024.0 * 1024.0)) / seconds) + " MB/s");
+	}
+
+	/**
+	 * Stands in for a container output stream that exposes its socket
+	 * channel.
+	 */
+	private static class ChannelOutputStream extends OutputStream implements
+			WritableByteChannel {
+		private FileChannel channel;
+
+		public ChannelOutputStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			write(ByteBuffer.wrap(b, off, len));
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			int written = 0;
+
+			while (src.hasRemaining()) {
+				written += channel.write(src);
+			}
+
+			return written;
+		}
+
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.bo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class MultipartFileS3ObjectTest extends TestCase {
+	private Log logger;
+
+	private File directory;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public MultipartFileS3ObjectTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("MultipartFileS3ObjectTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(MultipartFileS3ObjectTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("MultipartFileS3ObjectTest", null);
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Test reading the object data across the part files.
+	 */
+	public void test_read() throws IOException {
+		MultipartFileS3Object s3Object = create();
+		MultipartFileS3Object reopened;
+		ByteArrayOutputStream out;
+
+		assertEquals("Unexpected value", 12, s3Object.getContentLength());
+		assertNull("Should not be a single file", s3Object.getStorageFile());
+		assertEquals("Unexpected value", "hello world!", read(s3Object
+				.getInputStream()));
+		assertEquals("Unexpected value", "lo wor", read(s3Object.openRange(3,
+				8)));
+		assertEquals("Unexpected value", "!", read(s3Object.openRange(11, 11)));
+
+		out = new ByteArrayOutputStream();
+		assertEquals("Unexpected value", 7, s3Object.transferTo(4, 7, out));
+		assertEquals("Unexpected value", "o world", out.toString("UTF-8"));
+
+		out = new ByteArrayOutputStream();
+		assertEquals("Unexpected value", 2, s3Object.transferTo(10, 100, out));
+		assertEquals("Unexpected value", "d!", out.toString("UTF-8"));
+
+		// the manifest is read back
+		reopened = new MultipartFileS3Object("bucket", "key", s3Object
+				.getStorageUrl());
+		assertEquals("Unexpected value", 3, reopened.getParts().size());
+		assertEquals("Unexpected value", "hello world!", read(reopened
+				.getInputStream()));
+	}
+
+	/**
+	 * Test that deleting the data deletes the part files and the manifest.
+	 */
+	public void test_deleteData() throws IOException {
+		MultipartFileS3Object s3Object = create();
+
+		assertEquals("Unexpected value", 4, directory.list().length);
+		assertTrue("Should be deleted", s3Object.deleteData());
+		// as is the emptied data directory
+		assertFalse("Should be deleted", directory.exists());
+	}
+
+	private MultipartFileS3Object create() throws IOException {
+		String[] data = { "hello", " ", "world!" };
+		List<UploadPart> parts = new ArrayList<UploadPart>();
+		MultipartFileS3Object s3Object;
+
+		for (int i = 0; i < data.length; i++) {
+			File file = new File(directory, "part" + i);
+			FileOutputStream out = new FileOutputStream(file);
+
+			try {
+				out.write(data[i].getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			parts.add(new UploadPart(i + 1, "etag", data[i].length(), 0, file
+					.toURI().toURL()));
+		}
+
+		s3Object = new MultipartFileS3Object("bucket", "key", new File(
+				directory, "object" + MultipartFileS3Object.EXTENSION).toURI()
+				.toURL());
+		s3Object.writeManifest(parts);
+
+		return s3Object;
+	}
+
+	private String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[3];
+		int read;
+
+		try {
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+
+		return out.toString("UTF-8");
+	}
+}
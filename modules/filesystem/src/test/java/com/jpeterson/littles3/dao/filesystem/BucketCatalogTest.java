@@ -0,0 +1,194 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+
+public class BucketCatalogTest extends TestCase {
+	private Log logger;
+
+	private File file;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public BucketCatalogTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("BucketCatalogTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(BucketCatalogTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("BucketCatalogTest", null);
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".changing").delete();
+	}
+
+	/**
+	 * Test finding the buckets of an owner as buckets are added, given to
+	 * another owner and removed.
+	 */
+	public void test_find() throws IOException {
+		BucketCatalog catalog = new BucketCatalog(file);
+
+		assertFalse("Should not be loaded", catalog.load());
+		catalog.put(bucket("photos", "alice", 1000));
+		catalog.put(bucket("backup", "alice", 2000));
+		catalog.put(bucket("logs", "bob", 3000));
+
+		assertEquals("Unexpected value", "[backup 2000, photos 1000]",
+				toString(catalog.find("alice")));
+		assertEquals("Unexpected value", "[logs 3000]", toString(catalog
+				.find("bob")));
+		assertEquals("Unexpected value", "[]", toString(catalog
+				.find("carol")));
+		assertEquals("Unexpected value", "alice", catalog.find("alice")
+				.get(0).getAcp().getOwner().getId());
+
+		// a new owner, keeping the creation date
+		Bucket bucket = bucket("photos", "bob", 0);
+		bucket.setCreated(null);
+		catalog.put(bucket);
+		assertEquals("Unexpected value", "[backup 2000]", toString(catalog
+				.find("alice")));
+		assertEquals("Unexpected value", "[logs 3000, photos 1000]",
+				toString(catalog.find("bob")));
+
+		catalog.remove("backup");
+		catalog.remove("unknown");
+		assertEquals("Unexpected value", "[]", toString(catalog
+				.find("alice")));
+		assertEquals("Unexpected value", 2, catalog.size());
+	}
+
+	/**
+	 * Test that the catalog is read back from its file.
+	 */
+	public void test_load() throws IOException {
+		BucketCatalog catalog = new BucketCatalog(file);
+		List<Bucket> buckets = new ArrayList<Bucket>();
+		Bucket orphan = new Bucket();
+
+		orphan.setName("orphan");
+		orphan.setCreated(new Date(4000));
+		buckets.add(bucket("photos", "alice", 1000));
+		buckets.add(bucket("logs", "bob", 3000));
+		buckets.add(orphan);
+		catalog.replace(buckets);
+		catalog.remove("logs");
+
+		catalog = new BucketCatalog(file);
+		assertTrue("Should be loaded", catalog.load());
+		assertEquals("Unexpected value", 2, catalog.size());
+		assertEquals("Unexpected value", "[photos 1000]", toString(catalog
+				.find("alice")));
+		assertEquals("Unexpected value", "[]", toString(catalog.find("bob")));
+		assertFalse("Should not leave a temporary file", new File(file
+				.getPath()
+				+ ".tmp").exists());
+	}
+
+	/**
+	 * Test that a catalog left marked as being changed is not loaded, and
+	 * that it matches the names of its buckets only.
+	 */
+	public void test_change() throws IOException {
+		BucketCatalog catalog = new BucketCatalog(file);
+		Set<String> names = new HashSet<String>();
+		File changingFile = new File(file.getPath() + ".changing");
+
+		catalog.startChange();
+		catalog.put(bucket("photos", "alice", 1000));
+		catalog.endChange();
+		assertFalse("Should not be marked", changingFile.exists());
+		assertTrue("Should be loaded", new BucketCatalog(file).load());
+
+		names.add("photos");
+		assertTrue("Should match", catalog.matches(names));
+		names.add("logs");
+		assertFalse("Should not match", catalog.matches(names));
+
+		// the bucket stored, but the catalog never written
+		catalog.startChange();
+		assertFalse("Should not be loaded", new BucketCatalog(file).load());
+		catalog.endChange();
+
+		// the bucket store failed
+		catalog.startChange();
+		catalog = new BucketCatalog(file);
+		assertFalse("Should not be loaded", catalog.load());
+		catalog.replace(new ArrayList<Bucket>());
+		assertFalse("Should not be marked", changingFile.exists());
+		assertTrue("Should be loaded", new BucketCatalog(file).load());
+	}
+
+	private Bucket bucket(String name, String owner, long created) {
+		Bucket bucket = new Bucket();
+		Acp acp = new Acp();
+
+		acp.setOwner(new CanonicalUser(owner));
+		bucket.setAcp(acp);
+		bucket.setName(name);
+		bucket.setCreated(new Date(created));
+
+		return bucket;
+	}
+
+	private String toString(List<Bucket> buckets) {
+		List<String> names = new ArrayList<String>();
+
+		for (Bucket bucket : buckets) {
+			names.add(bucket.getName() + " " + bucket.getCreated().getTime());
+		}
+
+		return names.toString();
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.jpeterson.littles3.FileFixture;
+import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+
+/**
+ * Stores, replaces and removes objects from many threads while other threads
+ * list and load them, and checks that no change is lost and that readers
+ * never see a missing or torn object.
+ */
+public class FileS3ObjectDaoStressTest extends TestCase {
+	private static final String BUCKET = "bucket";
+
+	private static final int WRITERS = 8;
+
+	private static final int READERS = 4;
+
+	private static final int KEYS_PER_WRITER = 100;
+
+	private Log logger;
+
+	private File storage;
+
+	private BaseConfiguration configuration;
+
+	/**
+	 * Keys stored and never removed, for the readers to load.
+	 */
+	private List<String> live;
+
+	private List<Throwable> errors;
+
+	private volatile boolean writing;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public FileS3ObjectDaoStressTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("FileS3ObjectDaoStressTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(FileS3ObjectDaoStressTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		storage = File.createTempFile("FileS3ObjectDaoStressTest", null);
+		storage.delete();
+		storage.mkdirs();
+
+		configuration = new BaseConfiguration();
+		configuration.setProperty(FileBase.CONFIG_STORAGE_LOCATION, storage
+				.getPath());
+		// checkpoint often, to replace the run under the readers
+		configuration.setProperty(
+				FileS3ObjectDao.CONFIG_KEY_INDEX_CHECKPOINT_INTERVAL, "50");
+
+		live = Collections.synchronizedList(new ArrayList<String>());
+		errors = Collections.synchronizedList(new ArrayList<Throwable>());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileFixture.delete(storage);
+	}
+
+	/**
+	 * Test that concurrent writers don't lose updates, and that concurrent
+	 * readers always see consistent state.
+	 */
+	public void test_concurrentWriters() throws Exception {
+		final FileS3ObjectDao dao = new FileS3ObjectDao();
+		Thread[] writers = new Thread[WRITERS];
+		Thread[] readers = new Thread[READERS];
+		ObjectListing listing;
+
+		dao.setConfiguration(configuration);
+
+		writing = true;
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread() {
+				public void run() {
+					read(dao);
+				}
+			};
+			readers[i].start();
+		}
+		for (int i = 0; i < writers.length; i++) {
+			final int writer = i;
+
+			writers[i] = new Thread() {
+				public void run() {
+					write(dao, writer);
+				}
+			};
+			writers[i].start();
+		}
+
+		for (int i = 0; i < writers.length; i++) {
+			writers[i].join();
+		}
+		writing = false;
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].join();
+		}
+
+		if (!errors.isEmpty()) {
+			logger.error("Concurrent access failed", errors.get(0));
+			fail("Concurrent access failed: " + errors.get(0));
+		}
+
+		listing = dao.listKeys(BUCKET, null, null, null,
+				FileS3ObjectDao.MAXIMUM_MAX_KEYS);
+		assertEquals("Unexpected value", live.size(), listing
+				.getContents().size());
+		assertEquals("Unexpected value", live.size(), dao.getUsage(BUCKET)
+				.getObjects());
+		verify(dao);
+		dao.destroy();
+
+		// the changes survive a restart
+		FileS3ObjectDao reopened = new FileS3ObjectDao();
+
+		reopened.setConfiguration(configuration);
+		assertEquals("Unexpected value", live.size(), reopened
+				.getUsage(BUCKET).getObjects());
+		verify(reopened);
+		reopened.destroy();
+	}
+
+	private void write(FileS3ObjectDao dao, int writer) {
+		String key;
+
+		try {
+			for (int i = 0; i < KEYS_PER_WRITER; i++) {
+				key = key(writer, i);
+				dao.storeS3Object(object(key, i));
+				if (i % 10 == 9) {
+					dao.removeS3Object(object(key, i));
+				} else {
+					live.add(key);
+				}
+
+				// replace an earlier key
+				if ((i >= 5) && ((i - 5) % 10 != 9)) {
+					dao.storeS3Object(object(key(writer, i - 5), i - 5));
+				}
+			}
+		} catch (Throwable t) {
+			errors.add(t);
+		}
+	}
+
+	private void read(FileS3ObjectDao dao) {
+		int n = 0;
+		String key;
+		S3Object s3Object;
+
+		try {
+			while (writing && errors.isEmpty()) {
+				if (n++ % 10 == 0) {
+					dao.listKeys(BUCKET, null, null, null,
+							FileS3ObjectDao.MAXIMUM_MAX_KEYS);
+				}
+				synchronized (live) {
+					key = live.isEmpty() ? null : live.get(n % live.size());
+				}
+				if (key != null) {
+					s3Object = dao.loadS3Object(BUCKET, key);
+					assertEquals("Unexpected value", key, s3Object.getKey());
+				}
+			}
+		} catch (Throwable t) {
+			errors.add(t);
+		}
+	}
+
+	private void verify(FileS3ObjectDao dao) {
+		String key;
+		S3Object s3Object;
+
+		for (int writer = 0; writer < WRITERS; writer++) {
+			for (int i = 0; i < KEYS_PER_WRITER; i++) {
+				key = key(writer, i);
+				if (i % 10 == 9) {
+					try {
+						dao.loadS3Object(BUCKET, key);
+						fail("Removed key found: " + key);
+					} catch (DataRetrievalFailureException e) {
+						// expected
+					}
+				} else {
+					s3Object = dao.loadS3Object(BUCKET, key);
+					assertEquals("Unexpected value", "etag" + i, s3Object
+							.getETag());
+				}
+			}
+		}
+	}
+
+	private S3Object object(String key, int version) throws IOException {
+		S3Object s3Object = new FileS3Object(BUCKET, key, new URL("file:"
+				+ storage.getPath() + "/" + key));
+
+		s3Object.setETag("etag" + version);
+		s3Object.setLastModified(System.currentTimeMillis());
+
+		return s3Object;
+	}
+
+	private String key(int writer, int i) {
+		return "writer" + writer + "/key" + i;
+	}
+}
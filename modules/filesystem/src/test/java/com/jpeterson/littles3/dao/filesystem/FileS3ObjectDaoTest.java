@@ -0,0 +1,198 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.FileFixture;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+
+public class FileS3ObjectDaoTest extends TestCase {
+	private static final String BUCKET = "bucket";
+
+	private Log logger;
+
+	private File storage;
+
+	private FileS3ObjectDao dao;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public FileS3ObjectDaoTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("FileS3ObjectDaoTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(FileS3ObjectDaoTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		BaseConfiguration configuration = new BaseConfiguration();
+
+		storage = File.createTempFile("FileS3ObjectDaoTest", null);
+		storage.delete();
+		storage.mkdirs();
+
+		configuration.setProperty(FileBase.CONFIG_STORAGE_LOCATION, storage
+				.getPath());
+		dao = new FileS3ObjectDao();
+		dao.setConfiguration(configuration);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dao.destroy();
+		FileFixture.delete(storage);
+	}
+
+	/**
+	 * Test listing with a delimiter, rolling keys up into common prefixes.
+	 */
+	public void test_delimiter() throws IOException {
+		ObjectListing listing;
+
+		store("a");
+		store("b/1");
+		store("b/2");
+		store("b/3/x");
+		store("c");
+		store("d/1");
+		store("e");
+
+		listing = dao.listKeys(BUCKET, null, null, "/", 100);
+		assertEquals("Unexpected value", "[a, c, e]", keys(listing));
+		assertEquals("Unexpected value", "[b/, d/]", listing
+				.getCommonPrefixes().toString());
+		assertEquals("Unexpected value", "e", listing.getNextMarker());
+		assertFalse("Should not be truncated", listing.isTruncated());
+
+		listing = dao.listKeys(BUCKET, "b/", null, "/", 100);
+		assertEquals("Unexpected value", "[b/1, b/2]", keys(listing));
+		assertEquals("Unexpected value", "[b/3/]", listing.getCommonPrefixes()
+				.toString());
+	}
+
+	/**
+	 * Test paging through a listing with a delimiter, using the next marker.
+	 */
+	public void test_delimiterPaging() throws IOException {
+		List<String> pages = new ArrayList<String>();
+		String marker = null;
+		ObjectListing listing;
+
+		store("a");
+		store("b/1");
+		store("b/2");
+		store("c");
+		store("d/1");
+		store("d/2");
+
+		do {
+			listing = dao.listKeys(BUCKET, null, marker, "/", 1);
+			pages.add(keys(listing) + listing.getCommonPrefixes());
+			marker = listing.getNextMarker();
+		} while (listing.isTruncated());
+
+		assertEquals("Unexpected value",
+				"[[a][], [][b/], [c][], [][d/]]", pages.toString());
+	}
+
+	/**
+	 * Test paging through a listing with continuation tokens, resuming from
+	 * the position the last page stopped at.
+	 */
+	public void test_continuationToken() throws IOException {
+		List<String> pages = new ArrayList<String>();
+		ContinuationToken position = null;
+		ObjectListing listing;
+
+		store("a");
+		store("b/1");
+		store("b/2");
+		store("c");
+		store("d/1");
+		store("d/2");
+
+		do {
+			listing = dao.listKeys(BUCKET, null, position, "/", 1, false);
+			pages.add(keys(listing) + listing.getCommonPrefixes());
+			position = listing.getNextContinuationToken();
+			if (position != null) {
+				// resume from the decoded token, as a client would
+				position = ContinuationToken.decode(position.encode());
+			}
+			if (pages.size() == 2) {
+				// stored after the last page, sorts after its common prefix
+				store("b0");
+			}
+		} while (listing.isTruncated());
+
+		assertEquals("Unexpected value",
+				"[[a][], [][b/], [b0][], [c][], [][d/]]", pages.toString());
+
+		// start after a key
+		listing = dao.listKeys(BUCKET, null, new ContinuationToken("b/1",
+				ContinuationToken.SEEK_AFTER), null, 2, true);
+		assertEquals("Unexpected value", "[b/2, b0]", keys(listing));
+		assertTrue("Should be truncated", listing.isTruncated());
+	}
+
+	private void store(String key) throws IOException {
+		S3Object s3Object = new FileS3Object(BUCKET, key, new URL("file:"
+				+ storage.getPath() + "/data"));
+
+		s3Object.setETag("etag");
+		dao.storeS3Object(s3Object);
+	}
+
+	private String keys(ObjectListing listing) {
+		List<String> keys = new ArrayList<String>();
+
+		for (S3ObjectSummary summary : listing.getContents()) {
+			keys.add(summary.getKey());
+		}
+
+		return keys.toString();
+	}
+}
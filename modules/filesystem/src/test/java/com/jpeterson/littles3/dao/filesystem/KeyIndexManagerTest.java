@@ -0,0 +1,161 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.FileFixture;
+
+public class KeyIndexManagerTest extends TestCase {
+	private Log logger;
+
+	private File directory;
+
+	private KeyIndexManager manager;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public KeyIndexManagerTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("KeyIndexManagerTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(KeyIndexManagerTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("KeyIndexManagerTest", null);
+		directory.delete();
+		directory.mkdirs();
+
+		manager = new KeyIndexManager() {
+			@Override
+			protected KeyIndex newKeyIndex(String bucket) {
+				return new KeyIndex(new File(directory, bucket));
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		manager.destroy();
+		FileFixture.delete(directory);
+	}
+
+	/**
+	 * Test that an index is opened on first use and stays resident.
+	 */
+	public void test_acquire() throws IOException {
+		KeyIndex keys;
+
+		assertNull("Should not be used", manager.getResidency("bucket"));
+
+		keys = manager.acquire("bucket");
+		keys.put(new KeyIndexEntry("key", "path"));
+		manager.release("bucket");
+		assertSame("Unexpected value", keys, manager.acquire("bucket"));
+		manager.release("bucket");
+
+		KeyIndexManager.Residency residency = manager.getResidency("bucket");
+		assertTrue("Should be resident", residency.isResident());
+		assertTrue("Should be dirty", residency.isDirty());
+		assertEquals("Unexpected value", 2, residency.getHits());
+		assertEquals("Unexpected value", 1, residency.getLoads());
+		assertEquals("Unexpected value", keys.getResidentBytes(), residency
+				.getBytes());
+		assertEquals("Unexpected value", residency.getBytes(), manager
+				.getBytes());
+		assertEquals("Unexpected value", 1, manager.getResidentBuckets());
+		assertEquals("Unexpected value", 1, manager.getLoads());
+	}
+
+	/**
+	 * Test that the least recently used indexes are written back and closed
+	 * to stay within the budget, that pinned indexes are kept, and that the
+	 * buckets of closed indexes are forgotten.
+	 */
+	public void test_evict() throws IOException {
+		long bytes;
+		KeyIndex pinned;
+
+		fill("one", 10);
+		bytes = manager.getBytes();
+		manager.setMaxBytes(bytes * 3 / 2);
+
+		fill("two", 10);
+		assertEquals("Unexpected value", 1, manager.getResidentBuckets());
+		assertEquals("Unexpected value", 1, manager.getEvictions());
+		assertNull("Should be forgotten", manager.getResidency("one"));
+		assertTrue("Should be checkpointed", new File(new File(directory,
+				"one"), KeyIndex.CHECKPOINT).exists());
+		assertFalse("Should be checkpointed", new File(new File(directory,
+				"one"), KeyIndex.JOURNAL).exists());
+
+		// reopened from its checkpoint
+		assertEquals("Unexpected value", 10, manager.acquire("one").size());
+		manager.release("one");
+		assertEquals("Unexpected value", 1, manager.getResidency("one")
+				.getLoads());
+		assertEquals("Unexpected value", 3, manager.getLoads());
+		assertNull("Should be forgotten", manager.getResidency("two"));
+
+		// a pinned index is kept, so the only one that can go is evicted
+		pinned = manager.acquire("one");
+		manager.setMaxBytes(1);
+		fill("three", 10);
+		assertTrue("Should be resident", manager.getResidency("one")
+				.isResident());
+		assertNull("Should be forgotten", manager.getResidency("three"));
+		assertEquals("Unexpected value", 10, pinned.size());
+		manager.release("one");
+		assertEquals("Unexpected value", 0, manager.getResidentBuckets());
+		assertTrue("Should be forgotten", manager.getResidency().isEmpty());
+		assertEquals("Unexpected value", 0, manager.getBytes());
+		assertEquals("Unexpected value", 4, manager.getEvictions());
+	}
+
+	private void fill(String bucket, int count) throws IOException {
+		KeyIndex keys = manager.acquire(bucket);
+
+		try {
+			for (int i = 0; i < count; i++) {
+				keys.put(new KeyIndexEntry("key" + i, "path" + i));
+			}
+		} finally {
+			manager.release(bucket);
+		}
+	}
+}
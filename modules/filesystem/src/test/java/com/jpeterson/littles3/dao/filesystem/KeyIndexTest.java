@@ -0,0 +1,427 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.filesystem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.Usage;
+
+public class KeyIndexTest extends TestCase {
+	private Log logger;
+
+	private File directory;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public KeyIndexTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("KeyIndexTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(KeyIndexTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		File parent = File.createTempFile("KeyIndexTest", null);
+
+		parent.delete();
+		directory = new File(parent, "bucket");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		directory.delete();
+		directory.getParentFile().delete();
+	}
+
+	/**
+	 * Test that changes are recovered from the journal.
+	 */
+	public void test_replay() throws IOException {
+		KeyIndex index = new KeyIndex(directory);
+
+		index.open();
+		index.put(new KeyIndexEntry("b", "1.ser"));
+		index.put(new KeyIndexEntry("a", "2.ser"));
+		index.put(new KeyIndexEntry("c", "3.ser"));
+		index.remove("b");
+		index.put(new KeyIndexEntry("a", "4.ser"));
+		index.close();
+
+		assertTrue("Journal not written", new File(directory, KeyIndex.JOURNAL)
+				.exists());
+		assertFalse("Unexpected checkpoint", new File(directory,
+				KeyIndex.CHECKPOINT).exists());
+
+		index = new KeyIndex(directory);
+		index.open();
+		assertEquals("Unexpected value", 2, index.size());
+		assertEquals("Unexpected value", "4.ser", file(index.get("a")));
+		assertNull("Unexpected value", file(index.get("b")));
+		assertEquals("Unexpected value", "3.ser", file(index.get("c")));
+		assertEquals("Unexpected value", "[a, c]", keys(index));
+		index.close();
+	}
+
+	/**
+	 * Test that a checkpoint truncates the journal, and that changes after the
+	 * checkpoint are replayed on top of it.
+	 */
+	public void test_checkpoint() throws IOException {
+		KeyIndex index = new KeyIndex(directory);
+
+		index.setCheckpointInterval(3);
+		index.open();
+		index.put(new KeyIndexEntry("a", "1.ser"));
+		index.put(new KeyIndexEntry("b", "2.ser"));
+		assertFalse("Unexpected checkpoint", new File(directory,
+				KeyIndex.CHECKPOINT).exists());
+		index.put(new KeyIndexEntry("c", "3.ser"));
+		assertTrue("Checkpoint not written", new File(directory,
+				KeyIndex.CHECKPOINT).exists());
+		assertFalse("Journal not truncated", new File(directory,
+				KeyIndex.JOURNAL).exists());
+		index.remove("a");
+		index.close();
+
+		index = new KeyIndex(directory);
+		index.open();
+		assertEquals("Unexpected value", "[b, c]", keys(index));
+		index.close();
+	}
+
+	/**
+	 * Test that a torn record at the end of the journal is discarded and
+	 * truncated.
+	 */
+	public void test_tornJournal() throws IOException {
+		KeyIndex index = new KeyIndex(directory);
+		File journal = new File(directory, KeyIndex.JOURNAL);
+		FileOutputStream out;
+		long length;
+
+		index.open();
+		index.put(new KeyIndexEntry("a", "1.ser"));
+		index.put(new KeyIndexEntry("b", "2.ser"));
+		index.close();
+		length = journal.length();
+
+		// simulate a crash in the middle of appending a record
+		out = new FileOutputStream(journal, true);
+		out.write(new byte[] { 0, 0, 0, 20, 1, 2, 3 });
+		out.close();
+
+		index = new KeyIndex(directory);
+		index.open();
+		assertEquals("Unexpected value", "[a, b]", keys(index));
+		assertEquals("Journal not truncated", length, journal.length());
+
+		// the journal is usable after the truncation
+		index.put(new KeyIndexEntry("c", "3.ser"));
+		index.close();
+
+		index = new KeyIndex(directory);
+		index.open();
+		assertEquals("Unexpected value", "[a, b, c]", keys(index));
+		index.close();
+	}
+
+	/**
+	 * Test that removing the last key removes the index files.
+	 */
+	public void test_removeLast() throws IOException {
+		KeyIndex index = new KeyIndex(directory);
+
+		index.open();
+		index.put(new KeyIndexEntry("a", "1.ser"));
+		index.checkpoint();
+		index.put(new KeyIndexEntry("b", "2.ser"));
+		index.remove("a");
+		assertEquals("Unexpected value", "2.ser", index.remove("b").getFile());
+		assertNull("Unexpected value", index.remove("b"));
+
+		assertFalse("Directory not removed", directory.exists());
+		assertEquals("Unexpected value", 0, index.size());
+	}
+
+	/**
+	 * Test seeking into a run of several blocks, with changes overlaying the
+	 * run.
+	 */
+	public void test_seek() throws IOException {
+		KeyIndex index = new KeyIndex(directory);
+		Iterator<KeyIndexEntry> keys;
+
+		index.setBlockSize(64);
+		index.open();
+		for (int i = 0; i < 1000; i++) {
+			index.put(new KeyIndexEntry(key(i), i + ".ser"));
+		}
+		index.checkpoint();
+		assertEquals("Unexpected value", 1000, index.size());
+		assertEquals("Unexpected value", "500.ser", file(index.get(key(500))));
+		assertNull("Unexpected value", file(index.get("k")));
+
+		// changes since the checkpoint
+		index.remove(key(501));
+		index.put(new KeyIndexEntry(key(502), "new.ser"));
+		index.put(new KeyIndexEntry(key(502) + "a", "added.ser"));
+		assertEquals("Unexpected value", 1000, index.size());
+
+		keys = index.iterator(key(500), false);
+		assertEquals("Unexpected value", key(502), keys.next().getKey());
+		assertEquals("Unexpected value", key(502) + "a", keys.next().getKey());
+		assertEquals("Unexpected value", key(503), keys.next().getKey());
+
+		keys = index.iterator(key(500), true);
+		assertEquals("Unexpected value", key(500), keys.next().getKey());
+
+		keys = index.iterator(key(998) + "z", true);
+		assertEquals("Unexpected value", key(999), keys.next().getKey());
+		assertFalse("Unexpected value", keys.hasNext());
+
+		keys = index.iterator(null, true);
+		assertEquals("Unexpected value", key(0), keys.next().getKey());
+
+		// merged into a new run
+		index.checkpoint();
+		assertEquals("Unexpected value", 1000, index.size());
+		assertNull("Unexpected value", file(index.get(key(501))));
+		assertEquals("Unexpected value", "new.ser", file(index.get(key(502))));
+		keys = index.iterator(key(501), true);
+		assertEquals("Unexpected value", key(502), keys.next().getKey());
+		assertEquals("Unexpected value", key(502) + "a", keys.next().getKey());
+		index.close();
+	}
+
+	/**
+	 * Test converting a key index written by an earlier version.
+	 */
+	public void test_legacy() throws IOException {
+		HashMap<String, String> legacy = new HashMap<String, String>();
+		ObjectOutputStream out;
+		KeyIndex index;
+
+		legacy.put("b", "1.ser");
+		legacy.put("a", "2.ser");
+		directory.mkdirs();
+		out = new ObjectOutputStream(new FileOutputStream(new File(directory,
+				KeyIndex.LEGACY_CHECKPOINT)));
+		out.writeObject(legacy);
+		out.close();
+
+		index = new KeyIndex(directory);
+		index.open();
+		assertEquals("Unexpected value", "[a, b]", keys(index));
+		assertEquals("Unexpected value", "2.ser", file(index.get("a")));
+		assertFalse("Legacy index not removed", new File(directory,
+				KeyIndex.LEGACY_CHECKPOINT).exists());
+		assertTrue("Checkpoint not written", new File(directory,
+				KeyIndex.CHECKPOINT).exists());
+		index.close();
+	}
+
+	/**
+	 * Test that the listing summary of an object survives the journal and the
+	 * sorted run.
+	 */
+	public void test_summary() throws IOException {
+		S3Object s3Object = new MyS3Object();
+		Acp acp = new Acp();
+		CanonicalUser owner = new CanonicalUser("ownerId");
+		KeyIndex index;
+		KeyIndexEntry entry;
+
+		owner.setDisplayName("Owner");
+		acp.setOwner(owner);
+		s3Object.setBucket("bucket");
+		s3Object.setKey("key");
+		s3Object.setContentLength(1234);
+		s3Object.setETag("etag");
+		s3Object.setLastModified(1000L);
+		s3Object.setAcp(acp);
+
+		index = new KeyIndex(directory);
+		index.open();
+		index.put(new KeyIndexEntry("1.ser", s3Object));
+		index.put(new KeyIndexEntry("other", "2.ser"));
+		index.close();
+
+		for (int i = 0; i < 2; i++) {
+			index = new KeyIndex(directory);
+			index.open();
+			entry = index.get("key");
+			assertEquals("Unexpected value", "1.ser", entry.getFile());
+			assertTrue("Unexpected value", entry.hasSummary());
+			assertEquals("Unexpected value", 1234, entry.getSize());
+			assertEquals("Unexpected value", "etag", entry.getETag());
+			assertEquals("Unexpected value", 1000L, entry.getLastModified());
+			assertEquals("Unexpected value", "ownerId", entry.getOwnerId());
+			assertEquals("Unexpected value", "Owner", entry
+					.getOwnerDisplayName());
+			assertFalse("Unexpected value", index.get("other").hasSummary());
+
+			// second pass reads the sorted run
+			index.checkpoint();
+			index.close();
+		}
+	}
+
+	/**
+	 * Test that the usage of the bucket and of its key prefixes follows puts,
+	 * replacements and removes, and survives the journal, the sorted run and
+	 * a change of the prefix depth.
+	 */
+	public void test_usage() throws IOException {
+		KeyIndex index = new KeyIndex(directory);
+
+		index.setUsagePrefixDepth(2);
+		index.open();
+		index.put(entry("a/b/1", 10));
+		index.put(entry("a/b/2", 20));
+		index.put(entry("a/c/1", 5));
+		index.put(entry("x", 7));
+		index.put(entry("a/b/1", 15));
+		index.remove("a/c/1");
+		index.remove("missing");
+
+		assertEquals("Unexpected value", new Usage(3, 42), index.getUsage());
+		assertEquals("Unexpected value",
+				"{a/=objects=2, bytes=35, a/b/=objects=2, bytes=35}", index
+						.getPrefixUsage().toString());
+		index.close();
+
+		for (int i = 0; i < 2; i++) {
+			index = new KeyIndex(directory);
+			index.setUsagePrefixDepth(2);
+			index.open();
+			assertEquals("Unexpected value", new Usage(3, 42), index
+					.getUsage());
+			assertEquals("Unexpected value",
+					"{a/=objects=2, bytes=35, a/b/=objects=2, bytes=35}",
+					index.getPrefixUsage().toString());
+
+			// second pass reads the sorted run
+			index.checkpoint();
+			index.close();
+		}
+
+		// prefix usage is counted again for another depth
+		index = new KeyIndex(directory);
+		index.setUsagePrefixDepth(1);
+		index.open();
+		assertEquals("Unexpected value", new Usage(3, 42), index.getUsage());
+		assertEquals("Unexpected value", "{a/=objects=2, bytes=35}", index
+				.getPrefixUsage().toString());
+		index.remove("a/b/1");
+		index.remove("a/b/2");
+		assertEquals("Unexpected value", new Usage(1, 7), index.getUsage());
+		assertTrue("Unexpected value", index.getPrefixUsage().isEmpty());
+		index.close();
+	}
+
+	private KeyIndexEntry entry(String key, long size) {
+		S3Object s3Object = new MyS3Object();
+		Acp acp = new Acp();
+
+		acp.setOwner(new CanonicalUser("ownerId"));
+		s3Object.setBucket("bucket");
+		s3Object.setKey(key);
+		s3Object.setContentLength(size);
+		s3Object.setETag("etag");
+		s3Object.setAcp(acp);
+
+		return new KeyIndexEntry(key + ".ser", s3Object);
+	}
+
+	private String key(int i) {
+		String number = "000" + i;
+
+		return "key" + number.substring(number.length() - 4);
+	}
+
+	private String file(KeyIndexEntry entry) {
+		return (entry == null) ? null : entry.getFile();
+	}
+
+	private String keys(KeyIndex index) {
+		List<String> keys = new ArrayList<String>();
+
+		for (Iterator<KeyIndexEntry> iter = index.iterator(null, true); iter
+				.hasNext();) {
+			keys.add(iter.next().getKey());
+		}
+
+		return keys.toString();
+	}
+
+	private class MyS3Object extends S3Object {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean deleteData() {
+			return false;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+	}
+}
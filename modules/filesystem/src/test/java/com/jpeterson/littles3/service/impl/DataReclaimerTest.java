@@ -0,0 +1,205 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.service.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.FileFixture;
+import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.dao.filesystem.FileBase;
+import com.jpeterson.littles3.dao.filesystem.FileS3ObjectDao;
+
+public class DataReclaimerTest extends TestCase {
+	private static final String BUCKET = "bucket";
+
+	private Log logger;
+
+	private File storage;
+
+	private File directory;
+
+	private FileS3ObjectDao dao;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public DataReclaimerTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("DataReclaimerTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(DataReclaimerTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		BaseConfiguration configuration = new BaseConfiguration();
+
+		storage = File.createTempFile("DataReclaimerTest", null);
+		storage.delete();
+		storage.mkdirs();
+		directory = new File(storage, "reclaim");
+
+		configuration.setProperty(FileBase.CONFIG_STORAGE_LOCATION, storage
+				.getPath());
+		dao = new FileS3ObjectDao();
+		dao.setConfiguration(configuration);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		dao.destroy();
+		FileFixture.delete(storage);
+	}
+
+	/**
+	 * Test that the old data is deleted once the replacing object is stored,
+	 * and kept when the replace is aborted.
+	 */
+	public void test_replace() throws IOException {
+		DataReclaimer reclaimer = new DataReclaimer(directory, dao, 2);
+		FileS3Object old = store("old");
+		FileS3Object replacing = object("new");
+		File record;
+
+		reclaimer.start();
+
+		record = reclaimer.prepare(old);
+		assertTrue("Should be recorded", record.exists());
+		reclaimer.abort(record);
+		assertFalse("Should be dropped", record.exists());
+
+		record = reclaimer.prepare(old);
+		dao.storeS3Object(replacing);
+		reclaimer.commit(record);
+		reclaimer.shutdown();
+
+		assertFalse("Should be reclaimed", old.getStorageFile().exists());
+		assertTrue("Should be kept", replacing.getStorageFile().exists());
+		assertFalse("Should be processed", record.exists());
+		assertEquals("Unexpected value", 1, reclaimer.getReclaimed());
+	}
+
+	/**
+	 * Test that the old data is kept for the grace interval after the commit,
+	 * and that a record still in its grace interval is kept on shut down.
+	 */
+	public void test_delay() throws Exception {
+		DataReclaimer reclaimer = new DataReclaimer(directory, dao, 1);
+		FileS3Object old = store("old");
+		FileS3Object replacing = object("new");
+		File record;
+
+		reclaimer.setDelay(200);
+		reclaimer.start();
+
+		record = reclaimer.prepare(old);
+		dao.storeS3Object(replacing);
+		reclaimer.commit(record);
+		assertTrue("Should be kept", old.getStorageFile().exists());
+		assertEquals("Unexpected value", 1, reclaimer.getPending());
+		while (reclaimer.getPending() > 0) {
+			Thread.sleep(10);
+		}
+		assertFalse("Should be reclaimed", old.getStorageFile().exists());
+		assertFalse("Should be processed", record.exists());
+
+		old = replacing;
+		replacing = object("newer");
+		record = reclaimer.prepare(old);
+		dao.storeS3Object(replacing);
+		reclaimer.commit(record);
+		reclaimer.shutdown();
+		assertTrue("Should be kept", old.getStorageFile().exists());
+		assertTrue("Should be kept", record.exists());
+	}
+
+	/**
+	 * Test that records left by a crash are processed when next started,
+	 * keeping the data still referenced.
+	 */
+	public void test_recover() throws IOException {
+		DataReclaimer reclaimer = new DataReclaimer(directory, dao, 1);
+		FileS3Object old = store("old");
+		FileS3Object replacing = object("new");
+
+		// crashed after the replacing object was stored
+		reclaimer.prepare(old);
+		dao.storeS3Object(replacing);
+
+		// crashed before the replacing object was stored
+		reclaimer.prepare(replacing);
+
+		reclaimer = new DataReclaimer(directory, dao, 1);
+		reclaimer.start();
+		reclaimer.shutdown();
+
+		assertFalse("Should be reclaimed", old.getStorageFile().exists());
+		assertTrue("Should be kept", replacing.getStorageFile().exists());
+		assertEquals("Unexpected value", 1, reclaimer.getReclaimed());
+		assertEquals("Unexpected value", 0, directory.list().length);
+	}
+
+	/**
+	 * Store an object with data.
+	 */
+	private FileS3Object store(String data) throws IOException {
+		FileS3Object s3Object = object(data);
+
+		dao.storeS3Object(s3Object);
+
+		return s3Object;
+	}
+
+	/**
+	 * Create an object with data, not yet stored.
+	 */
+	private FileS3Object object(String data) throws IOException {
+		File file = new File(storage, data);
+		FileS3Object s3Object = new FileS3Object(BUCKET, "key", file.toURI()
+				.toURL());
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(data.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		s3Object.setETag("etag");
+
+		return s3Object;
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.service.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.jpeterson.littles3.FileFixture;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.DataUsage;
+import com.jpeterson.littles3.bo.MultipartFileS3Object;
+import com.jpeterson.littles3.bo.MultipartUpload;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.UploadPart;
+import com.jpeterson.littles3.dao.filesystem.BlobStore;
+import com.jpeterson.littles3.dao.filesystem.FileBase;
+import com.jpeterson.littles3.dao.filesystem.FileBucketDao;
+import com.jpeterson.littles3.dao.filesystem.FileS3ObjectDao;
+import com.jpeterson.littles3.service.EntityTooSmallException;
+import com.jpeterson.littles3.service.InvalidPartException;
+import com.jpeterson.littles3.service.InvalidPartOrderException;
+
+public class FileStorageServiceImplTest extends TestCase {
+	private static final CanonicalUser OWNER = new CanonicalUser("owner");
+
+	private Log logger;
+
+	private File storage;
+
+	private FileS3ObjectDao dao;
+
+	private FileStorageServiceImpl service;
+
+	private Bucket bucket;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public FileStorageServiceImplTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("FileStorageServiceImplTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(FileStorageServiceImplTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		BaseConfiguration configuration = new BaseConfiguration();
+		FileBucketDao bucketDao = new FileBucketDao();
+
+		storage = File.createTempFile("FileStorageServiceImplTest", null);
+		storage.delete();
+		storage.mkdirs();
+
+		configuration.setProperty(FileBase.CONFIG_STORAGE_LOCATION, storage
+				.getPath());
+		configuration.setProperty(
+				FileStorageServiceImpl.CONFIG_MULTIPART_MIN_PART_SIZE, "5");
+		configuration.setProperty(FileStorageServiceImpl.CONFIG_RECLAIM_DELAY,
+				"0");
+		dao = new FileS3ObjectDao();
+		dao.setConfiguration(configuration);
+		bucketDao.setConfiguration(configuration);
+
+		service = new FileStorageServiceImpl();
+		service.setConfiguration(configuration);
+		service.setS3ObjectDao(dao);
+		service.setBucketDao(bucketDao);
+
+		bucket = service.createBucket("bucket", OWNER);
+		service.storeBucket(bucket);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		service.destroy();
+		dao.destroy();
+		FileFixture.delete(storage);
+	}
+
+	/**
+	 * Test uploading parts out of order and replacing a part, then assembling
+	 * the object from the parts named.
+	 */
+	public void test_completeMultipartUpload() throws Exception {
+		S3Object template = service.createS3Object(bucket, "key", OWNER);
+		MultipartUpload upload;
+		UploadPart replaced;
+		UploadPart one;
+		UploadPart two;
+		UploadPart unused;
+		List<UploadPart> parts = new ArrayList<UploadPart>();
+		S3Object s3Object;
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+
+		template.setContentType("text/plain");
+		template.addMetadata("color", "blue");
+		upload = service.initiateMultipartUpload(template);
+		upload = service.loadMultipartUpload("bucket", "key", upload
+				.getUploadId());
+
+		two = storePart(upload, 2, "world!");
+		replaced = storePart(upload, 1, "howdy ");
+		one = storePart(upload, 1, "hello ");
+		unused = storePart(upload, 3, "unused");
+		assertFalse("Should be deleted", exists(replaced));
+		assertEquals("Unexpected value", 3, service.listParts(upload).size());
+		assertEquals("Unexpected value", 1, service.listParts(upload).get(0)
+				.getPartNumber());
+
+		parts.add(two);
+		parts.add(one);
+		try {
+			service.completeMultipartUpload(upload, parts);
+			fail("Expected exception");
+		} catch (InvalidPartOrderException e) {
+			// expected
+		}
+
+		parts.clear();
+		parts.add(new UploadPart(1, replaced.getETag(), 0, 0, null));
+		parts.add(two);
+		try {
+			service.completeMultipartUpload(upload, parts);
+			fail("Expected exception");
+		} catch (InvalidPartException e) {
+			// expected
+		}
+
+		parts.clear();
+		parts.add(new UploadPart(1, "\"" + one.getETag() + "\"", 0, 0, null));
+		parts.add(two);
+		s3Object = service.completeMultipartUpload(upload, parts);
+
+		md5.update(Hex.decodeHex(one.getETag().toCharArray()));
+		md5.update(Hex.decodeHex(two.getETag().toCharArray()));
+		assertEquals("Unexpected value", new String(Hex.encodeHex(md5
+				.digest()))
+				+ "-2", s3Object.getETag());
+		assertFalse("Should be deleted", exists(unused));
+		assertTrue("Should be kept", exists(one));
+
+		s3Object = service.load("bucket", "key");
+		assertTrue("Unexpected type", s3Object instanceof MultipartFileS3Object);
+		assertEquals("Unexpected value", 12, s3Object.getContentLength());
+		assertEquals("Unexpected value", "text/plain", s3Object
+				.getContentType());
+		assertEquals("Unexpected value", "blue", s3Object.getMetadataValues(
+				"color").next());
+		assertEquals("Unexpected value", "hello world!", read(s3Object
+				.getInputStream()));
+		assertEquals("Unexpected value", 12, service.getUsage(bucket)
+				.getBytes());
+
+		try {
+			service.loadMultipartUpload("bucket", "key", upload.getUploadId());
+			fail("Expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+
+		service.remove(s3Object);
+		assertFalse("Should be deleted", exists(one));
+		assertFalse("Should be deleted", exists(two));
+	}
+
+	/**
+	 * Test that parts other than the last must be at least the minimum part
+	 * size, and that aborting deletes the parts.
+	 */
+	public void test_abortMultipartUpload() throws Exception {
+		MultipartUpload upload = service.initiateMultipartUpload(service
+				.createS3Object(bucket, "key", OWNER));
+		List<UploadPart> parts = new ArrayList<UploadPart>();
+
+		parts.add(storePart(upload, 1, "tiny"));
+		parts.add(storePart(upload, 2, "last"));
+		try {
+			service.completeMultipartUpload(upload, parts);
+			fail("Expected exception");
+		} catch (EntityTooSmallException e) {
+			// expected
+		}
+
+		service.abortMultipartUpload(upload);
+		assertFalse("Should be deleted", exists(parts.get(0)));
+		assertFalse("Should be deleted", exists(parts.get(1)));
+
+		try {
+			storePart(upload, 3, "late");
+			fail("Expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+		assertEquals("Unexpected value", 0, new File(storage,
+				"meta/uploads").list().length);
+	}
+
+	/**
+	 * Test that the data of an object stored concurrently, after the replaced
+	 * object was loaded, is deleted when it is itself replaced.
+	 */
+	public void test_replaceConcurrent() throws Exception {
+		S3Object first = storeObject(null, "key", "first");
+		S3Object second = storeObject(first, "key", "second");
+		S3Object third = storeObject(first, "key", "third");
+
+		while (service.getDataReclaimer().getPending() > 0) {
+			Thread.sleep(10);
+		}
+		assertFalse("Should be deleted", exists(first));
+		assertFalse("Should be deleted", exists(second));
+		assertTrue("Should be kept", exists(third));
+		assertEquals("Unexpected value", "third", read(service.load("bucket",
+				"key").getInputStream()));
+	}
+
+	/**
+	 * Test that removing an object replaced since it was loaded deletes the
+	 * data of the replacing object, whose meta data is removed.
+	 */
+	public void test_removeReplaced() throws Exception {
+		S3Object first = storeObject(null, "key", "first");
+		S3Object second = storeObject(first, "key", "second");
+
+		service.remove(first);
+		assertFalse("Should be deleted", exists(second));
+		try {
+			service.load("bucket", "key");
+			fail("Expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+
+		while (service.getDataReclaimer().getPending() > 0) {
+			Thread.sleep(10);
+		}
+		assertFalse("Should be deleted", exists(first));
+	}
+
+	/**
+	 * Test that a bucket can be deleted while the data of a replaced object is
+	 * still kept for the grace interval.
+	 */
+	public void test_deleteBucketReclaim() throws Exception {
+		S3Object first;
+		S3Object second;
+
+		service.getConfiguration().setProperty(
+				FileStorageServiceImpl.CONFIG_RECLAIM_DELAY, "60000");
+
+		first = storeObject(null, "key", "first");
+		second = storeObject(first, "key", "second");
+		assertTrue("Should be kept", exists(first));
+
+		service.remove(second);
+		service.deleteBucket(bucket);
+		assertFalse("Should be deleted", exists(first));
+		assertFalse("Should be deleted", new File(first.getStorageUrl()
+				.toURI()).getParentFile().getParentFile().exists());
+	}
+
+	/**
+	 * Test that identical data is stored once, that a blob is kept while any
+	 * object references it, and that the usage survives reopening the store.
+	 */
+	public void test_deduplicate() throws Exception {
+		S3Object a;
+		S3Object b;
+		S3Object c;
+		S3Object failed;
+		DataUsage usage;
+		BlobStore reopened;
+
+		service.getConfiguration().setProperty(
+				FileStorageServiceImpl.CONFIG_DEDUPLICATE, "true");
+
+		a = storeObject(null, "a", "same data");
+		b = storeObject(null, "b", "same data");
+		c = storeObject(null, "c", "other");
+		assertEquals("Unexpected value", a.getStorageUrl().toString(), b
+				.getStorageUrl().toString());
+		assertEquals("Unexpected value", "same data", read(service.load(
+				"bucket", "b").getInputStream()));
+
+		usage = service.getDataUsage();
+		assertEquals("Unexpected value", 3, usage.getReferenced().getObjects());
+		assertEquals("Unexpected value", 23, usage.getReferenced().getBytes());
+		assertEquals("Unexpected value", 2, usage.getStored().getObjects());
+		assertEquals("Unexpected value", 9, usage.getSavedBytes());
+
+		// replaced, but still referenced by b
+		a = storeObject(a, "a", "other");
+		assertEquals("Unexpected value", c.getStorageUrl().toString(), a
+				.getStorageUrl().toString());
+		while (service.getDataReclaimer().getPending() > 0) {
+			Thread.sleep(10);
+		}
+		assertTrue("Should be kept", exists(b));
+		assertEquals("Unexpected value", 2, service.getDataUsage().getStored()
+				.getObjects());
+
+		service.remove(b);
+		assertFalse("Should be deleted", exists(b));
+		try {
+			service.remove(b);
+			fail("Expected exception");
+		} catch (DataRetrievalFailureException e) {
+			// expected
+		}
+		assertTrue("Should be kept", exists(c));
+
+		// data of an object never stored is not referenced
+		failed = service.createS3Object(bucket, "c", OWNER);
+		failed.getOutputStream().close();
+		service.remove(failed);
+		assertEquals("Unexpected value", "other", read(service.load("bucket",
+				"c").getInputStream()));
+
+		usage = service.getDataUsage();
+		assertEquals("Unexpected value", 2, usage.getReferenced().getObjects());
+		assertEquals("Unexpected value", 1, usage.getStored().getObjects());
+		assertEquals("Unexpected value", 5, usage.getSavedBytes());
+
+		reopened = new BlobStore(new File(storage, "blobs"));
+		reopened.open();
+		assertEquals("Unexpected value", usage.toString(), reopened.getUsage()
+				.toString());
+	}
+
+	private S3Object storeObject(S3Object oldS3Object, String key, String data)
+			throws IOException, NoSuchAlgorithmException {
+		S3Object s3Object = service.createS3Object(bucket, key, OWNER);
+		OutputStream out = s3Object.getOutputStream();
+		byte[] bytes = data.getBytes("UTF-8");
+
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		s3Object.setContentLength(bytes.length);
+		s3Object.setETag(new String(Hex.encodeHex(MessageDigest.getInstance(
+				"MD5").digest(bytes))));
+		service.replace(oldS3Object, s3Object);
+
+		return s3Object;
+	}
+
+	private boolean exists(S3Object s3Object) throws Exception {
+		return new File(s3Object.getStorageUrl().toURI()).exists();
+	}
+
+	private UploadPart storePart(MultipartUpload upload, int partNumber,
+			String data) throws IOException, NoSuchAlgorithmException {
+		S3Object part = service.createPart(upload, partNumber);
+		OutputStream out = part.getOutputStream();
+		byte[] bytes = data.getBytes("UTF-8");
+
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		part.setContentLength(bytes.length);
+		part.setETag(new String(Hex.encodeHex(MessageDigest.getInstance("MD5")
+				.digest(bytes))));
+
+		return service.storePart(upload, partNumber, part);
+	}
+
+	private boolean exists(UploadPart part) throws Exception {
+		return new File(part.getStorageUrl().toURI()).exists();
+	}
+
+	private String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[5];
+		int read;
+
+		try {
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+
+		return out.toString("UTF-8");
+	}
+}
@@ -16,8 +16,13 @@
 
 package com.jpeterson.littles3.dao.je;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Date;
-import java.util.Enumeration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.jpeterson.littles3.bo.Acp;
 import com.jpeterson.littles3.bo.AllUsersGroup;
@@ -25,7 +30,7 @@ import com.jpeterson.littles3.bo.AuthenticatedUsersGroup;
 import com.jpeterson.littles3.bo.Bucket;
 import com.jpeterson.littles3.bo.CanonicalUser;
 import com.jpeterson.littles3.bo.Grantee;
-import com.jpeterson.littles3.bo.ResourcePermission;
+import com.jpeterson.littles3.dao.codec.MetadataCodec;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
@@ -41,12 +46,31 @@ public class BucketTupleBinding extends TupleBinding {
 
 	private static final int GRANTEE_AUTHENTICATED_USERS_GROUP = 3;
 
+	private Log logger;
+
 	public BucketTupleBinding() {
 		super();
+		logger = LogFactory.getLog(this.getClass());
 	}
 
 	@Override
 	public Object entryToObject(TupleInput entry) {
+		if ((entry.available() > 0)
+				&& MetadataCodec.isEncoded(entry.getBufferBytes()[entry
+						.getBufferOffset()] & 0xff)) {
+			try {
+				return MetadataCodec.decodeBucket(new DataInputStream(entry));
+			} catch (IOException e) {
+				logger.error("Unable to decode the database record", e);
+				return null;
+			}
+		}
+
+		// written by an earlier version
+		return legacyEntryToObject(entry);
+	}
+
+	private Object legacyEntryToObject(TupleInput entry) {
 		Bucket bucket = new Bucket();
 		Acp acp;
 
@@ -93,47 +117,11 @@ public class BucketTupleBinding extends TupleBinding {
 
 	@Override
 	public void objectToEntry(Object object, TupleOutput entry) {
-		Bucket bucket = (Bucket) object;
-		Acp acp;
-		Grantee grantee;
-		CanonicalUser user;
-
-		// Data must be read in the same order that it was
-		// originally written.
-
-		entry.writeString(bucket.getName());
-		entry.writeLong(bucket.getCreated().getTime());
-
-		acp = bucket.getAcp();
-
-		user = acp.getOwner();
-		entry.writeString(user.getId());
-
-		int size = acp.size();
-		entry.writeInt(size);
-
-		Enumeration grants = acp.grants();
-		for (int i = 0; (i < size); i++) {
-			if (!grants.hasMoreElements()) {
-				throw new IllegalArgumentException(
-						"ACP grant size doesn't match number of grants");
-			}
-
-			ResourcePermission grant = (ResourcePermission) grants
-					.nextElement();
-			grantee = grant.getGrantee();
-			if (grantee instanceof CanonicalUser) {
-				entry.writeInt(GRANTEE_CANONICAL_USER);
-				entry.writeString(((CanonicalUser) grantee).getId());
-			} else if (grantee instanceof AllUsersGroup) {
-				entry.writeInt(GRANTEE_ALL_USERS_GROUP);
-			} else if (grantee instanceof AuthenticatedUsersGroup) {
-				entry.writeInt(GRANTEE_AUTHENTICATED_USERS_GROUP);
-			} else {
-				throw new IllegalArgumentException("Unsupport grantee"
-						+ grantee);
-			}
-			entry.writeString(grant.getActions());
+		try {
+			MetadataCodec.encode((Bucket) object, new DataOutputStream(entry));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to encode bucket: "
+					+ e.getMessage());
 		}
 	}
 }
@@ -16,9 +16,10 @@
 
 package com.jpeterson.littles3.dao.je;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.URL;
-import java.util.Enumeration;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,8 +30,9 @@ import com.jpeterson.littles3.bo.AuthenticatedUsersGroup;
 import com.jpeterson.littles3.bo.CanonicalUser;
 import com.jpeterson.littles3.bo.FileS3Object;
 import com.jpeterson.littles3.bo.Grantee;
-import com.jpeterson.littles3.bo.ResourcePermission;
 import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.dao.codec.MetadataCodec;
+import com.jpeterson.littles3.dao.filesystem.FileS3ObjectFactory;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
@@ -54,6 +56,23 @@ public class FileS3ObjectTupleBinding extends TupleBinding {
 
 	@Override
 	public Object entryToObject(TupleInput entry) {
+		if ((entry.available() > 0)
+				&& MetadataCodec.isEncoded(entry.getBufferBytes()[entry
+						.getBufferOffset()] & 0xff)) {
+			try {
+				return MetadataCodec.decodeS3Object(new DataInputStream(entry),
+						FileS3ObjectFactory.getInstance());
+			} catch (IOException e) {
+				logger.error("Unable to decode the database record", e);
+				return null;
+			}
+		}
+
+		// written by an earlier version
+		return legacyEntryToObject(entry);
+	}
+
+	private Object legacyEntryToObject(TupleInput entry) {
 		String bucket;
 		String key;
 		URL storageUrl;
@@ -120,54 +139,11 @@ public class FileS3ObjectTupleBinding extends TupleBinding {
 
 	@Override
 	public void objectToEntry(Object object, TupleOutput entry) {
-		S3Object s3Object = (S3Object) object;
-		Acp acp;
-		Grantee grantee;
-		CanonicalUser user;
-
-		// Data must be read in the same order that it was
-		// originally written.
-
-		entry.writeString(s3Object.getBucket());
-		entry.writeString(s3Object.getKey());
-		entry.writeString(s3Object.getStorageUrl().toString());
-		entry.writeString(s3Object.getContentDisposition());
-		entry.writeLong(s3Object.getContentLength());
-		entry.writeString(s3Object.getContentMD5());
-		entry.writeString(s3Object.getContentType());
-		entry.writeString(s3Object.getETag());
-		entry.writeLong(s3Object.getLastModified());
-
-		acp = s3Object.getAcp();
-
-		user = acp.getOwner();
-		entry.writeString(user.getId());
-
-		int size = acp.size();
-		entry.writeInt(size);
-
-		Enumeration grants = acp.grants();
-		for (int i = 0; (i < size); i++) {
-			if (!grants.hasMoreElements()) {
-				throw new IllegalArgumentException(
-						"ACP grant size doesn't match number of grants");
-			}
-
-			ResourcePermission grant = (ResourcePermission) grants
-					.nextElement();
-			grantee = grant.getGrantee();
-			if (grantee instanceof CanonicalUser) {
-				entry.writeInt(GRANTEE_CANONICAL_USER);
-				entry.writeString(((CanonicalUser) grantee).getId());
-			} else if (grantee instanceof AllUsersGroup) {
-				entry.writeInt(GRANTEE_ALL_USERS_GROUP);
-			} else if (grantee instanceof AuthenticatedUsersGroup) {
-				entry.writeInt(GRANTEE_AUTHENTICATED_USERS_GROUP);
-			} else {
-				throw new IllegalArgumentException("Unsupport grantee"
-						+ grantee);
-			}
-			entry.writeString(grant.getActions());
+		try {
+			MetadataCodec.encode((S3Object) object, new DataOutputStream(entry));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to encode object: "
+					+ e.getMessage());
 		}
 	}
 }
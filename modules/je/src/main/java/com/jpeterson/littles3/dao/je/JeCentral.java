@@ -35,6 +35,8 @@ public class JeCentral {
 
 	private Database bucketDb = null;
 
+	private Database usageDb = null;
+
 	private Configuration configuration;
 
 	private Log logger;
@@ -43,6 +45,11 @@ public class JeCentral {
 
 	public static final String BUCKET_DB_NAME = "bucket";
 
+	/**
+	 * Database holding the usage record of each bucket.
+	 */
+	public static final String USAGE_DB_NAME = "usage";
+
 	public JeCentral() {
 		logger = LogFactory.getLog(this.getClass());
 	}
@@ -76,6 +83,8 @@ public class JeCentral {
 		String dirDb = configuration.getString("dir.db");
 		String dbObjectName = configuration.getString("db." + OBJECT_DB_NAME);
 		String dbBucketName = configuration.getString("db." + BUCKET_DB_NAME);
+		String dbUsageName = configuration.getString("db." + USAGE_DB_NAME,
+				"usageDatabase");
 		EnvironmentConfig envConf = new EnvironmentConfig();
 		envConf.setAllowCreate(true);
 		env = new Environment(new File(storageLocation, dirDb), envConf);
@@ -84,6 +93,7 @@ public class JeCentral {
 		dbConfig.setAllowCreate(true);
 		objectDb = env.openDatabase(null, dbObjectName, dbConfig);
 		bucketDb = env.openDatabase(null, dbBucketName, dbConfig);
+		usageDb = env.openDatabase(null, dbUsageName, dbConfig);
 	}
 
 	public void closeEnv() {
@@ -92,6 +102,7 @@ public class JeCentral {
 		try {
 			objectDb.close();
 			bucketDb.close();
+			usageDb.close();
 			env.close();
 		} catch (DatabaseException DBE) {
 		}
@@ -102,6 +113,8 @@ public class JeCentral {
 			return objectDb;
 		} else if (name.equals(BUCKET_DB_NAME)) {
 			return bucketDb;
+		} else if (name.equals(USAGE_DB_NAME)) {
+			return usageDb;
 		}
 
 		return null;
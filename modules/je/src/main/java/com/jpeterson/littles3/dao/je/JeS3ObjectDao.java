@@ -16,11 +16,9 @@
 
 package com.jpeterson.littles3.dao.je;
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.TimeZone;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,10 +26,14 @@ import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.dao.DataRetrievalFailureException;
 
-import com.jpeterson.littles3.bo.Acp;
-import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.ObjectListing;
 import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.littles3.dao.KeyRange;
 import com.jpeterson.littles3.dao.S3ObjectDao;
+import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
@@ -43,6 +45,12 @@ import com.sleepycat.je.OperationStatus;
 /**
  * An implementation of <code>S3ObjectDao</code> that uses Oracle Berkeley DB
  * Java Edition to index and manage the object's meta data.
+ * <p>
+ * The usage of each bucket is kept in the usage database and updated with
+ * every store and remove. A bucket without a usage record, written by an
+ * earlier version, is counted once by a scan. Usage is kept per bucket only;
+ * <code>getPrefixUsage</code> is always empty.
+ * </p>
  * 
  * @author Jesse Peterson
  */
@@ -52,20 +60,33 @@ public class JeS3ObjectDao implements S3ObjectDao {
 
 	private TupleBinding fileS3ObjectBinding = new FileS3ObjectTupleBinding();
 
+	private TupleBinding s3ObjectSummaryBinding = new S3ObjectSummaryTupleBinding();
+
+	private TupleBinding s3ObjectSummaryNoOwnerBinding = new S3ObjectSummaryTupleBinding(
+			false);
+
+	private TupleBinding usageBinding = new UsageTupleBinding();
+
 	private JeCentral jeCentral;
 
-	private Log logger;
+	/**
+	 * The usage of the buckets, read from the usage database.
+	 */
+	private ConcurrentHashMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
 
-	public static final int MAXIMUM_MAX_KEYS = 1000;
+	/**
+	 * Serialize the updates of the usage of a bucket.
+	 */
+	private Object[] usageLocks;
 
-	private static SimpleDateFormat iso8601 = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+	/**
+	 * Number of usage locks the buckets are striped over.
+	 */
+	private static final int USAGE_LOCK_STRIPES = 64;
 
-	private static TimeZone utc = TimeZone.getTimeZone("UTC");
+	private Log logger;
 
-	static {
-		iso8601.setTimeZone(utc);
-	}
+	public static final int MAXIMUM_MAX_KEYS = 1000;
 
 	/**
 	 * Basic constructor.
@@ -73,6 +94,11 @@ public class JeS3ObjectDao implements S3ObjectDao {
 	public JeS3ObjectDao() {
 		super();
 		logger = LogFactory.getLog(this.getClass());
+
+		usageLocks = new Object[USAGE_LOCK_STRIPES];
+		for (int i = 0; i < usageLocks.length; i++) {
+			usageLocks[i] = new Object();
+		}
 	}
 
 	/**
@@ -143,7 +169,8 @@ public class JeS3ObjectDao implements S3ObjectDao {
 		}
 	}
 
-	public void storeS3Object(S3Object s3Object) throws DataAccessException {
+	public S3Object storeS3Object(S3Object s3Object)
+			throws DataAccessException {
 		DatabaseEntry theKey;
 		DatabaseEntry theData;
 
@@ -171,7 +198,22 @@ public class JeS3ObjectDao implements S3ObjectDao {
 
 			database = jeCentral.getDatabase(JeCentral.OBJECT_DB_NAME);
 
-			database.put(null, theKey, theData);
+			synchronized (usageLock(s3Object.getBucket())) {
+				Usage usage = loadUsage(s3Object.getBucket());
+				S3Object replaced = loadEntry(database, theKey);
+
+				database.put(null, theKey, theData);
+
+				if (replaced == null) {
+					usage = usage.add(1, s3Object.getContentLength());
+				} else {
+					usage = usage.add(0, s3Object.getContentLength()
+							- replaced.getContentLength());
+				}
+				storeUsage(s3Object.getBucket(), usage);
+
+				return replaced;
+			}
 		} catch (DatabaseException e) {
 			throw new DataAccessResourceFailureException(
 					"Unable to store a database record", e);
@@ -210,7 +252,17 @@ public class JeS3ObjectDao implements S3ObjectDao {
 
 			database = jeCentral.getDatabase(JeCentral.OBJECT_DB_NAME);
 
-			database.delete(null, theKey);
+			synchronized (usageLock(s3Object.getBucket())) {
+				Usage usage = loadUsage(s3Object.getBucket());
+				S3ObjectSummary removed = loadSummary(database, theKey);
+
+				database.delete(null, theKey);
+
+				if (removed != null) {
+					storeUsage(s3Object.getBucket(), usage.add(-1, -removed
+							.getSize()));
+				}
+			}
 		} catch (DatabaseException e) {
 			throw new DataAccessResourceFailureException(
 					"Unable to store a database record", e);
@@ -226,26 +278,102 @@ public class JeS3ObjectDao implements S3ObjectDao {
 		}
 	}
 
-	public String listKeys(String bucket, String prefix, String marker,
-			String delimiter, int maxKeys) throws DataAccessException {
+	public Usage getUsage(String bucket) throws DataAccessException {
+		Usage usage = usages.get(bucket);
+
+		if (usage != null) {
+			return usage;
+		}
+
+		try {
+			synchronized (usageLock(bucket)) {
+				return loadUsage(bucket);
+			}
+		} catch (DatabaseException e) {
+			throw new DataAccessResourceFailureException(
+					"Unable to read the usage of bucket: " + bucket, e);
+		}
+	}
+
+	public SortedMap<String, Usage> getPrefixUsage(String bucket)
+			throws DataAccessException {
+		// usage is only kept per bucket
+		return new TreeMap<String, Usage>();
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			String marker, String delimiter, int maxKeys)
+			throws DataAccessException {
+		ContinuationToken position = null;
+
+		if (prefix == null) {
+			prefix = "";
+		}
+
+		// validate the marker, should start with prefix
+		if (marker != null) {
+			if (!marker.startsWith(prefix)) {
+				logger.info("marker[" + marker + "] doesn't start with prefix["
+						+ prefix + "], ignoring marker");
+				marker = null;
+			} else {
+				position = KeyRange.markerPosition(marker, prefix.length(),
+						delimiter);
+			}
+		}
+
+		return listKeys(bucket, prefix, marker, position, delimiter, maxKeys,
+				s3ObjectSummaryBinding);
+	}
+
+	public ObjectListing listKeys(String bucket, String prefix,
+			ContinuationToken position, String delimiter, int maxKeys,
+			boolean fetchOwner) throws DataAccessException {
+		if (prefix == null) {
+			prefix = "";
+		}
+
+		return listKeys(bucket, prefix, null, position, delimiter, maxKeys,
+				fetchOwner ? s3ObjectSummaryBinding
+						: s3ObjectSummaryNoOwnerBinding);
+	}
+
+	/**
+	 * List the keys of a bucket from a position.
+	 * 
+	 * @param bucket
+	 *            The bucket containing the keys to list.
+	 * @param prefix
+	 *            The prefix of the keys to list. Not <code>null</code>.
+	 * @param marker
+	 *            The marker the listing was requested with, to report in the
+	 *            listing. May be <code>null</code>.
+	 * @param position
+	 *            Where to start the list. May be <code>null</code>.
+	 * @param delimiter
+	 *            Used to roll up common keys into a summary.
+	 * @param maxKeys
+	 *            Limit the number of results.
+	 * @param summaryBinding
+	 *            Reads the summary of a listed object.
+	 * @return A page of the listing.
+	 * @throws DataAccessException
+	 *             Unable to generate the list.
+	 */
+	private ObjectListing listKeys(String bucket, String prefix,
+			String marker, ContinuationToken position, String delimiter,
+			int maxKeys, TupleBinding summaryBinding)
+			throws DataAccessException {
 		DatabaseEntry theKey;
 		DatabaseEntry theData;
-		boolean truncated = false;
-		List<S3Object> contents = new ArrayList<S3Object>();
-		List<String> commonPrefixes = new ArrayList<String>();
-		int results = 0;
-		String commonPrefix = null;
-		String currentPrefix;
-		S3Object o = null;
+		DatabaseEntry theRecord;
+		ObjectListing listing;
+		String commonPrefix;
+		S3ObjectSummary summary;
 		String key;
 		OperationStatus operationStatus;
 		int prefixLength;
-		int delimiterIndex;
-		boolean processed;
 
-		if (prefix == null) {
-			prefix = "";
-		}
 		prefixLength = prefix.length();
 
 		if ((delimiter != null) && (delimiter.equals(""))) {
@@ -257,6 +385,8 @@ public class JeS3ObjectDao implements S3ObjectDao {
 			maxKeys = MAXIMUM_MAX_KEYS;
 		}
 
+		listing = new ObjectListing(bucket, prefix, marker, delimiter, maxKeys);
+
 		// perform query, saving results
 
 		if (maxKeys > 0) {
@@ -270,105 +400,95 @@ public class JeS3ObjectDao implements S3ObjectDao {
 
 				s3ObjectBucketKey = new S3ObjectBucketKey();
 
-				// validate the marker, should start with prefix
-				if (marker != null) {
-					if (!marker.startsWith(prefix)) {
-						logger.info("marker[" + marker
-								+ "] doesn't start with prefix[" + prefix
-								+ "], ignoring marker");
-						marker = null;
-					}
+				theKey = new DatabaseEntry();
+				// move the cursor reading keys only, the data of a record is
+				// read when it is listed
+				theData = new DatabaseEntry();
+				theData.setPartial(0, 0, true);
+				theRecord = new DatabaseEntry();
+
+				if ((position == null)
+						|| (position.getKey().compareTo(prefix) < 0)) {
+					// start at the first key starting with prefix
+					position = new ContinuationToken(prefix,
+							ContinuationToken.SEEK_AT);
 				}
 
-				s3ObjectBucketKey.setBucket(bucket);
-				if (marker != null) {
-					// try to find cursor starting with marker
-					s3ObjectBucketKey.setKey(marker);
+				if (position.getSeek() == ContinuationToken.SEEK_AFTER_PREFIX) {
+					// the common prefix was listed by an earlier request
+					operationStatus = seekAfter(cursor, bucket, position
+							.getKey(), theKey, theData);
 				} else {
-					// try to find cursor starting with prefix
-					s3ObjectBucketKey.setKey(prefix);
+					s3ObjectBucketKey.setBucket(bucket);
+					s3ObjectBucketKey.setKey(position.getKey());
+					s3ObjectBucketKeyBinding.objectToEntry(s3ObjectBucketKey,
+							theKey);
+
+					// get first record "closest" to the key
+					operationStatus = cursor.getSearchKeyRange(theKey,
+							theData, LockMode.DEFAULT);
+					if ((operationStatus == OperationStatus.SUCCESS)
+							&& (position.getSeek() == ContinuationToken.SEEK_AFTER)) {
+						s3ObjectBucketKey = (S3Object) s3ObjectBucketKeyBinding
+								.entryToObject(theKey);
+						if (bucket.equals(s3ObjectBucketKey.getBucket())
+								&& position.getKey().equals(
+										s3ObjectBucketKey.getKey())) {
+							// skip to next result after the position
+							operationStatus = cursor.getNext(theKey, theData,
+									LockMode.DEFAULT);
+						}
+					}
 				}
 
-				theKey = new DatabaseEntry();
-				s3ObjectBucketKeyBinding.objectToEntry(s3ObjectBucketKey,
-						theKey);
-				theData = new DatabaseEntry();
-
-				// get first record "closest" to the key
-				if ((operationStatus = cursor.getSearchKeyRange(theKey,
-						theData, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+				while (operationStatus == OperationStatus.SUCCESS) {
 					s3ObjectBucketKey = (S3Object) s3ObjectBucketKeyBinding
 							.entryToObject(theKey);
+					if (!bucket.equals(s3ObjectBucketKey.getBucket())) {
+						break;
+					}
+
+					// restrict to results that begin with the prefix
+					key = s3ObjectBucketKey.getKey();
+					if (logger.isTraceEnabled()) {
+						logger.trace("bucket: " + bucket + " key: " + key);
+					}
+					if (!key.startsWith(prefix)) {
+						break;
+					}
 
-					if (bucket.equals(s3ObjectBucketKey.getBucket())) {
-						key = s3ObjectBucketKey.getKey();
-						if (logger.isTraceEnabled()) {
-							logger.trace("bucket: "
-									+ s3ObjectBucketKey.getBucket() + " key: "
-									+ key);
+					if (listing.size() >= maxKeys) {
+						listing.setTruncated(true);
+						break;
+					}
+
+					// is it a content or a common prefix?
+					commonPrefix = KeyRange.commonPrefix(key, prefixLength,
+							delimiter);
+					if (commonPrefix != null) {
+						listing.addCommonPrefix(commonPrefix);
+
+						// seek past the keys rolled up into the common prefix
+						operationStatus = seekAfter(cursor, bucket,
+								commonPrefix, theKey, theData);
+					} else {
+						if (cursor.getCurrent(theKey, theRecord,
+								LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+							throw new DataRetrievalFailureException(
+									"Could not read object in bucket: "
+											+ bucket + " key: " + key);
 						}
-						if (key.equals(marker)) {
-							// skip to next result after the marker
-							if ((operationStatus = cursor.getNext(theKey,
-									theData, LockMode.DEFAULT)) != OperationStatus.SUCCESS) {
-								key = s3ObjectBucketKey.getKey();
-							}
+						summary = (S3ObjectSummary) summaryBinding
+								.entryToObject(theRecord);
+						if (summary == null) {
+							throw new DataRetrievalFailureException(
+									"Could not decode object in bucket: "
+											+ bucket + " key: " + key);
 						}
+						listing.addContent(summary);
 
-						// restrict to results that begin with the prefix
-						while ((operationStatus == OperationStatus.SUCCESS)
-								&& key.startsWith(prefix)) {
-							if (!bucket.equals(s3ObjectBucketKey.getBucket())) {
-								break;
-							}
-
-							if (results >= maxKeys) {
-								truncated = true;
-								break;
-							}
-
-							// valid result
-							o = (S3Object) fileS3ObjectBinding
-									.entryToObject(theData);
-
-							// is it a content or a common prefix?
-							processed = false;
-							if (delimiter != null) {
-								key = o.getKey();
-								if ((delimiterIndex = key.indexOf(delimiter,
-										prefixLength)) != -1) {
-									// include the delimiter in the common
-									// prefix
-									currentPrefix = key
-											.substring(0, delimiterIndex
-													+ delimiter.length());
-									if (currentPrefix.equals(commonPrefix)) {
-										// skip common prefix
-										processed = true;
-									} else {
-										// new common prefix
-										commonPrefix = currentPrefix;
-										commonPrefixes.add(commonPrefix);
-										++results;
-										processed = true;
-									}
-								}
-							}
-							if (!processed) {
-								contents.add(o);
-								++results;
-								processed = true;
-							}
-
-							if ((operationStatus = cursor.getNext(theKey,
-									theData, LockMode.DEFAULT)) != OperationStatus.SUCCESS) {
-								break;
-							}
-
-							s3ObjectBucketKey = (S3Object) s3ObjectBucketKeyBinding
-									.entryToObject(theKey);
-							key = s3ObjectBucketKey.getKey();
-						}
+						operationStatus = cursor.getNext(theKey, theData,
+								LockMode.DEFAULT);
 					}
 				}
 			} catch (DatabaseException e) {
@@ -386,72 +506,213 @@ public class JeS3ObjectDao implements S3ObjectDao {
 			}
 		}
 
-		// generate XML from results
+		return listing;
+	}
 
-		StringBuffer buffer = new StringBuffer();
+	/**
+	 * Position a cursor at the first record of a bucket sorting after every
+	 * key starting with a prefix.
+	 * 
+	 * @param cursor
+	 *            The cursor.
+	 * @param bucket
+	 *            The bucket.
+	 * @param prefix
+	 *            The prefix to skip.
+	 * @param theKey
+	 *            Receives the key of the record.
+	 * @param theData
+	 *            Receives the data of the record.
+	 * @return <code>SUCCESS</code> if the cursor is positioned at a record.
+	 *         The record may be in a following bucket.
+	 * @throws DatabaseException
+	 *             Unable to position the cursor.
+	 */
+	private OperationStatus seekAfter(Cursor cursor, String bucket,
+			String prefix, DatabaseEntry theKey, DatabaseEntry theData)
+			throws DatabaseException {
+		S3Object s3ObjectBucketKey;
+		String end = KeyRange.prefixEnd(prefix);
+
+		if (end == null) {
+			return OperationStatus.NOTFOUND;
+		}
 
-		buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-		buffer
-				.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
-		buffer.append("<Name>").append(bucket).append("</Name>");
-		if (prefix.equals("")) {
-			buffer.append("<Prefix/>");
-		} else {
-			buffer.append("<Prefix>").append(prefix).append("</Prefix>");
+		s3ObjectBucketKey = new S3ObjectBucketKey();
+		s3ObjectBucketKey.setBucket(bucket);
+		s3ObjectBucketKey.setKey(end);
+		s3ObjectBucketKeyBinding.objectToEntry(s3ObjectBucketKey, theKey);
+
+		return cursor.getSearchKeyRange(theKey, theData, LockMode.DEFAULT);
+	}
+
+	/**
+	 * Read an object record.
+	 * 
+	 * @param database
+	 *            The object database.
+	 * @param theKey
+	 *            The key of the record.
+	 * @return The object, or <code>null</code> if there is no record.
+	 * @throws DatabaseException
+	 *             Unable to read the record.
+	 */
+	private S3Object loadEntry(Database database, DatabaseEntry theKey)
+			throws DatabaseException {
+		DatabaseEntry theData = new DatabaseEntry();
+
+		if (database.get(null, theKey, theData, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+			return null;
 		}
-		if ((marker == null) || (marker.equals(""))) {
-			buffer.append("<Marker/>");
-		} else {
-			buffer.append("<Marker>").append(marker).append("</Marker>");
+
+		return (S3Object) fileS3ObjectBinding.entryToObject(theData);
+	}
+
+	/**
+	 * Read the summary of an object record.
+	 * 
+	 * @param database
+	 *            The object database.
+	 * @param theKey
+	 *            The key of the record.
+	 * @return The summary, or <code>null</code> if there is no record.
+	 * @throws DatabaseException
+	 *             Unable to read the record.
+	 */
+	private S3ObjectSummary loadSummary(Database database, DatabaseEntry theKey)
+			throws DatabaseException {
+		DatabaseEntry theData = new DatabaseEntry();
+
+		if (database.get(null, theKey, theData, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
+			return null;
 		}
-		buffer.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
-		if (delimiter == null) {
-			buffer.append("<Delimiter/>");
-		} else {
-			buffer.append("<Delimiter>").append(delimiter).append(
-					"</Delimiter>");
-			// next marker is last key
-			if (results > 0) {
-				buffer.append("<NextMarker>").append(o.getKey()).append(
-						"</NextMarker>");
-			}
+
+		return (S3ObjectSummary) s3ObjectSummaryNoOwnerBinding
+				.entryToObject(theData);
+	}
+
+	/**
+	 * Get the usage of a bucket, counting it if the bucket has no usage
+	 * record. Must be called holding the usage lock of the bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The usage of the bucket.
+	 * @throws DatabaseException
+	 *             Unable to read the usage.
+	 */
+	private Usage loadUsage(String bucket) throws DatabaseException {
+		Usage usage = usages.get(bucket);
+		DatabaseEntry theKey;
+		DatabaseEntry theData;
+
+		if (usage != null) {
+			return usage;
 		}
-		buffer.append("<IsTruncated>").append(truncated).append(
-				"</IsTruncated>");
-
-		// print out contents
-		for (Iterator iter = contents.iterator(); iter.hasNext();) {
-			o = (S3Object) iter.next();
-			buffer.append("<Contents>");
-			buffer.append("<Key>").append(o.getKey()).append("</Key>");
-			buffer.append("<LastModified>").append(
-					iso8601.format(o.getLastModified())).append(
-					"</LastModified>");
-			buffer.append("<ETag>\"").append(o.getETag()).append("\"</ETag>");
-			buffer.append("<Size>").append(o.getContentLength()).append(
-					"</Size>");
-			buffer.append("<Owner>");
-			Acp acp = o.getAcp();
-			CanonicalUser owner = acp.getOwner();
-			buffer.append("<ID>").append(owner.getId()).append("</ID>");
-			buffer.append("<DisplayName>").append(owner.getDisplayName())
-					.append("</DisplayName>");
-			buffer.append("</Owner>");
-			buffer.append("<StorageClass>STANDARD</StorageClass>");
-			buffer.append("</Contents>");
+
+		theKey = new DatabaseEntry();
+		StringBinding.stringToEntry(bucket, theKey);
+		theData = new DatabaseEntry();
+
+		if (jeCentral.getDatabase(JeCentral.USAGE_DB_NAME).get(null, theKey,
+				theData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+			usage = (Usage) usageBinding.entryToObject(theData);
+			usages.put(bucket, usage);
+		} else {
+			logger.info("No usage record for bucket: " + bucket
+					+ ", counting the objects");
+			usage = countUsage(bucket);
+			storeUsage(bucket, usage);
 		}
 
-		// print common prefixes
-		for (Iterator iter = commonPrefixes.iterator(); iter.hasNext();) {
-			buffer.append("<CommonPrefixes>");
-			buffer.append("<Prefix>").append((String) iter.next()).append(
-					"</Prefix>");
-			buffer.append("</CommonPrefixes>");
+		return usage;
+	}
+
+	/**
+	 * Count the objects of a bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The usage of the bucket.
+	 * @throws DatabaseException
+	 *             Unable to read the objects.
+	 */
+	private Usage countUsage(String bucket) throws DatabaseException {
+		S3Object s3ObjectBucketKey = new S3ObjectBucketKey();
+		DatabaseEntry theKey = new DatabaseEntry();
+		DatabaseEntry theData = new DatabaseEntry();
+		Cursor cursor;
+		OperationStatus operationStatus;
+		S3ObjectSummary summary;
+		long objects = 0;
+		long bytes = 0;
+
+		s3ObjectBucketKey.setBucket(bucket);
+		s3ObjectBucketKey.setKey("");
+		s3ObjectBucketKeyBinding.objectToEntry(s3ObjectBucketKey, theKey);
+
+		cursor = jeCentral.getDatabase(JeCentral.OBJECT_DB_NAME).openCursor(
+				null, null);
+		try {
+			operationStatus = cursor.getSearchKeyRange(theKey, theData,
+					LockMode.DEFAULT);
+			while (operationStatus == OperationStatus.SUCCESS) {
+				s3ObjectBucketKey = (S3Object) s3ObjectBucketKeyBinding
+						.entryToObject(theKey);
+				if (!bucket.equals(s3ObjectBucketKey.getBucket())) {
+					break;
+				}
+
+				objects++;
+				summary = (S3ObjectSummary) s3ObjectSummaryNoOwnerBinding
+						.entryToObject(theData);
+				if (summary != null) {
+					bytes += summary.getSize();
+				}
+
+				operationStatus = cursor.getNext(theKey, theData,
+						LockMode.DEFAULT);
+			}
+		} finally {
+			cursor.close();
 		}
 
-		buffer.append("</ListBucketResult>");
+		return new Usage(objects, bytes);
+	}
+
+	/**
+	 * Write the usage record of a bucket. Must be called holding the usage
+	 * lock of the bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @param usage
+	 *            The usage of the bucket.
+	 * @throws DatabaseException
+	 *             Unable to write the usage.
+	 */
+	private void storeUsage(String bucket, Usage usage)
+			throws DatabaseException {
+		DatabaseEntry theKey = new DatabaseEntry();
+		DatabaseEntry theData = new DatabaseEntry();
+
+		StringBinding.stringToEntry(bucket, theKey);
+		usageBinding.objectToEntry(usage, theData);
+
+		jeCentral.getDatabase(JeCentral.USAGE_DB_NAME).put(null, theKey,
+				theData);
+		usages.put(bucket, usage);
+	}
 
-		return buffer.toString();
+	/**
+	 * Get the usage lock of a bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @return The lock serializing the updates of the usage of the bucket.
+	 */
+	private Object usageLock(String bucket) {
+		return usageLocks[(bucket.hashCode() & 0x7fffffff) % usageLocks.length];
 	}
 
 	public Database getDatabase() {
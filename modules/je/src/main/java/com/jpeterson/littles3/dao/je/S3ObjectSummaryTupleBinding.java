@@ -0,0 +1,91 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.je;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.dao.codec.MetadataCodec;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * Reads the listing projection of an object record, an
+ * <code>S3ObjectSummary</code>, without building the whole object. Read only;
+ * records are written by <code>FileS3ObjectTupleBinding</code>.
+ * 
+ * @author Jesse Peterson
+ */
+public class S3ObjectSummaryTupleBinding extends TupleBinding {
+	private Log logger;
+
+	private TupleBinding fileS3ObjectBinding = new FileS3ObjectTupleBinding();
+
+	private boolean owner;
+
+	public S3ObjectSummaryTupleBinding() {
+		this(true);
+	}
+
+	/**
+	 * Create a binding.
+	 * 
+	 * @param owner
+	 *            <code>True</code> to read the owner of the object. If
+	 *            <code>false</code>, a record is read only up to the last
+	 *            modified time.
+	 */
+	public S3ObjectSummaryTupleBinding(boolean owner) {
+		super();
+		logger = LogFactory.getLog(this.getClass());
+		this.owner = owner;
+	}
+
+	@Override
+	public Object entryToObject(TupleInput entry) {
+		S3Object s3Object;
+
+		if ((entry.available() > 0)
+				&& MetadataCodec.isEncoded(entry.getBufferBytes()[entry
+						.getBufferOffset()] & 0xff)) {
+			try {
+				return MetadataCodec.decodeS3ObjectSummary(
+						new DataInputStream(entry), owner);
+			} catch (IOException e) {
+				logger.error("Unable to decode the database record", e);
+				return null;
+			}
+		}
+
+		// written by an earlier version, decode the whole object
+		s3Object = (S3Object) fileS3ObjectBinding.entryToObject(entry);
+
+		return (s3Object == null) ? null : new S3ObjectSummary(s3Object);
+	}
+
+	@Override
+	public void objectToEntry(Object object, TupleOutput entry) {
+		throw new UnsupportedOperationException(
+				"Object summaries are read only");
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.je;
+
+import com.jpeterson.littles3.bo.Usage;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * Binds the usage record of a bucket: the number of objects and their total
+ * size.
+ * 
+ * @author Jesse Peterson
+ */
+public class UsageTupleBinding extends TupleBinding {
+	@Override
+	public Object entryToObject(TupleInput entry) {
+		long objects = entry.readLong();
+		long bytes = entry.readLong();
+
+		return new Usage(objects, bytes);
+	}
+
+	@Override
+	public void objectToEntry(Object object, TupleOutput entry) {
+		Usage usage = (Usage) object;
+
+		entry.writeLong(usage.getObjects());
+		entry.writeLong(usage.getBytes());
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3.dao.je;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.bo.Usage;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.DatabaseEntry;
+
+public class JeS3ObjectDaoTest extends TestCase {
+	private static final String BUCKET = "bucket";
+
+	private Log logger;
+
+	private File storage;
+
+	private BaseConfiguration configuration;
+
+	private JeCentral jeCentral;
+
+	private JeS3ObjectDao dao;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public JeS3ObjectDaoTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("JeS3ObjectDaoTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(JeS3ObjectDaoTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		storage = File.createTempFile("JeS3ObjectDaoTest", null);
+		storage.delete();
+		new File(storage, "db").mkdirs();
+
+		configuration = new BaseConfiguration();
+		configuration.setProperty("storageLocation", storage.getPath());
+		configuration.setProperty("dir.db", "db");
+		configuration.setProperty("db." + JeCentral.OBJECT_DB_NAME,
+				"objectDatabase");
+		configuration.setProperty("db." + JeCentral.BUCKET_DB_NAME,
+				"bucketDatabase");
+
+		open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files;
+
+		jeCentral.destroy();
+
+		files = new File(storage, "db").listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		new File(storage, "db").delete();
+		files = storage.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		storage.delete();
+	}
+
+	/**
+	 * Test listing with a delimiter, rolling keys up into common prefixes,
+	 * and stopping at the end of the bucket.
+	 */
+	public void test_delimiter() throws Exception {
+		ObjectListing listing;
+
+		store("a");
+		store("b/1");
+		store("b/2");
+		store("b/3/x");
+		store("c");
+		store("d/1");
+		store("e/1");
+		store(BUCKET + "0", "a");
+		store(BUCKET + "0", "e/2");
+
+		listing = dao.listKeys(BUCKET, null, null, "/", 100);
+		assertEquals("Unexpected value", "[a, c]", keys(listing));
+		assertEquals("Unexpected value", "[b/, d/, e/]", listing
+				.getCommonPrefixes().toString());
+		assertFalse("Should not be truncated", listing.isTruncated());
+
+		listing = dao.listKeys(BUCKET, "b/", null, "/", 100);
+		assertEquals("Unexpected value", "[b/1, b/2]", keys(listing));
+		assertEquals("Unexpected value", "[b/3/]", listing.getCommonPrefixes()
+				.toString());
+
+		listing = dao.listKeys(BUCKET + "0", null, null, null, 100);
+		assertEquals("Unexpected value", "[a, e/2]", keys(listing));
+	}
+
+	/**
+	 * Test paging through a listing with a delimiter, using the next marker
+	 * to seek after the common prefix of the last page.
+	 */
+	public void test_delimiterPaging() throws Exception {
+		List<String> pages = new ArrayList<String>();
+		String marker = null;
+		ObjectListing listing;
+
+		store("a");
+		store("b/1");
+		store("b/2");
+		store("c");
+		store("d/1");
+		store("d/2");
+
+		do {
+			listing = dao.listKeys(BUCKET, null, marker, "/", 1);
+			pages.add(keys(listing) + listing.getCommonPrefixes());
+			marker = listing.getNextMarker();
+		} while (listing.isTruncated());
+
+		assertEquals("Unexpected value",
+				"[[a][], [][b/], [c][], [][d/]]", pages.toString());
+	}
+
+	/**
+	 * Test paging through a listing with continuation tokens, resuming from
+	 * the position the last page stopped at.
+	 */
+	public void test_continuationToken() throws Exception {
+		List<String> pages = new ArrayList<String>();
+		ContinuationToken position = null;
+		ObjectListing listing;
+
+		store("a");
+		store("b/1");
+		store("b/2");
+		store("c");
+		store("d/1");
+		store("d/2");
+
+		do {
+			listing = dao.listKeys(BUCKET, null, position, "/", 1, false);
+			pages.add(keys(listing) + listing.getCommonPrefixes());
+			position = listing.getNextContinuationToken();
+			if (position != null) {
+				// resume from the decoded token, as a client would
+				position = ContinuationToken.decode(position.encode());
+			}
+			if (pages.size() == 2) {
+				// stored after the last page, sorts after its common prefix
+				store("b0");
+			}
+		} while (listing.isTruncated());
+
+		assertEquals("Unexpected value",
+				"[[a][], [][b/], [b0][], [c][], [][d/]]", pages.toString());
+
+		// start after a key
+		listing = dao.listKeys(BUCKET, null, new ContinuationToken("b/1",
+				ContinuationToken.SEEK_AFTER), null, 2, true);
+		assertEquals("Unexpected value", "[b/2, b0]", keys(listing));
+		assertTrue("Should be truncated", listing.isTruncated());
+	}
+
+	/**
+	 * Test that a common prefix with no end, made of the last character, ends
+	 * the listing.
+	 */
+	public void test_prefixEnd() throws Exception {
+		ObjectListing listing;
+
+		store("a");
+		store("\uffff/1");
+		store("\uffff/2");
+
+		listing = dao.listKeys(BUCKET, "\uffff", null, "/", 100);
+		assertEquals("Unexpected value", "[]", keys(listing));
+		assertEquals("Unexpected value", "[\uffff/]", listing
+				.getCommonPrefixes().toString());
+		assertFalse("Should not be truncated", listing.isTruncated());
+	}
+
+	/**
+	 * Test that the listing summary is read from current records with and
+	 * without the owner, and from records written by an earlier version.
+	 */
+	public void test_summary() throws Exception {
+		S3Object s3Object = object(BUCKET, "key", 1234);
+		S3Object legacyObject = object(BUCKET, "legacy", 99);
+		TupleOutput legacy = new TupleOutput();
+		DatabaseEntry theKey = new DatabaseEntry();
+		S3ObjectSummary summary;
+
+		s3Object.getAcp().getOwner().setDisplayName("Owner");
+		dao.storeS3Object(s3Object);
+
+		summary = (S3ObjectSummary) dao.listKeys(BUCKET, null,
+				(ContinuationToken) null, null, 10, true).getContents()
+				.get(0);
+		assertEquals("Unexpected value", "key", summary.getKey());
+		assertEquals("Unexpected value", 1234, summary.getSize());
+		assertEquals("Unexpected value", "etag", summary.getETag());
+		assertEquals("Unexpected value", s3Object.getLastModified(), summary
+				.getLastModified());
+		assertEquals("Unexpected value", "ownerId", summary.getOwnerId());
+		assertEquals("Unexpected value", "Owner", summary
+				.getOwnerDisplayName());
+
+		summary = (S3ObjectSummary) dao.listKeys(BUCKET, null,
+				(ContinuationToken) null, null, 10, false).getContents()
+				.get(0);
+		assertEquals("Unexpected value", 1234, summary.getSize());
+		assertNull("Unexpected value", summary.getOwnerId());
+
+		// written by an earlier version
+		legacy.writeString(BUCKET);
+		legacy.writeString("legacy");
+		legacy.writeString(legacyObject.getStorageUrl().toString());
+		legacy.writeString((String) null);
+		legacy.writeLong(99);
+		legacy.writeString((String) null);
+		legacy.writeString("text/plain");
+		legacy.writeString("legacyEtag");
+		legacy.writeLong(2000L);
+		legacy.writeString("legacyOwner");
+		legacy.writeInt(0);
+		new S3ObjectBucketKeyTupleBinding().objectToEntry(legacyObject,
+				theKey);
+		jeCentral.getDatabase(JeCentral.OBJECT_DB_NAME).put(null, theKey,
+				new DatabaseEntry(legacy.toByteArray()));
+
+		summary = (S3ObjectSummary) dao.listKeys(BUCKET, "legacy", null,
+				null, 10).getContents().get(0);
+		assertEquals("Unexpected value", "legacy", summary.getKey());
+		assertEquals("Unexpected value", 99, summary.getSize());
+		assertEquals("Unexpected value", "legacyEtag", summary.getETag());
+		assertEquals("Unexpected value", legacyObject.getLastModified(),
+				summary.getLastModified());
+		assertEquals("Unexpected value", "legacyOwner", summary.getOwnerId());
+		assertEquals("Unexpected value", "text/plain", dao.loadS3Object(
+				BUCKET, "legacy").getContentType());
+	}
+
+	/**
+	 * Test that the usage of a bucket follows stores, replacements and
+	 * removes, survives reopening the database, and is counted again when the
+	 * bucket has no usage record.
+	 */
+	public void test_usage() throws Exception {
+		DatabaseEntry theKey = new DatabaseEntry();
+		S3Object replaced;
+
+		assertNull("Unexpected value", dao.storeS3Object(object(BUCKET, "a",
+				10)));
+		dao.storeS3Object(object(BUCKET, "b", 20));
+		dao.storeS3Object(object(BUCKET, "c", 5));
+		dao.storeS3Object(object(BUCKET + "0", "x", 7));
+		replaced = dao.storeS3Object(object(BUCKET, "a", 15));
+		assertEquals("Unexpected value", 10, replaced.getContentLength());
+		dao.removeS3Object(object(BUCKET, "c", 0));
+		dao.removeS3Object(object(BUCKET, "missing", 0));
+
+		assertEquals("Unexpected value", new Usage(2, 35), dao
+				.getUsage(BUCKET));
+		assertEquals("Unexpected value", new Usage(1, 7), dao
+				.getUsage(BUCKET + "0"));
+		assertTrue("Unexpected value", dao.getUsage("empty").isEmpty());
+		assertTrue("Unexpected value", dao.getPrefixUsage(BUCKET).isEmpty());
+
+		jeCentral.destroy();
+		open();
+		assertEquals("Unexpected value", new Usage(2, 35), dao
+				.getUsage(BUCKET));
+
+		// no usage record, as written by an earlier version
+		StringBinding.stringToEntry(BUCKET, theKey);
+		jeCentral.getDatabase(JeCentral.USAGE_DB_NAME).delete(null, theKey);
+		jeCentral.destroy();
+		open();
+		assertEquals("Unexpected value", new Usage(2, 35), dao
+				.getUsage(BUCKET));
+		dao.removeS3Object(object(BUCKET, "b", 0));
+		assertEquals("Unexpected value", new Usage(1, 15), dao
+				.getUsage(BUCKET));
+	}
+
+	/**
+	 * Open the database environment, and a DAO using it.
+	 */
+	private void open() throws Exception {
+		jeCentral = new JeCentral();
+		jeCentral.setConfiguration(configuration);
+		jeCentral.init();
+
+		dao = new JeS3ObjectDao();
+		dao.setJeCentral(jeCentral);
+	}
+
+	private void store(String key) throws Exception {
+		store(BUCKET, key);
+	}
+
+	private void store(String bucket, String key) throws Exception {
+		dao.storeS3Object(object(bucket, key, 0));
+	}
+
+	/**
+	 * Create an object, with data of a size. The content length of a
+	 * <code>FileS3Object</code> is the length of its data.
+	 */
+	private S3Object object(String bucket, String key, long size)
+			throws Exception {
+		File data = new File(storage, "data" + size);
+		S3Object s3Object = new FileS3Object(bucket, key, data.toURI()
+				.toURL());
+		RandomAccessFile file = new RandomAccessFile(data, "rw");
+		Acp acp = new Acp();
+
+		try {
+			file.setLength(size);
+		} finally {
+			file.close();
+		}
+
+		acp.setOwner(new CanonicalUser("ownerId"));
+		s3Object.setAcp(acp);
+		s3Object.setContentLength(size);
+		s3Object.setETag("etag");
+
+		return s3Object;
+	}
+
+	private String keys(ObjectListing listing) {
+		List<String> keys = new ArrayList<String>();
+
+		for (S3ObjectSummary summary : listing.getContents()) {
+			keys.add(summary.getKey());
+		}
+
+		return keys.toString();
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.DataUsage;
+import com.jpeterson.littles3.bo.MultipartUpload;
+import com.jpeterson.littles3.bo.ObjectListing;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.bo.S3ObjectSummary;
+import com.jpeterson.littles3.bo.UploadPart;
+import com.jpeterson.littles3.bo.Usage;
+import com.jpeterson.util.xml.XmlWriter;
+import com.jpeterson.util.xml.XmlWriter.Tag;
+
+/**
+ * Streams the S3 listing documents, <code>ListBucketResult</code>, in its
+ * original and <code>list-type=2</code> forms,
+ * <code>ListAllMyBucketsResult</code>, the multipart upload documents, and
+ * the <code>UsageResult</code> of the <code>?usage</code> extension, to an
+ * output stream as UTF-8.
+ * <p>
+ * A writer is used for one response; it is not thread safe.
+ * </p>
+ * 
+ * @author Jesse Peterson
+ */
+public class ListingWriter {
+	private static final String XMLNS = "xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"";
+
+	private static final Tag LIST_BUCKET_RESULT = new Tag("ListBucketResult",
+			XMLNS);
+
+	private static final Tag LIST_ALL_MY_BUCKETS_RESULT = new Tag(
+			"ListAllMyBucketsResult", XMLNS);
+
+	private static final Tag USAGE_RESULT = new Tag("UsageResult", XMLNS);
+
+	private static final Tag DATA_USAGE_RESULT = new Tag("DataUsageResult",
+			XMLNS);
+
+	private static final Tag INITIATE_MULTIPART_UPLOAD_RESULT = new Tag(
+			"InitiateMultipartUploadResult", XMLNS);
+
+	private static final Tag COMPLETE_MULTIPART_UPLOAD_RESULT = new Tag(
+			"CompleteMultipartUploadResult", XMLNS);
+
+	private static final Tag LIST_PARTS_RESULT = new Tag("ListPartsResult",
+			XMLNS);
+
+	private static final Tag NAME = new Tag("Name");
+
+	private static final Tag PREFIX = new Tag("Prefix");
+
+	private static final Tag MARKER = new Tag("Marker");
+
+	private static final Tag MAX_KEYS = new Tag("MaxKeys");
+
+	private static final Tag DELIMITER = new Tag("Delimiter");
+
+	private static final Tag NEXT_MARKER = new Tag("NextMarker");
+
+	private static final Tag IS_TRUNCATED = new Tag("IsTruncated");
+
+	private static final Tag KEY_COUNT = new Tag("KeyCount");
+
+	private static final Tag CONTINUATION_TOKEN = new Tag("ContinuationToken");
+
+	private static final Tag NEXT_CONTINUATION_TOKEN = new Tag(
+			"NextContinuationToken");
+
+	private static final Tag START_AFTER = new Tag("StartAfter");
+
+	private static final Tag CONTENTS = new Tag("Contents");
+
+	private static final Tag KEY = new Tag("Key");
+
+	private static final Tag LAST_MODIFIED = new Tag("LastModified");
+
+	private static final Tag ETAG = new Tag("ETag");
+
+	private static final Tag SIZE = new Tag("Size");
+
+	private static final Tag OWNER = new Tag("Owner");
+
+	private static final Tag ID = new Tag("ID");
+
+	private static final Tag DISPLAY_NAME = new Tag("DisplayName");
+
+	private static final Tag STORAGE_CLASS = new Tag("StorageClass");
+
+	private static final Tag COMMON_PREFIXES = new Tag("CommonPrefixes");
+
+	private static final Tag BUCKETS = new Tag("Buckets");
+
+	private static final Tag BUCKET = new Tag("Bucket");
+
+	private static final Tag CREATION_DATE = new Tag("CreationDate");
+
+	private static final Tag OBJECTS = new Tag("Objects");
+
+	private static final Tag BYTES = new Tag("Bytes");
+
+	private static final Tag PREFIX_USAGE = new Tag("PrefixUsage");
+
+	private static final Tag DEDUPLICATED = new Tag("Deduplicated");
+
+	private static final Tag STORED_OBJECTS = new Tag("StoredObjects");
+
+	private static final Tag STORED_BYTES = new Tag("StoredBytes");
+
+	private static final Tag SAVED_BYTES = new Tag("SavedBytes");
+
+	private static final Tag UPLOAD_ID = new Tag("UploadId");
+
+	private static final Tag LOCATION = new Tag("Location");
+
+	private static final Tag INITIATOR = new Tag("Initiator");
+
+	private static final Tag PART_NUMBER_MARKER = new Tag("PartNumberMarker");
+
+	private static final Tag NEXT_PART_NUMBER_MARKER = new Tag(
+			"NextPartNumberMarker");
+
+	private static final Tag MAX_PARTS = new Tag("MaxParts");
+
+	private static final Tag PART = new Tag("Part");
+
+	private static final Tag PART_NUMBER = new Tag("PartNumber");
+
+	private static final String STORAGE_CLASS_STANDARD = "STANDARD";
+
+	private XmlWriter xml;
+
+	private SimpleDateFormat iso8601;
+
+	/**
+	 * Create a writer.
+	 * 
+	 * @param out
+	 *            Where to write the document.
+	 */
+	public ListingWriter(OutputStream out) {
+		xml = new XmlWriter(out);
+		iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Write a <code>ListBucketResult</code> document.
+	 * 
+	 * @param listing
+	 *            The page of the listing.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeListBucketResult(ObjectListing listing)
+			throws IOException {
+		xml.declaration();
+		xml.start(LIST_BUCKET_RESULT);
+		xml.element(NAME, listing.getBucket());
+		xml.element(PREFIX, listing.getPrefix());
+		xml.element(MARKER, listing.getMarker());
+		xml.element(MAX_KEYS, listing.getMaxKeys());
+		xml.element(DELIMITER, listing.getDelimiter());
+		if ((listing.getDelimiter() != null) && (listing.size() > 0)) {
+			// next marker is the last key or common prefix
+			xml.element(NEXT_MARKER, listing.getNextMarker());
+		}
+		xml.element(IS_TRUNCATED, listing.isTruncated());
+		writeResults(listing, true);
+		xml.end(LIST_BUCKET_RESULT);
+	}
+
+	/**
+	 * Write a <code>list-type=2</code> <code>ListBucketResult</code>
+	 * document.
+	 * 
+	 * @param listing
+	 *            The page of the listing.
+	 * @param continuationToken
+	 *            The continuation token the page was requested with. May be
+	 *            <code>null</code>.
+	 * @param startAfter
+	 *            The key the page was requested to start after. May be
+	 *            <code>null</code>.
+	 * @param fetchOwner
+	 *            <code>True</code> to write the owners of the objects.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeListBucketResultV2(ObjectListing listing,
+			String continuationToken, String startAfter, boolean fetchOwner)
+			throws IOException {
+		ContinuationToken next = listing.getNextContinuationToken();
+
+		xml.declaration();
+		xml.start(LIST_BUCKET_RESULT);
+		xml.element(NAME, listing.getBucket());
+		xml.element(PREFIX, listing.getPrefix());
+		xml.element(MAX_KEYS, listing.getMaxKeys());
+		xml.element(KEY_COUNT, listing.size());
+		if (listing.getDelimiter() != null) {
+			xml.element(DELIMITER, listing.getDelimiter());
+		}
+		if (continuationToken != null) {
+			xml.element(CONTINUATION_TOKEN, continuationToken);
+		}
+		if (next != null) {
+			xml.element(NEXT_CONTINUATION_TOKEN, next.encode());
+		}
+		if (startAfter != null) {
+			xml.element(START_AFTER, startAfter);
+		}
+		xml.element(IS_TRUNCATED, listing.isTruncated());
+		writeResults(listing, fetchOwner);
+		xml.end(LIST_BUCKET_RESULT);
+	}
+
+	/**
+	 * Write a <code>ListAllMyBucketsResult</code> document.
+	 * 
+	 * @param owner
+	 *            The owner of the buckets.
+	 * @param buckets
+	 *            The buckets.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeListAllMyBucketsResult(CanonicalUser owner,
+			List<Bucket> buckets) throws IOException {
+		xml.declaration();
+		xml.start(LIST_ALL_MY_BUCKETS_RESULT);
+		xml.start(OWNER);
+		xml.element(ID, owner.getId());
+		xml.element(DISPLAY_NAME, owner.getDisplayName());
+		xml.end(OWNER);
+		xml.start(BUCKETS);
+		for (Bucket bucket : buckets) {
+			xml.start(BUCKET);
+			xml.element(NAME, bucket.getName());
+			xml.element(CREATION_DATE, iso8601.format(bucket.getCreated()));
+			xml.end(BUCKET);
+		}
+		xml.end(BUCKETS);
+		xml.end(LIST_ALL_MY_BUCKETS_RESULT);
+	}
+
+	/**
+	 * Write a <code>UsageResult</code> document.
+	 * 
+	 * @param bucket
+	 *            The bucket name.
+	 * @param usage
+	 *            The usage of the bucket.
+	 * @param prefixUsage
+	 *            The usage of the key prefixes of the bucket, by prefix.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeUsageResult(String bucket, Usage usage,
+			SortedMap<String, Usage> prefixUsage) throws IOException {
+		xml.declaration();
+		xml.start(USAGE_RESULT);
+		xml.element(NAME, bucket);
+		xml.element(OBJECTS, usage.getObjects());
+		xml.element(BYTES, usage.getBytes());
+		for (Map.Entry<String, Usage> entry : prefixUsage.entrySet()) {
+			xml.start(PREFIX_USAGE);
+			xml.element(PREFIX, entry.getKey());
+			xml.element(OBJECTS, entry.getValue().getObjects());
+			xml.element(BYTES, entry.getValue().getBytes());
+			xml.end(PREFIX_USAGE);
+		}
+		xml.end(USAGE_RESULT);
+	}
+
+	/**
+	 * Write a <code>DataUsageResult</code> document.
+	 * 
+	 * @param usage
+	 *            The usage of the deduplicated object data, or
+	 *            <code>null</code> if object data is not deduplicated.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeDataUsageResult(DataUsage usage) throws IOException {
+		xml.declaration();
+		xml.start(DATA_USAGE_RESULT);
+		xml.element(DEDUPLICATED, usage != null);
+		if (usage != null) {
+			xml.element(OBJECTS, usage.getReferenced().getObjects());
+			xml.element(BYTES, usage.getReferenced().getBytes());
+			xml.element(STORED_OBJECTS, usage.getStored().getObjects());
+			xml.element(STORED_BYTES, usage.getStored().getBytes());
+			xml.element(SAVED_BYTES, usage.getSavedBytes());
+		}
+		xml.end(DATA_USAGE_RESULT);
+	}
+
+	/**
+	 * Write an <code>InitiateMultipartUploadResult</code> document.
+	 * 
+	 * @param upload
+	 *            The initiated upload.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeInitiateMultipartUploadResult(MultipartUpload upload)
+			throws IOException {
+		xml.declaration();
+		xml.start(INITIATE_MULTIPART_UPLOAD_RESULT);
+		xml.element(BUCKET, upload.getBucket());
+		xml.element(KEY, upload.getKey());
+		xml.element(UPLOAD_ID, upload.getUploadId());
+		xml.end(INITIATE_MULTIPART_UPLOAD_RESULT);
+	}
+
+	/**
+	 * Write a <code>CompleteMultipartUploadResult</code> document.
+	 * 
+	 * @param location
+	 *            The URL of the object.
+	 * @param s3Object
+	 *            The object assembled from the parts.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeCompleteMultipartUploadResult(String location,
+			S3Object s3Object) throws IOException {
+		xml.declaration();
+		xml.start(COMPLETE_MULTIPART_UPLOAD_RESULT);
+		xml.element(LOCATION, location);
+		xml.element(BUCKET, s3Object.getBucket());
+		xml.element(KEY, s3Object.getKey());
+		xml.element(ETAG, "\"" + s3Object.getETag() + "\"");
+		xml.end(COMPLETE_MULTIPART_UPLOAD_RESULT);
+	}
+
+	/**
+	 * Write a <code>ListPartsResult</code> document.
+	 * 
+	 * @param upload
+	 *            The upload.
+	 * @param parts
+	 *            The page of parts.
+	 * @param partNumberMarker
+	 *            The part number the page starts after.
+	 * @param maxParts
+	 *            The maximum number of parts in a page.
+	 * @param truncated
+	 *            <code>True</code> if there are more parts after the page.
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void writeListPartsResult(MultipartUpload upload,
+			List<UploadPart> parts, int partNumberMarker, int maxParts,
+			boolean truncated) throws IOException {
+		CanonicalUser owner = upload.getOwner();
+
+		xml.declaration();
+		xml.start(LIST_PARTS_RESULT);
+		xml.element(BUCKET, upload.getBucket());
+		xml.element(KEY, upload.getKey());
+		xml.element(UPLOAD_ID, upload.getUploadId());
+		xml.start(INITIATOR);
+		xml.element(ID, owner.getId());
+		xml.element(DISPLAY_NAME, owner.getDisplayName());
+		xml.end(INITIATOR);
+		xml.start(OWNER);
+		xml.element(ID, owner.getId());
+		xml.element(DISPLAY_NAME, owner.getDisplayName());
+		xml.end(OWNER);
+		xml.element(STORAGE_CLASS, STORAGE_CLASS_STANDARD);
+		xml.element(PART_NUMBER_MARKER, partNumberMarker);
+		if (!parts.isEmpty()) {
+			xml.element(NEXT_PART_NUMBER_MARKER, parts.get(parts.size() - 1)
+					.getPartNumber());
+		}
+		xml.element(MAX_PARTS, maxParts);
+		xml.element(IS_TRUNCATED, truncated);
+		for (UploadPart part : parts) {
+			xml.start(PART);
+			xml.element(PART_NUMBER, part.getPartNumber());
+			xml.element(LAST_MODIFIED, iso8601.format(new Date(part
+					.getLastModified())));
+			xml.element(ETAG, "\"" + part.getETag() + "\"");
+			xml.element(SIZE, part.getSize());
+			xml.end(PART);
+		}
+		xml.end(LIST_PARTS_RESULT);
+	}
+
+	/**
+	 * Write the objects and common prefixes of a page.
+	 */
+	private void writeResults(ObjectListing listing, boolean owner)
+			throws IOException {
+		for (S3ObjectSummary content : listing.getContents()) {
+			xml.start(CONTENTS);
+			xml.element(KEY, content.getKey());
+			xml.element(LAST_MODIFIED, iso8601.format(new Date(content
+					.getLastModified())));
+			xml.element(ETAG, "\"" + content.getETag() + "\"");
+			xml.element(SIZE, content.getSize());
+			if (owner) {
+				xml.start(OWNER);
+				xml.element(ID, content.getOwnerId());
+				xml.element(DISPLAY_NAME, content.getOwnerDisplayName());
+				xml.end(OWNER);
+			}
+			xml.element(STORAGE_CLASS, STORAGE_CLASS_STANDARD);
+			xml.end(CONTENTS);
+		}
+
+		for (String commonPrefix : listing.getCommonPrefixes()) {
+			xml.start(COMMON_PREFIXES);
+			xml.element(PREFIX, commonPrefix);
+			xml.end(COMMON_PREFIXES);
+		}
+	}
+
+	/**
+	 * Write the buffered output and flush the output stream.
+	 * 
+	 * @throws IOException
+	 *             Unable to write.
+	 */
+	public void flush() throws IOException {
+		xml.flush();
+	}
+}
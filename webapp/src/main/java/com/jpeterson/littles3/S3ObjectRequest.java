@@ -53,7 +53,12 @@ public class S3ObjectRequest {
 
 	private Date timestamp;
 
-	private static final String PARAMETER_ACL = "acl";
+	/**
+	 * The sub-resources that are signed, in the sorted order they are added
+	 * to the canonicalized resource.
+	 */
+	private static final String[] SUBRESOURCES = { "acl", "partNumber",
+			"uploadId", "uploads" };
 
 	private static boolean debug = false;
 
@@ -188,8 +193,19 @@ public class S3ObjectRequest {
 		if (undecodedPathPart != null) {
 			canonicalizedResource.append(undecodedPathPart);
 		}
-		if (req.getParameter(PARAMETER_ACL) != null) {
-			canonicalizedResource.append("?").append(PARAMETER_ACL);
+		// sub-resources, sorted
+		String separator = "?";
+		for (int i = 0; i < SUBRESOURCES.length; i++) {
+			value = req.getParameter(SUBRESOURCES[i]);
+
+			if (value != null) {
+				canonicalizedResource.append(separator).append(
+						SUBRESOURCES[i]);
+				if (value.length() > 0) {
+					canonicalizedResource.append("=").append(value);
+				}
+				separator = "&";
+			}
 		}
 
 		// CanonicalizedAmzHeaders
@@ -16,21 +16,21 @@
 
 package com.jpeterson.littles3;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.AccessControlException;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
-import java.util.TimeZone;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -43,6 +43,10 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.Namespace;
+import org.jdom.input.SAXBuilder;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.web.servlet.FrameworkServlet;
@@ -54,21 +58,35 @@ import com.jpeterson.littles3.bo.Authenticator;
 import com.jpeterson.littles3.bo.AuthenticatorException;
 import com.jpeterson.littles3.bo.Bucket;
 import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.ContinuationToken;
+import com.jpeterson.littles3.bo.FileS3Object;
 import com.jpeterson.littles3.bo.InvalidAccessKeyIdException;
 import com.jpeterson.littles3.bo.InvalidSecurityException;
+import com.jpeterson.littles3.bo.MultipartUpload;
 import com.jpeterson.littles3.bo.RequestTimeTooSkewedException;
+import com.jpeterson.littles3.bo.ObjectListing;
 import com.jpeterson.littles3.bo.ResourcePermission;
 import com.jpeterson.littles3.bo.S3Object;
 import com.jpeterson.littles3.bo.SignatureDoesNotMatchException;
+import com.jpeterson.littles3.bo.UploadPart;
 import com.jpeterson.littles3.service.BucketAlreadyExistsException;
 import com.jpeterson.littles3.service.BucketNotEmptyException;
+import com.jpeterson.littles3.service.EntityTooSmallException;
+import com.jpeterson.littles3.service.InvalidPartException;
+import com.jpeterson.littles3.service.InvalidPartOrderException;
+import com.jpeterson.littles3.service.QuotaExceededException;
 import com.jpeterson.littles3.service.StorageService;
+import com.jpeterson.littles3.service.cache.CachedS3Object;
+import com.jpeterson.littles3.service.cache.ObjectCache;
 import com.jpeterson.util.etag.ETag;
 import com.jpeterson.util.etag.FileETag;
+import com.jpeterson.util.http.AwsChunkedInputStream;
+import com.jpeterson.util.http.MalformedChunkException;
+import com.jpeterson.util.http.Preconditions;
 import com.jpeterson.util.http.Range;
 import com.jpeterson.util.http.RangeFactory;
-import com.jpeterson.util.http.RangeInputStream;
 import com.jpeterson.util.http.RangeSet;
+import com.jpeterson.util.io.BufferPool;
 
 public class StorageEngine extends FrameworkServlet {
 	/**
@@ -106,22 +124,55 @@ public class StorageEngine extends FrameworkServlet {
 	 */
 	public static final String CONFIG_HOST_TOKEN_RESOLVED_LOCAL_HOST = "$resolvedLocalHost$";
 
+	/**
+	 * Configuration property enabling the container "sendfile" support for
+	 * object data, if the container offers it. Defaults to <code>true</code>.
+	 */
+	public static final String CONFIG_TRANSFER_SENDFILE = "transfer.sendfile";
+
+	/**
+	 * Configuration property defining the size, in bytes, of the pooled
+	 * buffers used to copy object data when "sendfile" isn't available.
+	 */
+	public static final String CONFIG_TRANSFER_BUFFER_SIZE = "transfer.bufferSize";
+
+	/**
+	 * Configuration property defining the maximum number of idle pooled
+	 * buffers.
+	 */
+	public static final String CONFIG_TRANSFER_BUFFER_POOL_MAX = "transfer.bufferPool.max";
+
+	/**
+	 * Request attribute set by the container (Tomcat NIO/APR connectors) when
+	 * it can send a file directly to the socket.
+	 */
+	public static final String ATTRIBUTE_SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+	public static final String ATTRIBUTE_SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	public static final String ATTRIBUTE_SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+	public static final String ATTRIBUTE_SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * Boundary separating the parts of a <code>multipart/byteranges</code>
+	 * response.
+	 */
+	public static final String MULTIPART_BOUNDARY = "LITTLES3_MIME_BOUNDARY";
+
 	public static final String BEAN_AUTHENTICATOR = "authenticator";
 	public static final String BEAN_STORAGE_SERVICE = "storageService";
 
+	/**
+	 * Optional bean caching small objects. If not defined, objects are not
+	 * cached.
+	 */
+	public static final String BEAN_OBJECT_CACHE = "objectCache";
+
 	private ETag eTag;
 
 	private Configuration configuration;
 
-	private static SimpleDateFormat iso8601 = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-
-	private static TimeZone utc = TimeZone.getTimeZone("UTC");
-
-	static {
-		iso8601.setTimeZone(utc);
-	}
-
 	private static final String HEADER_X_AMZ_ACL = "x-amz-acl";
 
 	private static final String ACL_PRIVATE = "private";
@@ -134,6 +185,42 @@ public class StorageEngine extends FrameworkServlet {
 
 	private static final String PARAMETER_ACL = "acl";
 
+	private static final String PARAMETER_LIST_TYPE = "list-type";
+
+	private static final String PARAMETER_CONTINUATION_TOKEN = "continuation-token";
+
+	private static final String PARAMETER_START_AFTER = "start-after";
+
+	private static final String PARAMETER_FETCH_OWNER = "fetch-owner";
+
+	private static final String PARAMETER_USAGE = "usage";
+
+	private static final String PARAMETER_UPLOADS = "uploads";
+
+	private static final String PARAMETER_UPLOAD_ID = "uploadId";
+
+	private static final String PARAMETER_PART_NUMBER = "partNumber";
+
+	private static final int MAX_PART_NUMBER = 10000;
+
+	private static final int MAX_PARTS = 1000;
+
+	/**
+	 * The maximum size of an object, or of a part, uploaded in one request.
+	 */
+	private static final long MAX_CONTENT_LENGTH = 5368709120L;
+
+	/**
+	 * The length of a streamed request body that does not declare its length.
+	 */
+	protected static final long UNKNOWN_CONTENT_LENGTH = Long.MAX_VALUE;
+
+	private static final String EXPECT_100_CONTINUE = "100-continue";
+
+	private static final String HEADER_X_AMZ_DECODED_CONTENT_LENGTH = "x-amz-decoded-content-length";
+
+	private static final String HEADER_X_AMZ_CONTENT_SHA256 = "x-amz-content-sha256";
+
 	/**
 	 * Basic constructor. Initializes the logger.
 	 */
@@ -162,6 +249,13 @@ public class StorageEngine extends FrameworkServlet {
 							+ DEFAULT_CONFIGURATION);
 			configuration = new PropertiesConfiguration();
 		}
+
+		BufferPool.getInstance().setBufferSize(
+				configuration.getInt(CONFIG_TRANSFER_BUFFER_SIZE,
+						BufferPool.DEFAULT_BUFFER_SIZE));
+		BufferPool.getInstance().setMaxPooled(
+				configuration.getInt(CONFIG_TRANSFER_BUFFER_POOL_MAX,
+						BufferPool.DEFAULT_MAX_POOLED));
 	}
 
 	public void destroy() {
@@ -205,6 +299,12 @@ public class StorageEngine extends FrameworkServlet {
 		method = getMethod(request);
 		logger.debug("Method: " + method);
 
+		if (!isExpectationSupported(request)) {
+			response.sendError(HttpServletResponse.SC_EXPECTATION_FAILED,
+					"ExpectationFailed");
+			return;
+		}
+
 		if (method.equalsIgnoreCase("GET")) {
 			// read
 			methodGet(request, response);
@@ -217,6 +317,9 @@ public class StorageEngine extends FrameworkServlet {
 		} else if (method.equalsIgnoreCase("DELETE")) {
 			// remove
 			methodDelete(request, response);
+		} else if (method.equalsIgnoreCase("POST")) {
+			// multipart uploads
+			methodPost(request, response);
 		}
 	}
 
@@ -244,6 +347,40 @@ public class StorageEngine extends FrameworkServlet {
 		return method;
 	}
 
+	/**
+	 * Determine if the expectation of a request, if any, can be met. The only
+	 * expectation is <code>100-continue</code>, which the container meets
+	 * when the request body is first read. Requests are validated before
+	 * their body is read, so a rejected request is answered with its error
+	 * instead of <code>100 Continue</code> and the client never sends the
+	 * body.
+	 * 
+	 * @param request
+	 *            The request being processed.
+	 * @return <code>True</code> if the request has no <code>Expect</code>
+	 *         header or expects <code>100-continue</code>.
+	 */
+	protected static boolean isExpectationSupported(HttpServletRequest request) {
+		String expect = request.getHeader("Expect");
+
+		return (expect == null)
+				|| EXPECT_100_CONTINUE.equalsIgnoreCase(expect.trim());
+	}
+
+	/**
+	 * Determine if the request is a <code>HEAD</code> request, taking the
+	 * method override into account. The object data does not need to be read
+	 * for a <code>HEAD</code> request.
+	 * 
+	 * @param request
+	 *            The request being processed.
+	 * @return <code>True</code> if the request is a <code>HEAD</code>
+	 *         request, <code>false</code> otherwise.
+	 */
+	protected static boolean isHeadRequest(HttpServletRequest request) {
+		return "HEAD".equalsIgnoreCase(getMethod(request));
+	}
+
 	/**
 	 * Metadata
 	 * 
@@ -354,14 +491,28 @@ public class StorageEngine extends FrameworkServlet {
 				return;
 			}
 
-			if (or.getKey() != null) {
-				S3Object s3Object;
+			if ((or.getKey() != null)
+					&& (req.getParameter(PARAMETER_UPLOAD_ID) != null)) {
+				// list the parts of a multipart upload
+				listParts(req, resp, or);
+				return;
+			} else if (or.getKey() != null) {
+				S3Object s3Object = null;
 				StorageService storageService;
+				ObjectCache objectCache = getObjectCache();
+				long cacheStamp = 0;
 
 				try {
-					storageService = (StorageService) getWebApplicationContext()
-							.getBean(BEAN_STORAGE_SERVICE);
-					s3Object = storageService.load(or.getBucket(), or.getKey());
+					if (objectCache != null) {
+						cacheStamp = objectCache.getStamp();
+						s3Object = objectCache.get(or.getBucket(), or.getKey());
+					}
+
+					if (s3Object == null) {
+						storageService = getStorageService();
+						s3Object = storageService.load(or.getBucket(), or
+								.getKey());
+					}
 
 					if (s3Object == null) {
 						resp.sendError(HttpServletResponse.SC_NOT_FOUND,
@@ -376,7 +527,6 @@ public class StorageEngine extends FrameworkServlet {
 
 				if (req.getParameter(PARAMETER_ACL) != null) {
 					// retrieve access control policy
-					String response;
 					Acp acp = s3Object.getAcp();
 
 					try {
@@ -387,22 +537,18 @@ public class StorageEngine extends FrameworkServlet {
 						return;
 					}
 
-					response = Acp.encode(acp);
-					resp.setContentLength(response.length());
 					resp.setContentType("application/xml");
 					resp.setStatus(HttpServletResponse.SC_OK);
 
-					Writer out = resp.getWriter();
-					out.write(response);
+					OutputStream out = resp.getOutputStream();
+					Acp.encode(acp, out);
 					out.flush(); // commit response
 					out.close();
 					out = null;
 				} else {
 					// retrieve object
-					InputStream in = null;
-					OutputStream out = null;
-					byte[] buffer = new byte[4096];
-					int count;
+					long position;
+					long length;
 					String value;
 
 					try {
@@ -418,7 +564,6 @@ public class StorageEngine extends FrameworkServlet {
 					if ((value = s3Object.getContentDisposition()) != null) {
 						resp.setHeader("Content-Disposition", value);
 					}
-					// TODO: set the Content-Range, if request includes Range
 					// TODO: add "x-amz-missing-meta", if any
 
 					// add the "x-amz-meta-" headers
@@ -449,56 +594,100 @@ public class StorageEngine extends FrameworkServlet {
 					}
 					resp.setHeader("Accept-Ranges", "bytes");
 
+					// conditional request, answered from the metadata before
+					// the object data is opened
+					switch (Preconditions.evaluate(req.getHeader("If-Match"),
+							req.getHeader("If-None-Match"), req
+									.getHeader("If-Modified-Since"), req
+									.getHeader("If-Unmodified-Since"),
+							s3Object.getETag(), s3Object.getLastModified())) {
+					case Preconditions.SC_NOT_MODIFIED:
+						resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					case Preconditions.SC_PRECONDITION_FAILED:
+						resp.sendError(
+								HttpServletResponse.SC_PRECONDITION_FAILED,
+								"PreconditionFailed");
+						return;
+					}
+
+					// small objects are served from the cache from now on
+					if ((objectCache != null) && !isHeadRequest(req)
+							&& !(s3Object instanceof CachedS3Object)
+							&& objectCache.isCacheable(s3Object)) {
+						CachedS3Object cached = objectCache.put(s3Object,
+								cacheStamp);
+						if (cached != null) {
+							s3Object = cached;
+						}
+					}
+
 					String rangeRequest = req.getHeader("Range");
+					RangeSet rangeSet = null;
 
-					if (rangeRequest != null) {
-						// request for a range
-						RangeSet rangeSet = RangeFactory
-								.processRangeHeader(rangeRequest);
+					if ((rangeRequest != null)
+							&& Preconditions.isRangeCurrent(req
+									.getHeader("If-Range"), s3Object.getETag(),
+									s3Object.getLastModified())) {
+						try {
+							rangeSet = RangeFactory
+									.processRangeHeader(rangeRequest);
+						} catch (IllegalArgumentException e) {
+							// a Range header that can not be parsed is
+							// ignored
+							logger.debug("Ignoring invalid Range header: "
+									+ rangeRequest);
+						}
+					}
 
-						// set content length
-						rangeSet.resolve(s3Object.getContentLength());
+					if (rangeSet != null) {
+						// request for a range, read from the range start
+						// without touching the data in front of it
 
-						if (rangeSet.size() > 1) {
-							// requires multi-part response
-							// TODO: implement
-							resp
-									.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+						// sorts and merges the ranges
+						try {
+							rangeSet.resolve(s3Object.getContentLength());
+						} catch (IllegalStateException e) {
+							resp.setHeader("Content-Range", "bytes */"
+									+ s3Object.getContentLength());
+							resp.sendError(
+									HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+									"InvalidRange");
+							return;
 						}
 
 						Range[] ranges = (Range[]) rangeSet
 								.toArray(new Range[0]);
 
+						resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+						if (ranges.length > 1) {
+							// requires multi-part response
+							sendMultipartContent(req, resp, s3Object, ranges);
+							return;
+						}
+
 						resp.setHeader("Content-Range", formatRangeHeaderValue(
 								ranges[0], s3Object.getContentLength()));
 						resp.setHeader("Content-Length", Long.toString(rangeSet
 								.getLength()));
 
-						in = new RangeInputStream(s3Object.getInputStream(),
-								ranges[0]);
-						resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+						position = ranges[0].getStart();
+						length = ranges[0].getLength();
 					} else {
 						// request for entire content
 						// Used instead of resp.setContentLength((int)); because
 						// Amazon
 						// limit is 5 gig, which is bigger than an int
-						resp.setHeader("Content-Length", Long.toString(s3Object
-								.getContentLength()));
+						position = 0;
+						length = s3Object.getContentLength();
+						resp.setHeader("Content-Length", Long.toString(length));
 
-						in = s3Object.getInputStream();
 						resp.setStatus(HttpServletResponse.SC_OK);
 					}
 
 					// body
-					out = resp.getOutputStream();
-
-					while ((count = in.read(buffer, 0, buffer.length)) > 0) {
-						out.write(buffer, 0, count);
-					}
-
-					out.flush(); // commit response
-					out.close();
-					out = null;
+					sendContent(req, resp, s3Object, position, length);
 				}
 				return;
 			} else if (or.getBucket() != null) {
@@ -508,11 +697,10 @@ public class StorageEngine extends FrameworkServlet {
 				String marker;
 				int maxKeys = Integer.MAX_VALUE;
 				String delimiter;
-				String response;
+				ObjectListing listing;
 				String value;
 
-				storageService = (StorageService) getWebApplicationContext()
-						.getBean(BEAN_STORAGE_SERVICE);
+				storageService = getStorageService();
 
 				if (req.getParameter(PARAMETER_ACL) != null) {
 					// retrieve access control policy
@@ -535,18 +723,51 @@ public class StorageEngine extends FrameworkServlet {
 						return;
 					}
 
-					response = Acp.encode(acp);
-					resp.setContentLength(response.length());
 					resp.setContentType("application/xml");
 					resp.setStatus(HttpServletResponse.SC_OK);
 
-					Writer out = resp.getWriter();
-					out.write(response);
+					OutputStream out = resp.getOutputStream();
+					Acp.encode(acp, out);
 					out.flush(); // commit response
 					out.close();
 					out = null;
+				} else if (req.getParameter(PARAMETER_USAGE) != null) {
+					// retrieve the usage of the bucket, an administrative
+					// extension
+					Bucket bucket;
+
+					try {
+						bucket = storageService.loadBucket(or.getBucket());
+					} catch (DataAccessException e) {
+						resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+								"NoSuchBucket");
+						return;
+					}
+
+					try {
+						bucket.getAcp().canRead(or.getRequestor());
+					} catch (AccessControlException e) {
+						resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+								"AccessDenied");
+						return;
+					}
+
+					resp.setContentType("application/xml");
+					resp.setStatus(HttpServletResponse.SC_OK);
+
+					ListingWriter out = new ListingWriter(resp
+							.getOutputStream());
+					out.writeUsageResult(bucket.getName(), storageService
+							.getUsage(bucket), storageService
+							.getPrefixUsage(bucket));
+					out.flush();
 				} else {
 					Bucket bucket;
+					boolean listV2;
+					String continuationToken = null;
+					String startAfter = null;
+					boolean fetchOwner = false;
+					ContinuationToken position = null;
 
 					prefix = req.getParameter("prefix");
 					if (prefix == null) {
@@ -564,6 +785,31 @@ public class StorageEngine extends FrameworkServlet {
 
 					delimiter = req.getParameter("delimiter");
 
+					listV2 = "2".equals(req.getParameter(PARAMETER_LIST_TYPE));
+					if (listV2) {
+						continuationToken = req
+								.getParameter(PARAMETER_CONTINUATION_TOKEN);
+						startAfter = req.getParameter(PARAMETER_START_AFTER);
+						fetchOwner = "true".equals(req
+								.getParameter(PARAMETER_FETCH_OWNER));
+
+						if (continuationToken != null) {
+							// the token is the position the last page stopped
+							try {
+								position = ContinuationToken
+										.decode(continuationToken);
+							} catch (IllegalArgumentException e) {
+								resp.sendError(
+										HttpServletResponse.SC_BAD_REQUEST,
+										"InvalidArgument");
+								return;
+							}
+						} else if (startAfter != null) {
+							position = new ContinuationToken(startAfter,
+									ContinuationToken.SEEK_AFTER);
+						}
+					}
+
 					try {
 						bucket = storageService.loadBucket(or.getBucket());
 					} catch (DataAccessException e) {
@@ -580,59 +826,65 @@ public class StorageEngine extends FrameworkServlet {
 						return;
 					}
 
-					response = storageService.listKeys(bucket, prefix, marker,
-							delimiter, maxKeys);
+					if (listV2) {
+						listing = storageService.listKeys(bucket, prefix,
+								position, delimiter, maxKeys, fetchOwner);
+					} else {
+						listing = storageService.listKeys(bucket, prefix,
+								marker, delimiter, maxKeys);
+					}
 
-					resp.setContentLength(response.length());
+					// no content length, the listing is streamed
 					resp.setContentType("application/xml");
 					resp.setStatus(HttpServletResponse.SC_OK);
 
-					Writer out = resp.getWriter();
-					out.write(response);
-					if (logger.isTraceEnabled()) {
-						logger.trace("Response: " + response);
+					ListingWriter out = new ListingWriter(resp
+							.getOutputStream());
+					if (listV2) {
+						out.writeListBucketResultV2(listing, continuationToken,
+								startAfter, fetchOwner);
+					} else {
+						out.writeListBucketResult(listing);
 					}
+					out.flush();
 				}
 				return;
 			} else {
 				// operation on the service
 				StorageService storageService;
-				List buckets;
-
-				storageService = (StorageService) getWebApplicationContext()
-						.getBean(BEAN_STORAGE_SERVICE);
-
-				buckets = storageService.findBuckets("");
-
-				StringBuffer buffer = new StringBuffer();
-
-				buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-				buffer
-						.append("<ListAllMyBucketsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
-				buffer.append("<Owner>");
-				buffer.append("<ID/>"); // TODO: implement
-				buffer.append("<DisplayName/>"); // TODO: implementF
-				buffer.append("</Owner>");
-				buffer.append("<Buckets>");
-				for (Iterator iter = buckets.iterator(); iter.hasNext();) {
-					Bucket bucket = (Bucket) iter.next();
-					buffer.append("<Bucket>");
-					buffer.append("<Name>").append(bucket.getName()).append(
-							"</Name>");
-					buffer.append("<CreationDate>").append(
-							iso8601.format(bucket.getCreated())).append(
-							"</CreationDate>");
-					buffer.append("</Bucket>");
+				CanonicalUser requestor = or.getRequestor();
+				List<Bucket> buckets;
+
+				storageService = getStorageService();
+
+				if (req.getParameter(PARAMETER_USAGE) != null) {
+					// retrieve the usage of the deduplicated object data, an
+					// administrative extension
+					if (requestor.isAnonymous()) {
+						resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+								"AccessDenied");
+						return;
+					}
+
+					resp.setContentType("application/xml");
+					resp.setStatus(HttpServletResponse.SC_OK);
+
+					ListingWriter out = new ListingWriter(resp
+							.getOutputStream());
+					out.writeDataUsageResult(storageService.getDataUsage());
+					out.flush();
+					return;
 				}
-				buffer.append("</Buckets>");
-				buffer.append("</ListAllMyBucketsResult>");
 
-				resp.setContentLength(buffer.length());
+				// only the buckets owned by the requestor
+				buckets = storageService.findBuckets(requestor.getId());
+
 				resp.setContentType("application/xml");
 				resp.setStatus(HttpServletResponse.SC_OK);
 
-				Writer out = resp.getWriter();
-				out.write(buffer.toString());
+				ListingWriter out = new ListingWriter(resp.getOutputStream());
+				out.writeListAllMyBucketsResult(requestor, buckets);
+				out.flush();
 				return;
 			}
 		} catch (IllegalArgumentException e) {
@@ -643,6 +895,18 @@ public class StorageEngine extends FrameworkServlet {
 
 	/**
 	 * Write
+	 * <p>
+	 * The request is authenticated and authorized, and its length and the
+	 * bucket quota are checked, before the body is read, so a client sending
+	 * <code>Expect: 100-continue</code> does not send a body that will be
+	 * refused.
+	 * </p>
+	 * <p>
+	 * A body of unknown length, sent with <code>Transfer-Encoding:
+	 * chunked</code> or <code>aws-chunked</code> encoded, is streamed into
+	 * the object data; its length and MD5 are computed as it is stored, and
+	 * the quota is checked again once the length is known.
+	 * </p>
 	 * 
 	 * @param req
 	 *            the HttpServletRequest object that contains the request the
@@ -659,8 +923,6 @@ public class StorageEngine extends FrameworkServlet {
 	@SuppressWarnings("unchecked")
 	public void methodPut(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		OutputStream out = null;
-
 		try {
 			S3ObjectRequest or;
 
@@ -699,14 +961,8 @@ public class StorageEngine extends FrameworkServlet {
 			CanonicalUser requestor = or.getRequestor();
 
 			if (or.getKey() != null) {
-				String value;
-				long contentLength;
-				MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-				DigestOutputStream digestOutputStream = null;
-				S3Object oldS3Object = null;
 				S3Object s3Object;
 				StorageService storageService;
-				Bucket bucket;
 				String bucketName = or.getBucket();
 				String key = or.getKey();
 
@@ -716,10 +972,12 @@ public class StorageEngine extends FrameworkServlet {
 					return;
 				}
 
-				storageService = (StorageService) getWebApplicationContext()
-						.getBean(BEAN_STORAGE_SERVICE);
+				storageService = getStorageService();
 
-				if (req.getParameter(PARAMETER_ACL) != null) {
+				if (req.getParameter(PARAMETER_UPLOAD_ID) != null) {
+					// a part of a multipart upload
+					uploadPart(req, resp, or);
+				} else if (req.getParameter(PARAMETER_ACL) != null) {
 					// write access control policy
 					Acp acp;
 					CanonicalUser owner;
@@ -758,140 +1016,15 @@ public class StorageEngine extends FrameworkServlet {
 					s3Object.setAcp(acp);
 
 					storageService.store(s3Object);
+					invalidateObjectCache(bucketName, key);
 				} else {
-					// make sure requestor can "WRITE" to the bucket
-					try {
-						bucket = storageService.loadBucket(bucketName);
-						bucket.canWrite(requestor);
-					} catch (AccessControlException e) {
-						resp.sendError(HttpServletResponse.SC_FORBIDDEN,
-								"AccessDenied");
-						return;
-					} catch (DataAccessException e) {
-						resp.sendError(HttpServletResponse.SC_NOT_FOUND,
-								"NoSuchBucket");
-						return;
-					}
-
-					try {
-						oldS3Object = storageService
-								.load(bucket.getName(), key);
-					} catch (DataRetrievalFailureException e) {
-						// ignore
-					}
-
-					// create a new S3Object for this request to store an object
-					try {
-						s3Object = storageService.createS3Object(bucket, key,
-								requestor);
-					} catch (DataAccessException e) {
-						resp.sendError(HttpServletResponse.SC_NOT_FOUND,
-								"NoSuchBucket");
-						return;
-					}
-
-					out = s3Object.getOutputStream();
-					digestOutputStream = new DigestOutputStream(out,
-							messageDigest);
-
-					// Used instead of req.getContentLength(); because Amazon
-					// limit is 5 gig, which is bigger than an int
-					value = req.getHeader("Content-Length");
-					if (value == null) {
-						resp.sendError(HttpServletResponse.SC_LENGTH_REQUIRED,
-								"MissingContentLength");
-						return;
-					}
-					contentLength = Long.valueOf(value).longValue();
-
-					if (contentLength > 5368709120L) {
-						resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
-								"EntityTooLarge");
-						return;
-					}
-
-					long written = 0;
-					int count;
-					byte[] b = new byte[4096];
-					ServletInputStream in = req.getInputStream();
-
-					while (((count = in.read(b, 0, b.length)) > 0)
-							&& (written < contentLength)) {
-						digestOutputStream.write(b, 0, count);
-						written += count;
-					}
-					digestOutputStream.flush();
-
-					if (written != contentLength) {
-						// transmission truncated
-						if (out != null) {
-							out.close();
-							out = null;
-						}
-						if (digestOutputStream != null) {
-							digestOutputStream.close();
-							digestOutputStream = null;
-						}
-						// clean up
-						storageService.remove(s3Object);
-						resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
-								"IncompleteBody");
-						return;
-					}
-
-					s3Object.setContentDisposition(req
-							.getHeader("Content-Disposition"));
-					s3Object.setContentLength(contentLength);
-					s3Object.setContentMD5(req.getHeader("Content-MD5"));
-					value = req.getContentType();
-					logger.debug("Put - Content-Type: " + value);
-					if (value == null) {
-						value = S3Object.DEFAULT_CONTENT_TYPE;
-					}
-					s3Object.setContentType(value);
-					logger.debug("Put - get content-type: "
-							+ s3Object.getContentType());
-					s3Object.setLastModified(System.currentTimeMillis());
-
-					// metadata
-					int prefixLength = HEADER_PREFIX_USER_META.length();
-					String name;
-					for (Enumeration headerNames = req.getHeaderNames(); headerNames
-							.hasMoreElements();) {
-						String headerName = (String) headerNames.nextElement();
-						if (headerName.startsWith(HEADER_PREFIX_USER_META)) {
-							name = headerName.substring(prefixLength)
-									.toLowerCase();
-							for (Enumeration headers = req
-									.getHeaders(headerName); headers
-									.hasMoreElements();) {
-								value = (String) headers.nextElement();
-								s3Object.addMetadata(name, value);
-							}
-						}
-					}
-
-					// calculate ETag, hex encoding of MD5
-					value = new String(Hex.encodeHex(digestOutputStream
-							.getMessageDigest().digest()));
-					resp.setHeader("ETag", value);
-					s3Object.setETag(value);
-
-					grantCannedAccessPolicies(req, s3Object.getAcp(), requestor);
-
-					// NOTE: This could be reengineered to have a two-phase
-					// commit.
-					if (oldS3Object != null) {
-						storageService.remove(oldS3Object);
-					}
-					storageService.store(s3Object);
+					putObject(req, resp, or);
 				}
 			} else if (or.getBucket() != null) {
 				StorageService storageService;
 				Bucket bucket;
 
-				storageService = (StorageService) getWebApplicationContext()
-						.getBean(BEAN_STORAGE_SERVICE);
+				storageService = getStorageService();
 
 				if (req.getParameter(PARAMETER_ACL) != null) {
 					// write access control policy
@@ -963,24 +1096,15 @@ public class StorageEngine extends FrameworkServlet {
 					storageService.storeBucket(bucket);
 				}
 			}
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-			logger.error("Unable to use MD5", e);
-			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-					"InternalError");
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw e;
-		} finally {
-			if (out != null) {
-				out.close();
-				out = null;
-			}
 		}
 	}
 
 	/**
-	 * Delete
+	 * Post: initiate (<code>?uploads</code>) and complete (<code>?uploadId</code>)
+	 * multipart uploads.
 	 * 
 	 * @param req
 	 *            the HttpServletRequest object that contains the request the
@@ -988,13 +1112,13 @@ public class StorageEngine extends FrameworkServlet {
 	 * @param resp
 	 *            the HttpServletResponse object that contains the response the
 	 *            servlet returns to the client
-	 * @param IOException
-	 *            if an input or output error occurs while the servlet is
-	 *            handling the DELETE request
-	 * @param ServletException
-	 *            if the request for the DELETE cannot be handled
+	 * @throws IOException
+	 *             if an input or output error occurs while the servlet is
+	 *             handling the POST request
+	 * @throws ServletException
+	 *             if the request for the POST cannot be handled
 	 */
-	public void methodDelete(HttpServletRequest req, HttpServletResponse resp)
+	public void methodPost(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 		S3ObjectRequest or;
 
@@ -1030,63 +1154,242 @@ public class StorageEngine extends FrameworkServlet {
 
 		CanonicalUser requestor = or.getRequestor();
 
-		if (or.getKey() != null) {
-			Bucket bucket;
-			S3Object s3Object;
-			StorageService storageService;
+		if ((or.getKey() == null)
+				|| ((req.getParameter(PARAMETER_UPLOADS) == null) && (req
+						.getParameter(PARAMETER_UPLOAD_ID) == null))) {
+			resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+			return;
+		}
 
-			storageService = (StorageService) getWebApplicationContext()
-					.getBean(BEAN_STORAGE_SERVICE);
+		StorageService storageService;
+		Bucket bucket;
+		String key = or.getKey();
 
-			// make sure requester can "WRITE" to the bucket
-			try {
-				bucket = storageService.loadBucket(or.getBucket());
-				bucket.canWrite(requestor);
-			} catch (AccessControlException e) {
-				resp
-						.sendError(HttpServletResponse.SC_FORBIDDEN,
-								"AccessDenied");
-				return;
-			} catch (DataAccessException e) {
-				resp
-						.sendError(HttpServletResponse.SC_NOT_FOUND,
-								"NoSuchBucket");
-				return;
-			}
+		if (!isValidKey(key)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "KeyTooLong");
+			return;
+		}
 
-			try {
-				s3Object = storageService.load(bucket.getName(), or.getKey());
-			} catch (DataRetrievalFailureException e) {
-				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchKey");
-				return;
-			}
-			storageService.remove(s3Object);
+		storageService = getStorageService();
 
-			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		// make sure requestor can "WRITE" to the bucket
+		try {
+			bucket = storageService.loadBucket(or.getBucket());
+			bucket.canWrite(requestor);
+		} catch (AccessControlException e) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "AccessDenied");
 			return;
-		} else if (or.getBucket() != null) {
-			StorageService storageService;
-			Bucket bucket;
+		} catch (DataAccessException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchBucket");
+			return;
+		}
 
-			// validate bucket
-			String bucketName = or.getBucket();
+		if (req.getParameter(PARAMETER_UPLOADS) != null) {
+			// initiate, the object is created when the upload is completed
+			S3Object s3Object;
+			MultipartUpload upload;
+
+			s3Object = storageService.createS3Object(bucket, key, requestor);
+			setRequestMetadata(req, s3Object);
+			grantCannedAccessPolicies(req, s3Object.getAcp(), requestor);
+
+			upload = storageService.initiateMultipartUpload(s3Object);
+
+			resp.setContentType("application/xml");
+			resp.setStatus(HttpServletResponse.SC_OK);
 
-			storageService = (StorageService) getWebApplicationContext()
-					.getBean(BEAN_STORAGE_SERVICE);
+			ListingWriter out = new ListingWriter(resp.getOutputStream());
+			out.writeInitiateMultipartUploadResult(upload);
+			out.flush();
+		} else {
+			// complete
+			MultipartUpload upload;
+			List<UploadPart> parts;
+			S3Object s3Object;
 
 			try {
-				bucket = storageService.loadBucket(bucketName);
-			} catch (DataAccessException e) {
-				resp
-						.sendError(HttpServletResponse.SC_NOT_FOUND,
-								"NoSuchBucket");
+				upload = storageService.loadMultipartUpload(bucket.getName(),
+						key, req.getParameter(PARAMETER_UPLOAD_ID));
+			} catch (DataRetrievalFailureException e) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+						"NoSuchUpload");
 				return;
 			}
 
-			if (!requestor.equals(bucket.getAcp().getOwner())) {
-				resp
-						.sendError(HttpServletResponse.SC_FORBIDDEN,
-								"AccessDenied");
+			try {
+				parts = decodeCompleteMultipartUpload(req.getInputStream());
+			} catch (IOException e) {
+				logger.info("Malformed CompleteMultipartUpload: "
+						+ e.getMessage());
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"MalformedXML");
+				return;
+			}
+
+			try {
+				s3Object = storageService
+						.completeMultipartUpload(upload, parts);
+			} catch (InvalidPartOrderException e) {
+				logger.info(e.getMessage());
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"InvalidPartOrder");
+				return;
+			} catch (InvalidPartException e) {
+				logger.info(e.getMessage());
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"InvalidPart");
+				return;
+			} catch (EntityTooSmallException e) {
+				logger.info(e.getMessage());
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+						"EntityTooSmall");
+				return;
+			} catch (QuotaExceededException e) {
+				logger.info(e.getMessage());
+				resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+						"QuotaExceeded");
+				return;
+			} catch (DataRetrievalFailureException e) {
+				// completed or aborted concurrently
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+						"NoSuchUpload");
+				return;
+			}
+			invalidateObjectCache(bucket.getName(), key);
+
+			resp.setContentType("application/xml");
+			resp.setStatus(HttpServletResponse.SC_OK);
+
+			ListingWriter out = new ListingWriter(resp.getOutputStream());
+			out.writeCompleteMultipartUploadResult(or.getServiceEndpoint()
+					+ "/" + bucket.getName() + "/" + key, s3Object);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Delete
+	 * 
+	 * @param req
+	 *            the HttpServletRequest object that contains the request the
+	 *            client made of the servlet
+	 * @param resp
+	 *            the HttpServletResponse object that contains the response the
+	 *            servlet returns to the client
+	 * @param IOException
+	 *            if an input or output error occurs while the servlet is
+	 *            handling the DELETE request
+	 * @param ServletException
+	 *            if the request for the DELETE cannot be handled
+	 */
+	public void methodDelete(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		S3ObjectRequest or;
+
+		try {
+			or = S3ObjectRequest.create(req, resolvedHost(),
+					(Authenticator) getWebApplicationContext().getBean(
+							BEAN_AUTHENTICATOR));
+		} catch (InvalidAccessKeyIdException e) {
+			e.printStackTrace();
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+					"InvalidAccessKeyId");
+			return;
+		} catch (InvalidSecurityException e) {
+			e.printStackTrace();
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "InvalidSecurity");
+			return;
+		} catch (RequestTimeTooSkewedException e) {
+			e.printStackTrace();
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+					"RequestTimeTooSkewed");
+			return;
+		} catch (SignatureDoesNotMatchException e) {
+			e.printStackTrace();
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN,
+					"SignatureDoesNotMatch");
+			return;
+		} catch (AuthenticatorException e) {
+			e.printStackTrace();
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "InvalidSecurity");
+			return;
+		}
+		logger.debug("S3ObjectRequest: " + or);
+
+		CanonicalUser requestor = or.getRequestor();
+
+		if (or.getKey() != null) {
+			Bucket bucket;
+			S3Object s3Object;
+			StorageService storageService;
+
+			storageService = getStorageService();
+
+			// make sure requester can "WRITE" to the bucket
+			try {
+				bucket = storageService.loadBucket(or.getBucket());
+				bucket.canWrite(requestor);
+			} catch (AccessControlException e) {
+				resp
+						.sendError(HttpServletResponse.SC_FORBIDDEN,
+								"AccessDenied");
+				return;
+			} catch (DataAccessException e) {
+				resp
+						.sendError(HttpServletResponse.SC_NOT_FOUND,
+								"NoSuchBucket");
+				return;
+			}
+
+			if (req.getParameter(PARAMETER_UPLOAD_ID) != null) {
+				// abort a multipart upload
+				try {
+					storageService.abortMultipartUpload(storageService
+							.loadMultipartUpload(bucket.getName(), or.getKey(),
+									req.getParameter(PARAMETER_UPLOAD_ID)));
+				} catch (DataRetrievalFailureException e) {
+					resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+							"NoSuchUpload");
+					return;
+				}
+
+				resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				return;
+			}
+
+			try {
+				s3Object = storageService.load(bucket.getName(), or.getKey());
+			} catch (DataRetrievalFailureException e) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchKey");
+				return;
+			}
+			storageService.remove(s3Object);
+			invalidateObjectCache(bucket.getName(), or.getKey());
+
+			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			return;
+		} else if (or.getBucket() != null) {
+			StorageService storageService;
+			Bucket bucket;
+
+			// validate bucket
+			String bucketName = or.getBucket();
+
+			storageService = getStorageService();
+
+			try {
+				bucket = storageService.loadBucket(bucketName);
+			} catch (DataAccessException e) {
+				resp
+						.sendError(HttpServletResponse.SC_NOT_FOUND,
+								"NoSuchBucket");
+				return;
+			}
+
+			if (!requestor.equals(bucket.getAcp().getOwner())) {
+				resp
+						.sendError(HttpServletResponse.SC_FORBIDDEN,
+								"AccessDenied");
 				return;
 			}
 
@@ -1105,6 +1408,792 @@ public class StorageEngine extends FrameworkServlet {
 		resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
 	}
 
+	/**
+	 * Store an object. The requestor's access, the content length and the
+	 * quota are all checked before the body is read, so a rejected request
+	 * never has its body read, and a client waiting on
+	 * <code>Expect: 100-continue</code> is answered without sending it.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param resp
+	 *            The response.
+	 * @param or
+	 *            The authenticated request.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected void putObject(HttpServletRequest req, HttpServletResponse resp,
+			S3ObjectRequest or) throws IOException {
+		StorageService storageService = getStorageService();
+		CanonicalUser requestor = or.getRequestor();
+		String bucketName = or.getBucket();
+		String key = or.getKey();
+		long contentLength;
+		S3Object oldS3Object = null;
+		S3Object s3Object;
+		Bucket bucket;
+
+		// make sure requestor can "WRITE" to the bucket
+		try {
+			bucket = storageService.loadBucket(bucketName);
+			bucket.canWrite(requestor);
+		} catch (AccessControlException e) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "AccessDenied");
+			return;
+		} catch (DataAccessException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchBucket");
+			return;
+		}
+
+		if ((contentLength = validateContentLength(req, resp)) < 0) {
+			return;
+		}
+
+		try {
+			oldS3Object = storageService.load(bucket.getName(), key);
+		} catch (DataRetrievalFailureException e) {
+			// ignore
+		}
+
+		try {
+			storageService.checkQuota(bucket, oldS3Object,
+					(contentLength == UNKNOWN_CONTENT_LENGTH) ? 0 : contentLength);
+		} catch (QuotaExceededException e) {
+			logger.info(e.getMessage());
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "QuotaExceeded");
+			return;
+		}
+
+		// validated, the body is read from here on
+
+		// create a new S3Object for this request to store an object
+		try {
+			s3Object = storageService.createS3Object(bucket, key, requestor);
+		} catch (DataAccessException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchBucket");
+			return;
+		}
+
+		// the length and MD5 are computed as the body is stored
+		if (!writeObjectData(req, resp, storageService, bucket, oldS3Object,
+				s3Object, contentLength)) {
+			return;
+		}
+
+		s3Object.setContentMD5(req.getHeader("Content-MD5"));
+		s3Object.setLastModified(System.currentTimeMillis());
+
+		// content type, disposition and metadata
+		setRequestMetadata(req, s3Object);
+
+		resp.setHeader("ETag", s3Object.getETag());
+
+		grantCannedAccessPolicies(req, s3Object.getAcp(), requestor);
+
+		// readers see the old object until the new one is stored, the old
+		// data is deleted in the background
+		storageService.replace(oldS3Object, s3Object);
+		invalidateObjectCache(bucketName, key);
+	}
+
+	/**
+	 * Upload a part of a multipart upload. Parts are written independently,
+	 * so the parts of an upload may be uploaded in parallel.
+	 * 
+	 * @param req
+	 *            The request, with the <code>partNumber</code> and
+	 *            <code>uploadId</code> parameters.
+	 * @param resp
+	 *            The response.
+	 * @param or
+	 *            The authenticated request.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected void uploadPart(HttpServletRequest req, HttpServletResponse resp,
+			S3ObjectRequest or) throws IOException {
+		StorageService storageService;
+		Bucket bucket;
+		MultipartUpload upload;
+		int partNumber;
+		long contentLength;
+		String value;
+		S3Object part;
+		OutputStream out;
+		DigestOutputStream digestOutputStream;
+		long written;
+
+		storageService = getStorageService();
+
+		// make sure requestor can "WRITE" to the bucket
+		try {
+			bucket = storageService.loadBucket(or.getBucket());
+			bucket.canWrite(or.getRequestor());
+		} catch (AccessControlException e) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "AccessDenied");
+			return;
+		} catch (DataAccessException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchBucket");
+			return;
+		}
+
+		try {
+			partNumber = Integer.parseInt(req
+					.getParameter(PARAMETER_PART_NUMBER));
+		} catch (NumberFormatException e) {
+			partNumber = 0;
+		}
+		if ((partNumber < 1) || (partNumber > MAX_PART_NUMBER)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"InvalidArgument");
+			return;
+		}
+
+		try {
+			upload = storageService.loadMultipartUpload(bucket.getName(), or
+					.getKey(), req.getParameter(PARAMETER_UPLOAD_ID));
+		} catch (DataRetrievalFailureException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchUpload");
+			return;
+		}
+
+		if ((contentLength = validateContentLength(req, resp)) < 0) {
+			return;
+		}
+
+		// validated, the body is read from here on
+		part = storageService.createPart(upload, partNumber);
+		out = part.getOutputStream();
+		if (out == null) {
+			throw new IOException("Unable to write part " + partNumber
+					+ " of upload " + upload.getUploadId());
+		}
+		try {
+			digestOutputStream = new DigestOutputStream(out, MessageDigest
+					.getInstance("MD5"));
+			written = copyBody(req, digestOutputStream, contentLength);
+			digestOutputStream.flush();
+		} catch (NoSuchAlgorithmException e) {
+			logger.error("Unable to use MD5", e);
+			out.close();
+			part.deleteData();
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					"InternalError");
+			return;
+		} catch (IOException e) {
+			out.close();
+			part.deleteData();
+			throw e;
+		}
+		out.close();
+
+		if ((value = checkBodyLength(contentLength, written)) != null) {
+			// transmission truncated
+			part.deleteData();
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, value);
+			return;
+		}
+
+		// calculate ETag, hex encoding of MD5
+		value = new String(Hex.encodeHex(digestOutputStream.getMessageDigest()
+				.digest()));
+		part.setETag(value);
+		part.setContentLength(written);
+
+		try {
+			storageService.storePart(upload, partNumber, part);
+		} catch (DataRetrievalFailureException e) {
+			// completed or aborted while the part was uploaded
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchUpload");
+			return;
+		}
+
+		resp.setHeader("ETag", value);
+	}
+
+	/**
+	 * List the parts of a multipart upload, a page at a time.
+	 * 
+	 * @param req
+	 *            The request, with the <code>uploadId</code> parameter.
+	 * @param resp
+	 *            The response.
+	 * @param or
+	 *            The authenticated request.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected void listParts(HttpServletRequest req, HttpServletResponse resp,
+			S3ObjectRequest or) throws IOException {
+		StorageService storageService;
+		Bucket bucket;
+		MultipartUpload upload;
+		List<UploadPart> page = new ArrayList<UploadPart>();
+		int partNumberMarker = 0;
+		int maxParts = MAX_PARTS;
+		boolean truncated = false;
+		String value;
+
+		storageService = getStorageService();
+
+		// the parts are visible to those who can upload them
+		try {
+			bucket = storageService.loadBucket(or.getBucket());
+			bucket.canWrite(or.getRequestor());
+		} catch (AccessControlException e) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "AccessDenied");
+			return;
+		} catch (DataAccessException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchBucket");
+			return;
+		}
+
+		try {
+			if ((value = req.getParameter("part-number-marker")) != null) {
+				partNumberMarker = Integer.parseInt(value);
+			}
+			if ((value = req.getParameter("max-parts")) != null) {
+				maxParts = Math.min(Integer.parseInt(value), MAX_PARTS);
+			}
+		} catch (NumberFormatException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"InvalidArgument");
+			return;
+		}
+
+		try {
+			upload = storageService.loadMultipartUpload(bucket.getName(), or
+					.getKey(), req.getParameter(PARAMETER_UPLOAD_ID));
+			for (UploadPart part : storageService.listParts(upload)) {
+				if (part.getPartNumber() > partNumberMarker) {
+					if (page.size() >= maxParts) {
+						truncated = true;
+						break;
+					}
+					page.add(part);
+				}
+			}
+		} catch (DataRetrievalFailureException e) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "NoSuchUpload");
+			return;
+		}
+
+		resp.setContentType("application/xml");
+		resp.setStatus(HttpServletResponse.SC_OK);
+
+		ListingWriter out = new ListingWriter(resp.getOutputStream());
+		out.writeListPartsResult(upload, page, partNumberMarker, maxParts,
+				truncated);
+		out.flush();
+	}
+
+	/**
+	 * Write the body of an object PUT to the data of the new object, and
+	 * compute its length and MD5 in the same pass. A body of unknown length
+	 * is checked against the bucket quota once it is read. If the body is
+	 * truncated, malformed or refused, the data is deleted and the error
+	 * response sent: the object was never stored, so there is no meta data
+	 * to remove.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param resp
+	 *            The response.
+	 * @param storageService
+	 *            The storage service.
+	 * @param bucket
+	 *            The bucket of the object.
+	 * @param oldS3Object
+	 *            The object replaced, or <code>null</code> if the key is new.
+	 * @param s3Object
+	 *            The new object.
+	 * @param contentLength
+	 *            The length from <code>validateContentLength</code>.
+	 * @return <code>True</code> if the data is written, with the content
+	 *         length and ETag of the object set.
+	 * @throws IOException
+	 *             if an input or output error occurs. The data is deleted.
+	 */
+	protected boolean writeObjectData(HttpServletRequest req,
+			HttpServletResponse resp, StorageService storageService,
+			Bucket bucket, S3Object oldS3Object, S3Object s3Object,
+			long contentLength) throws IOException {
+		OutputStream out = s3Object.getOutputStream();
+		DigestOutputStream digestOutputStream;
+		int status = HttpServletResponse.SC_BAD_REQUEST;
+		String error;
+		long written;
+
+		if (out == null) {
+			throw new IOException("Unable to write the data of "
+					+ s3Object.getBucket() + "/" + s3Object.getKey());
+		}
+
+		try {
+			digestOutputStream = new DigestOutputStream(out, MessageDigest
+					.getInstance("MD5"));
+			written = copyBody(req, digestOutputStream, contentLength);
+			digestOutputStream.flush();
+		} catch (NoSuchAlgorithmException e) {
+			logger.error("Unable to use MD5", e);
+			out.close();
+			s3Object.deleteData();
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					"InternalError");
+			return false;
+		} catch (IOException e) {
+			out.close();
+			s3Object.deleteData();
+			throw e;
+		}
+		out.close();
+
+		error = checkBodyLength(contentLength, written);
+		if ((error == null) && (contentLength == UNKNOWN_CONTENT_LENGTH)) {
+			// streamed, check the quota again now the length is known
+			try {
+				storageService.checkQuota(bucket, oldS3Object, written);
+			} catch (QuotaExceededException e) {
+				logger.info(e.getMessage());
+				status = HttpServletResponse.SC_FORBIDDEN;
+				error = "QuotaExceeded";
+			}
+		}
+
+		if (error != null) {
+			// transmission truncated, or refused once read
+			s3Object.deleteData();
+			resp.sendError(status, error);
+			return false;
+		}
+
+		// ETag is the hex encoding of MD5
+		s3Object.setContentLength(written);
+		s3Object.setETag(new String(Hex.encodeHex(digestOutputStream
+				.getMessageDigest().digest())));
+
+		return true;
+	}
+
+	/**
+	 * Validate the declared length of a request body, before the body is
+	 * read. Sends the error response if the length is missing, malformed or
+	 * over the maximum object size. The length of an <code>aws-chunked</code>
+	 * body is the decoded length, from
+	 * <code>x-amz-decoded-content-length</code>. A body sent with
+	 * <code>Transfer-Encoding: chunked</code> or <code>aws-chunked</code>
+	 * delimits itself, so its length need not be declared.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param resp
+	 *            The response.
+	 * @return The declared length, <code>UNKNOWN_CONTENT_LENGTH</code> if the
+	 *         body is streamed without a declared length, or <code>-1</code>
+	 *         if the request was rejected.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected long validateContentLength(HttpServletRequest req,
+			HttpServletResponse resp) throws IOException {
+		boolean awsChunked = isAwsChunked(req);
+		String value;
+		long contentLength;
+
+		// Used instead of req.getContentLength(); because Amazon limit is 5
+		// gig, which is bigger than an int
+		value = req.getHeader(awsChunked ? HEADER_X_AMZ_DECODED_CONTENT_LENGTH
+				: "Content-Length");
+		if (value == null) {
+			if (awsChunked || isChunked(req)) {
+				// length known once the body is read
+				return UNKNOWN_CONTENT_LENGTH;
+			}
+			resp.sendError(HttpServletResponse.SC_LENGTH_REQUIRED,
+					"MissingContentLength");
+			return -1;
+		}
+
+		try {
+			contentLength = Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			contentLength = -1;
+		}
+		if (contentLength < 0) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"InvalidArgument");
+			return -1;
+		}
+
+		if (contentLength > getMaxContentLength()) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"EntityTooLarge");
+			return -1;
+		}
+
+		return contentLength;
+	}
+
+	/**
+	 * Copy a request body to the object data, in a single pass. An
+	 * <code>aws-chunked</code> body is decoded as it is copied.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param out
+	 *            Where to write the object data.
+	 * @param contentLength
+	 *            The length from <code>validateContentLength</code>. A body
+	 *            of unknown length is copied up to one byte over the maximum
+	 *            object size.
+	 * @return The number of bytes copied, or <code>-1</code> if the body was
+	 *         truncated or is not properly <code>aws-chunked</code> encoded.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected long copyBody(HttpServletRequest req, OutputStream out,
+			long contentLength) throws IOException {
+		InputStream in = req.getInputStream();
+
+		if (isAwsChunked(req)) {
+			in = new AwsChunkedInputStream(in);
+		}
+
+		try {
+			return BufferPool.getInstance().copy(in, out,
+					Math.min(contentLength, getMaxContentLength() + 1));
+		} catch (EOFException e) {
+			logger.info("Request body truncated: " + e.getMessage());
+			return -1;
+		} catch (MalformedChunkException e) {
+			logger.info("Request body malformed: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the maximum size of an object, or of a part of a multipart upload.
+	 * 
+	 * @return The maximum size, in bytes.
+	 */
+	protected long getMaxContentLength() {
+		return MAX_CONTENT_LENGTH;
+	}
+
+	/**
+	 * Check the length of a copied request body.
+	 * 
+	 * @param contentLength
+	 *            The length from <code>validateContentLength</code>.
+	 * @param written
+	 *            The length from <code>copyBody</code>.
+	 * @return The error code to answer with, or <code>null</code> if the
+	 *         body is complete.
+	 */
+	protected String checkBodyLength(long contentLength, long written) {
+		if (written < 0) {
+			return "IncompleteBody";
+		}
+
+		if (contentLength == UNKNOWN_CONTENT_LENGTH) {
+			return (written > getMaxContentLength()) ? "EntityTooLarge" : null;
+		}
+
+		return (written != contentLength) ? "IncompleteBody" : null;
+	}
+
+	/**
+	 * Determine if a request body is sent with
+	 * <code>Transfer-Encoding: chunked</code>. The container decodes it.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @return <code>True</code> if the body is chunked.
+	 */
+	protected static boolean isChunked(HttpServletRequest req) {
+		String value = req.getHeader("Transfer-Encoding");
+
+		return (value != null) && (value.toLowerCase().indexOf("chunked") >= 0);
+	}
+
+	/**
+	 * Determine if a request body is <code>aws-chunked</code> encoded, by its
+	 * <code>Content-Encoding</code> or the streaming payload hash of a
+	 * signature version 4 request.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @return <code>True</code> if the body is <code>aws-chunked</code>
+	 *         encoded.
+	 */
+	protected static boolean isAwsChunked(HttpServletRequest req) {
+		String value = req.getHeader("Content-Encoding");
+
+		if ((value != null)
+				&& (value.toLowerCase().indexOf(
+						AwsChunkedInputStream.CONTENT_ENCODING) >= 0)) {
+			return true;
+		}
+
+		value = req.getHeader(HEADER_X_AMZ_CONTENT_SHA256);
+		return (value != null) && value.startsWith("STREAMING-");
+	}
+
+	/**
+	 * Set the content type, content disposition and user meta data of an
+	 * object from the request headers.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param s3Object
+	 *            The object.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void setRequestMetadata(HttpServletRequest req, S3Object s3Object) {
+		String value;
+
+		s3Object.setContentDisposition(req.getHeader("Content-Disposition"));
+		value = req.getContentType();
+		logger.debug("Put - Content-Type: " + value);
+		if (value == null) {
+			value = S3Object.DEFAULT_CONTENT_TYPE;
+		}
+		s3Object.setContentType(value);
+		logger.debug("Put - get content-type: " + s3Object.getContentType());
+
+		// metadata
+		int prefixLength = HEADER_PREFIX_USER_META.length();
+		String name;
+		for (Enumeration headerNames = req.getHeaderNames(); headerNames
+				.hasMoreElements();) {
+			String headerName = (String) headerNames.nextElement();
+			if (headerName.startsWith(HEADER_PREFIX_USER_META)) {
+				name = headerName.substring(prefixLength).toLowerCase();
+				for (Enumeration headers = req.getHeaders(headerName); headers
+						.hasMoreElements();) {
+					value = (String) headers.nextElement();
+					s3Object.addMetadata(name, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decode a <code>CompleteMultipartUpload</code> document: the part
+	 * numbers and ETags of the parts of the object.
+	 * 
+	 * @param xml
+	 *            The document.
+	 * @return The parts named, in document order, with their part numbers
+	 *         and ETags only.
+	 * @throws IOException
+	 *             Unable to read the document, or it is malformed.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static List<UploadPart> decodeCompleteMultipartUpload(
+			InputStream xml) throws IOException {
+		List<UploadPart> parts = new ArrayList<UploadPart>();
+		Element root;
+		Namespace namespace;
+
+		try {
+			root = new SAXBuilder().build(xml).getRootElement();
+		} catch (JDOMException e) {
+			IOException ioe = new IOException("Unable to parse: "
+					+ e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		if (!"CompleteMultipartUpload".equals(root.getName())) {
+			throw new IOException("Invalid root element: " + root.getName());
+		}
+		namespace = root.getNamespace();
+
+		for (Iterator<Element> iter = root.getChildren("Part", namespace)
+				.iterator(); iter.hasNext();) {
+			Element part = iter.next();
+			String partNumber = part.getChildTextTrim("PartNumber", namespace);
+			String eTag = part.getChildTextTrim("ETag", namespace);
+
+			if ((partNumber == null) || (eTag == null)) {
+				throw new IOException("Part without PartNumber or ETag");
+			}
+
+			try {
+				parts.add(new UploadPart(Integer.parseInt(partNumber), eTag,
+						0, 0, null));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid PartNumber: " + partNumber);
+			}
+		}
+
+		return parts;
+	}
+
+	/**
+	 * Get the storage service.
+	 * 
+	 * @return The storage service.
+	 */
+	protected StorageService getStorageService() {
+		return (StorageService) getWebApplicationContext().getBean(
+				BEAN_STORAGE_SERVICE);
+	}
+
+	/**
+	 * Get the optional object cache.
+	 * 
+	 * @return The object cache, or <code>null</code> if objects are not
+	 *         cached.
+	 */
+	protected ObjectCache getObjectCache() {
+		if (getWebApplicationContext().containsBean(BEAN_OBJECT_CACHE)) {
+			return (ObjectCache) getWebApplicationContext().getBean(
+					BEAN_OBJECT_CACHE);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove an object from the object cache, if there is one. Must be called
+	 * whenever an object is stored or removed.
+	 * 
+	 * @param bucket
+	 *            The bucket of the object.
+	 * @param key
+	 *            The key of the object.
+	 */
+	protected void invalidateObjectCache(String bucket, String key) {
+		ObjectCache objectCache = getObjectCache();
+
+		if (objectCache != null) {
+			objectCache.invalidate(bucket, key);
+		}
+	}
+
+	/**
+	 * Send a portion of the object data as the response body. If the container
+	 * supports "sendfile" and the object data is a local file, the container
+	 * is asked to send the file directly. Otherwise the data is written with
+	 * <code>S3Object.transferTo</code>.
+	 * 
+	 * @param req
+	 *            the request object that is passed to the servlet
+	 * @param resp
+	 *            the response object that the servlet uses to return the body
+	 *            to the client
+	 * @param s3Object
+	 *            The object whose data is sent.
+	 * @param position
+	 *            The position in the object data to start sending from.
+	 * @param length
+	 *            The number of bytes to send.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected void sendContent(HttpServletRequest req,
+			HttpServletResponse resp, S3Object s3Object, long position,
+			long length) throws IOException {
+		if (isHeadRequest(req)) {
+			// headers only
+			return;
+		}
+
+		if (configuration.getBoolean(CONFIG_TRANSFER_SENDFILE, true)
+				&& Boolean.TRUE.equals(req
+						.getAttribute(ATTRIBUTE_SENDFILE_SUPPORT))
+				&& (s3Object instanceof FileS3Object)) {
+			File storageFile = ((FileS3Object) s3Object).getStorageFile();
+
+			if (storageFile != null) {
+				req.setAttribute(ATTRIBUTE_SENDFILE_FILENAME, storageFile
+						.getAbsolutePath());
+				req.setAttribute(ATTRIBUTE_SENDFILE_START, new Long(position));
+				req.setAttribute(ATTRIBUTE_SENDFILE_END, new Long(position
+						+ length));
+				return;
+			}
+		}
+
+		OutputStream out = resp.getOutputStream();
+
+		s3Object.transferTo(position, length, out);
+
+		out.flush(); // commit response
+		out.close();
+	}
+
+	/**
+	 * Send several ranges of the object data as a
+	 * <code>multipart/byteranges</code> response body. The ranges must be
+	 * resolved, sorted and must not overlap. The part headers are computed up
+	 * front so that an exact <code>Content-Length</code> can be sent, and each
+	 * part is written with a single <code>S3Object.transferTo</code>, so no
+	 * object data is buffered in memory.
+	 * 
+	 * @param req
+	 *            the request object that is passed to the servlet
+	 * @param resp
+	 *            the response object that the servlet uses to return the body
+	 *            to the client
+	 * @param s3Object
+	 *            The object whose data is sent.
+	 * @param ranges
+	 *            The resolved ranges of the object data to send.
+	 * @throws IOException
+	 *             if an input or output error occurs
+	 */
+	protected void sendMultipartContent(HttpServletRequest req,
+			HttpServletResponse resp, S3Object s3Object, Range[] ranges)
+			throws IOException {
+		long absoluteLength = s3Object.getContentLength();
+		byte[][] partHeaders = new byte[ranges.length][];
+		byte[] trailer;
+		long contentLength = 0;
+
+		for (int i = 0; i < ranges.length; i++) {
+			StringBuffer buffer = new StringBuffer();
+
+			buffer.append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n");
+			buffer.append("Content-Type: ").append(s3Object.getContentType())
+					.append("\r\n");
+			buffer.append("Content-Range: ").append(
+					formatRangeHeaderValue(ranges[i], absoluteLength)).append(
+					"\r\n");
+			buffer.append("\r\n");
+
+			partHeaders[i] = buffer.toString().getBytes("ISO-8859-1");
+			contentLength += partHeaders[i].length + ranges[i].getLength();
+		}
+		trailer = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n")
+				.getBytes("ISO-8859-1");
+		contentLength += trailer.length;
+
+		resp.setContentType("multipart/byteranges; boundary="
+				+ MULTIPART_BOUNDARY);
+		resp.setHeader("Content-Length", Long.toString(contentLength));
+
+		if (isHeadRequest(req)) {
+			// headers only
+			return;
+		}
+
+		OutputStream out = resp.getOutputStream();
+
+		for (int i = 0; i < ranges.length; i++) {
+			out.write(partHeaders[i]);
+			s3Object.transferTo(ranges[i].getStart(), ranges[i].getLength(),
+					out);
+		}
+		out.write(trailer);
+
+		out.flush(); // commit response
+		out.close();
+	}
+
 	public static String formatRangeHeaderValue(Range range, long absoluteLength) {
 		StringBuffer buffer = new StringBuffer();
 
@@ -1253,4 +2342,4 @@ public class StorageEngine extends FrameworkServlet {
 
 		return configHost;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
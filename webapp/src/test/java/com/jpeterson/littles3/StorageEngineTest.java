@@ -0,0 +1,397 @@
+/*
+ * Copyright 2007 Jesse Peterson
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jpeterson.littles3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import com.jpeterson.littles3.bo.Acp;
+import com.jpeterson.littles3.bo.Bucket;
+import com.jpeterson.littles3.bo.CanonicalUser;
+import com.jpeterson.littles3.bo.FileS3Object;
+import com.jpeterson.littles3.bo.MultipartUpload;
+import com.jpeterson.littles3.bo.ResourcePermission;
+import com.jpeterson.littles3.bo.S3Object;
+import com.jpeterson.littles3.service.QuotaExceededException;
+import com.jpeterson.littles3.service.StorageService;
+
+public class StorageEngineTest extends MockObjectTestCase {
+	private static final CanonicalUser OWNER = new CanonicalUser("owner");
+
+	private Log logger;
+
+	private File file;
+
+	private S3Object s3Object;
+
+	private Bucket bucket;
+
+	/**
+	 * Create the test case
+	 * 
+	 * @param testName
+	 *            name of the test case
+	 */
+	public StorageEngineTest(String testName) {
+		super(testName);
+
+		logger = LogFactory.getLog(this.getClass());
+		logger.debug("StorageEngineTest");
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(StorageEngineTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("StorageEngineTest", null);
+		file.delete();
+		s3Object = new FileS3Object("bucket", "key", file.toURI().toURL());
+		bucket = new Bucket();
+		bucket.setName("bucket");
+		bucket.setAcp(new Acp());
+		bucket.getAcp().setOwner(OWNER);
+		bucket.getAcp().grant(OWNER, ResourcePermission.ACTION_FULL_CONTROL);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	/**
+	 * Test writing a streamed body, its length and MD5 computed on the fly.
+	 */
+	public void test_writeObjectData() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("checkQuota").with(same(bucket),
+				NULL, eq(new Long(5)));
+
+		assertTrue("Unexpected value", new MyStorageEngine().writeObjectData(
+				request("chunked", null, "hello"),
+				(HttpServletResponse) resp.proxy(),
+				(StorageService) storageService.proxy(), bucket, null,
+				s3Object, StorageEngine.UNKNOWN_CONTENT_LENGTH));
+		assertEquals("Unexpected value", 5, s3Object.getContentLength());
+		assertEquals("Unexpected value", "5d41402abc4b2a76b9719d911017c592",
+				s3Object.getETag());
+		assertTrue("Should be written", file.exists());
+	}
+
+	/**
+	 * Test that a streamed body taking the bucket over its quota is refused
+	 * once read, and its data deleted.
+	 */
+	public void test_writeObjectData_quotaExceeded() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("checkQuota").with(same(bucket),
+				NULL, eq(new Long(5))).will(
+				throwException(new QuotaExceededException("over quota")));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_FORBIDDEN), eq("QuotaExceeded"));
+
+		assertFalse("Unexpected value", new MyStorageEngine()
+				.writeObjectData(request("chunked", null, "hello"),
+						(HttpServletResponse) resp.proxy(),
+						(StorageService) storageService.proxy(), bucket,
+						null, s3Object, StorageEngine.UNKNOWN_CONTENT_LENGTH));
+		assertFalse("Should be deleted", file.exists());
+	}
+
+	/**
+	 * Test that a streamed body over the maximum object size is refused, and
+	 * its data deleted.
+	 */
+	public void test_writeObjectData_tooLarge() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_BAD_REQUEST), eq("EntityTooLarge"));
+
+		assertFalse("Unexpected value", new MyStorageEngine()
+				.writeObjectData(request("chunked", null, "hello world!"),
+						(HttpServletResponse) resp.proxy(),
+						(StorageService) storageService.proxy(), bucket,
+						null, s3Object, StorageEngine.UNKNOWN_CONTENT_LENGTH));
+		assertFalse("Should be deleted", file.exists());
+	}
+
+	/**
+	 * Test that a malformed <code>aws-chunked</code> body is refused, and
+	 * its data deleted.
+	 */
+	public void test_writeObjectData_malformed() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_BAD_REQUEST), eq("IncompleteBody"));
+
+		assertFalse("Unexpected value", new MyStorageEngine()
+				.writeObjectData(request(null, "aws-chunked",
+						"2\r\nhelloXX\r\n0\r\n\r\n"),
+						(HttpServletResponse) resp.proxy(),
+						(StorageService) storageService.proxy(), bucket,
+						null, s3Object, StorageEngine.UNKNOWN_CONTENT_LENGTH));
+		assertFalse("Should be deleted", file.exists());
+	}
+
+	/**
+	 * Test that a PUT to a bucket the requestor may not write to is refused
+	 * before the body is read.
+	 */
+	public void test_putObject_accessDenied() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(returnValue(bucket));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_FORBIDDEN), eq("AccessDenied"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.putObject(unreadRequest("5"), (HttpServletResponse) resp
+						.proxy(), objectRequest(new CanonicalUser("other")));
+	}
+
+	/**
+	 * Test that a PUT taking the bucket over its quota is refused before the
+	 * body is read.
+	 */
+	public void test_putObject_quotaExceeded() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(returnValue(bucket));
+		storageService.expects(once()).method("load").with(eq("bucket"),
+				eq("key")).will(
+				throwException(new DataRetrievalFailureException("no key")));
+		storageService.expects(once()).method("checkQuota").with(same(bucket),
+				NULL, eq(new Long(5))).will(
+				throwException(new QuotaExceededException("over quota")));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_FORBIDDEN), eq("QuotaExceeded"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.putObject(unreadRequest("5"), (HttpServletResponse) resp
+						.proxy(), objectRequest(OWNER));
+	}
+
+	/**
+	 * Test that a PUT to a bucket that does not exist is refused before the
+	 * body is read.
+	 */
+	public void test_putObject_noSuchBucket() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(
+						throwException(new DataRetrievalFailureException(
+								"no bucket")));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_NOT_FOUND), eq("NoSuchBucket"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.putObject(unreadRequest("5"), (HttpServletResponse) resp
+						.proxy(), objectRequest(OWNER));
+	}
+
+	/**
+	 * Test that a PUT of unknown length, not streamed, is refused before the
+	 * body is read.
+	 */
+	public void test_putObject_missingContentLength() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(returnValue(bucket));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_LENGTH_REQUIRED),
+				eq("MissingContentLength"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.putObject(unreadRequest(null), (HttpServletResponse) resp
+						.proxy(), objectRequest(OWNER));
+	}
+
+	/**
+	 * Test that a PUT over the maximum object size is refused before the body
+	 * is read.
+	 */
+	public void test_putObject_tooLarge() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(returnValue(bucket));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_BAD_REQUEST), eq("EntityTooLarge"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.putObject(unreadRequest("11"), (HttpServletResponse) resp
+						.proxy(), objectRequest(OWNER));
+	}
+
+	/**
+	 * Test that a part uploaded to a bucket the requestor may not write to is
+	 * refused before the body is read.
+	 */
+	public void test_uploadPart_accessDenied() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(returnValue(bucket));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_FORBIDDEN), eq("AccessDenied"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.uploadPart(unreadRequest("5"), (HttpServletResponse) resp
+						.proxy(), objectRequest(new CanonicalUser("other")));
+	}
+
+	/**
+	 * Test that a part over the maximum object size is refused before the
+	 * body is read.
+	 */
+	public void test_uploadPart_tooLarge() throws IOException {
+		Mock storageService = mock(StorageService.class);
+		Mock resp = mock(HttpServletResponse.class);
+
+		storageService.expects(once()).method("loadBucket").with(eq("bucket"))
+				.will(returnValue(bucket));
+		storageService.expects(once()).method("loadMultipartUpload").with(
+				eq("bucket"), eq("key"), eq("upload")).will(
+				returnValue(new MultipartUpload("upload", 0, s3Object)));
+		resp.expects(once()).method("sendError").with(
+				eq(HttpServletResponse.SC_BAD_REQUEST), eq("EntityTooLarge"));
+
+		new MyStorageEngine((StorageService) storageService.proxy())
+				.uploadPart(unreadRequest("11"), (HttpServletResponse) resp
+						.proxy(), objectRequest(OWNER));
+	}
+
+	/**
+	 * A request to store <code>bucket/key</code>, or its part
+	 * <code>1</code>, whose body must not be read.
+	 */
+	private HttpServletRequest unreadRequest(String contentLength) {
+		Mock req = mock(HttpServletRequest.class);
+
+		req.stubs().method("getHeader").will(returnValue(null));
+		req.stubs().method("getHeader").with(eq("Content-Length")).will(
+				returnValue(contentLength));
+		req.stubs().method("getParameter").will(returnValue(null));
+		req.stubs().method("getParameter").with(eq("partNumber")).will(
+				returnValue("1"));
+		req.stubs().method("getParameter").with(eq("uploadId")).will(
+				returnValue("upload"));
+		req.expects(never()).method("getInputStream");
+
+		return (HttpServletRequest) req.proxy();
+	}
+
+	private S3ObjectRequest objectRequest(CanonicalUser requestor) {
+		S3ObjectRequest or = new S3ObjectRequest();
+
+		or.setBucket("bucket");
+		or.setKey("key");
+		or.setRequestor(requestor);
+
+		return or;
+	}
+
+	private HttpServletRequest request(String transferEncoding,
+			String contentEncoding, String body) throws IOException {
+		Mock req = mock(HttpServletRequest.class);
+		final InputStream in = new ByteArrayInputStream(body
+				.getBytes("ISO-8859-1"));
+
+		req.stubs().method("getHeader").will(returnValue(null));
+		req.stubs().method("getHeader").with(eq("Transfer-Encoding")).will(
+				returnValue(transferEncoding));
+		req.stubs().method("getHeader").with(eq("Content-Encoding")).will(
+				returnValue(contentEncoding));
+		req.stubs().method("getInputStream").will(
+				returnValue(new ServletInputStream() {
+					@Override
+					public int read() throws IOException {
+						return in.read();
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len)
+							throws IOException {
+						return in.read(b, off, len);
+					}
+				}));
+
+		return (HttpServletRequest) req.proxy();
+	}
+
+	private class MyStorageEngine extends StorageEngine {
+		private static final long serialVersionUID = 1L;
+
+		private StorageService storageService;
+
+		public MyStorageEngine() {
+			super();
+		}
+
+		public MyStorageEngine(StorageService storageService) {
+			super();
+			this.storageService = storageService;
+		}
+
+		@Override
+		protected StorageService getStorageService() {
+			return storageService;
+		}
+
+		@Override
+		protected long getMaxContentLength() {
+			return 10;
+		}
+	}
+}